@@ -16,6 +16,7 @@
 
 package com.google.android.apps.forscience.whistlepunk.opensource.modules;
 
+import com.google.android.apps.forscience.whistlepunk.performance.HistogramPerfTrackerProvider;
 import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
 import dagger.Module;
 import dagger.Provides;
@@ -24,6 +25,6 @@ import dagger.Provides;
 public class PerfTrackerModule {
   @Provides
   public PerfTrackerProvider providesPerfTracker() {
-    return PerfTrackerProvider.STUB;
+    return new HistogramPerfTrackerProvider();
   }
 }
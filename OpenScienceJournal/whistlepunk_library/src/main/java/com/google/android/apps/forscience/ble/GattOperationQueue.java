@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.util.Log;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Issues the operations on one GATT connection in order.
+ *
+ * <p>Android drops any operation issued while another on the same connection is waiting for its
+ * callback, so only one is ever outstanding. The next one is issued straight from the callback of
+ * the one before, rather than posted to another thread, and one whose callback never comes is
+ * given up after a timeout rather than stalling the connection.
+ *
+ * <p>Operations queued while disconnected wait until {@link #onConnected} is called.
+ */
+public class GattOperationQueue {
+  private static final String TAG = "GattOperationQueue";
+
+  /** How long to wait for the callback of an operation before going on without it. */
+  public static final Delay DEFAULT_TIMEOUT = Delay.seconds(5);
+
+  /** The kinds of operation, each completed by a different callback. */
+  public enum Type {
+    DISCOVER_SERVICES,
+    READ,
+    WRITE,
+    SET_NOTIFICATION,
+    REQUEST_MTU,
+    /** Completes as soon as it is issued, as Android has no callback for it. */
+    REQUEST_CONNECTION_PRIORITY
+  }
+
+  /**
+   * The operations of a GATT connection. Each returns false if the operation could not be started,
+   * in which case no callback will come for it.
+   */
+  public interface Gatt {
+    boolean discoverServices();
+
+    boolean readCharacteristic(String characteristic);
+
+    boolean writeCharacteristic(String characteristic, byte[] value);
+
+    /** Turns notifications of a characteristic on or off, and writes its descriptor to match. */
+    boolean setNotification(String characteristic, boolean enable);
+
+    boolean requestMtu(int mtu);
+
+    boolean requestConnectionPriority(int priority);
+  }
+
+  /** One operation to issue. */
+  public static class Operation {
+    private final Type type;
+    private final String characteristic;
+    private final byte[] value;
+    private final int param;
+
+    private Operation(Type type, String characteristic, byte[] value, int param) {
+      this.type = type;
+      this.characteristic = characteristic;
+      this.value = value;
+      this.param = param;
+    }
+
+    public static Operation discoverServices() {
+      return new Operation(Type.DISCOVER_SERVICES, null, null, 0);
+    }
+
+    public static Operation read(String characteristic) {
+      return new Operation(Type.READ, characteristic, null, 0);
+    }
+
+    public static Operation write(String characteristic, byte[] value) {
+      return new Operation(Type.WRITE, characteristic, value, 0);
+    }
+
+    public static Operation enableNotification(String characteristic) {
+      return new Operation(Type.SET_NOTIFICATION, characteristic, null, 1);
+    }
+
+    public static Operation disableNotification(String characteristic) {
+      return new Operation(Type.SET_NOTIFICATION, characteristic, null, 0);
+    }
+
+    public static Operation requestMtu(int mtu) {
+      return new Operation(Type.REQUEST_MTU, null, null, mtu);
+    }
+
+    public static Operation requestConnectionPriority(int priority) {
+      return new Operation(Type.REQUEST_CONNECTION_PRIORITY, null, null, priority);
+    }
+
+    public Type getType() {
+      return type;
+    }
+
+    private boolean issue(Gatt gatt) {
+      switch (type) {
+        case DISCOVER_SERVICES:
+          return gatt.discoverServices();
+        case READ:
+          return gatt.readCharacteristic(characteristic);
+        case WRITE:
+          return gatt.writeCharacteristic(characteristic, value);
+        case SET_NOTIFICATION:
+          return gatt.setNotification(characteristic, param != 0);
+        case REQUEST_MTU:
+          return gatt.requestMtu(param);
+        case REQUEST_CONNECTION_PRIORITY:
+          return gatt.requestConnectionPriority(param);
+        default:
+          return false;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return type + (characteristic == null ? "(" + param + ")" : "(" + characteristic + ")");
+    }
+  }
+
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final Delay timeout;
+  private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+  private Gatt gatt;
+  private Operation inFlight;
+  private Runnable timeoutTask;
+  private long connectedAt = -1;
+
+  public GattOperationQueue(Scheduler scheduler, Clock clock, Delay timeout) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.timeout = timeout;
+  }
+
+  /** Queues an operation, issuing it at once if connected and nothing else is outstanding. */
+  public synchronized void enqueue(Operation operation) {
+    pending.add(operation);
+    issueNext();
+  }
+
+  /**
+   * Starts issuing operations on a new connection, beginning with {@code setup}. Operations left
+   * over from before are dropped, so {@code setup} must include everything still needed, such as
+   * notifications to turn back on.
+   */
+  public synchronized void onConnected(Gatt gatt, List<Operation> setup) {
+    this.gatt = gatt;
+    cancelInFlight();
+    pending.clear();
+    pending.addAll(setup);
+    connectedAt = clock.getNow();
+    issueNext();
+  }
+
+  /** Stops issuing operations until the next connection. */
+  public synchronized void onDisconnected() {
+    gatt = null;
+    cancelInFlight();
+    connectedAt = -1;
+  }
+
+  /** Called from the callback that completes an operation of the given type. */
+  public synchronized void onComplete(Type type) {
+    if (inFlight == null || inFlight.getType() != type) {
+      // Late callback of an operation that timed out.
+      return;
+    }
+    cancelInFlight();
+    issueNext();
+  }
+
+  /** @return whether any operation is outstanding or waiting to be issued. */
+  public synchronized boolean isBusy() {
+    return inFlight != null || !pending.isEmpty();
+  }
+
+  private void issueNext() {
+    while (inFlight == null && gatt != null && !pending.isEmpty()) {
+      Operation operation = pending.poll();
+      inFlight = operation;
+      if (!operation.issue(gatt)) {
+        Log.w(TAG, "Could not start " + operation);
+        inFlight = null;
+      } else if (operation.getType() == Type.REQUEST_CONNECTION_PRIORITY) {
+        inFlight = null;
+      } else if (inFlight == operation) {
+        Runnable task = () -> onTimeout(operation);
+        timeoutTask = task;
+        scheduler.schedule(timeout, task);
+      }
+    }
+    if (connectedAt >= 0 && !isBusy()) {
+      PerfMetrics.getInstance()
+          .record(PerfMetrics.GATT_CONNECTION_SETUP_MILLIS, clock.getNow() - connectedAt);
+      connectedAt = -1;
+    }
+  }
+
+  private synchronized void onTimeout(Operation operation) {
+    if (inFlight != operation) {
+      return;
+    }
+    Log.w(TAG, "Timed out waiting for " + operation);
+    PerfMetrics.getInstance().increment(PerfMetrics.GATT_OPERATION_TIMEOUTS);
+    timeoutTask = null;
+    inFlight = null;
+    issueNext();
+  }
+
+  private void cancelInFlight() {
+    if (timeoutTask != null) {
+      scheduler.unschedule(timeoutTask);
+      timeoutTask = null;
+    }
+    inFlight = null;
+  }
+}
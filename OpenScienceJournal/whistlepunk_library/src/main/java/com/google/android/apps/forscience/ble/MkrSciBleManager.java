@@ -1,6 +1,5 @@
 package com.google.android.apps.forscience.ble;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -10,15 +9,15 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import java.nio.ByteBuffer;
+import android.os.Build;
+import android.os.SystemClock;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import com.google.android.apps.forscience.whistlepunk.sensors.SystemScheduler;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Executors;
 
 /**
  * This is the entry point for subscribing a sensor and receiving data from an Arduino MKR SCI
@@ -38,7 +37,7 @@ public class MkrSciBleManager {
 
   public static final String SERVICE_UUID = "555a0001-0000-467a-9538-01f0652c74e8";
 
-  private static final String VERSION_UUID = "555a0001-0001-467a-9538-01f0652c74e8";
+  static final String VERSION_UUID = "555a0001-0001-467a-9538-01f0652c74e8";
 
   public static final String INPUT_1_UUID = "555a0001-2001-467a-9538-01f0652c74e8";
   public static final String INPUT_2_UUID = "555a0001-2002-467a-9538-01f0652c74e8";
@@ -50,136 +49,87 @@ public class MkrSciBleManager {
   public static final String GYROSCOPE_UUID = "555a0001-5002-467a-9538-01f0652c74e8";
   public static final String MAGNETOMETER_UUID = "555a0001-5003-467a-9538-01f0652c74e8";
 
-  private static final double MAX_VALUE = 2000000000D;
-  private static final double MIN_VALUE = -2000000000D;
-
-  private static final Handler handler = new Handler(Looper.getMainLooper());
-
-  // device bt address > gatt handler
-  private static final Map<String, GattHandler> gattHandlers = new HashMap<>();
+  private static MkrSciSessionManager sessionManager;
+
+  private static synchronized MkrSciSessionManager getSessionManager(Context context) {
+    if (sessionManager == null) {
+      Context appContext = context.getApplicationContext();
+      // Notifications are timestamped on arrival with elapsed realtime, and decoded and delivered
+      // on a thread of their own.
+      sessionManager =
+          new MkrSciSessionManager(
+              (address, callback) -> {
+                BluetoothManager manager =
+                    (BluetoothManager) appContext.getSystemService(Context.BLUETOOTH_SERVICE);
+                if (manager == null) {
+                  return null;
+                }
+                BluetoothDevice device = manager.getAdapter().getRemoteDevice(address);
+                return new GattConnection(appContext, device, callback);
+              },
+              new SystemScheduler(),
+              SystemClock::elapsedRealtime,
+              PerfMetrics.getInstance()
+                  .instrumentExecutor(
+                      "mkrSciBleNotifications", Executors.newSingleThreadExecutor()));
+    }
+    return sessionManager;
+  }
 
   public static void subscribe(
       Context context, String address, String characteristic, Listener listener) {
-    synchronized (gattHandlers) {
-      GattHandler gattHandler = gattHandlers.get(address);
-      if (gattHandler == null) {
-        BluetoothManager manager =
-            (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-        if (manager == null) {
-          return;
-        }
-        BluetoothAdapter adapter = manager.getAdapter();
-        BluetoothDevice device = adapter.getRemoteDevice(address);
-        gattHandler = new GattHandler();
-        gattHandlers.put(address, gattHandler);
-        device.connectGatt(context, true /* autoConnect */, gattHandler);
-      }
-      gattHandler.subscribe(characteristic, listener);
-    }
+    getSessionManager(context).subscribe(address, characteristic, listener);
   }
 
   public static void unsubscribe(String address, String characteristic, Listener listener) {
-    synchronized (gattHandlers) {
-      GattHandler gattHandler = gattHandlers.get(address);
-      if (gattHandler != null) {
-        gattHandler.unsubscribe(characteristic, listener);
-        handler.postDelayed(
-            () -> {
-              synchronized (gattHandlers) {
-                if (!gattHandler.hasSubscribers()) {
-                  gattHandlers.remove(address);
-                  gattHandler.disconnect();
-                }
-              }
-            },
-            2000L);
-      }
+    MkrSciSessionManager manager;
+    synchronized (MkrSciBleManager.class) {
+      manager = sessionManager;
+    }
+    if (manager != null) {
+      manager.unsubscribe(address, characteristic, listener);
     }
   }
 
-  private static class GattHandler extends BluetoothGattCallback {
+  /** A board connection over the Android GATT API. */
+  private static class GattConnection extends BluetoothGattCallback
+      implements MkrSciBoardConnection {
 
     private static final UUID NOTIFICATION_DESCRIPTOR =
         UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private final Map<String, List<Listener>> listenersMap = new HashMap<>();
+    private final Context context;
+    private final BluetoothDevice device;
+    private final Callback callback;
 
     private BluetoothGatt gatt;
 
     private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
 
-    private final List<Runnable> gattActions = new ArrayList<>();
-
-    private boolean readyForAction = false;
-
-    private boolean busy = false;
-
-    private long firmwareVersion = -1;
-
-    private void disconnect() {
-      if (gatt != null) {
-        gatt.disconnect();
-      }
+    private GattConnection(Context context, BluetoothDevice device, Callback callback) {
+      this.context = context;
+      this.device = device;
+      this.callback = callback;
     }
 
-    private void subscribe(String characteristicUuid, Listener listener) {
-      boolean subscribe = false;
-      synchronized (listenersMap) {
-        List<Listener> listeners = listenersMap.get(characteristicUuid);
-        if (listeners == null) {
-          listeners = new ArrayList<>();
-          listenersMap.put(characteristicUuid, listeners);
-          subscribe = true;
-        }
-        listeners.add(listener);
-        if (firmwareVersion > -1) {
-          listener.onFirmwareVersion(firmwareVersion);
-        }
-      }
-      if (subscribe) {
-        enqueueGattAction(
-            () -> {
-              BluetoothGattCharacteristic c = getCharacteristic(characteristicUuid);
-              if (c != null) {
-                gatt.setCharacteristicNotification(c, true);
-                BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
-                d.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(d);
-              }
-            });
-      }
+    @Override
+    public synchronized void connect() {
+      // A direct connection is made much faster than a background one, and the session retries
+      // if it fails.
+      gatt = device.connectGatt(context, false /* autoConnect */, this);
     }
 
-    private void unsubscribe(String characteristicUuid, Listener listener) {
-      boolean unsubscribe = false;
-      synchronized (listenersMap) {
-        List<Listener> listeners = listenersMap.get(characteristicUuid);
-        if (listeners != null) {
-          listeners.remove(listener);
-          if (listeners.size() == 0) {
-            listenersMap.remove(characteristicUuid);
-            unsubscribe = true;
-          }
-        }
-      }
-      if (unsubscribe) {
-        enqueueGattAction(
-            () -> {
-              BluetoothGattCharacteristic c = getCharacteristic(characteristicUuid);
-              if (c != null) {
-                gatt.setCharacteristicNotification(c, true);
-                BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
-                d.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                gatt.writeDescriptor(d);
-              }
-            });
+    @Override
+    public synchronized void close() {
+      if (gatt != null) {
+        gatt.disconnect();
+        gatt.close();
+        gatt = null;
       }
     }
 
-    private boolean hasSubscribers() {
-      synchronized (listenersMap) {
-        return listenersMap.size() > 0;
-      }
+    private synchronized BluetoothGatt getGatt() {
+      return gatt;
     }
 
     private BluetoothGattCharacteristic getCharacteristic(String uuid) {
@@ -191,231 +141,108 @@ public class MkrSciBleManager {
       return null;
     }
 
-    private void enqueueGattAction(Runnable action) {
-      synchronized (gattActions) {
-        if (readyForAction && !busy) {
-          busy = true;
-          action.run();
-        } else {
-          gattActions.add(action);
-        }
-      }
+    @Override
+    public boolean discoverServices() {
+      BluetoothGatt gatt = getGatt();
+      characteristics.clear();
+      return gatt != null && gatt.discoverServices();
     }
 
-    private void onGattActionCompleted() {
-      synchronized (gattActions) {
-        if (readyForAction && gattActions.size() > 0) {
-          busy = true;
-          gattActions.remove(0).run();
-        } else {
-          busy = false;
-        }
+    @Override
+    public boolean readCharacteristic(String characteristic) {
+      BluetoothGatt gatt = getGatt();
+      BluetoothGattCharacteristic c = getCharacteristic(characteristic);
+      return gatt != null && c != null && gatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(String characteristic, byte[] value) {
+      BluetoothGatt gatt = getGatt();
+      BluetoothGattCharacteristic c = getCharacteristic(characteristic);
+      return gatt != null && c != null && c.setValue(value) && gatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean setNotification(String characteristic, boolean enable) {
+      BluetoothGatt gatt = getGatt();
+      BluetoothGattCharacteristic c = getCharacteristic(characteristic);
+      if (gatt == null || c == null) {
+        return false;
       }
+      BluetoothGattDescriptor d = c.getDescriptor(NOTIFICATION_DESCRIPTOR);
+      if (d == null || !gatt.setCharacteristicNotification(c, enable)) {
+        return false;
+      }
+      d.setValue(
+          enable
+              ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+              : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+      return gatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      BluetoothGatt gatt = getGatt();
+      return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+          && gatt != null
+          && gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      BluetoothGatt gatt = getGatt();
+      return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+          && gatt != null
+          && gatt.requestConnectionPriority(priority);
     }
 
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
       if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
-        this.gatt = gatt;
-        characteristics.clear();
-        gatt.discoverServices();
+        callback.onConnected();
       } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-        readyForAction = false;
-        gatt.disconnect();
+        callback.onDisconnected();
       }
     }
 
     @Override
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-      BluetoothGattService service = this.gatt.getService(UUID.fromString(SERVICE_UUID));
+      BluetoothGattService service = gatt.getService(UUID.fromString(SERVICE_UUID));
       if (service != null) {
         characteristics.addAll(service.getCharacteristics());
       }
-      BluetoothGattCharacteristic c = getCharacteristic(VERSION_UUID);
-      if (c != null) {
-        this.gatt.readCharacteristic(c);
-      }
+      callback.onOperationComplete(GattOperationQueue.Type.DISCOVER_SERVICES);
     }
 
     @Override
-    public void onDescriptorRead(
-        BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-      onGattActionCompleted();
+    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+      callback.onOperationComplete(GattOperationQueue.Type.REQUEST_MTU);
     }
 
     @Override
     public void onDescriptorWrite(
         BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-      onGattActionCompleted();
+      callback.onOperationComplete(GattOperationQueue.Type.SET_NOTIFICATION);
     }
 
     @Override
     public void onCharacteristicRead(
         BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-      final String uuid = characteristic.getUuid().toString();
-      if (VERSION_UUID.equals(uuid) && firmwareVersion == -1) {
-        final byte[] value = characteristic.getValue();
-        if (value.length == 4) {
-          final ByteBuffer buffer = ByteBuffer.allocate(8);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put((byte) 0);
-          buffer.put(value[3]);
-          buffer.put(value[2]);
-          buffer.put(value[1]);
-          buffer.put(value[0]);
-          buffer.position(0);
-          firmwareVersion = buffer.getLong();
-          // delivering to listener(s)
-          synchronized (listenersMap) {
-            for (List<Listener> listeners : listenersMap.values()) {
-              if (listeners != null) {
-                for (Listener l : listeners) {
-                  l.onFirmwareVersion(firmwareVersion);
-                }
-              }
-            }
-          }
-        }
-        readyForAction = true;
-      }
-      onGattActionCompleted();
+      callback.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue());
+      callback.onOperationComplete(GattOperationQueue.Type.READ);
     }
 
     @Override
     public void onCharacteristicWrite(
         BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-      onGattActionCompleted();
+      callback.onOperationComplete(GattOperationQueue.Type.WRITE);
     }
 
     @Override
     public void onCharacteristicChanged(
         BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-      final String uuid = characteristic.getUuid().toString();
-      final ValueType type;
-      switch (uuid) {
-        case INPUT_1_UUID:
-        case INPUT_2_UUID:
-        case INPUT_3_UUID:
-          type = ValueType.UINT16;
-          break;
-        case VOLTAGE_UUID:
-        case CURRENT_UUID:
-        case RESISTANCE_UUID:
-          type = ValueType.SFLOAT;
-          break;
-        case ACCELEROMETER_UUID:
-        case GYROSCOPE_UUID:
-        case MAGNETOMETER_UUID:
-          type = ValueType.SFLOAT_ARR;
-          break;
-        default:
-          type = null;
-      }
-      if (type != null) {
-        final double[] values = parse(type, characteristic.getValue());
-        if (values != null) {
-          // filter to avoid too large values blocking the UI
-          for (int i = 0; i < values.length; i++) {
-            if (values[i] > MAX_VALUE) {
-              values[i] = MAX_VALUE;
-            } else if (values[i] < MIN_VALUE) {
-              values[i] = MIN_VALUE;
-            }
-          }
-          // delivering to listener(s)
-          synchronized (listenersMap) {
-            List<Listener> listeners = listenersMap.get(uuid);
-            if (listeners != null) {
-              for (Listener l : listeners) {
-                l.onValuesUpdated(values);
-              }
-            }
-          }
-        }
-      }
-    }
-  }
-
-  private static double[] parse(ValueType valueType, byte[] value) {
-    if (ValueType.UINT8.equals(valueType)) {
-      if (value.length < 1) {
-        return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getInt()};
-    }
-    if (ValueType.UINT16.equals(valueType)) {
-      if (value.length < 2) {
-        return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getInt()};
+      callback.onNotification(characteristic.getUuid(), characteristic.getValue());
     }
-    if (ValueType.UINT32.equals(valueType)) {
-      if (value.length < 4) {
-        return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(8);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put((byte) 0);
-      buffer.put(value[3]);
-      buffer.put(value[2]);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getLong()};
-    }
-    if (ValueType.SFLOAT.equals(valueType)) {
-      if (value.length < 4) {
-        return null;
-      }
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      buffer.put(value[3]);
-      buffer.put(value[2]);
-      buffer.put(value[1]);
-      buffer.put(value[0]);
-      buffer.position(0);
-      return new double[] {buffer.getFloat()};
-    }
-    if (ValueType.SFLOAT_ARR.equals(valueType)) {
-      final int size = value.length / 4;
-      final double[] array = new double[size];
-      final ByteBuffer buffer = ByteBuffer.allocate(4);
-      for (int i = 0; i < size; i++) {
-        final int offset = 4 * i;
-        buffer.position(0);
-        buffer.put(value[3 + offset]);
-        buffer.put(value[2 + offset]);
-        buffer.put(value[1 + offset]);
-        buffer.put(value[offset]);
-        buffer.position(0);
-        array[i] = buffer.getFloat();
-      }
-      return array;
-    }
-    return null;
-  }
-
-  private enum ValueType {
-    UINT8,
-    UINT16,
-    UINT32,
-    SFLOAT,
-    SFLOAT_ARR
   }
 
   /**
@@ -425,6 +252,10 @@ public class MkrSciBleManager {
   public interface Listener {
     void onFirmwareVersion(long firmwareVersion);
 
-    void onValuesUpdated(double[] values);
+    /**
+     * @param ageMillis how long ago the values arrived. Values are passed on in batches, so may
+     *     arrive some time before this is called.
+     */
+    void onValuesUpdated(double[] values, long ageMillis);
   }
 }
@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import java.util.UUID;
+
+/** The GATT connection to one MKR SCI board, which reports what happens on it to a callback. */
+interface MkrSciBoardConnection extends GattOperationQueue.Gatt {
+  /** Creates the connection to the board at an address, or returns null if there is no radio. */
+  interface Factory {
+    MkrSciBoardConnection create(String address, Callback callback);
+  }
+
+  /** Called on the binder threads that Android delivers GATT callbacks on. */
+  interface Callback {
+    void onConnected();
+
+    /** Called when the connection is lost, or an attempt to connect fails. */
+    void onDisconnected();
+
+    /** Called when the outstanding operation of the given type completes. */
+    void onOperationComplete(GattOperationQueue.Type type);
+
+    /** Called before the read is reported complete. */
+    void onCharacteristicRead(UUID characteristic, byte[] value);
+
+    void onNotification(UUID characteristic, byte[] value);
+  }
+
+  /** Starts connecting, which ends in a call to either onConnected or onDisconnected. */
+  void connect();
+
+  /** Disconnects, with no callback, and releases the connection until the next connect. */
+  void close();
+}
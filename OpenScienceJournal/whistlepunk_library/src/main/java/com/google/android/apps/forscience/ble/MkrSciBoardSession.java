@@ -0,0 +1,225 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.bluetooth.BluetoothGatt;
+import com.google.android.apps.forscience.ble.GattOperationQueue.Operation;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * The one connection to an MKR SCI board, shared by everything observing its channels.
+ *
+ * <p>Notifications of a channel are turned on when it gets its first listener and off when it
+ * loses its last. If the connection drops, it is reconnected with exponential backoff and the
+ * notifications of every channel still listened to are turned back on, so listeners carry on
+ * without subscribing again. Values that arrived before the drop are still passed on, with the
+ * times they arrived.
+ */
+class MkrSciBoardSession implements MkrSciBoardConnection.Callback {
+  static final long FIRST_RECONNECT_DELAY_MILLIS = 500;
+  static final long MAX_RECONNECT_DELAY_MILLIS = 30000;
+
+  // Large enough for the longest notifications to fit in one packet during streaming.
+  private static final int STREAMING_MTU = 247;
+
+  private static final UUID VERSION_UUID = UUID.fromString(MkrSciBleManager.VERSION_UUID);
+
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final GattOperationQueue queue;
+  private final NotificationBatcher<MkrSciChannel> batcher;
+  private final Map<MkrSciChannel, List<MkrSciBleManager.Listener>> listenersMap =
+      new EnumMap<>(MkrSciChannel.class);
+  private final Runnable reconnect = this::reconnect;
+  private MkrSciBoardConnection connection;
+  private boolean closed = false;
+  private long reconnectDelayMillis = FIRST_RECONNECT_DELAY_MILLIS;
+  private long firmwareVersion = -1;
+
+  /**
+   * @param clock timestamps notifications as they arrive
+   * @param notificationExecutor decodes and delivers notifications
+   */
+  MkrSciBoardSession(Scheduler scheduler, Clock clock, Executor notificationExecutor) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    queue = new GattOperationQueue(scheduler, clock, GattOperationQueue.DEFAULT_TIMEOUT);
+    batcher = new NotificationBatcher<>(notificationExecutor, clock, this::onBatch);
+  }
+
+  /** Starts connecting over the given connection, which must have been created for this. */
+  synchronized void open(MkrSciBoardConnection connection) {
+    this.connection = connection;
+    connection.connect();
+  }
+
+  /** Disconnects for good. */
+  synchronized void close() {
+    closed = true;
+    scheduler.unschedule(reconnect);
+    queue.onDisconnected();
+    connection.close();
+  }
+
+  void subscribe(MkrSciChannel channel, MkrSciBleManager.Listener listener) {
+    synchronized (listenersMap) {
+      List<MkrSciBleManager.Listener> listeners = listenersMap.get(channel);
+      if (listeners == null) {
+        listeners = new ArrayList<>();
+        listenersMap.put(channel, listeners);
+        queue.enqueue(Operation.enableNotification(channel.getCharacteristic()));
+      }
+      listeners.add(listener);
+      if (firmwareVersion > -1) {
+        listener.onFirmwareVersion(firmwareVersion);
+      }
+    }
+  }
+
+  void unsubscribe(MkrSciChannel channel, MkrSciBleManager.Listener listener) {
+    synchronized (listenersMap) {
+      List<MkrSciBleManager.Listener> listeners = listenersMap.get(channel);
+      if (listeners != null) {
+        listeners.remove(listener);
+        if (listeners.size() == 0) {
+          listenersMap.remove(channel);
+          queue.enqueue(Operation.disableNotification(channel.getCharacteristic()));
+          if (listenersMap.isEmpty()) {
+            queue.enqueue(
+                Operation.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED));
+          }
+        }
+      }
+    }
+  }
+
+  boolean hasSubscribers() {
+    synchronized (listenersMap) {
+      return listenersMap.size() > 0;
+    }
+  }
+
+  @Override
+  public synchronized void onConnected() {
+    if (closed) {
+      return;
+    }
+    reconnectDelayMillis = FIRST_RECONNECT_DELAY_MILLIS;
+    // Raise the connection priority first, so that the rest of the setup goes faster, and turn
+    // notifications back on for everything listened to before this connection.
+    List<Operation> setup = new ArrayList<>();
+    setup.add(Operation.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH));
+    setup.add(Operation.requestMtu(STREAMING_MTU));
+    setup.add(Operation.discoverServices());
+    setup.add(Operation.read(MkrSciBleManager.VERSION_UUID));
+    synchronized (listenersMap) {
+      for (MkrSciChannel channel : listenersMap.keySet()) {
+        setup.add(Operation.enableNotification(channel.getCharacteristic()));
+      }
+      queue.onConnected(connection, setup);
+    }
+  }
+
+  @Override
+  public synchronized void onDisconnected() {
+    queue.onDisconnected();
+    if (closed) {
+      return;
+    }
+    connection.close();
+    scheduler.schedule(Delay.millis(reconnectDelayMillis), reconnect);
+    reconnectDelayMillis = Math.min(reconnectDelayMillis * 2, MAX_RECONNECT_DELAY_MILLIS);
+  }
+
+  private synchronized void reconnect() {
+    if (!closed) {
+      PerfMetrics.getInstance().increment(PerfMetrics.MKR_SCI_RECONNECTS);
+      connection.connect();
+    }
+  }
+
+  @Override
+  public void onOperationComplete(GattOperationQueue.Type type) {
+    queue.onComplete(type);
+  }
+
+  @Override
+  public void onCharacteristicRead(UUID characteristic, byte[] value) {
+    if (!VERSION_UUID.equals(characteristic) || value == null || value.length != 4) {
+      return;
+    }
+    synchronized (listenersMap) {
+      if (firmwareVersion != -1) {
+        return;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put(value[3]);
+      buffer.put(value[2]);
+      buffer.put(value[1]);
+      buffer.put(value[0]);
+      buffer.position(0);
+      firmwareVersion = buffer.getLong();
+      // delivering to listener(s)
+      for (List<MkrSciBleManager.Listener> listeners : listenersMap.values()) {
+        for (MkrSciBleManager.Listener l : listeners) {
+          l.onFirmwareVersion(firmwareVersion);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void onNotification(UUID characteristic, byte[] value) {
+    MkrSciChannel channel = MkrSciChannel.forUuid(characteristic);
+    if (channel != null) {
+      batcher.add(channel, value);
+    }
+  }
+
+  private void onBatch(MkrSciChannel channel, NotificationBatcher.Batch batch) {
+    final long now = clock.getNow();
+    synchronized (listenersMap) {
+      List<MkrSciBleManager.Listener> listeners = listenersMap.get(channel);
+      if (listeners == null) {
+        return;
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        final double[] values = channel.decode(batch.getValue(i));
+        if (values != null) {
+          long ageMillis = now - batch.getArrivalTime(i);
+          for (MkrSciBleManager.Listener l : listeners) {
+            l.onValuesUpdated(values, ageMillis);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The channels of an Arduino MKR SCI board, each a characteristic of its service, with how to
+ * decode the values it notifies.
+ */
+enum MkrSciChannel {
+  INPUT_1(MkrSciBleManager.INPUT_1_UUID, ValueType.UINT16),
+  INPUT_2(MkrSciBleManager.INPUT_2_UUID, ValueType.UINT16),
+  INPUT_3(MkrSciBleManager.INPUT_3_UUID, ValueType.UINT16),
+  VOLTAGE(MkrSciBleManager.VOLTAGE_UUID, ValueType.SFLOAT),
+  CURRENT(MkrSciBleManager.CURRENT_UUID, ValueType.SFLOAT),
+  RESISTANCE(MkrSciBleManager.RESISTANCE_UUID, ValueType.SFLOAT),
+  ACCELEROMETER(MkrSciBleManager.ACCELEROMETER_UUID, ValueType.SFLOAT_ARR),
+  GYROSCOPE(MkrSciBleManager.GYROSCOPE_UUID, ValueType.SFLOAT_ARR),
+  MAGNETOMETER(MkrSciBleManager.MAGNETOMETER_UUID, ValueType.SFLOAT_ARR);
+
+  private static final double MAX_VALUE = 2000000000D;
+  private static final double MIN_VALUE = -2000000000D;
+
+  // Looked up for every notification, so keyed by the UUID the notification comes with.
+  private static final Map<UUID, MkrSciChannel> BY_UUID = new HashMap<>();
+  private static final Map<String, MkrSciChannel> BY_CHARACTERISTIC = new HashMap<>();
+
+  static {
+    for (MkrSciChannel channel : values()) {
+      BY_UUID.put(channel.uuid, channel);
+      BY_CHARACTERISTIC.put(channel.characteristic, channel);
+    }
+  }
+
+  private final String characteristic;
+  private final UUID uuid;
+  private final ValueType valueType;
+
+  MkrSciChannel(String characteristic, ValueType valueType) {
+    this.characteristic = characteristic;
+    this.uuid = UUID.fromString(characteristic);
+    this.valueType = valueType;
+  }
+
+  /** @return the channel of the given characteristic, or null if it isn't one. */
+  static MkrSciChannel forUuid(UUID uuid) {
+    return BY_UUID.get(uuid);
+  }
+
+  /** @return the channel of the given characteristic UUID string, or null if it isn't one. */
+  static MkrSciChannel forCharacteristic(String characteristic) {
+    return BY_CHARACTERISTIC.get(characteristic);
+  }
+
+  String getCharacteristic() {
+    return characteristic;
+  }
+
+  UUID getUuid() {
+    return uuid;
+  }
+
+  /** @return the values in a notification of this channel, or null if it is too short. */
+  double[] decode(byte[] value) {
+    final double[] values = parse(valueType, value);
+    if (values != null) {
+      // filter to avoid too large values blocking the UI
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] > MAX_VALUE) {
+          values[i] = MAX_VALUE;
+        } else if (values[i] < MIN_VALUE) {
+          values[i] = MIN_VALUE;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static double[] parse(ValueType valueType, byte[] value) {
+    if (ValueType.UINT8.equals(valueType)) {
+      if (value.length < 1) {
+        return null;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put(value[0]);
+      buffer.position(0);
+      return new double[] {buffer.getInt()};
+    }
+    if (ValueType.UINT16.equals(valueType)) {
+      if (value.length < 2) {
+        return null;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put(value[1]);
+      buffer.put(value[0]);
+      buffer.position(0);
+      return new double[] {buffer.getInt()};
+    }
+    if (ValueType.UINT32.equals(valueType)) {
+      if (value.length < 4) {
+        return null;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put((byte) 0);
+      buffer.put(value[3]);
+      buffer.put(value[2]);
+      buffer.put(value[1]);
+      buffer.put(value[0]);
+      buffer.position(0);
+      return new double[] {buffer.getLong()};
+    }
+    if (ValueType.SFLOAT.equals(valueType)) {
+      if (value.length < 4) {
+        return null;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.put(value[3]);
+      buffer.put(value[2]);
+      buffer.put(value[1]);
+      buffer.put(value[0]);
+      buffer.position(0);
+      return new double[] {buffer.getFloat()};
+    }
+    if (ValueType.SFLOAT_ARR.equals(valueType)) {
+      final int size = value.length / 4;
+      final double[] array = new double[size];
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      for (int i = 0; i < size; i++) {
+        final int offset = 4 * i;
+        buffer.position(0);
+        buffer.put(value[3 + offset]);
+        buffer.put(value[2 + offset]);
+        buffer.put(value[1 + offset]);
+        buffer.put(value[offset]);
+        buffer.position(0);
+        array[i] = buffer.getFloat();
+      }
+      return array;
+    }
+    return null;
+  }
+
+  private enum ValueType {
+    UINT8,
+    UINT16,
+    UINT32,
+    SFLOAT,
+    SFLOAT_ARR
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import android.util.Log;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps exactly one {@link MkrSciBoardSession} per MKR SCI board, however many of its channels
+ * are observed, and closes it a little after its last channel stops being observed, so that
+ * switching between sensors on one board does not reconnect.
+ */
+class MkrSciSessionManager {
+  private static final String TAG = "MkrSciSessionManager";
+
+  static final long DISCONNECT_DELAY_MILLIS = 2000;
+
+  private final MkrSciBoardConnection.Factory connectionFactory;
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final Executor notificationExecutor;
+
+  // device bt address > session
+  private final Map<String, MkrSciBoardSession> sessions = new HashMap<>();
+
+  MkrSciSessionManager(
+      MkrSciBoardConnection.Factory connectionFactory,
+      Scheduler scheduler,
+      Clock clock,
+      Executor notificationExecutor) {
+    this.connectionFactory = connectionFactory;
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.notificationExecutor = notificationExecutor;
+  }
+
+  void subscribe(String address, String characteristic, MkrSciBleManager.Listener listener) {
+    MkrSciChannel channel = MkrSciChannel.forCharacteristic(characteristic);
+    if (channel == null) {
+      Log.w(TAG, "Not an MKR SCI channel: " + characteristic);
+      return;
+    }
+    synchronized (sessions) {
+      MkrSciBoardSession session = sessions.get(address);
+      if (session == null) {
+        session = new MkrSciBoardSession(scheduler, clock, notificationExecutor);
+        MkrSciBoardConnection connection = connectionFactory.create(address, session);
+        if (connection == null) {
+          return;
+        }
+        sessions.put(address, session);
+        session.open(connection);
+      }
+      session.subscribe(channel, listener);
+    }
+  }
+
+  void unsubscribe(String address, String characteristic, MkrSciBleManager.Listener listener) {
+    MkrSciChannel channel = MkrSciChannel.forCharacteristic(characteristic);
+    if (channel == null) {
+      return;
+    }
+    synchronized (sessions) {
+      MkrSciBoardSession session = sessions.get(address);
+      if (session == null) {
+        return;
+      }
+      session.unsubscribe(channel, listener);
+      scheduler.schedule(
+          Delay.millis(DISCONNECT_DELAY_MILLIS),
+          () -> {
+            synchronized (sessions) {
+              if (sessions.get(address) == session && !session.hasSubscribers()) {
+                sessions.remove(address);
+                session.close();
+              }
+            }
+          });
+    }
+  }
+
+  /** @return the number of boards with a session open. */
+  int getSessionCount() {
+    synchronized (sessions) {
+      return sessions.size();
+    }
+  }
+}
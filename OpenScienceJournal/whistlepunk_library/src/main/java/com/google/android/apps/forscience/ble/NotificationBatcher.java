@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects characteristic notifications as they arrive on a binder thread, and passes them on in
+ * batches, one per characteristic, on an executor. Characteristics are identified by keys of type
+ * {@code K}.
+ *
+ * <p>A burst of notifications is then decoded and dispatched by one task, rather than holding up
+ * the binder thread once per notification. Each value keeps the time it arrived, so values passed
+ * on together are not squashed onto one timestamp.
+ */
+public class NotificationBatcher<K> {
+  /** Receives the batches, on the executor. */
+  public interface Listener<K> {
+    void onBatch(K characteristic, Batch batch);
+  }
+
+  /** The values of one characteristic, in the order they arrived. */
+  public static class Batch {
+    private final List<byte[]> values = new ArrayList<>();
+    private long[] arrivalTimes = new long[8];
+
+    private void add(byte[] value, long arrivalTime) {
+      if (values.size() == arrivalTimes.length) {
+        arrivalTimes = Arrays.copyOf(arrivalTimes, arrivalTimes.length * 2);
+      }
+      arrivalTimes[values.size()] = arrivalTime;
+      values.add(value);
+    }
+
+    public int size() {
+      return values.size();
+    }
+
+    public byte[] getValue(int index) {
+      return values.get(index);
+    }
+
+    /** @return when the value arrived, from the clock given to the batcher. */
+    public long getArrivalTime(int index) {
+      return arrivalTimes[index];
+    }
+  }
+
+  private final Executor executor;
+  private final Clock clock;
+  private final Listener<K> listener;
+  private Map<K, Batch> pending = new LinkedHashMap<>();
+  private boolean drainQueued = false;
+
+  public NotificationBatcher(Executor executor, Clock clock, Listener<K> listener) {
+    this.executor = executor;
+    this.clock = clock;
+    this.listener = listener;
+  }
+
+  /**
+   * Adds a notification to the batch of its characteristic. The value is copied, as Android may
+   * reuse the array for the next one.
+   */
+  public void add(K characteristic, byte[] value) {
+    long arrivalTime = clock.getNow();
+    byte[] copy = value == null ? new byte[0] : value.clone();
+    boolean queueDrain = false;
+    synchronized (this) {
+      Batch batch = pending.get(characteristic);
+      if (batch == null) {
+        batch = new Batch();
+        pending.put(characteristic, batch);
+      }
+      batch.add(copy, arrivalTime);
+      if (!drainQueued) {
+        drainQueued = true;
+        queueDrain = true;
+      }
+    }
+    if (queueDrain) {
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    Map<K, Batch> batches;
+    synchronized (this) {
+      batches = pending;
+      pending = new LinkedHashMap<>();
+      drainQueued = false;
+    }
+    PerfMetrics metrics = PerfMetrics.getInstance();
+    for (Map.Entry<K, Batch> entry : batches.entrySet()) {
+      metrics.record(PerfMetrics.BLE_NOTIFICATION_BATCH_SIZE, entry.getValue().size());
+      listener.onBatch(entry.getKey(), entry.getValue());
+    }
+  }
+}
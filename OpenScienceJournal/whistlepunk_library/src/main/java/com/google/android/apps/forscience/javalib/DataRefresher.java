@@ -17,9 +17,14 @@
 package com.google.android.apps.forscience.javalib;
 
 import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HoldingStreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 
-/** A data refresher which publishes the last known data value when streaming. */
+/**
+ * A data refresher which publishes the last known data value when streaming. If the consumer is a
+ * {@link HoldingStreamConsumer}, a value is only added when it changes, and is held in between, so
+ * that it is shown steadily without being recorded again at every refresh.
+ */
 public class DataRefresher extends Refresher {
   private static final int SENSOR_REFRESH_RATE = 100; // Refresh rate in ms.
 
@@ -27,6 +32,10 @@ public class DataRefresher extends Refresher {
   protected boolean streaming = false;
   private double value;
   private Clock clock;
+  private final long refreshRateMillis;
+  // The last value the consumer added, which it can be told still holds.
+  private boolean hasAddedValue = false;
+  private double addedValue;
 
   public DataRefresher(Scheduler scheduler, Clock clock) {
     this(scheduler, clock, SENSOR_REFRESH_RATE);
@@ -35,15 +44,18 @@ public class DataRefresher extends Refresher {
   public DataRefresher(Scheduler scheduler, Clock clock, int sensorRefreshRateMillis) {
     super(scheduler, Delay.millis(sensorRefreshRateMillis));
     this.clock = clock;
+    refreshRateMillis = sensorRefreshRateMillis;
   }
 
   public void setStreamConsumer(StreamConsumer consumer) {
     this.streamConsumer = consumer;
+    hasAddedValue = false;
   }
 
   public void startStreaming() {
     if (!streaming) {
       streaming = true;
+      hasAddedValue = false;
       refresh();
     }
   }
@@ -67,8 +79,18 @@ public class DataRefresher extends Refresher {
   protected boolean doRefresh() {
     if (streaming && streamConsumer != null) {
       long now = clock.getNow();
-      streamConsumer.addData(now, getValue(now));
+      double nowValue = getValue(now);
+      if (!(hasAddedValue && nowValue == addedValue && holdData(now))
+          && streamConsumer.addData(now, nowValue)) {
+        hasAddedValue = true;
+        addedValue = nowValue;
+      }
     }
     return streaming;
   }
+
+  private boolean holdData(long now) {
+    return streamConsumer instanceof HoldingStreamConsumer
+        && ((HoldingStreamConsumer) streamConsumer).holdData(now, refreshRateMillis);
+  }
 }
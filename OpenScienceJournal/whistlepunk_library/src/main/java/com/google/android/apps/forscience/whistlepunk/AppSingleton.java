@@ -32,6 +32,7 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.LocalSyncManager;
 import com.google.android.apps.forscience.whistlepunk.metadata.SimpleMetaDataManager;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ArchivePolicy;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
 import com.google.android.apps.forscience.whistlepunk.sensors.VelocitySensor;
 import com.google.common.base.Optional;
@@ -64,6 +65,10 @@ public class AppSingleton {
   private BleClientImpl bleClient;
   private final Map<AppAccount, RecorderControllerImpl> recorderControllers = new HashMap<>();
   private VelocitySensor velocitySensor;
+  // Created eagerly, as it is used from binder threads and background threads as well as the UI
+  // thread. Its executor does not start a thread until the first thumbnail is requested.
+  private final ThumbnailCache thumbnailCache =
+      new ThumbnailCache(Executors.newSingleThreadExecutor());
   private SensorRegistry sensorRegistry;
   private PrefsSensorHistoryStorage prefsSensorHistoryStorage;
   private Map<String, SensorProvider> externalSensorProviders;
@@ -158,6 +163,12 @@ public class AppSingleton {
               getExternalSensorProviders(),
               getSensorConnector());
       dataControllers.put(appAccount, dataController);
+      // Archiving throws away full-rate data, so it only happens if the user asked for it. It runs
+      // in small steps behind any other sensor data work, so it can start straight away.
+      if (SettingsFragment.isArchiveIdleTrialsEnabled(applicationContext, appAccount)) {
+        dataController.archiveIdleTrials(
+            ArchivePolicy.DEFAULT, LoggingConsumer.expectSuccess(TAG, "archiving idle trials"));
+      }
     }
     return dataController;
   }
@@ -345,4 +356,8 @@ public class AppSingleton {
     }
     return experimentLibraryManager;
   }
+
+  public ThumbnailCache getThumbnailCache() {
+    return thumbnailCache;
+  }
 }
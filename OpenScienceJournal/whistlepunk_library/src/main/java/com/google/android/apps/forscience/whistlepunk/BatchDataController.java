@@ -17,6 +17,8 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -49,6 +51,17 @@ public class BatchDataController implements RecordingDataController, Closeable {
     dataController.addScalarReadings(readings);
   }
 
+  @Override
+  public void addStatsBlock(StatsBlock block) {
+    // Blocks are few, so there is nothing to gain by batching them.
+    dataController.addStatsBlock(block);
+  }
+
+  @Override
+  public void setSeriesHold(SeriesHold hold) {
+    dataController.setSeriesHold(hold);
+  }
+
   public void flushScalarReadings() {
     dataController.addScalarReadings(readings);
     readings = new ArrayList<>();
@@ -30,9 +30,15 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.AggregateQuery;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ArchivePolicy;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarAggregate;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
@@ -65,6 +71,58 @@ public interface DataController {
 
   void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess);
 
+  /** Computes summary statistics of sensor data, such as the mean of a sensor in each trial. */
+  void getAggregates(AggregateQuery query, MaybeConsumer<List<ScalarAggregate>> onSuccess);
+
+  /**
+   * Gets the stats blocks of a sensor in a trial whose start times are in the given range, in order
+   * of time.
+   */
+  void getStatsBlocks(
+      String trialId,
+      String sensorId,
+      Range<Long> blockStarts,
+      MaybeConsumer<List<StatsBlock>> onSuccess);
+
+  /**
+   * Deletes the sensor data of all of the given trials. Once onSuccess is called, none of it will
+   * be read again; the space it takes up is freed afterwards, in small batches that do not hold up
+   * recording.
+   */
+  void deleteTrialsData(List<Trial> trials, MaybeConsumer<Success> onSuccess);
+
+  /**
+   * Deletes the sensor data of a cropped trial that lies outside its crop range, in small batches
+   * that do not hold up recording, and returns the freed space to the file system.
+   *
+   * @param onSuccess receives the number of bytes by which the sensor database shrank.
+   */
+  void reclaimCroppedTrialData(Trial trial, MaybeConsumer<Long> onSuccess);
+
+  /**
+   * Deletes the full-rate sensor data of the trials that have been idle for longer than the policy
+   * allows, keeping only the coarser resolution tiers, in small batches that do not hold up
+   * recording.
+   *
+   * @param onSuccess receives the number of bytes by which the sensor database shrank.
+   */
+  void archiveIdleTrials(ArchivePolicy policy, MaybeConsumer<Long> onSuccess);
+
+  /**
+   * Makes the sensor data of a trial that has finished recording quicker to read, see {@link
+   * com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#finalizeTrial(String)}.
+   */
+  void finalizeTrial(String trialId, MaybeConsumer<Success> onSuccess);
+
+  /** Gets the finest resolution tier still kept for the trial, which is 0 unless archived. */
+  void getFinestTier(String trialId, MaybeConsumer<Integer> onSuccess);
+
+  /**
+   * Gets how the readings of a sensor that only reports changes were held in a trial, or null if
+   * they were not.
+   */
+  void getSeriesHold(String trialId, String sensorId, MaybeConsumer<SeriesHold> onSuccess);
+
   void createExperiment(MaybeConsumer<Experiment> onSuccess);
 
   void deleteExperiment(String experimentId, MaybeConsumer<Success> onSuccess);
@@ -112,9 +170,27 @@ public interface DataController {
   void getExperimentOverviews(
       boolean includeArchived, MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess);
 
+  /**
+   * Gets a page of experiment overviews, most recently used first.
+   *
+   * @param offset the number of overviews to skip.
+   * @param limit the maximum number of overviews to return.
+   */
+  void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess);
+
   /** Gets all experiment overviews on the same thread as the caller. */
   List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived);
 
+  /**
+   * Gets a single experiment overview on the same thread as the caller, or null if there is no
+   * experiment with that id.
+   */
+  ExperimentOverviewPojo blockingGetExperimentOverview(String experimentId);
+
   /** Gets the most recently used, unarchived experiment. */
   void getLastUsedUnarchivedExperiment(MaybeConsumer<Experiment> onSuccess);
 
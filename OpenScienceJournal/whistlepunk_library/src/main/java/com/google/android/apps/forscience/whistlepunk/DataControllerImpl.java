@@ -38,13 +38,22 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.MetaDataManager;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
+import com.google.android.apps.forscience.whistlepunk.sensordb.AggregateQuery;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ArchivePolicy;
+import com.google.android.apps.forscience.whistlepunk.sensordb.CroppedDataReclaimer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarAggregate;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TrialArchiver;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Range;
@@ -54,14 +63,25 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 
 public class DataControllerImpl implements DataController, RecordingDataController {
   private static final String TAG = "DataControllerImpl";
+  // Readings looked at in each step of purging deleted trials from the sensor database.
+  private static final int PURGE_ROWS_PER_STEP = 2000;
+  // Pages returned to the file system in each step of compacting the sensor database.
+  private static final int COMPACT_PAGES_PER_STEP = 64;
+  // Readings copied into snapshots in each step of finalizing a trial.
+  private static final int FINALIZE_RECORDS_PER_STEP = 2000;
   private final Context context;
   private final AppAccount appAccount;
   private final SensorDatabase sensorDatabase;
@@ -70,11 +90,21 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   private final Executor sensorDataThread;
   private MetaDataManager metaDataManager;
   private Clock clock;
-  private Map<String, FailureListener> sensorFailureListeners = new HashMap<>();
+  // Changed on the UI thread, and read on the sensor data thread.
+  private Map<String, FailureListener> sensorFailureListeners = new ConcurrentHashMap<>();
   private final Map<String, SensorProvider> providerMap;
   private long prevLabelTimestamp = 0;
   private Map<String, WeakReference<Experiment>> cachedExperiments = new HashMap<>();
   private ConnectableSensor.Connector connector;
+  // Only accessed on the sensor data thread.
+  private boolean purgeScheduled = false;
+  // Set when deleted readings left free space that the sensor database can only return to the file
+  // system once it has been converted, which waits until no sensor is being observed.
+  private volatile boolean compactionConversionPending = false;
+  // Single readings waiting to be written as one batch, guarded by itself. A write is queued on the
+  // sensor data thread when the first of them arrives.
+  private final List<BatchInsertScalarReading> pendingReadings = new ArrayList<>();
+  private long pendingSinceNanos;
 
   public DataControllerImpl(
       Context context,
@@ -91,8 +121,9 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     this.appAccount = appAccount;
     this.sensorDatabase = sensorDatabase;
     this.uiThread = uiThread;
-    this.metaDataThread = metaDataThread;
-    this.sensorDataThread = sensorDataThread;
+    PerfMetrics metrics = PerfMetrics.getInstance();
+    this.metaDataThread = metrics.instrumentExecutor("metaDataThread", metaDataThread);
+    this.sensorDataThread = metrics.instrumentExecutor("sensorDataThread", sensorDataThread);
     this.metaDataManager = metaDataManager;
     this.clock = clock;
     this.providerMap = providerMap;
@@ -138,37 +169,278 @@ public class DataControllerImpl implements DataController, RecordingDataControll
     }
   }
 
-  private void removeTrialSensorData(final Trial trial) {
+  private void removeTrialSensorData(List<Trial> trials) {
+    List<String> trialIds = new ArrayList<>();
+    for (Trial trial : trials) {
+      trialIds.add(trial.getTrialId());
+    }
+    // Marking the trials as deleted is quick, and hides their data straight away. The data itself
+    // is removed afterwards, a little at a time.
+    sensorDatabase.deleteTrials(trialIds);
+    schedulePurge();
+  }
+
+  private void schedulePurge() {
+    if (!purgeScheduled) {
+      purgeScheduled = true;
+      sensorDataThread.execute(this::purgeStep);
+    }
+  }
+
+  private void purgeStep() {
+    boolean hasMore;
+    try {
+      hasMore = sensorDatabase.purgeDeletedTrials(PURGE_ROWS_PER_STEP);
+    } catch (Exception e) {
+      // The trials stay marked as deleted, and are purged along with the next deletion.
+      Log.e(TAG, "Failed to purge deleted trials", e);
+      hasMore = false;
+    }
+    if (hasMore) {
+      // Go to the back of the queue, so that readings being recorded are written in between.
+      sensorDataThread.execute(this::purgeStep);
+    } else {
+      purgeScheduled = false;
+    }
+  }
+
+  /**
+   * Called on the sensor data thread once readings have been deleted. A database created by an
+   * older version of the app can't return the freed space until it has been converted, which
+   * rewrites the whole file in one go. So that no recording waits behind that, it is only done
+   * while no sensor is being observed, since a recording can only start from a sensor that is.
+   */
+  private void requestCompaction() {
+    if (!sensorDatabase.isCompactionEnabled()) {
+      compactionConversionPending = true;
+      enableCompactionIfIdle();
+    }
+  }
+
+  private void enableCompactionIfIdle() {
+    if (!compactionConversionPending || !sensorFailureListeners.isEmpty()) {
+      return;
+    }
+    compactionConversionPending = false;
+    try {
+      sensorDatabase.enableCompaction();
+    } catch (Exception e) {
+      Log.e(TAG, "Failed to enable compaction of the sensor database", e);
+      return;
+    }
+    compactStep();
+  }
+
+  private void compactStep() {
+    long bytesReclaimed;
+    try {
+      bytesReclaimed = sensorDatabase.compact(COMPACT_PAGES_PER_STEP);
+    } catch (Exception e) {
+      Log.e(TAG, "Failed to compact the sensor database", e);
+      bytesReclaimed = 0;
+    }
+    if (bytesReclaimed > 0) {
+      // Like purging, go to the back of the queue between steps.
+      sensorDataThread.execute(this::compactStep);
+    }
+  }
+
+  @Override
+  public void reclaimCroppedTrialData(Trial trial, MaybeConsumer<Long> onSuccess) {
+    GoosciTrial.Range cropRange = trial.getCropRange();
+    if (cropRange == null || cropRange.getStartMs() > cropRange.getEndMs()) {
+      uiThread.execute(() -> onSuccess.success(0L));
+      return;
+    }
+    // Runs on the sensor data thread, which is the only thread the database may be used from. Each
+    // step is small, so readings being recorded are never queued behind much of this work.
+    new CroppedDataReclaimer(
+            sensorDatabase,
+            sensorDataThread,
+            trial.getTrialId(),
+            trial.getSensorIds(),
+            Range.closed(cropRange.getStartMs(), cropRange.getEndMs()),
+            new MaybeConsumer<Long>() {
+              @Override
+              public void success(Long bytesReclaimed) {
+                requestCompaction();
+                PerfMetrics.getInstance().record(PerfMetrics.CROP_RECLAIMED_BYTES, bytesReclaimed);
+                uiThread.execute(() -> onSuccess.success(bytesReclaimed));
+              }
+
+              @Override
+              public void fail(Exception e) {
+                uiThread.execute(() -> onSuccess.fail(e));
+              }
+            })
+        .start();
+  }
+
+  @Override
+  public void archiveIdleTrials(ArchivePolicy policy, MaybeConsumer<Long> onSuccess) {
+    // Like reclaiming cropped data, this runs in small steps on the sensor data thread.
+    new TrialArchiver(
+            sensorDatabase,
+            sensorDataThread,
+            policy,
+            clock.getNow(),
+            new MaybeConsumer<Long>() {
+              @Override
+              public void success(Long bytesReclaimed) {
+                requestCompaction();
+                PerfMetrics.getInstance()
+                    .record(PerfMetrics.ARCHIVE_RECLAIMED_BYTES, bytesReclaimed);
+                uiThread.execute(() -> onSuccess.success(bytesReclaimed));
+              }
+
+              @Override
+              public void fail(Exception e) {
+                uiThread.execute(() -> onSuccess.fail(e));
+              }
+            })
+        .start();
+  }
+
+  @Override
+  public void finalizeTrial(String trialId, MaybeConsumer<Success> onSuccess) {
+    // Queued behind any readings still being written by the recording. Like purging, each step
+    // goes to the back of the queue, so a long trial doesn't hold up other work.
     sensorDataThread.execute(
-        () -> {
-          long firstTimestamp = trial.getOriginalFirstTimestamp();
-          long lastTimestamp = trial.getOriginalLastTimestamp();
-          if (firstTimestamp > lastTimestamp) {
-            // TODO: Need a way to clean up invalid old data properly. For now, just
-            // continue to ignore it because we cannot be sure where to stop deleting.
-            return;
+        new Runnable() {
+          @Override
+          public void run() {
+            boolean done;
+            try {
+              done = sensorDatabase.finalizeTrialStep(trialId, FINALIZE_RECORDS_PER_STEP);
+            } catch (Exception e) {
+              uiThread.execute(() -> onSuccess.fail(e));
+              return;
+            }
+            if (done) {
+              uiThread.execute(() -> onSuccess.success(Success.SUCCESS));
+            } else {
+              sensorDataThread.execute(this);
+            }
           }
-          TimeRange times = TimeRange.oldest(Range.closed(firstTimestamp, lastTimestamp));
-          for (String tag : trial.getSensorIds()) {
-            sensorDatabase.deleteScalarReadings(trial.getTrialId(), tag, times);
+        });
+  }
+
+  @Override
+  public void getFinestTier(String trialId, MaybeConsumer<Integer> onSuccess) {
+    background(
+        sensorDataThread,
+        onSuccess,
+        new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return sensorDatabase.getFinestTier(trialId);
+          }
+        });
+  }
+
+  @Override
+  public void getSeriesHold(String trialId, String sensorId, MaybeConsumer<SeriesHold> onSuccess) {
+    background(
+        sensorDataThread,
+        onSuccess,
+        new Callable<SeriesHold>() {
+          @Override
+          public SeriesHold call() throws Exception {
+            return sensorDatabase.getSeriesHold(trialId, sensorId);
           }
         });
   }
 
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+    final long enqueuedNanos = System.nanoTime();
+    sensorDataThread.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            writeReadings(readings, enqueuedNanos);
+          }
+        });
+  }
+
+  @Override
+  public void addScalarReading(
+      final String trialId,
+      final String sensorId,
+      final int resolutionTier,
+      final long timestampMillis,
+      final double value) {
+    // Readings that arrive while the sensor data thread is busy are written together, so they
+    // share one transaction and one update of each series.
+    boolean first;
+    synchronized (pendingReadings) {
+      first = pendingReadings.isEmpty();
+      if (first) {
+        pendingSinceNanos = System.nanoTime();
+      }
+      pendingReadings.add(
+          new BatchInsertScalarReading(trialId, sensorId, resolutionTier, timestampMillis, value));
+    }
+    if (first) {
+      sensorDataThread.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              List<BatchInsertScalarReading> readings;
+              long enqueuedNanos;
+              synchronized (pendingReadings) {
+                readings = new ArrayList<>(pendingReadings);
+                enqueuedNanos = pendingSinceNanos;
+                pendingReadings.clear();
+              }
+              writeReadings(readings, enqueuedNanos);
+            }
+          });
+    }
+  }
+
+  // Only called on the sensor data thread.
+  private void writeReadings(List<BatchInsertScalarReading> readings, long enqueuedNanos) {
+    try {
+      sensorDatabase.addScalarReadings(readings);
+      // Counted per reading, timed from the first reading of the batch being handed over.
+      PerfMetrics.getInstance()
+          .record(
+              PerfMetrics.SCALAR_READING_COMMIT,
+              System.nanoTime() - enqueuedNanos,
+              readings.size());
+    } catch (final Exception e) {
+      PerfMetrics.getInstance().increment(PerfMetrics.SCALAR_READING_FAILURES, readings.size());
+      uiThread.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              // A batch can hold readings from several sensors, so each of them is told.
+              Set<String> sensorIds = new HashSet<>();
+              for (BatchInsertScalarReading reading : readings) {
+                if (sensorIds.add(reading.sensorId)) {
+                  notifyFailureListener(reading.sensorId, e);
+                }
+              }
+            }
+          });
+    }
+  }
+
+  @Override
+  public void addStatsBlock(StatsBlock block) {
     sensorDataThread.execute(
         new Runnable() {
           @Override
           public void run() {
             try {
-              sensorDatabase.addScalarReadings(readings);
+              sensorDatabase.addStatsBlock(block);
             } catch (final Exception e) {
               uiThread.execute(
                   new Runnable() {
                     @Override
                     public void run() {
-                      notifyFailureListener("batchImport", e);
+                      notifyFailureListener(block.getSensorTag(), e);
                     }
                   });
             }
@@ -177,25 +449,19 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   }
 
   @Override
-  public void addScalarReading(
-      final String trialId,
-      final String sensorId,
-      final int resolutionTier,
-      final long timestampMillis,
-      final double value) {
+  public void setSeriesHold(SeriesHold hold) {
     sensorDataThread.execute(
         new Runnable() {
           @Override
           public void run() {
             try {
-              sensorDatabase.addScalarReading(
-                  trialId, sensorId, resolutionTier, timestampMillis, value);
+              sensorDatabase.setSeriesHold(hold);
             } catch (final Exception e) {
               uiThread.execute(
                   new Runnable() {
                     @Override
                     public void run() {
-                      notifyFailureListener(sensorId, e);
+                      notifyFailureListener(hold.getSensorTag(), e);
                     }
                   });
             }
@@ -248,20 +514,58 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       final String[] sensorIds,
       final TimeRange timeRange,
       final int resolutionTier) {
+    // Only the query of each page runs on the sensor data thread, one page at a time, so that
+    // long exports don't hold up recording. Snapshots are read off it.
     return sensorDatabase
-        .createScalarObservable(trialId, sensorIds, timeRange, resolutionTier)
-        .observeOn(Schedulers.from(sensorDataThread));
+        .createScalarObservable(trialId, sensorIds, timeRange, resolutionTier, sensorDataThread)
+        .subscribeOn(Schedulers.io());
   }
 
   @Override
   public void deleteTrialData(final Trial trial, MaybeConsumer<Success> onSuccess) {
+    deleteTrialsData(Collections.singletonList(trial), onSuccess);
+  }
+
+  @Override
+  public void getAggregates(
+      AggregateQuery query, MaybeConsumer<List<ScalarAggregate>> onSuccess) {
     background(
-        metaDataThread,
+        sensorDataThread,
+        onSuccess,
+        new Callable<List<ScalarAggregate>>() {
+          @Override
+          public List<ScalarAggregate> call() throws Exception {
+            return sensorDatabase.getAggregates(query);
+          }
+        });
+  }
+
+  @Override
+  public void getStatsBlocks(
+      String trialId,
+      String sensorId,
+      Range<Long> blockStarts,
+      MaybeConsumer<List<StatsBlock>> onSuccess) {
+    background(
+        sensorDataThread,
+        onSuccess,
+        new Callable<List<StatsBlock>>() {
+          @Override
+          public List<StatsBlock> call() throws Exception {
+            return sensorDatabase.getStatsBlocks(trialId, sensorId, blockStarts);
+          }
+        });
+  }
+
+  @Override
+  public void deleteTrialsData(List<Trial> trials, MaybeConsumer<Success> onSuccess) {
+    background(
+        sensorDataThread,
         onSuccess,
         new Callable<Success>() {
           @Override
           public Success call() throws Exception {
-            removeTrialSensorData(trial);
+            removeTrialSensorData(trials);
             return Success.SUCCESS;
           }
         });
@@ -567,11 +871,33 @@ public class DataControllerImpl implements DataController, RecordingDataControll
         });
   }
 
+  @Override
+  public void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {
+    background(
+        metaDataThread,
+        onSuccess,
+        new Callable<List<ExperimentOverviewPojo>>() {
+          @Override
+          public List<ExperimentOverviewPojo> call() throws Exception {
+            return metaDataManager.getExperimentOverviews(includeArchived, offset, limit);
+          }
+        });
+  }
+
   @Override
   public List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived) {
     return metaDataManager.getExperimentOverviews(includeArchived);
   }
 
+  @Override
+  public ExperimentOverviewPojo blockingGetExperimentOverview(String experimentId) {
+    return metaDataManager.getExperimentOverview(experimentId);
+  }
+
   @Override
   public void getLastUsedUnarchivedExperiment(final MaybeConsumer<Experiment> onSuccess) {
     MaybeConsumer<Experiment> onSuccessWrapper =
@@ -746,6 +1072,9 @@ public class DataControllerImpl implements DataController, RecordingDataControll
   @Override
   public void clearDataErrorListenerForSensor(String sensorId) {
     sensorFailureListeners.remove(sensorId);
+    if (compactionConversionPending && sensorFailureListeners.isEmpty()) {
+      sensorDataThread.execute(this::enableCompactionIfIdle);
+    }
   }
 
   @Override
@@ -957,9 +1286,8 @@ public class DataControllerImpl implements DataController, RecordingDataControll
       ScalarSensorDumpReader scalarSensorDumpReader =
           new ScalarSensorDumpReader(targetDataController);
       scalarSensorDumpReader.readData(scalarSensorData);
-      for (Trial trial : experiment.getTrials()) {
-        removeTrialSensorData(trial);
-      }
+      List<Trial> trials = new ArrayList<>(experiment.getTrials());
+      sensorDataThread.execute(() -> removeTrialSensorData(trials));
 
       targetDataController.metaDataManager.afterMovingExperimentFromAnotherAccount(experiment);
     } catch (Exception e) {
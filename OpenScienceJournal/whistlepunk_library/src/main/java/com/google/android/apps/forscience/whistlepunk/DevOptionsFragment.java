@@ -39,6 +39,11 @@ public class DevOptionsFragment extends PreferenceFragment {
   public static final String KEY_AMBIENT_TEMPERATURE_SENSOR = "enable_ambient_temp_sensor";
   private static final String KEY_PERF_DEBUG_SCREEN = "show_perf_tracker_debug";
   public static final String KEY_SMOOTH_SCROLL = "enable_smooth_scrolling_to_bottom";
+  public static final String KEY_ZOOM_TIER_REDUCER = "zoom_tier_reducer";
+  // Values of KEY_ZOOM_TIER_REDUCER.
+  public static final String ZOOM_TIER_REDUCER_MIN_MAX = "min_max";
+  public static final String ZOOM_TIER_REDUCER_LTTB = "lttb";
+  public static final String ZOOM_TIER_REDUCER_ADAPTIVE_LTTB = "adaptive_lttb";
 
   public static DevOptionsFragment newInstance() {
     return new DevOptionsFragment();
@@ -122,6 +127,14 @@ public class DevOptionsFragment extends PreferenceFragment {
     return getBoolean(KEY_SMOOTH_SCROLL, true, context);
   }
 
+  /** Returns how recorded zoom tiers are reduced, as one of the ZOOM_TIER_REDUCER values. */
+  public static String getZoomTierReducer(Context context) {
+    if (!isDebugVersion()) {
+      return ZOOM_TIER_REDUCER_MIN_MAX;
+    }
+    return getPrefs(context).getString(KEY_ZOOM_TIER_REDUCER, ZOOM_TIER_REDUCER_MIN_MAX);
+  }
+
   private static boolean getBoolean(String key, boolean defaultBool, Context context) {
     if (!isDebugVersion()) {
       return defaultBool;
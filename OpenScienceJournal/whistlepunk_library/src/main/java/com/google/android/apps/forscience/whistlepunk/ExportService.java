@@ -74,6 +74,7 @@ import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.zip.ZipException;
 
@@ -114,6 +115,9 @@ public class ExportService extends Service {
   private static final String EXTRA_SAVE_LOCALLY =
       "com.google.android.apps.forscience.whistlepunk.extra.SAVE_LOCALLY";
 
+  // The last column of CSV exports of archived trials, which says which tier the rows come from.
+  @VisibleForTesting static final String RESOLUTION_TIER_COLUMN = "resolution_tier";
+
   private final IBinder binder = new ExportServiceBinder();
 
   // Make static so that all instances of this service can reach it.
@@ -386,13 +390,15 @@ public class ExportService extends Service {
     DataController dc = getDataController(appAccount).blockingGet();
     Experiment experiment = RxDataController.getExperimentById(dc, experimentId).blockingGet();
     Trial trial = experiment.getTrial(trialId);
+    // An archived trial only has its coarser zoom tiers left. The finest of them is exported, and
+    // each row says which tier it is.
+    int finestTier = RxDataController.getFinestTier(dc, trialId).blockingGet();
 
     String fileName = makeCSVExportFilename(experiment.getDisplayTitle(this), trial.getTitle(this));
     // Start observing sensor data from here, while grouping them into timestamp equal rows.
     // Then write the rows out.
     Range<Long> range = Range.closed(trial.getFirstTimestamp(), trial.getLastTimestamp());
-    dc.createScalarObservable(trialId, sensorIds, TimeRange.oldest(range), 0 /* resolution
-        tier */)
+    dc.createScalarObservable(trialId, sensorIds, TimeRange.oldest(range), finestTier)
         .doOnComplete(() -> stopSelf(startId))
         .observeOn(Schedulers.io())
         .subscribe(
@@ -401,6 +407,7 @@ public class ExportService extends Service {
                 fileName,
                 relativeTime,
                 sensorIds,
+                finestTier,
                 trial.getFirstTimestamp(),
                 trial.getLastTimestamp()));
   }
@@ -505,6 +512,40 @@ public class ExportService extends Service {
     return inputName.replaceAll("[^ a-zA-Z0-9-_\\.]", "_");
   }
 
+  /**
+   * Returns the first line of a CSV export of the given sensors. Exports of a tier coarser than 0,
+   * which is all that is left of an archived trial, end with a column giving the tier.
+   */
+  @VisibleForTesting
+  static String makeCSVHeader(boolean relativeTime, String[] sensorIds, int resolutionTier) {
+    StringBuilder header = new StringBuilder(relativeTime ? "relative_time" : "timestamp");
+    // Loop through sensor IDs and output them here as column names.
+    for (String sensorId : sensorIds) {
+      header.append(",").append(sensorId.replace(",", "_"));
+    }
+    if (resolutionTier > 0) {
+      header.append(",").append(RESOLUTION_TIER_COLUMN);
+    }
+    return header.append("\n").toString();
+  }
+
+  /** Returns a line of a CSV export, in the columns of {@link #makeCSVHeader}. */
+  @VisibleForTesting
+  static String makeCSVRow(
+      String timestamp, String[] sensorIds, Map<String, Double> values, int resolutionTier) {
+    StringBuilder row = new StringBuilder(timestamp);
+    for (String sensorId : sensorIds) {
+      row.append(",");
+      if (values.containsKey(sensorId)) {
+        row.append(values.get(sensorId));
+      }
+    }
+    if (resolutionTier > 0) {
+      row.append(",").append(resolutionTier);
+    }
+    return row.append("\n").toString();
+  }
+
   private void updateProgress(ExportProgress exportProgress) {
     if (Log.isLoggable(TAG, Log.DEBUG)
         && (exportProgress.getState() != ExportProgress.EXPORTING
@@ -897,6 +938,7 @@ public class ExportService extends Service {
     private final String fileName;
     private final boolean relativeTime;
     private final String[] sensorIds;
+    private final int resolutionTier;
     private final String trialId;
 
     public TrialDataWriter(
@@ -904,12 +946,14 @@ public class ExportService extends Service {
         String fileName,
         boolean relativeTime,
         String[] sensorIds,
+        int resolutionTier,
         long firstTimeStamp,
         long lastTimeStamp) {
       this.trialId = trialId;
       this.fileName = fileName;
       this.relativeTime = relativeTime;
       this.sensorIds = sensorIds;
+      this.resolutionTier = resolutionTier;
       this.firstTimeStamp = firstTimeStamp;
       this.lastTimeStamp = lastTimeStamp;
     }
@@ -939,13 +983,7 @@ public class ExportService extends Service {
 
       outputStreamWriter = new OutputStreamWriter(fs);
       try {
-        outputStreamWriter.write(relativeTime ? "relative_time" : "timestamp");
-        // Loop through sensor IDs and output them here as column names.
-        for (int index = 0, length = sensorIds.length; index < length; ++index) {
-          outputStreamWriter.write(",");
-          outputStreamWriter.write(sensorIds[index].replace(",", "_"));
-        }
-        outputStreamWriter.write("\n");
+        outputStreamWriter.write(makeCSVHeader(relativeTime, sensorIds, resolutionTier));
       } catch (IOException e) {
         onError(e);
         return;
@@ -1000,16 +1038,9 @@ public class ExportService extends Service {
         if (outputStreamWriter == null) {
           onError(new IllegalStateException("Output stream closed."));
         }
-        outputStreamWriter.write(getTimestampString(currentTimestamp));
-        for (int index = 0, length = sensorIds.length; index < length; ++index) {
-          String value = "";
-          if (currentRow.containsKey(sensorIds[index])) {
-            value = Double.toString(currentRow.get(sensorIds[index]));
-          }
-          outputStreamWriter.write(",");
-          outputStreamWriter.write(value);
-        }
-        outputStreamWriter.write("\n");
+        outputStreamWriter.write(
+            makeCSVRow(
+                getTimestampString(currentTimestamp), sensorIds, currentRow, resolutionTier));
       } catch (IOException e) {
         onError(e);
       }
@@ -311,7 +311,12 @@ public abstract class NoteTakingActivity extends AppCompatActivity
                 e.getTrial(trialId).addLabel(e, label);
               }
               RxDataController.updateExperiment(getDataController(), e, true)
-                  .subscribe(() -> onLabelAdded(trialId, label), error -> onAddNewLabelFailed());
+                  .subscribe(
+                      () -> {
+                        requestThumbnailIfPicture(label);
+                        onLabelAdded(trialId, label);
+                      },
+                      error -> onAddNewLabelFailed());
             },
             error -> {
               if (Log.isLoggable(TAG, Log.ERROR)) {
@@ -321,6 +326,13 @@ public abstract class NoteTakingActivity extends AppCompatActivity
             });
   }
 
+  private void requestThumbnailIfPicture(Label label) {
+    if (label.getType() == GoosciLabel.Label.ValueType.PICTURE) {
+      PictureUtils.requestThumbnail(
+          this, appAccount, experimentId, label.getPictureLabelValue().getFilePath());
+    }
+  }
+
   protected void onAddNewLabelFailed() {
     AccessibilityUtils.makeSnackbar(
             findViewById(R.id.tool_pane),
@@ -21,6 +21,7 @@ import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Data;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensor.Pin;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DeviceClockAligner;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorStatusListener;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.ByteArrayOutputStream;
@@ -33,7 +34,7 @@ public class PacketAssembler {
 
   private final ByteArrayOutputStream packetStream = new ByteArrayOutputStream();
 
-  private long timeSkew = -1;
+  private final DeviceClockAligner clockAligner = new DeviceClockAligner();
 
   private static float DIGITAL_HIGH = 1023f;
   private static float DIGITAL_LOW = 0f;
@@ -114,14 +115,7 @@ public class PacketAssembler {
     }
 
     long relativeTime = sensorData.getTimestampKey();
-
-    if (timeSkew == -1) {
-      // Haven't seen a value yet. Let's calculate the time skew assuming no
-      // delay.
-      timeSkew = defaultClock.getNow() - relativeTime;
-    }
-
-    listener.onDataParsed(relativeTime + timeSkew, data);
+    listener.onDataParsed(clockAligner.align(relativeTime, defaultClock.getNow()), data);
   }
 
   public void append(byte[] packet) {
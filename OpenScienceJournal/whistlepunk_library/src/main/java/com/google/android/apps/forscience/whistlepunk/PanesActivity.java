@@ -42,6 +42,7 @@ import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.performance.PerfTrackerProvider;
 import com.google.android.apps.forscience.whistlepunk.project.experiment.ExperimentDetailsFragment;
 import com.google.android.material.snackbar.Snackbar;
@@ -903,7 +904,12 @@ public class PanesActivity extends AppCompatActivity
                 e.getTrial(trialId).addLabel(e, label);
               }
               RxDataController.updateExperiment(getDataController(), e, true)
-                  .subscribe(() -> onLabelAdded(trialId), error -> onAddNewLabelFailed());
+                  .subscribe(
+                      () -> {
+                        requestThumbnailIfPicture(label);
+                        onLabelAdded(trialId);
+                      },
+                      error -> onAddNewLabelFailed());
             },
             error -> {
               if (Log.isLoggable(TAG, Log.ERROR)) {
@@ -913,6 +919,13 @@ public class PanesActivity extends AppCompatActivity
             });
   }
 
+  private void requestThumbnailIfPicture(Label label) {
+    if (label.getType() == GoosciLabel.Label.ValueType.PICTURE) {
+      PictureUtils.requestThumbnail(
+          this, appAccount, experimentId, label.getPictureLabelValue().getFilePath());
+    }
+  }
+
   private void onAddNewLabelFailed() {
     AccessibilityUtils.makeSnackbar(
             findViewById(R.id.bottom_control_bar),
@@ -129,6 +129,18 @@ public class PictureUtils {
     }
   }
 
+  /**
+   * Generates the thumbnail of an image in the background, e.g. once a picture label for it has
+   * been saved.
+   */
+  public static void requestThumbnail(
+      Context context, AppAccount appAccount, String experimentId, String relativeFilePath) {
+    File file =
+        FileMetadataUtil.getInstance()
+            .getExperimentFile(appAccount, experimentId, relativeFilePath);
+    AppSingleton.getInstance(context).getThumbnailCache().requestThumbnail(file);
+  }
+
   public static void loadExperimentImage(
       Context context,
       ImageView view,
@@ -147,6 +159,8 @@ public class PictureUtils {
         FileMetadataUtil.getInstance()
             .getExperimentFile(appAccount, experimentId, relativeFilePath);
     if (scale) {
+      // Scaled images are shown small, so load the thumbnail when there is one.
+      file = AppSingleton.getInstance(context).getThumbnailCache().getImageToLoad(file);
       // Use last modified time as part of the signature to force a glide cache refresh.
       GlideApp.with(context)
           .load(file.getAbsolutePath())
@@ -211,10 +225,11 @@ public class PictureUtils {
     imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
     String fullPath =
         PictureUtils.getExperimentOverviewFullImagePath(appAccount, experimentOverviewFilePath);
-    File file = new File(fullPath);
     Context context = imageView.getContext();
+    File file =
+        AppSingleton.getInstance(context).getThumbnailCache().getImageToLoad(new File(fullPath));
     GlideApp.with(context)
-        .load(fullPath)
+        .load(file.getAbsolutePath())
         .placeholder(R.drawable.experiment_card_placeholder)
         // Create a signature based on the last modified time so that cached images will
         // not be used if the underlying file changes. This may happen if the user has
@@ -0,0 +1,247 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A KLL sketch (Karnin, Lang and Liberty, 2016), which estimates quantiles of a stream of values in
+ * a few kilobytes of memory, however long the stream is.
+ *
+ * <p>Values are kept in levels. When a level fills up, it is sorted, and every other value is
+ * moved up a level, where it stands for two values. Lower levels are given less room, so most of
+ * the memory goes to the values that stand for the most of the stream. With the default size, the
+ * rank of an estimated quantile is within about half a percent of the stream length of the one
+ * asked for.
+ *
+ * <p>Sketches of two streams can be merged into a sketch of both.
+ */
+public class QuantileSketch {
+  /** The room given to the top level, which controls the accuracy. */
+  private static final int K = 400;
+
+  /** Each level gets this fraction of the room of the level above. */
+  private static final double CAPACITY_DECAY = 2.0 / 3.0;
+
+  private static final int MIN_CAPACITY = 8;
+
+  private final List<double[]> levels = new ArrayList<>();
+  private final List<Integer> sizes = new ArrayList<>();
+  // Fixed seed, so results are reproducible.
+  private final Random random = new Random(0);
+  private long count = 0;
+
+  public QuantileSketch() {
+    addLevel();
+  }
+
+  /** Rebuilds a sketch from the values of each of its levels, as returned by {@link #getLevels}. */
+  public static QuantileSketch fromLevels(List<double[]> levels) {
+    QuantileSketch sketch = new QuantileSketch();
+    for (int h = 0; h < levels.size(); h++) {
+      for (double value : levels.get(h)) {
+        sketch.addAtLevel(h, value);
+      }
+      sketch.count += (long) levels.get(h).length << h;
+    }
+    sketch.compress();
+    return sketch;
+  }
+
+  public void add(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    count++;
+    addAtLevel(0, value);
+    if (sizes.get(0) >= capacity(0)) {
+      compress();
+    }
+  }
+
+  /**
+   * Adds a value that stands for a number of equal values, as cheaply as adding one: a weight of
+   * 2<sup>h</sup> is the weight of a value in level h.
+   */
+  public void add(double value, long weight) {
+    if (Double.isNaN(value) || weight <= 0) {
+      return;
+    }
+    count += weight;
+    for (int h = 0; weight != 0; h++, weight >>>= 1) {
+      if ((weight & 1) != 0) {
+        addAtLevel(h, value);
+      }
+    }
+    compress();
+  }
+
+  /** Adds all of the values summarized by another sketch to this one. */
+  public void merge(QuantileSketch other) {
+    for (int h = 0; h < other.levels.size(); h++) {
+      double[] items = other.levels.get(h);
+      for (int i = 0; i < other.sizes.get(h); i++) {
+        addAtLevel(h, items[i]);
+      }
+    }
+    count += other.count;
+    compress();
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns an estimate of the value below which the given fraction of values fall, or NaN if
+   * there are no values.
+   *
+   * @param fraction between 0 and 1.
+   */
+  public double getQuantile(double fraction) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    double[][] sorted = sortedItemsAndWeights();
+    double[] items = sorted[0];
+    double[] weights = sorted[1];
+    double target = fraction * count;
+    double seen = 0;
+    for (int i = 0; i < items.length; i++) {
+      seen += weights[i];
+      if (seen >= target) {
+        return items[i];
+      }
+    }
+    return items[items.length - 1];
+  }
+
+  /** Returns an estimate of the fraction of values that are less than or equal to the given one. */
+  public double getRank(double value) {
+    if (count == 0) {
+      return 0;
+    }
+    long below = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      double[] items = levels.get(h);
+      for (int i = 0; i < sizes.get(h); i++) {
+        if (items[i] <= value) {
+          below += 1L << h;
+        }
+      }
+    }
+    return (double) below / count;
+  }
+
+  /** Returns a copy of the values in each level, lowest first. */
+  public List<double[]> getLevels() {
+    List<double[]> result = new ArrayList<>();
+    for (int h = 0; h < levels.size(); h++) {
+      result.add(Arrays.copyOf(levels.get(h), sizes.get(h)));
+    }
+    return result;
+  }
+
+  /** Returns the number of values held, which bounds the memory used. */
+  public int getRetainedCount() {
+    int retained = 0;
+    for (int size : sizes) {
+      retained += size;
+    }
+    return retained;
+  }
+
+  /** Returns every held value, in order, and the number of values that each stands for. */
+  private double[][] sortedItemsAndWeights() {
+    int retained = getRetainedCount();
+    double[] values = new double[retained];
+    double[] valueWeights = new double[retained];
+    Integer[] order = new Integer[retained];
+    int n = 0;
+    for (int h = 0; h < levels.size(); h++) {
+      double[] items = levels.get(h);
+      for (int i = 0; i < sizes.get(h); i++) {
+        values[n] = items[i];
+        valueWeights[n] = 1L << h;
+        order[n] = n;
+        n++;
+      }
+    }
+    Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+    double[] items = new double[retained];
+    double[] weights = new double[retained];
+    for (int i = 0; i < retained; i++) {
+      items[i] = values[order[i]];
+      weights[i] = valueWeights[order[i]];
+    }
+    return new double[][] {items, weights};
+  }
+
+  private int capacity(int level) {
+    int depth = levels.size() - 1 - level;
+    return Math.max(MIN_CAPACITY, (int) Math.ceil(K * Math.pow(CAPACITY_DECAY, depth)));
+  }
+
+  private void addLevel() {
+    levels.add(new double[MIN_CAPACITY]);
+    sizes.add(0);
+  }
+
+  private void addAtLevel(int level, double value) {
+    while (levels.size() <= level) {
+      addLevel();
+    }
+    double[] items = levels.get(level);
+    int size = sizes.get(level);
+    if (size == items.length) {
+      items = Arrays.copyOf(items, size * 2);
+      levels.set(level, items);
+    }
+    items[size] = value;
+    sizes.set(level, size + 1);
+  }
+
+  /** Compacts full levels, from the bottom up, until every level is within its capacity. */
+  private void compress() {
+    for (int h = 0; h < levels.size(); h++) {
+      if (sizes.get(h) >= capacity(h)) {
+        compact(h);
+      }
+    }
+  }
+
+  private void compact(int level) {
+    double[] items = levels.get(level);
+    int size = sizes.get(level);
+    Arrays.sort(items, 0, size);
+    // An odd one out stays behind, so no weight is lost.
+    int pairs = size / 2;
+    int offset = random.nextBoolean() ? 1 : 0;
+    for (int i = 0; i < pairs; i++) {
+      addAtLevel(level + 1, items[2 * i + offset]);
+    }
+    if (size % 2 == 1) {
+      items[0] = items[size - 1];
+      sizes.set(level, 1);
+    } else {
+      sizes.set(level, 0);
+    }
+  }
+}
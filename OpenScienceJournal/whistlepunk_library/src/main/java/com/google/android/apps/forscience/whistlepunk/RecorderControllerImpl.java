@@ -102,7 +102,7 @@ public class RecorderControllerImpl implements RecorderController {
   private final AppAccount appAccount;
   private DataController dataController;
   private final Scheduler scheduler;
-  private final Clock clock;
+  private Clock clock;
   private final Delay stopDelay;
   private SensorAppearanceProvider appearanceProvider;
   private Map<String, StatefulRecorder> recorders = new LinkedHashMap<>();
@@ -686,6 +686,10 @@ public class RecorderControllerImpl implements RecorderController {
                             for (StatefulRecorder recorder : recorders.values()) {
                               recorder.stopRecording(trial);
                             }
+                            // Queued behind the last readings, which the recorders just flushed.
+                            dataController.finalizeTrial(
+                                trial.getTrialId(),
+                                LoggingConsumer.expectSuccess(TAG, "finalizing trial"));
                             trackStopRecording(
                                 context.getApplicationContext(),
                                 trial,
@@ -899,6 +903,12 @@ public class RecorderControllerImpl implements RecorderController {
     return getRecording() != null;
   }
 
+  /** Sets the clock that times the start and end of each recording. */
+  @VisibleForTesting
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
   @VisibleForTesting
   public Map<String, StatefulRecorder> getRecorders() {
     return recorders;
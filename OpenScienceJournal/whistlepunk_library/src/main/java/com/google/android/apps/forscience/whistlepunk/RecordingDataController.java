@@ -17,6 +17,8 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import java.util.List;
 
 /** Data interface for sensor recorders */
@@ -36,6 +38,18 @@ public interface RecordingDataController {
   /** Add all of the scalar readings in the list. */
   void addScalarReadings(List<BatchInsertScalarReading> readings);
 
+  /**
+   * @see
+   *     com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#addStatsBlock(StatsBlock)
+   */
+  void addStatsBlock(StatsBlock block);
+
+  /**
+   * @see
+   *     com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase#setSeriesHold(SeriesHold)
+   */
+  void setSeriesHold(SeriesHold hold);
+
   /**
    * If an error is encountered storing data or stats for {@code sensorId}, notify {@code listener}
    */
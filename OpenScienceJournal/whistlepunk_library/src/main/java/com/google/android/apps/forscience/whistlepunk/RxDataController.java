@@ -122,6 +122,10 @@ public class RxDataController {
     return updateExperiment(dc, experiment, true);
   }
 
+  public static Single<Integer> getFinestTier(DataController dc, String trialId) {
+    return MaybeConsumers.buildSingle(mc -> dc.getFinestTier(trialId, mc));
+  }
+
   public static Single<File> writeTrialProtoToFile(
       DataController dc, String experimentId, String trialId) {
     return MaybeConsumers.buildSingle(mc -> dc.writeTrialProtoToFile(experimentId, trialId, mc));
@@ -28,6 +28,8 @@ import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedExpression;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.android.apps.forscience.whistlepunk.sensors.AccelerometerSensor;
@@ -46,6 +48,7 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.protobuf.ByteString;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -69,6 +72,9 @@ public class SensorRegistry {
   public static final String WP_HARDWARE_PROVIDER_ID =
       "com.google.android.apps.forscience.whistlepunk.hardware";
 
+  public static final String DERIVED_PROVIDER_ID =
+      "com.google.android.apps.forscience.whistlepunk.derived";
+
   private static final String TAG = "SensorRegistry";
 
   private static class SensorRegistryItem {
@@ -167,7 +173,9 @@ public class SensorRegistry {
   private Set<String> getAllExternalSources() {
     Set<String> externalSourceIds = new HashSet<String>();
     for (Map.Entry<String, SensorRegistryItem> entry : sensorRegistry.entrySet()) {
-      if (!Objects.equals(entry.getValue().providerId, WP_HARDWARE_PROVIDER_ID)) {
+      String providerId = entry.getValue().providerId;
+      if (!Objects.equals(providerId, WP_HARDWARE_PROVIDER_ID)
+          && !Objects.equals(providerId, DERIVED_PROVIDER_ID)) {
         externalSourceIds.add(entry.getKey());
       }
     }
@@ -248,6 +256,35 @@ public class SensorRegistry {
     addSource(new SensorRegistryItem(WP_HARDWARE_PROVIDER_ID, null, source, id));
   }
 
+  /**
+   * Adds a sensor whose values are computed from those of sensors already in the registry.
+   *
+   * @param expression a {@link DerivedExpression} over the ids of scalar sensors.
+   * @throws ParseException if the expression can't be parsed.
+   * @throws IllegalArgumentException if the id is taken, or the expression uses an id that isn't
+   *     that of a scalar sensor in the registry.
+   */
+  public void addDerivedSensor(
+      String sensorId, String expression, DerivedSensor.Alignment alignment)
+      throws ParseException {
+    Preconditions.checkArgument(
+        !sensorRegistry.containsKey(sensorId), "Sensor id already in use: %s", sensorId);
+    DerivedExpression parsed = DerivedExpression.parse(expression);
+    List<ScalarSensor> inputs = new ArrayList<>();
+    for (String inputId : parsed.getInputIds()) {
+      SensorRegistryItem item = sensorRegistry.get(inputId);
+      Preconditions.checkArgument(
+          item != null && item.choice instanceof ScalarSensor, "Not a scalar sensor: %s", inputId);
+      inputs.add((ScalarSensor) item.choice);
+    }
+    addSource(
+        new SensorRegistryItem(
+            DERIVED_PROVIDER_ID,
+            null,
+            new DerivedSensor(sensorId, parsed, inputs, alignment),
+            sensorId));
+  }
+
   @NonNull
   public List<String> updateExternalSensors(
       List<ConnectableSensor> sensors, Map<String, SensorProvider> externalProviders) {
@@ -23,7 +23,9 @@ import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.util.Log;
+import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.SettingsActivity.SettingsType;
+import com.google.android.apps.forscience.whistlepunk.accounts.AccountsUtils;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
 
@@ -38,6 +40,8 @@ public class SettingsFragment extends PreferenceFragment {
   private static final String KEY_VERSION = "version";
   private static final String KEY_OPEN_SOURCE = "open_source";
 
+  @VisibleForTesting public static final String KEY_ARCHIVE_IDLE_TRIALS = "archive_idle_trials";
+
   public static SettingsFragment newInstance(AppAccount appAccount, @SettingsType int type) {
     Bundle args = new Bundle();
     args.putString(KEY_ACCOUNT_KEY, appAccount.getAccountKey());
@@ -94,6 +98,15 @@ public class SettingsFragment extends PreferenceFragment {
     WhistlePunkApplication.getUsageTracker(getActivity()).trackScreenView(screenName);
   }
 
+  /**
+   * Returns whether the full-rate sensor data of the account's idle recordings may be thrown away
+   * to save space, keeping only their coarser zoom tiers. Off unless the user turns it on.
+   */
+  public static boolean isArchiveIdleTrialsEnabled(Context context, AppAccount appAccount) {
+    return AccountsUtils.getSharedPreferences(context, appAccount)
+        .getBoolean(KEY_ARCHIVE_IDLE_TRIALS, false);
+  }
+
   private void loadVersion(Context context) {
     PackageManager pm = context.getPackageManager();
 
@@ -20,8 +20,11 @@ import androidx.annotation.IntDef;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SketchLevel;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.ValueDistribution;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorObserver;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -32,6 +35,10 @@ import java.util.List;
 /**
  * Keeps track of stats for a scalar value changing over time, and informs listeners when they
  * change.
+ *
+ * <p>Besides min, max and average, it keeps the variance, a {@link QuantileSketch} and a {@link
+ * ValueHistogram}, which are saved with the trial stats. Accumulators of separate parts of a
+ * stream can be merged, giving the stats of the whole without reading the data again.
  */
 public class StatsAccumulator {
   public static final String KEY_MIN = "stats_min";
@@ -39,6 +46,8 @@ public class StatsAccumulator {
   public static final String KEY_AVERAGE = "stats_average";
   public static final String KEY_NUM_DATA_POINTS = "stats_count";
   public static final String KEY_TOTAL_DURATION = "stats_total_duration";
+  public static final String KEY_STANDARD_DEVIATION = "stats_standard_deviation";
+  public static final String KEY_MEDIAN = "stats_median";
   public static final String KEY_STATUS = "status";
 
   @IntDef({STATUS_VALID, STATUS_NEEDS_UPDATE})
@@ -117,6 +126,16 @@ public class StatsAccumulator {
   private double max;
   private double sum;
 
+  // Welford's running mean and sum of squared deviations from it, which, unlike a sum of squares,
+  // don't lose precision when the values are large compared to their spread.
+  private double mean;
+  private double m2;
+  private QuantileSketch sketch;
+  private ValueHistogram histogram;
+  // False once stats blocks stored without quantiles have been merged in, since their values are
+  // not in the sketch and histogram.
+  private boolean hasDistribution;
+
   private long startTimestamp = RecordingMetadata.NOT_RECORDING;
   private long latestTimestamp = RecordingMetadata.NOT_RECORDING;
   private int statSize;
@@ -133,6 +152,11 @@ public class StatsAccumulator {
     min = Double.MAX_VALUE;
     max = -Double.MAX_VALUE;
     sum = 0;
+    mean = 0;
+    m2 = 0;
+    sketch = new QuantileSketch();
+    histogram = new ValueHistogram();
+    hasDistribution = true;
     startTimestamp = RecordingMetadata.NOT_RECORDING;
     latestTimestamp = RecordingMetadata.NOT_RECORDING;
     statSize = 0;
@@ -160,12 +184,127 @@ public class StatsAccumulator {
       }
       sum = sum + value;
     }
+    double delta = value - mean;
+    mean += delta / statSize;
+    m2 += delta * (value - mean);
+    sketch.add(value);
+    histogram.add(value);
+  }
+
+  /**
+   * The last value is still the current one at {@code timestampMillis}, which extends the duration
+   * of the stream without adding a data point.
+   */
+  public void holdUntil(long timestampMillis) {
+    if (isInitialized() && timestampMillis > latestTimestamp) {
+      latestTimestamp = timestampMillis;
+    }
+  }
+
+  /**
+   * Adds the stats of another accumulator, which must be for a separate part of the same stream,
+   * to this one.
+   */
+  public void merge(StatsAccumulator other) {
+    if (!other.isInitialized()) {
+      return;
+    }
+    mergeMoments(
+        other.statSize,
+        other.min,
+        other.max,
+        other.sum,
+        other.mean,
+        other.m2,
+        other.startTimestamp,
+        other.latestTimestamp);
+    sketch.merge(other.sketch);
+    histogram.merge(other.histogram);
+    hasDistribution &= other.hasDistribution;
+  }
+
+  /**
+   * Adds the stats of a block, which must not overlap the data already added, to this one. A block
+   * only keeps {@link StatsBlock#MAX_QUANTILES} of its values, so the rank of an estimated quantile
+   * may be off by up to half of one such slice of the values in blocks, on top of the error of the
+   * sketch. After a block stored without quantiles, the median and distribution are not saved.
+   */
+  public void merge(StatsBlock block) {
+    if (block.getCount() == 0) {
+      return;
+    }
+    mergeMoments(
+        block.getCount(),
+        block.getMin(),
+        block.getMax(),
+        block.getSum(),
+        block.getSum() / block.getCount(),
+        block.getSumOfSquaredDeviations(),
+        block.getFirstTimestampMillis(),
+        block.getLastTimestampMillis());
+    double[] quantiles = block.getQuantiles();
+    if (quantiles.length == 0) {
+      hasDistribution = false;
+      return;
+    }
+    for (int i = 0; i < quantiles.length; i++) {
+      long weight = block.getQuantileWeight(i);
+      sketch.add(quantiles[i], weight);
+      histogram.add(quantiles[i], weight);
+    }
+  }
+
+  private void mergeMoments(
+      int otherSize,
+      double otherMin,
+      double otherMax,
+      double otherSum,
+      double otherMean,
+      double otherM2,
+      long otherStartTimestamp,
+      long otherLatestTimestamp) {
+    if (!isInitialized()) {
+      min = otherMin;
+      max = otherMax;
+      startTimestamp = otherStartTimestamp;
+      latestTimestamp = otherLatestTimestamp;
+    } else {
+      min = Math.min(min, otherMin);
+      max = Math.max(max, otherMax);
+      startTimestamp = Math.min(startTimestamp, otherStartTimestamp);
+      latestTimestamp = Math.max(latestTimestamp, otherLatestTimestamp);
+    }
+    // Chan et al.'s formula for combining the mean and squared deviations of two sets.
+    long combinedSize = (long) statSize + otherSize;
+    double delta = otherMean - mean;
+    m2 += otherM2 + delta * delta * ((double) statSize * otherSize / combinedSize);
+    mean += delta * otherSize / combinedSize;
+    sum += otherSum;
+    statSize += otherSize;
   }
 
   private double getAverage() {
     return sum / statSize;
   }
 
+  /** Returns the population standard deviation of the values. */
+  public double getStandardDeviation() {
+    return statSize > 0 ? Math.sqrt(m2 / statSize) : Double.NaN;
+  }
+
+  /**
+   * Returns an estimate of the value below which the given fraction of values fall.
+   *
+   * @see QuantileSketch#getQuantile(double)
+   */
+  public double getQuantile(double fraction) {
+    return sketch.getQuantile(fraction);
+  }
+
+  public ValueHistogram getHistogram() {
+    return histogram;
+  }
+
   public long getLatestTimestamp() {
     return latestTimestamp;
   }
@@ -195,5 +334,80 @@ public class StatsAccumulator {
     stats.putStat(GoosciTrial.SensorStat.StatType.AVERAGE, getAverage());
     stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, statSize);
     stats.putStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, latestTimestamp - startTimestamp);
+    stats.putStat(GoosciTrial.SensorStat.StatType.STANDARD_DEVIATION, getStandardDeviation());
+    if (hasDistribution) {
+      stats.putStat(GoosciTrial.SensorStat.StatType.MEDIAN, getQuantile(0.5));
+      stats.setDistribution(getDistribution());
+    } else {
+      // Don't leave the median of some other range in place.
+      stats.removeStat(GoosciTrial.SensorStat.StatType.MEDIAN);
+      stats.clearDistribution();
+    }
+  }
+
+  private ValueDistribution getDistribution() {
+    ValueDistribution.Builder distribution =
+        ValueDistribution.newBuilder()
+            .setCount(statSize)
+            .setMean(mean)
+            .setSumOfSquaredDeviations(m2)
+            .setHistogramStart(histogram.getStart())
+            .setHistogramBinWidth(histogram.getBinWidth());
+    for (double[] level : sketch.getLevels()) {
+      SketchLevel.Builder sketchLevel = SketchLevel.newBuilder();
+      for (double item : level) {
+        sketchLevel.addItems(item);
+      }
+      distribution.addSketchLevels(sketchLevel);
+    }
+    for (long count : histogram.getCounts()) {
+      distribution.addHistogramCounts(count);
+    }
+    return distribution.build();
+  }
+
+  /**
+   * Rebuilds an accumulator from saved stats, so that it can be merged with others, or returns
+   * null if the stats were saved without a distribution, by an older version.
+   *
+   * @param startTimestamp the time of the first value, which is not saved, only the duration.
+   */
+  public static StatsAccumulator fromTrialStats(TrialStats stats, long startTimestamp) {
+    if (!stats.hasDistribution()) {
+      return null;
+    }
+    ValueDistribution distribution = stats.getDistribution();
+    StatsAccumulator accumulator = new StatsAccumulator(stats.getSensorId());
+    if (distribution.getCount() == 0) {
+      return accumulator;
+    }
+    accumulator.statSize = (int) distribution.getCount();
+    accumulator.mean = distribution.getMean();
+    accumulator.m2 = distribution.getSumOfSquaredDeviations();
+    accumulator.min = stats.getStatValue(GoosciTrial.SensorStat.StatType.MINIMUM, 0);
+    accumulator.max = stats.getStatValue(GoosciTrial.SensorStat.StatType.MAXIMUM, 0);
+    accumulator.sum =
+        stats.getStatValue(GoosciTrial.SensorStat.StatType.AVERAGE, 0) * accumulator.statSize;
+    accumulator.startTimestamp = startTimestamp;
+    accumulator.latestTimestamp =
+        startTimestamp
+            + (long) stats.getStatValue(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 0);
+    List<double[]> levels = new ArrayList<>();
+    for (SketchLevel level : distribution.getSketchLevelsList()) {
+      double[] items = new double[level.getItemsCount()];
+      for (int i = 0; i < items.length; i++) {
+        items[i] = level.getItems(i);
+      }
+      levels.add(items);
+    }
+    accumulator.sketch = QuantileSketch.fromLevels(levels);
+    long[] counts = new long[distribution.getHistogramCountsCount()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = distribution.getHistogramCounts(i);
+    }
+    accumulator.histogram =
+        new ValueHistogram(
+            distribution.getHistogramStart(), distribution.getHistogramBinWidth(), counts);
+    return accumulator;
   }
 }
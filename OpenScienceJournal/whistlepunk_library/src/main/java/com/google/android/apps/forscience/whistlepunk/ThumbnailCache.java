@@ -0,0 +1,331 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.exifinterface.media.ExifInterface;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Generates and stores small JPEG thumbnails of experiment images, so that lists and the
+ * DocumentsProvider don't decode full resolution photos on every bind.
+ *
+ * <p>Thumbnails live in a "thumbnails" directory next to an experiment's "assets" directory. Each
+ * is named after its asset plus a hash of the asset's name, size and modification time, so a
+ * changed asset never matches an old thumbnail, and looking one up only needs file metadata.
+ * Thumbnails are derived data: they are not exported, and are regenerated whenever missing.
+ */
+public class ThumbnailCache {
+  private static final String TAG = "ThumbnailCache";
+
+  public static final String THUMBNAILS_DIRECTORY = "thumbnails";
+
+  // Thumbnails are scaled so that their shorter edge is this long, which is enough for the
+  // center-cropped images in lists and cards.
+  @VisibleForTesting static final int THUMBNAIL_SIZE_PX = 512;
+
+  private static final int JPEG_QUALITY = 85;
+  private static final String THUMBNAIL_EXTENSION = ".jpg";
+  private static final int HASH_LENGTH = 16;
+  private static final Set<String> IMAGE_EXTENSIONS =
+      new HashSet<>(Arrays.asList("jpg", "jpeg", "png", "webp", "gif"));
+
+  private final Executor executor;
+  // Assets with a thumbnail being generated, so that repeated binds don't queue duplicate work.
+  private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  private final Set<String> backfilledAccounts =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+  public ThumbnailCache(Executor executor) {
+    this.executor = executor;
+  }
+
+  /** Returns true if files with the name of the given file can have thumbnails. */
+  public static boolean isImage(File file) {
+    String name = file.getName();
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 && IMAGE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+  }
+
+  /**
+   * Returns the thumbnail for the given asset if it has already been generated, or null. Only file
+   * metadata is read, so this is cheap enough to call when binding a view.
+   */
+  @Nullable
+  public File getThumbnail(File asset) {
+    if (!asset.isFile()) {
+      return null;
+    }
+    File thumbnail = getThumbnailFile(asset);
+    return thumbnail.isFile() ? thumbnail : null;
+  }
+
+  /**
+   * Returns the file a view should load for the given asset: its thumbnail if there is one. If
+   * there isn't, the asset itself is returned and a thumbnail is generated in the background for
+   * next time.
+   */
+  public File getImageToLoad(File asset) {
+    File thumbnail = getThumbnail(asset);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+    requestThumbnail(asset);
+    return asset;
+  }
+
+  /** Generates the thumbnail for the given asset in the background, if it doesn't exist yet. */
+  public void requestThumbnail(File asset) {
+    if (!isImage(asset) || !pending.add(asset.getAbsolutePath())) {
+      return;
+    }
+    executor.execute(
+        () -> {
+          try {
+            getOrCreateThumbnail(asset);
+          } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+              Log.w(TAG, "Could not create thumbnail for " + asset, e);
+            }
+          } finally {
+            pending.remove(asset.getAbsolutePath());
+          }
+        });
+  }
+
+  /** Returns the thumbnail for the given asset, generating it on the calling thread if needed. */
+  public File getOrCreateThumbnail(File asset) throws IOException {
+    File thumbnail = getThumbnail(asset);
+    if (thumbnail != null) {
+      return thumbnail;
+    }
+    return createThumbnail(asset);
+  }
+
+  /** Deletes every thumbnail of the given asset. Called when the asset is deleted. */
+  public void deleteThumbnails(File asset) {
+    File[] thumbnails = getThumbnailsDirectory(asset.getParentFile()).listFiles();
+    if (thumbnails == null) {
+      return;
+    }
+    for (File thumbnail : thumbnails) {
+      if (isThumbnailOf(thumbnail.getName(), asset.getName())) {
+        thumbnail.delete();
+      }
+    }
+  }
+
+  /**
+   * Generates missing thumbnails for every image in the account's experiments, in the background,
+   * and deletes thumbnails whose assets are gone. Only runs once per account per process.
+   */
+  public void backfill(AppAccount appAccount) {
+    if (!backfilledAccounts.add(appAccount.getAccountKey())) {
+      return;
+    }
+    executor.execute(
+        () ->
+            backfillExperiments(
+                FileMetadataUtil.getInstance().getExperimentsRootDirectory(appAccount)));
+  }
+
+  /** Synchronously generates missing and removes stale thumbnails for all experiments. */
+  @VisibleForTesting
+  void backfillExperiments(File experimentsRoot) {
+    File[] experimentDirectories = experimentsRoot.listFiles();
+    if (experimentDirectories == null) {
+      return;
+    }
+    for (File experimentDirectory : experimentDirectories) {
+      if (experimentDirectory.isDirectory()) {
+        backfillExperiment(experimentDirectory);
+      }
+    }
+  }
+
+  /** Synchronously generates missing and removes stale thumbnails for one experiment. */
+  public void backfillExperiment(File experimentDirectory) {
+    File assetsDirectory = new File(experimentDirectory, FileMetadataUtil.ASSETS_DIRECTORY);
+    File[] assets = assetsDirectory.listFiles();
+    Set<String> expected = new HashSet<>();
+    if (assets != null) {
+      for (File asset : assets) {
+        if (!asset.isFile() || !isImage(asset)) {
+          continue;
+        }
+        try {
+          expected.add(getOrCreateThumbnail(asset).getName());
+        } catch (IOException e) {
+          if (Log.isLoggable(TAG, Log.WARN)) {
+            Log.w(TAG, "Could not create thumbnail for " + asset, e);
+          }
+        }
+      }
+    }
+    File[] thumbnails = new File(experimentDirectory, THUMBNAILS_DIRECTORY).listFiles();
+    if (thumbnails == null) {
+      return;
+    }
+    for (File thumbnail : thumbnails) {
+      if (!expected.contains(thumbnail.getName())) {
+        thumbnail.delete();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  File getThumbnailFile(File asset) {
+    return new File(
+        getThumbnailsDirectory(asset.getParentFile()),
+        asset.getName() + "-" + hash(asset) + THUMBNAIL_EXTENSION);
+  }
+
+  /**
+   * Returns the largest power of two sample size that still decodes an image of the given
+   * dimensions with its shorter edge at least {@code minEdge} pixels long.
+   */
+  @VisibleForTesting
+  static int calculateInSampleSize(int width, int height, int minEdge) {
+    int shortEdge = Math.min(width, height);
+    int inSampleSize = 1;
+    while (shortEdge / (inSampleSize * 2) >= minEdge) {
+      inSampleSize *= 2;
+    }
+    return inSampleSize;
+  }
+
+  private File createThumbnail(File asset) throws IOException {
+    String path = asset.getAbsolutePath();
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeFile(path, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Could not decode bounds of " + asset);
+    }
+    options.inJustDecodeBounds = false;
+    options.inSampleSize =
+        calculateInSampleSize(options.outWidth, options.outHeight, THUMBNAIL_SIZE_PX);
+    Bitmap decoded = BitmapFactory.decodeFile(path, options);
+    if (decoded == null) {
+      throw new IOException("Could not decode " + asset);
+    }
+    Bitmap thumbnail = scaleAndRotate(decoded, getRotationDegrees(path));
+
+    File thumbnailFile = getThumbnailFile(asset);
+    File directory = thumbnailFile.getParentFile();
+    if (!directory.exists() && !directory.mkdirs()) {
+      throw new IOException("Couldn't create thumbnail directory " + directory);
+    }
+    // Write to a temporary file first, so a reader never sees a partially written thumbnail.
+    File temporary = new File(directory, thumbnailFile.getName() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temporary)) {
+      if (!thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+        throw new IOException("Could not compress thumbnail of " + asset);
+      }
+    } finally {
+      if (thumbnail != decoded) {
+        thumbnail.recycle();
+      }
+      decoded.recycle();
+    }
+    deleteThumbnails(asset);
+    if (!temporary.renameTo(thumbnailFile)) {
+      temporary.delete();
+      throw new IOException("Couldn't move thumbnail into place for " + asset);
+    }
+    return thumbnailFile;
+  }
+
+  private static Bitmap scaleAndRotate(Bitmap bitmap, int rotationDegrees) {
+    int shortEdge = Math.min(bitmap.getWidth(), bitmap.getHeight());
+    float scale = shortEdge > THUMBNAIL_SIZE_PX ? (float) THUMBNAIL_SIZE_PX / shortEdge : 1f;
+    if (scale == 1f && rotationDegrees == 0) {
+      return bitmap;
+    }
+    Matrix matrix = new Matrix();
+    matrix.postScale(scale, scale);
+    matrix.postRotate(rotationDegrees);
+    return Bitmap.createBitmap(
+        bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true /* filter */);
+  }
+
+  // The thumbnail is written without EXIF data, so the asset's orientation is applied to pixels.
+  private static int getRotationDegrees(String path) {
+    try {
+      int orientation =
+          new ExifInterface(path)
+              .getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+      switch (orientation) {
+        case ExifInterface.ORIENTATION_ROTATE_90:
+          return 90;
+        case ExifInterface.ORIENTATION_ROTATE_180:
+          return 180;
+        case ExifInterface.ORIENTATION_ROTATE_270:
+          return 270;
+        default:
+          return 0;
+      }
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static File getThumbnailsDirectory(File assetsDirectory) {
+    return new File(assetsDirectory.getParentFile(), THUMBNAILS_DIRECTORY);
+  }
+
+  private static boolean isThumbnailOf(String thumbnailName, String assetName) {
+    String prefix = assetName + "-";
+    return thumbnailName.startsWith(prefix)
+        && thumbnailName.length() == prefix.length() + HASH_LENGTH + THUMBNAIL_EXTENSION.length()
+        && thumbnailName.endsWith(THUMBNAIL_EXTENSION);
+  }
+
+  private static String hash(File asset) {
+    String key = asset.getName() + ":" + asset.length() + ":" + asset.lastModified();
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+      StringBuilder hex = new StringBuilder();
+      for (int i = 0; i < HASH_LENGTH / 2; i++) {
+        hex.append(String.format(Locale.US, "%02x", digest[i]));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of a stream of values, with a fixed number of equal width bins, whose range grows to
+ * cover the values seen.
+ *
+ * <p>Bin widths are powers of two, and bins start at multiples of their width, so a bin of one
+ * width always lies entirely within one bin of any larger width. Growing the range only ever
+ * doubles the width, and two histograms can be merged exactly.
+ */
+public class ValueHistogram {
+  public static final int BIN_COUNT = 32;
+
+  private final long[] counts = new long[BIN_COUNT];
+  private double start = 0;
+  // 0 while every value seen has been the same, in which case they are all in the first bin.
+  private double binWidth = 0;
+  private long count = 0;
+
+  public ValueHistogram() {}
+
+  /** Rebuilds a histogram from the values returned by its getters. */
+  public ValueHistogram(double start, double binWidth, long[] counts) {
+    this.start = start;
+    this.binWidth = binWidth;
+    for (int i = 0; i < counts.length && i < BIN_COUNT; i++) {
+      this.counts[i] = counts[i];
+      count += counts[i];
+    }
+  }
+
+  /** Adds a value. NaN and infinite values are ignored. */
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  /** Adds a value that stands for a number of equal values. */
+  public void add(double value, long weight) {
+    if (Double.isNaN(value) || Double.isInfinite(value) || weight <= 0) {
+      return;
+    }
+    if (count == 0) {
+      start = value;
+    } else if (binWidth == 0 ? value != start : !isInRange(value)) {
+      growToFit(Math.min(value, getLowestEdge()), Math.max(value, getHighestEdge()));
+    }
+    counts[indexOf(value)] += weight;
+    count += weight;
+  }
+
+  /** Adds all of the values counted by another histogram to this one. */
+  public void merge(ValueHistogram other) {
+    if (other.count == 0) {
+      return;
+    }
+    if (count == 0) {
+      start = other.start;
+      binWidth = other.binWidth;
+      System.arraycopy(other.counts, 0, counts, 0, BIN_COUNT);
+      count = other.count;
+      return;
+    }
+    if (binWidth < other.binWidth) {
+      rebin(Math.floor(start / other.binWidth) * other.binWidth, other.binWidth);
+    }
+    growToFit(
+        Math.min(getLowestEdge(), other.getLowestEdge()),
+        Math.max(getHighestEdge(), other.getHighestEdge()));
+    for (int i = 0; i < BIN_COUNT; i++) {
+      if (other.counts[i] > 0) {
+        counts[indexOf(other.getBinStart(i))] += other.counts[i];
+      }
+    }
+    count += other.count;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /** Returns the lower edge of the first bin. */
+  public double getStart() {
+    return start;
+  }
+
+  /** Returns the width of each bin, or 0 if every value has been the same. */
+  public double getBinWidth() {
+    return binWidth;
+  }
+
+  public long[] getCounts() {
+    return Arrays.copyOf(counts, BIN_COUNT);
+  }
+
+  private double getBinStart(int index) {
+    return start + index * binWidth;
+  }
+
+  private boolean isInRange(double value) {
+    return value >= start && value < start + BIN_COUNT * binWidth;
+  }
+
+  private int indexOf(double value) {
+    if (binWidth == 0) {
+      return 0;
+    }
+    int index = (int) Math.floor((value - start) / binWidth);
+    return Math.max(0, Math.min(BIN_COUNT - 1, index));
+  }
+
+  /** The lower edge of the lowest bin that has values in it. */
+  private double getLowestEdge() {
+    for (int i = 0; i < BIN_COUNT; i++) {
+      if (counts[i] > 0) {
+        return getBinStart(i);
+      }
+    }
+    return start;
+  }
+
+  /** The lower edge of the highest bin that has values in it. */
+  private double getHighestEdge() {
+    for (int i = BIN_COUNT - 1; i >= 0; i--) {
+      if (counts[i] > 0) {
+        return getBinStart(i);
+      }
+    }
+    return start;
+  }
+
+  /** Widens and moves the bins as little as possible so that both values fall in a bin. */
+  private void growToFit(double low, double high) {
+    double width = binWidth;
+    if (width == 0) {
+      // Start from a width that would be a little too narrow, to end up as narrow as possible.
+      width = Math.scalb(1.0, Math.getExponent((high - low) / BIN_COUNT));
+    }
+    double newStart;
+    while (true) {
+      newStart = Math.floor(low / width) * width;
+      if (Math.floor((high - newStart) / width) < BIN_COUNT) {
+        break;
+      }
+      width *= 2;
+    }
+    rebin(newStart, width);
+  }
+
+  /** Moves every count into the bin of the new layout that contains its old bin. */
+  private void rebin(double newStart, double newWidth) {
+    long[] old = Arrays.copyOf(counts, BIN_COUNT);
+    double oldStart = start;
+    double oldWidth = binWidth;
+    Arrays.fill(counts, 0);
+    start = newStart;
+    binWidth = newWidth;
+    for (int i = 0; i < BIN_COUNT; i++) {
+      if (old[i] > 0) {
+        counts[indexOf(oldStart + i * oldWidth)] += old[i];
+      }
+    }
+  }
+}
@@ -20,6 +20,7 @@ import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.SensorAppearance;
 import com.google.android.apps.forscience.whistlepunk.SensorAppearanceProvider;
 import com.google.android.apps.forscience.whistlepunk.SensorProvider;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.InputDeviceSpec;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors;
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
@@ -30,11 +31,15 @@ import java.util.Map;
 import java.util.Objects;
 
 public class ConnectableSensor {
+  // Stands in for the type of built-in sensors in identity keys.
+  private static final String BUILT_IN_IDENTITY = "built in";
+
   private GoosciSensorSpec.SensorSpec spec;
 
   private String connectedSensorId;
   private boolean included;
   private final Map<String, SensorProvider> providerMap;
+  private String identityKey;
 
   /**
    * Manages creating representations of connected and disconnected sensors from stored
@@ -198,6 +203,24 @@ public class ConnectableSensor {
     return result;
   }
 
+  /**
+   * Returns a key that this sensor shares with exactly the sensors that {@link #isSameSensor} is
+   * true of: built-in sensors with the same id, and external sensors of the same type at the same
+   * address.
+   */
+  public String getIdentityKey() {
+    if (identityKey == null) {
+      if (spec == null) {
+        identityKey = InputDeviceSpec.joinAddresses(BUILT_IN_IDENTITY, connectedSensorId);
+      } else {
+        ExternalSensorSpec externalSpec = getSpec();
+        identityKey =
+            InputDeviceSpec.joinAddresses(externalSpec.getType(), externalSpec.getAddress());
+      }
+    }
+    return identityKey;
+  }
+
   public boolean isSameSensor(ConnectableSensor other) {
     if (spec == null) {
       return Objects.equals(other.connectedSensorId, connectedSensorId);
@@ -41,6 +41,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Runnables;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -56,6 +57,8 @@ public class ConnectableSensorRegistry {
 
   // Don't remove a sensor unless it's been gone 15 seconds
   private static final long ASSUME_GONE_TIMEOUT_MILLIS = 15_000;
+  // Stop a discoverer that is still scanning after this long, unless given its own deadline
+  private static final Delay DEFAULT_SCAN_DEADLINE = Delay.seconds(10);
   private static final String EXTERNAL_SENSOR_KEY_PREFIX = "sensorKey";
 
   private final DataController dataController;
@@ -63,11 +66,13 @@ public class ConnectableSensorRegistry {
 
   private final DevicesPresenter presenter;
   private final Map<String, ConnectableSensor> sensors = new ArrayMap<>();
+  // Maps from ConnectableSensor#getIdentityKey to the sensorKey of the sensor in sensors.
+  private final Map<String, String> sensorKeysByIdentity = new HashMap<>();
   private final Map<String, SensorDiscoverer.SettingsInterface> settingsIntents = new ArrayMap<>();
   private final Scheduler scheduler;
   private final Map<String, SensorProvider> providers;
-  private boolean scanning = false;
-  private int scanCount = 0;
+  private final DiscoveryCoordinator discoveryCoordinator;
+  private final Map<String, Delay> scanDeadlines = new ArrayMap<>();
 
   // Maps from sensorKey to the timestamp (from clock) of the last time it showed up in a scan.
   private Map<String, Long> mostRecentlySeen = new ArrayMap<>();
@@ -79,7 +84,6 @@ public class ConnectableSensorRegistry {
   private DeviceRegistry deviceRegistry;
   private final SensorAppearanceProvider appearanceProvider;
   private UsageTracker usageTracker;
-  private Runnable timeoutRunnable;
   private ConnectableSensor.Connector connector;
 
   // TODO: reduce parameter list?
@@ -105,6 +109,16 @@ public class ConnectableSensorRegistry {
     this.appearanceProvider = appearanceProvider;
     this.usageTracker = usageTracker;
     this.connector = connector;
+    discoveryCoordinator =
+        new DiscoveryCoordinator(this.scheduler, clock, () -> presenter.refreshScanningUI());
+  }
+
+  /**
+   * Sets how long the discoverer with the given key may scan for before it is stopped, instead of
+   * the default of 10 seconds.
+   */
+  public void setScanDeadline(String providerKey, Delay deadline) {
+    scanDeadlines.put(providerKey, deadline);
   }
 
   public void pair(final String sensorKey) {
@@ -233,7 +247,7 @@ public class ConnectableSensorRegistry {
   }
 
   public void startScanningInDiscoverers(boolean clearDeviceCache) {
-    if (scanning) {
+    if (isScanning()) {
       return;
     }
     final long timeout = clearDeviceCache ? 0 : ASSUME_GONE_TIMEOUT_MILLIS;
@@ -308,29 +322,13 @@ public class ConnectableSensorRegistry {
             pool.taskDone(providerKey);
           }
         };
-    if (discoverer.startScanning(
-        listener, LoggingConsumer.expectSuccess(TAG, "Discovering sensors"))) {
-      onScanStarted();
-    }
-  }
-
-  /** Scan has started; starts a 10-second timer that will stop scanning. */
-  private void onScanStarted() {
-    if (!scanning) {
-      scanning = true;
-      scanCount++;
-      final int thisScanCount = scanCount;
-      timeoutRunnable =
-          () -> {
-            if (scanCount == thisScanCount) {
-              scanning = false;
-              stopScanningInDiscoverers();
-              // TODO: test that this actually happens
-              presenter.refreshScanningUI();
-            }
-          };
-      scheduler.schedule(Delay.seconds(10), timeoutRunnable);
-    }
+    Delay deadline = scanDeadlines.get(providerKey);
+    discoveryCoordinator.startScanning(
+        providerKey,
+        discoverer,
+        listener,
+        deadline != null ? deadline : DEFAULT_SCAN_DEADLINE,
+        LoggingConsumer.expectSuccess(TAG, "Discovering sensors"));
   }
 
   private void onSensorFound(SensorDiscoverer.DiscoveredSensor ds, Set<String> availableKeysSeen) {
@@ -389,7 +387,7 @@ public class ConnectableSensorRegistry {
             @Override
             public void success(String newSensorId) {
               optionsListener.onExperimentSensorReplaced(oldSensorId, newSensorId);
-              sensors.put(sensorKey, connector.connected(newSensor.getSensorSpec(), newSensorId));
+              putSensor(sensorKey, connector.connected(newSensor.getSensorSpec(), newSensorId));
             }
           });
     }
@@ -401,12 +399,13 @@ public class ConnectableSensorRegistry {
   }
 
   private String findSensorKey(ConnectableSensor sensor) {
-    for (Map.Entry<String, ConnectableSensor> entry : sensors.entrySet()) {
-      if (entry.getValue().isSameSensor(sensor)) {
-        return entry.getKey();
-      }
-    }
-    return null;
+    return sensorKeysByIdentity.get(sensor.getIdentityKey());
+  }
+
+  /** Remembers the sensor under the given key, which must be the key of any same sensor. */
+  private void putSensor(String sensorKey, ConnectableSensor sensor) {
+    sensors.put(sensorKey, sensor);
+    sensorKeysByIdentity.put(sensor.getIdentityKey(), sensorKey);
   }
 
   // TODO: need to get My Devices from database
@@ -437,7 +436,7 @@ public class ConnectableSensorRegistry {
         getPairedGroup().addSensor(sensorKey, newSensor);
       }
       // TODO(saff): test that this happens?
-      this.sensors.put(sensorKey, newSensor);
+      putSensor(sensorKey, newSensor);
       if (newSensor.isPaired()) {
         atLeastOneWasPaired = true;
       }
@@ -451,7 +450,7 @@ public class ConnectableSensorRegistry {
     for (String sensorKey : this.sensors.keySet()) {
       ConnectableSensor sensor = this.sensors.get(sensorKey);
       if (sensor.isPaired() && !sensors.containsKey(sensor.getConnectedSensorId())) {
-        this.sensors.put(sensorKey, connector.asDisconnected(sensor));
+        putSensor(sensorKey, connector.asDisconnected(sensor));
         getPairedGroup().removeSensor(sensorKey);
       }
     }
@@ -463,7 +462,7 @@ public class ConnectableSensorRegistry {
     if (key == null) {
       key = EXTERNAL_SENSOR_KEY_PREFIX + (keyNum++);
     }
-    sensors.put(key, sensor);
+    putSensor(key, sensor);
     settingsIntents.put(key, settingsInterface);
     return key;
   }
@@ -527,19 +526,15 @@ public class ConnectableSensorRegistry {
   }
 
   public void stopScanningInDiscoverers() {
+    discoveryCoordinator.stopAll();
     for (SensorDiscoverer discoverer : discoverers.values()) {
       discoverer.stopScanning();
     }
-    if (timeoutRunnable != null) {
-      scheduler.unschedule(timeoutRunnable);
-      timeoutRunnable = null;
-    }
-    scanning = false;
     presenter.refreshScanningUI();
   }
 
   public boolean isScanning() {
-    return scanning;
+    return discoveryCoordinator.isScanning();
   }
 
   /** @return true if anything is changed. */
@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.devicemanager;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.javalib.Scheduler;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.InputDeviceSpec;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciGadgetInfo;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Runs scans in several {@link SensorDiscoverer}s at once, each with its own deadline, at which it
+ * is stopped if it is still scanning. Once a scan is stopped, whatever else its discoverer finds is
+ * dropped; only the end of the scan is still passed on.
+ *
+ * <p>Discoverers such as BLE report a sensor or device at every advertisement, so the same
+ * sighting is passed on at most once every {@link #COALESCE_WINDOW_MILLIS} for each sensor or
+ * device, unless what was seen has changed.
+ */
+class DiscoveryCoordinator {
+  static final long COALESCE_WINDOW_MILLIS = 1000;
+
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final Runnable onAllDone;
+  private final PerfMetrics metrics = PerfMetrics.getInstance();
+  // The scans still running, by the key of their discoverer.
+  private final Map<String, Scan> scans = new HashMap<>();
+
+  /**
+   * @param onAllDone called whenever the last running scan finishes or reaches its deadline, but
+   *     not when the scans are stopped by {@link #stopAll()}
+   */
+  DiscoveryCoordinator(Scheduler scheduler, Clock clock, Runnable onAllDone) {
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.onAllDone = onAllDone;
+  }
+
+  /**
+   * Starts a scan in the discoverer, passing what it finds on to {@code listener}, and stops it
+   * after {@code deadline} if it has not finished by then. Any scan already running under the same
+   * key is dropped.
+   *
+   * @return true if the scan started
+   */
+  boolean startScanning(
+      String discovererKey,
+      SensorDiscoverer discoverer,
+      SensorDiscoverer.ScanListener listener,
+      Delay deadline,
+      FailureListener onScanError) {
+    Scan previous = scans.remove(discovererKey);
+    if (previous != null) {
+      previous.cancel();
+    }
+    Scan scan = new Scan(discovererKey, discoverer, listener);
+    scans.put(discovererKey, scan);
+    if (!discoverer.startScanning(scan, onScanError)) {
+      finish(scan);
+      return false;
+    }
+    // A discoverer that has everything at hand may have finished already.
+    if (scan.running) {
+      scheduler.schedule(deadline, scan.deadlineRunnable);
+    }
+    return true;
+  }
+
+  /**
+   * Drops all running scans, without stopping their discoverers, which is up to the caller. What
+   * they find from now on is not passed on.
+   */
+  void stopAll() {
+    for (Scan scan : scans.values()) {
+      scan.cancel();
+    }
+    scans.clear();
+  }
+
+  /** Returns true if any scan is still running. */
+  boolean isScanning() {
+    return !scans.isEmpty();
+  }
+
+  private void finish(Scan scan) {
+    if (!scan.running) {
+      return;
+    }
+    scan.cancel();
+    if (scans.get(scan.discovererKey) == scan) {
+      scans.remove(scan.discovererKey);
+      if (scans.isEmpty()) {
+        onAllDone.run();
+      }
+    }
+  }
+
+  private static String getSensorKey(GoosciSensorSpec.SensorSpec spec) {
+    GoosciGadgetInfo.GadgetInfo info = spec.getInfo();
+    return InputDeviceSpec.joinAddresses(info.getProviderId(), info.getAddress());
+  }
+
+  /** What was last passed on for one sensor or device, and when. */
+  private static class Sighting {
+    final Object seen;
+    final long timeMillis;
+
+    Sighting(Object seen, long timeMillis) {
+      this.seen = seen;
+      this.timeMillis = timeMillis;
+    }
+  }
+
+  /** One discoverer's scan, which passes on what the discoverer finds while it runs. */
+  private class Scan implements SensorDiscoverer.ScanListener {
+    private final String discovererKey;
+    private final SensorDiscoverer discoverer;
+    private final SensorDiscoverer.ScanListener listener;
+    private final long startMillis = clock.getNow();
+    private final Map<String, Sighting> sightings = new HashMap<>();
+    private boolean running = true;
+    private boolean foundSensor = false;
+
+    private final Runnable deadlineRunnable =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (running) {
+              metrics.increment(PerfMetrics.DISCOVERY_DEADLINES);
+              // Some discoverers only report that they are done once stopped.
+              discoverer.stopScanning();
+              finish(Scan.this);
+            }
+          }
+        };
+
+    Scan(
+        String discovererKey,
+        SensorDiscoverer discoverer,
+        SensorDiscoverer.ScanListener listener) {
+      this.discovererKey = discovererKey;
+      this.discoverer = discoverer;
+      this.listener = listener;
+    }
+
+    void cancel() {
+      running = false;
+      scheduler.unschedule(deadlineRunnable);
+    }
+
+    /** Returns true if {@code seen} should be passed on, remembering it if so. */
+    private boolean isNewSighting(String key, Object seen) {
+      long nowMillis = clock.getNow();
+      Sighting last = sightings.get(key);
+      if (last != null
+          && nowMillis - last.timeMillis < COALESCE_WINDOW_MILLIS
+          && Objects.equals(last.seen, seen)) {
+        return false;
+      }
+      sightings.put(key, new Sighting(seen, nowMillis));
+      return true;
+    }
+
+    @Override
+    public void onServiceFound(SensorDiscoverer.DiscoveredService service) {
+      if (running) {
+        listener.onServiceFound(service);
+      }
+    }
+
+    @Override
+    public void onDeviceFound(SensorDiscoverer.DiscoveredDevice device) {
+      if (!running) {
+        return;
+      }
+      InputDeviceSpec spec = device.getSpec();
+      if (isNewSighting(spec.getGlobalDeviceAddress(), spec.getName())) {
+        listener.onDeviceFound(device);
+      }
+    }
+
+    @Override
+    public void onSensorFound(SensorDiscoverer.DiscoveredSensor sensor) {
+      metrics.increment(PerfMetrics.DISCOVERY_SIGHTINGS);
+      if (!running) {
+        return;
+      }
+      GoosciSensorSpec.SensorSpec spec = sensor.getSensorSpec();
+      if (!isNewSighting(getSensorKey(spec), spec)) {
+        return;
+      }
+      if (!foundSensor) {
+        foundSensor = true;
+        metrics.record(PerfMetrics.DISCOVERY_FIRST_SENSOR_MILLIS, clock.getNow() - startMillis);
+      }
+      metrics.increment(PerfMetrics.DISCOVERY_SIGHTINGS_PASSED_ON);
+      listener.onSensorFound(sensor);
+    }
+
+    @Override
+    public void onServiceScanComplete(String serviceId) {
+      // Passed on even once stopped, as stopping a discoverer completes its services.
+      listener.onServiceScanComplete(serviceId);
+    }
+
+    @Override
+    public void onScanDone() {
+      listener.onScanDone();
+      finish(this);
+    }
+  }
+}
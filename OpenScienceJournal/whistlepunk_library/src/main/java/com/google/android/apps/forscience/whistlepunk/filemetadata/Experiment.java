@@ -570,8 +570,10 @@ public class Experiment extends LabelListHolder {
       deleteLabelAssets(label, context, appAccount, getExperimentId());
     }
     for (Trial trial : getTrials()) {
-      trial.deleteContents(context, appAccount, getExperimentId());
+      trial.deleteAssets(context, appAccount, getExperimentId());
     }
+    // One deletion for all of the trials, rather than one per trial.
+    Trial.deleteData(context, appAccount, new ArrayList<>(getTrials()));
   }
 
   @VisibleForTesting
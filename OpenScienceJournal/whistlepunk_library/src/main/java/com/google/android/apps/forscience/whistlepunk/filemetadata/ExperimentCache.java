@@ -29,6 +29,7 @@ import com.google.android.apps.forscience.whistlepunk.analytics.UsageTracker;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciGadgetInfo;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
@@ -389,6 +390,15 @@ class ExperimentCache {
   /** Writes the given experiment to a file. */
   @VisibleForTesting
   void writeExperimentFile(Experiment experimentToWrite) {
+    long startNanos = System.nanoTime();
+    try {
+      doWriteExperimentFile(experimentToWrite);
+    } finally {
+      PerfMetrics.getInstance().recordNanosSince(PerfMetrics.EXPERIMENT_WRITE, startNanos);
+    }
+  }
+
+  private void doWriteExperimentFile(Experiment experimentToWrite) {
     boolean writingActiveExperiment = (activeExperiment == experimentToWrite);
     // If we are writing the active experiment, hold the activeExperimentLock until after we've set
     // activeExperimentNeedsWrite to false. Otherwise, if startWriteTimer is called on another
@@ -0,0 +1,352 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A persistent index of experiment overviews, kept alongside user_metadata.proto so that the
+ * experiment list and the DocumentsProvider can page through overviews or look one up by id
+ * without parsing and scanning the whole user metadata.
+ *
+ * <p>The index is derived data: user_metadata.proto stays the source of truth. The index remembers
+ * the length and modification time of the proto file it last matched, and is marked dirty whenever
+ * it gets ahead of the last successful proto write. A dirty, unpopulated or mismatched index is
+ * rebuilt from the proto by {@link UserMetadataManager}.
+ */
+public class ExperimentOverviewIndex {
+  public static final String DB_NAME = "experiment_overviews.db";
+
+  private static final int DB_VERSION = 2;
+
+  private static class OverviewsTable {
+    static final String NAME = "overviews";
+
+    static class Column {
+      static final String EXPERIMENT_ID = "experimentId";
+      static final String TITLE = "title";
+      static final String LAST_USED_TIME = "lastUsedTimeMs";
+      static final String ARCHIVED = "archived";
+      static final String IMAGE_PATH = "imagePath";
+      static final String TRIAL_COUNT = "trialCount";
+      static final String COLOR_INDEX = "colorIndex";
+      static final String SIZE_BYTES = "sizeBytes";
+    }
+
+    static final String[] ALL_COLUMNS =
+        new String[] {
+          Column.EXPERIMENT_ID,
+          Column.TITLE,
+          Column.LAST_USED_TIME,
+          Column.ARCHIVED,
+          Column.IMAGE_PATH,
+          Column.TRIAL_COUNT,
+          Column.COLOR_INDEX,
+          Column.SIZE_BYTES
+        };
+
+    static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.EXPERIMENT_ID
+            + " TEXT PRIMARY KEY NOT NULL, "
+            + Column.TITLE
+            + " TEXT, "
+            + Column.LAST_USED_TIME
+            + " INTEGER, "
+            + Column.ARCHIVED
+            + " INTEGER DEFAULT 0, "
+            + Column.IMAGE_PATH
+            + " TEXT, "
+            + Column.TRIAL_COUNT
+            + " INTEGER DEFAULT 0, "
+            + Column.COLOR_INDEX
+            + " INTEGER DEFAULT 0, "
+            + Column.SIZE_BYTES
+            + " INTEGER DEFAULT 0);";
+
+    static final String INDEX_SQL =
+        "CREATE INDEX overviews_last_used ON "
+            + NAME
+            + "("
+            + Column.ARCHIVED
+            + ", "
+            + Column.LAST_USED_TIME
+            + ");";
+
+    static final String ORDER_BY = Column.LAST_USED_TIME + " DESC";
+  }
+
+  private static class StateTable {
+    static final String NAME = "state";
+
+    static class Column {
+      static final String KEY = "key";
+      static final String VALUE = "value";
+    }
+
+    static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.KEY
+            + " TEXT PRIMARY KEY NOT NULL, "
+            + Column.VALUE
+            + " INTEGER);";
+
+    // 1 once the index has been fully populated from user metadata.
+    static final String KEY_POPULATED = "populated";
+    // 1 while the index holds changes that have not yet been written to user metadata.
+    static final String KEY_DIRTY = "dirty";
+    // Length and modification time of the user metadata file the index last matched.
+    static final String KEY_FILE_LENGTH = "fileLength";
+    static final String KEY_FILE_MODIFIED = "fileModified";
+  }
+
+  private final SQLiteOpenHelper openHelper;
+
+  // Cached so that we only touch the state table when the dirty flag actually changes.
+  private Boolean dirty = null;
+
+  public ExperimentOverviewIndex(Context context, AppAccount appAccount) {
+    openHelper =
+        new SQLiteOpenHelper(context, appAccount.getDatabaseFileName(DB_NAME), null, DB_VERSION) {
+          @Override
+          public void onCreate(SQLiteDatabase db) {
+            db.execSQL(OverviewsTable.CREATION_SQL);
+            db.execSQL(OverviewsTable.INDEX_SQL);
+            db.execSQL(StateTable.CREATION_SQL);
+          }
+
+          @Override
+          public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // The index is derived data, so start over and let it be rebuilt from user metadata.
+            db.execSQL("DROP TABLE IF EXISTS " + OverviewsTable.NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + StateTable.NAME);
+            onCreate(db);
+          }
+        };
+  }
+
+  /**
+   * Returns true if the index can answer queries on its own, i.e. it has been populated, does not
+   * hold changes that user metadata never saw, and matches the user metadata file as it is now.
+   */
+  boolean isUsable(long fileLength, long fileModified) {
+    return getState(StateTable.KEY_POPULATED) == 1
+        && !isDirty()
+        && getState(StateTable.KEY_FILE_LENGTH) == fileLength
+        && getState(StateTable.KEY_FILE_MODIFIED) == fileModified;
+  }
+
+  /**
+   * Replaces the contents of the index with the given overviews, read from a user metadata file
+   * with the given length and modification time, and marks it clean.
+   */
+  void rebuild(Collection<ExperimentOverviewPojo> overviews, long fileLength, long fileModified) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    try {
+      db.beginTransaction();
+      db.delete(OverviewsTable.NAME, null, null);
+      for (ExperimentOverviewPojo overview : overviews) {
+        db.insert(OverviewsTable.NAME, null, toContentValues(overview));
+      }
+      putState(db, StateTable.KEY_POPULATED, 1);
+      putState(db, StateTable.KEY_DIRTY, 0);
+      putState(db, StateTable.KEY_FILE_LENGTH, fileLength);
+      putState(db, StateTable.KEY_FILE_MODIFIED, fileModified);
+      db.setTransactionSuccessful();
+      dirty = false;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /** Inserts or replaces a single overview. */
+  void put(ExperimentOverviewPojo overview) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    markDirty(db);
+    db.insertWithOnConflict(
+        OverviewsTable.NAME, null, toContentValues(overview), SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  void delete(String experimentId) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    markDirty(db);
+    db.delete(
+        OverviewsTable.NAME,
+        OverviewsTable.Column.EXPERIMENT_ID + "=?",
+        new String[] {experimentId});
+  }
+
+  void deleteAll() {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    markDirty(db);
+    db.delete(OverviewsTable.NAME, null, null);
+  }
+
+  /**
+   * Called once user metadata has been written, so the index matches it again. The file length and
+   * modification time are those of the file just written.
+   */
+  synchronized void markClean(long fileLength, long fileModified) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    try {
+      db.beginTransaction();
+      putState(db, StateTable.KEY_DIRTY, 0);
+      putState(db, StateTable.KEY_FILE_LENGTH, fileLength);
+      putState(db, StateTable.KEY_FILE_MODIFIED, fileModified);
+      db.setTransactionSuccessful();
+      dirty = false;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /** Gets the overview with the given experiment id, or null if there is none. */
+  ExperimentOverviewPojo get(String experimentId) {
+    try (Cursor cursor =
+        openHelper
+            .getReadableDatabase()
+            .query(
+                OverviewsTable.NAME,
+                OverviewsTable.ALL_COLUMNS,
+                OverviewsTable.Column.EXPERIMENT_ID + "=?",
+                new String[] {experimentId},
+                null,
+                null,
+                null,
+                "1")) {
+      if (cursor.moveToNext()) {
+        return fromCursor(cursor);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Gets a page of overviews, most recently used first.
+   *
+   * @param includeArchived Whether to include the archived experiments.
+   * @param offset the number of overviews to skip.
+   * @param limit the maximum number of overviews to return, or 0 to return all of them.
+   */
+  List<ExperimentOverviewPojo> getPage(boolean includeArchived, int offset, int limit) {
+    String selection = includeArchived ? null : OverviewsTable.Column.ARCHIVED + "=0";
+    String limitString = null;
+    if (limit > 0) {
+      limitString = offset + "," + limit;
+    } else if (offset > 0) {
+      limitString = offset + ",-1";
+    }
+    List<ExperimentOverviewPojo> result = new ArrayList<>();
+    try (Cursor cursor =
+        openHelper
+            .getReadableDatabase()
+            .query(
+                OverviewsTable.NAME,
+                OverviewsTable.ALL_COLUMNS,
+                selection,
+                null,
+                null,
+                null,
+                OverviewsTable.ORDER_BY,
+                limitString)) {
+      while (cursor.moveToNext()) {
+        result.add(fromCursor(cursor));
+      }
+    }
+    return result;
+  }
+
+  private synchronized boolean isDirty() {
+    if (dirty == null) {
+      dirty = getState(StateTable.KEY_DIRTY) == 1;
+    }
+    return dirty;
+  }
+
+  private synchronized void markDirty(SQLiteDatabase db) {
+    if (Boolean.TRUE.equals(dirty)) {
+      return;
+    }
+    putState(db, StateTable.KEY_DIRTY, 1);
+    dirty = true;
+  }
+
+  private long getState(String key) {
+    try (Cursor cursor =
+        openHelper
+            .getReadableDatabase()
+            .query(
+                StateTable.NAME,
+                new String[] {StateTable.Column.VALUE},
+                StateTable.Column.KEY + "=?",
+                new String[] {key},
+                null,
+                null,
+                null)) {
+      return cursor.moveToNext() ? cursor.getLong(0) : 0;
+    }
+  }
+
+  private static void putState(SQLiteDatabase db, String key, long value) {
+    ContentValues values = new ContentValues();
+    values.put(StateTable.Column.KEY, key);
+    values.put(StateTable.Column.VALUE, value);
+    db.insertWithOnConflict(StateTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  private static ContentValues toContentValues(ExperimentOverviewPojo overview) {
+    ContentValues values = new ContentValues();
+    values.put(OverviewsTable.Column.EXPERIMENT_ID, overview.getExperimentId());
+    values.put(OverviewsTable.Column.TITLE, overview.getTitle());
+    values.put(OverviewsTable.Column.LAST_USED_TIME, overview.getLastUsedTimeMs());
+    values.put(OverviewsTable.Column.ARCHIVED, overview.isArchived() ? 1 : 0);
+    values.put(OverviewsTable.Column.IMAGE_PATH, overview.getImagePath());
+    values.put(OverviewsTable.Column.TRIAL_COUNT, overview.getTrialCount());
+    values.put(OverviewsTable.Column.COLOR_INDEX, overview.getColorIndex());
+    values.put(OverviewsTable.Column.SIZE_BYTES, overview.getSizeBytes());
+    return values;
+  }
+
+  private static ExperimentOverviewPojo fromCursor(Cursor cursor) {
+    ExperimentOverviewPojo overview = new ExperimentOverviewPojo();
+    overview.setExperimentId(cursor.getString(0));
+    overview.setTitle(nullToEmpty(cursor.getString(1)));
+    overview.setLastUsedTimeMs(cursor.getLong(2));
+    overview.setArchived(cursor.getInt(3) != 0);
+    overview.setImagePath(nullToEmpty(cursor.getString(4)));
+    overview.setTrialCount(cursor.getInt(5));
+    overview.setColorIndex(cursor.getInt(6));
+    overview.setSizeBytes(cursor.getLong(7));
+    return overview;
+  }
+
+  private static String nullToEmpty(String s) {
+    return s == null ? "" : s;
+  }
+}
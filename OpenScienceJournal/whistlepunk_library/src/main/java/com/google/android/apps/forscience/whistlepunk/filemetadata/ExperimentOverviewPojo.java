@@ -29,6 +29,7 @@ public class ExperimentOverviewPojo {
   private String imagePath = "";
   private int trialCount;
   private String title = "";
+  private long sizeBytes;
 
   public String getTitle() {
     return title;
@@ -86,6 +87,18 @@ public class ExperimentOverviewPojo {
     this.lastUsedTimeMs = lastUsedTimeMs;
   }
 
+  /**
+   * Gets the size in bytes of the experiment's files as of the last update. Sensor data is stored
+   * separately and is not included.
+   */
+  public long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  public void setSizeBytes(long sizeBytes) {
+    this.sizeBytes = sizeBytes;
+  }
+
   public ExperimentOverview toProto() {
     return ExperimentOverview.newBuilder()
         .setColorIndex(colorIndex)
@@ -95,6 +108,7 @@ public class ExperimentOverviewPojo {
         .setImagePath(imagePath)
         .setTrialCount(trialCount)
         .setTitle(title)
+        .setSizeBytes(sizeBytes)
         .build();
   }
 
@@ -110,6 +124,7 @@ public class ExperimentOverviewPojo {
     pojo.setTrialCount(proto.getTrialCount());
     pojo.setLastUsedTimeMs(proto.getLastUsedTimeMs());
     pojo.setTitle(proto.getTitle());
+    pojo.setSizeBytes(proto.getSizeBytes());
     return pojo;
   }
 
@@ -126,6 +141,7 @@ public class ExperimentOverviewPojo {
         && isArchived == that.isArchived
         && colorIndex == that.colorIndex
         && trialCount == that.trialCount
+        && sizeBytes == that.sizeBytes
         && Objects.equals(experimentId, that.experimentId)
         && Objects.equals(imagePath, that.imagePath)
         && Objects.equals(title, that.title);
@@ -134,6 +150,13 @@ public class ExperimentOverviewPojo {
   @Override
   public int hashCode() {
     return Objects.hash(
-        lastUsedTimeMs, isArchived, experimentId, colorIndex, imagePath, trialCount, title);
+        lastUsedTimeMs,
+        isArchived,
+        experimentId,
+        colorIndex,
+        imagePath,
+        trialCount,
+        title,
+        sizeBytes);
   }
 }
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.Version;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads an experiment ZIP file as a stream: the experiment proto is parsed in memory, pictures are
+ * extracted as they are reached, and sensor data is fed straight into the database, without first
+ * unzipping everything to disk.
+ *
+ * <p>Sensor data is imported as soon as it is read if the experiment proto came first, as it does
+ * in files written by {@link ExperimentZipWriter}. Otherwise it is spilled to a file and imported
+ * at the end.
+ */
+class ExperimentZipReader {
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final String SENSOR_DATA_FILE = "sensorData.proto";
+
+  private final ScalarSensorDumpReader sensorDataReader;
+  private final File spillDirectory;
+  private final File experimentDirectory;
+  private final Consumer<File> onPictureExtracted;
+
+  private GoosciExperiment.Experiment.Builder proto;
+  // Maps trial ids in the ZIP file to the new trial ids of the imported experiment.
+  private final HashMap<String, String> trialIdMap = new HashMap<>();
+  private boolean containsExperimentImage = false;
+
+  /**
+   * @param dataController receives the sensor data.
+   * @param spillDirectory where sensor data that comes before the experiment proto is kept until
+   *     the proto has been read.
+   * @param experimentDirectory where pictures are extracted to.
+   * @param onPictureExtracted called with each picture once it has been extracted.
+   */
+  ExperimentZipReader(
+      RecordingDataController dataController,
+      File spillDirectory,
+      File experimentDirectory,
+      Consumer<File> onPictureExtracted) {
+    sensorDataReader = new ScalarSensorDumpReader(dataController);
+    this.spillDirectory = spillDirectory;
+    this.experimentDirectory = experimentDirectory;
+    this.onPictureExtracted = onPictureExtracted;
+  }
+
+  /** Reads the whole ZIP file from the stream, and closes it. */
+  void read(InputStream zipStream) throws IOException {
+    File spilledSensorData = null;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (ZipInputStream zis =
+        new ZipInputStream(new BufferedInputStream(zipStream, BUFFER_SIZE))) {
+      ZipEntry entry = zis.getNextEntry();
+      while (entry != null) {
+        String fileName = entry.getName();
+        if (fileName.equals(FileMetadataUtil.EXPERIMENT_FILE)) {
+          readExperimentProto(zis);
+        } else if (fileName.equals(SENSOR_DATA_FILE)) {
+          if (proto != null) {
+            readSensorData(zis);
+          } else {
+            spilledSensorData = new File(spillDirectory, fileName);
+            copy(zis, buffer, spilledSensorData);
+          }
+        } else if (fileName.matches(".*jpg")) {
+          if (fileName.matches(FileMetadataUtil.COVER_IMAGE_FILE)) {
+            containsExperimentImage = true;
+          }
+          File picture = new File(experimentDirectory, fileName);
+          copy(zis, buffer, picture);
+          onPictureExtracted.take(picture);
+        }
+        entry = zis.getNextEntry();
+      }
+    }
+
+    if (proto == null) {
+      if (spilledSensorData != null) {
+        spilledSensorData.delete();
+      }
+      throw new ZipException("Corrupt or Missing Experiment Proto");
+    }
+    if (spilledSensorData != null) {
+      try (InputStream in =
+          new BufferedInputStream(new FileInputStream(spilledSensorData), BUFFER_SIZE)) {
+        readSensorData(in);
+      } finally {
+        spilledSensorData.delete();
+      }
+    }
+  }
+
+  /** Gets the experiment proto, or null if it has not been read. */
+  GoosciExperiment.Experiment.Builder getProto() {
+    return proto;
+  }
+
+  /** Gets the map from trial ids in the ZIP file to the new trial ids of the experiment. */
+  Map<String, String> getTrialIdMap() {
+    return trialIdMap;
+  }
+
+  /**
+   * Gets the new ids of all the trials that sensor data may have been imported for so far. If the
+   * import fails, their sensor data should be deleted, as it will never be attached to a trial.
+   */
+  Collection<String> getNewTrialIds() {
+    return trialIdMap.values();
+  }
+
+  boolean containsExperimentImage() {
+    return containsExperimentImage;
+  }
+
+  /**
+   * Saves the median and distribution of each sensor of an imported trial, computed from the
+   * sensor data that was imported for it, if the file was written by a version that didn't save
+   * them.
+   *
+   * @param trial the imported trial, with its new id.
+   */
+  void fillInMissingStats(Trial trial) {
+    if (trial.getCropRange() != null) {
+      // The stats are of the cropped range, not of all the imported readings.
+      return;
+    }
+    for (TrialStats stats : TrialStats.fromTrial(trial.getTrialProto()).values()) {
+      if (stats.hasDistribution()) {
+        continue;
+      }
+      StatsAccumulator imported =
+          sensorDataReader.getImportedStats(trial.getTrialId(), stats.getSensorId());
+      if (imported != null) {
+        imported.populateTrialStats(stats);
+        trial.setStats(stats);
+      }
+    }
+  }
+
+  private void readExperimentProto(InputStream in) throws IOException {
+    GoosciExperiment.Experiment.Builder parsed;
+    try {
+      parsed = GoosciExperiment.Experiment.parseFrom(in).toBuilder();
+    } catch (InvalidProtocolBufferException e) {
+      throw new ZipException("Corrupt or Missing Experiment Proto");
+    }
+    if (!FileMetadataUtil.getInstance().canImportFromVersion(parsed.getFileVersion())) {
+      // TODO: better error message
+      throw new ZipException("Cannot import from file version: " + versionToString(parsed));
+    }
+    proto = parsed;
+    for (GoosciTrial.Trial trial : proto.getTrialsList()) {
+      trialIdMap.put(trial.getTrialId(), UUID.randomUUID().toString());
+    }
+  }
+
+  private void readSensorData(InputStream in) throws IOException {
+    sensorDataReader.readData(in, trialIdMap);
+  }
+
+  private static void copy(InputStream in, byte[] buffer, File file) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      int len;
+      while ((len = in.read(buffer)) > 0) {
+        out.write(buffer, 0, len);
+      }
+    }
+  }
+
+  private static String versionToString(GoosciExperiment.Experiment.Builder proto) {
+    Version.FileVersion fileVersion = proto.getFileVersion();
+    return fileVersion.getVersion()
+        + "."
+        + fileVersion.getMinorVersion()
+        + "."
+        + fileVersion.getPlatform().getNumber()
+        + "."
+        + fileVersion.getPlatformVersion();
+  }
+}
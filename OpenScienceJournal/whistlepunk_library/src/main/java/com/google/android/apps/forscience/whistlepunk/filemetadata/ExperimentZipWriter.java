@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes files into a ZIP stream as a small pipeline: worker threads read already-compressed media
+ * and compute their checksums ahead of time, while a single writer emits entries in order.
+ *
+ * <p>Media such as JPEGs is written as STORED entries, since deflating it again costs CPU and saves
+ * nothing. Everything else (the experiment and sensor data protos) is deflated by the writer, as
+ * {@link ZipOutputStream} cannot accept data that was deflated elsewhere.
+ *
+ * <p>The experiment proto is always written first and the sensor data proto second, so that import
+ * can stream the sensor data straight into the database.
+ */
+class ExperimentZipWriter {
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  // How many entries may be read ahead of the writer. Bounds memory use to roughly this many media
+  // files.
+  private static final int ENTRIES_IN_FLIGHT = 4;
+
+  // Media larger than this is not held in memory; its checksum is computed ahead of time and the
+  // file is read again by the writer.
+  private static final long MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+  private static final ImmutableSet<String> STORED_EXTENSIONS =
+      ImmutableSet.of("jpg", "jpeg", "png", "gif", "webp", "mp4", "3gp", "m4a", "zip");
+
+  private static final String SENSOR_DATA_FILE = "sensorData.proto";
+
+  private static class Source {
+    final File file;
+    final String zipPath;
+
+    Source(File file, String zipPath) {
+      this.file = file;
+      this.zipPath = zipPath;
+    }
+  }
+
+  /** An entry that is ready for the writer. */
+  private static class PreparedEntry {
+    final Source source;
+    final boolean stored;
+    final long size;
+    final long crc;
+    // Contents of a stored entry, or null if the writer has to read the file itself.
+    final byte[] bytes;
+
+    PreparedEntry(Source source, boolean stored, long size, long crc, byte[] bytes) {
+      this.source = source;
+      this.stored = stored;
+      this.size = size;
+      this.crc = crc;
+      this.bytes = bytes;
+    }
+  }
+
+  private final List<Source> sources = new ArrayList<>();
+  private final int threads;
+
+  ExperimentZipWriter() {
+    this(Math.max(1, Math.min(ENTRIES_IN_FLIGHT, Runtime.getRuntime().availableProcessors())));
+  }
+
+  @VisibleForTesting
+  ExperimentZipWriter(int threads) {
+    this.threads = threads;
+  }
+
+  /** Adds a file to be written to the given path inside the ZIP. */
+  void addFile(File file, String zipPath) {
+    Source source = new Source(file, zipPath);
+    if (zipPath.equals(FileMetadataUtil.EXPERIMENT_FILE)) {
+      sources.add(0, source);
+    } else if (zipPath.equals(SENSOR_DATA_FILE)) {
+      int index = !sources.isEmpty() && isExperimentFile(sources.get(0)) ? 1 : 0;
+      sources.add(index, source);
+    } else {
+      sources.add(source);
+    }
+  }
+
+  /**
+   * Adds every file in the directory and its subdirectories, under the given path prefix, except
+   * for files and directories whose ZIP path is in {@code excludedZipPaths}.
+   */
+  void addDirectory(File directory, String path, Set<String> excludedZipPaths) {
+    File[] fileList = directory.listFiles();
+    if (fileList == null) {
+      return;
+    }
+    for (File f : fileList) {
+      String zipPath = path + f.getName();
+      if (excludedZipPaths.contains(zipPath)) {
+        continue;
+      }
+      if (f.isDirectory()) {
+        addDirectory(f, zipPath + "/", excludedZipPaths);
+      } else {
+        addFile(f, zipPath);
+      }
+    }
+  }
+
+  /** Writes all the added files, in order, and forgets them. */
+  void write(ZipOutputStream zipOutputStream) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    Deque<Future<PreparedEntry>> inFlight = new ArrayDeque<>();
+    try {
+      int next = 0;
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (next < sources.size() || !inFlight.isEmpty()) {
+        while (next < sources.size() && inFlight.size() < ENTRIES_IN_FLIGHT) {
+          Source source = sources.get(next++);
+          inFlight.add(executor.submit(() -> prepare(source)));
+        }
+        writeEntry(getPrepared(inFlight.remove()), zipOutputStream, buffer);
+      }
+    } finally {
+      for (Future<PreparedEntry> future : inFlight) {
+        future.cancel(true);
+      }
+      executor.shutdownNow();
+      sources.clear();
+    }
+  }
+
+  @VisibleForTesting
+  static boolean shouldStore(String zipPath) {
+    int dot = zipPath.lastIndexOf('.');
+    if (dot < 0) {
+      return false;
+    }
+    return STORED_EXTENSIONS.contains(zipPath.substring(dot + 1).toLowerCase(Locale.US));
+  }
+
+  private static boolean isExperimentFile(Source source) {
+    return source.zipPath.equals(FileMetadataUtil.EXPERIMENT_FILE);
+  }
+
+  private static PreparedEntry prepare(Source source) throws IOException {
+    if (!shouldStore(source.zipPath)) {
+      // Deflated by the writer, straight from the file.
+      return new PreparedEntry(source, false, -1, 0, null);
+    }
+    long length = source.file.length();
+    CRC32 crc = new CRC32();
+    if (length <= MAX_BUFFERED_BYTES) {
+      byte[] bytes = readFully(source.file, (int) length);
+      crc.update(bytes, 0, bytes.length);
+      return new PreparedEntry(source, true, bytes.length, crc.getValue(), bytes);
+    }
+    long size = 0;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = new FileInputStream(source.file)) {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        crc.update(buffer, 0, read);
+        size += read;
+      }
+    }
+    return new PreparedEntry(source, true, size, crc.getValue(), null);
+  }
+
+  private static byte[] readFully(File file, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    try (InputStream in = new FileInputStream(file)) {
+      int offset = 0;
+      while (offset < length) {
+        int read = in.read(bytes, offset, length - offset);
+        if (read < 0) {
+          throw new IOException("File shrank while being read: " + file);
+        }
+        offset += read;
+      }
+    }
+    return bytes;
+  }
+
+  private static PreparedEntry getPrepared(Future<PreparedEntry> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while preparing ZIP entry", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to prepare ZIP entry", e.getCause());
+    }
+  }
+
+  private static void writeEntry(
+      PreparedEntry prepared, ZipOutputStream zipOutputStream, byte[] buffer) throws IOException {
+    ZipEntry zipEntry = new ZipEntry(prepared.source.zipPath);
+    if (prepared.stored) {
+      zipEntry.setMethod(ZipEntry.STORED);
+      zipEntry.setSize(prepared.size);
+      zipEntry.setCompressedSize(prepared.size);
+      zipEntry.setCrc(prepared.crc);
+    }
+    zipOutputStream.putNextEntry(zipEntry);
+    if (prepared.bytes != null) {
+      zipOutputStream.write(prepared.bytes);
+    } else {
+      try (InputStream in = new FileInputStream(prepared.source.file)) {
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+          zipOutputStream.write(buffer, 0, length);
+        }
+      }
+    }
+    zipOutputStream.closeEntry();
+  }
+}
@@ -20,12 +20,15 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
+import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.ColorAllocator;
+import com.google.android.apps.forscience.whistlepunk.LoggingConsumer;
 import com.google.android.apps.forscience.whistlepunk.PermissionUtils;
 import com.google.android.apps.forscience.whistlepunk.PictureUtils;
 import com.google.android.apps.forscience.whistlepunk.R;
+import com.google.android.apps.forscience.whistlepunk.ThumbnailCache;
 import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.analytics.TrackerConstants;
@@ -34,23 +37,18 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciPictureLabelValue;
-import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
-import com.google.android.apps.forscience.whistlepunk.metadata.Version;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensorDumpReader;
 import com.google.common.collect.Sets;
 import com.google.protobuf.InvalidProtocolBufferException;
-import io.reactivex.Single;
+import io.reactivex.Completable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
-import java.util.zip.ZipInputStream;
 
 /** MetadataManager backed by a file-based system using internal storage. */
 // TODO: Extend MetadataManager
@@ -352,7 +350,7 @@ public class FileMetadataManager {
   public void addExperiment(Experiment experiment) {
     // Get ready to write the experiment to a file. Will write when the timer expires.
     activeExperimentCache.createNewExperiment(experiment);
-    userMetadataManager.addExperimentOverview(experiment.getExperimentOverview());
+    userMetadataManager.addExperimentOverview(getOverviewWithSize(experiment));
     localSyncManager.addExperiment(experiment.getExperimentId());
     experimentLibraryManager.addExperiment(experiment.getExperimentId());
   }
@@ -389,7 +387,7 @@ public class FileMetadataManager {
 
   public void afterMovingExperimentFromAnotherAccount(Experiment experiment) {
     // This FileMetadataManager is gaining the experiment.
-    userMetadataManager.addExperimentOverview(experiment.getExperimentOverview());
+    userMetadataManager.addExperimentOverview(getOverviewWithSize(experiment));
     localSyncManager.addExperiment(experiment.getExperimentId());
     experimentLibraryManager.addExperiment(experiment.getExperimentId());
     experimentLibraryManager.setModified(
@@ -402,23 +400,47 @@ public class FileMetadataManager {
 
     // TODO: Only do this if strictly necessary, instead of every time?
     // Or does updateExperiment mean the last updated time should change, and we need a clock?
-    userMetadataManager.updateExperimentOverview(experiment.getExperimentOverview());
+    userMetadataManager.updateExperimentOverview(getOverviewWithSize(experiment));
+  }
+
+  /** Gets the experiment's overview, with its size updated from the experiment directory. */
+  private ExperimentOverviewPojo getOverviewWithSize(Experiment experiment) {
+    ExperimentOverviewPojo overview = experiment.getExperimentOverview();
+    overview.setSizeBytes(
+        FileMetadataUtil.getInstance()
+            .getDirectorySize(
+                FileMetadataUtil.getInstance()
+                    .getExperimentDirectory(appAccount, experiment.getExperimentId())));
+    return overview;
   }
 
   public List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived) {
     return userMetadataManager.getExperimentOverviews(includeArchived);
   }
 
+  /**
+   * Gets a page of experiment overviews, most recently used first.
+   *
+   * @param limit the maximum number of overviews to return, or 0 for no limit.
+   */
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    return userMetadataManager.getExperimentOverviews(includeArchived, offset, limit);
+  }
+
+  /** Gets the overview of a single experiment, or null if there is no such experiment. */
+  public ExperimentOverviewPojo getExperimentOverview(String experimentId) {
+    return userMetadataManager.lookUpExperimentOverview(experimentId);
+  }
+
   public Experiment getLastUsedUnarchivedExperiment() {
-    List<ExperimentOverviewPojo> overviews = getExperimentOverviews(false);
-    long mostRecent = Long.MIN_VALUE;
-    ExperimentOverviewPojo overviewToGet = null;
-    for (ExperimentOverviewPojo overview : overviews) {
-      if (overview.getLastUsedTimeMs() > mostRecent) {
-        mostRecent = overview.getLastUsedTimeMs();
-        overviewToGet = overview;
-      }
+    // Overviews are sorted by last used time, so the first one is the most recent.
+    List<ExperimentOverviewPojo> overviews = getExperimentOverviews(false, 0, 1);
+    if (overviews == null || overviews.isEmpty()) {
+      return null;
     }
+    ExperimentOverviewPojo overviewToGet =
+        userMetadataManager.getExperimentOverview(overviews.get(0).getExperimentId());
     if (overviewToGet != null) {
       return activeExperimentCache.getExperiment(overviewToGet);
     }
@@ -443,102 +465,105 @@ public class FileMetadataManager {
 
   /**
    * Imports an experiment from a ZIP file at the given URI, with the permissions of the Activity.
+   *
+   * <p>The ZIP file is read as a stream by {@link ExperimentZipReader}. If the import fails, any
+   * sensor data it already added to the database is deleted along with the experiment.
    */
   public Experiment importExperiment(Context context, Uri data, ContentResolver resolver)
       throws IOException {
     String experimentId = null;
     Context appContext = context.getApplicationContext();
     Experiment newExperiment = null;
-    File externalPath = null;
-    boolean containsExperimentImage;
+    ExperimentZipReader reader = null;
     try {
       newExperiment = newExperiment();
       experimentId = newExperiment.getExperimentId();
       File externalFilesDir =
           FileMetadataUtil.getInstance().getExternalExperimentsDirectory(context);
-      externalPath = new File(externalFilesDir, experimentId);
+      File externalPath = new File(externalFilesDir, experimentId);
       File internalPath =
           FileMetadataUtil.getInstance().getExperimentDirectory(appAccount, experimentId);
-      // Blocking get is ok as this is already on a background thread.
-      containsExperimentImage =
-          unzipExperimentFile(appContext, data, resolver, externalPath, internalPath).blockingGet();
+      createImportDirectories(externalPath, internalPath);
+      // Blocking await is ok as this is already on a background thread.
+      requestReadPermission(appContext).blockingAwait();
+      ThumbnailCache thumbnailCache = AppSingleton.getInstance(appContext).getThumbnailCache();
+      reader =
+          new ExperimentZipReader(
+              AppSingleton.getInstance(appContext)
+                  .getSensorEnvironment()
+                  .getDataController(appAccount),
+              externalPath,
+              internalPath,
+              new Consumer<File>() {
+                @Override
+                public void take(File picture) {
+                  thumbnailCache.requestThumbnail(picture);
+                }
+              });
+      try (InputStream zipStream = resolver.openInputStream(data)) {
+        if (zipStream == null) {
+          throw new IOException("Couldn't open " + data);
+        }
+        reader.read(zipStream);
+      }
     } catch (Exception e) {
+      if (reader != null) {
+        deleteImportedSensorData(appContext, reader);
+      }
       deleteExperiment(experimentId);
       throw e;
     }
 
-    GoosciExperiment.Experiment.Builder proto = populateExperimentProto(context, externalPath);
-    if (proto == null) {
-      deleteExperiment(experimentId);
-      throw new ZipException("Corrupt or Missing Experiment Proto");
-    }
-    if (!FileMetadataUtil.getInstance().canImportFromVersion(proto.getFileVersion())) {
-      deleteExperiment(experimentId);
-      // TODO: better error message
-      throw new ZipException("Cannot import from file version: " + versionToString(proto.build()));
-    }
-
+    GoosciExperiment.Experiment.Builder proto = reader.getProto();
     ExperimentOverviewPojo overview = populateOverview(proto.build(), experimentId);
-    HashMap<String, String> trialIdMap = updateTrials(proto, newExperiment);
+    updateTrials(proto, newExperiment, reader);
 
     updateLabels(proto.build(), newExperiment);
     newExperiment.setTitle(proto.getTitle());
     newExperiment.setLastUsedTime(clock.getNow());
-    if (containsExperimentImage) {
+    if (reader.containsExperimentImage()) {
       overview.setImagePath(EXPERIMENTS_DIRECTORY + "/" + experimentId + "/" + COVER_IMAGE_FILE);
       newExperiment.setImagePath(overview.getImagePath());
     }
     updateExperiment(Experiment.fromExperiment(proto.build(), overview), true);
-    File dataFile = new File(externalPath, "sensorData.proto");
-
-    if (dataFile.exists()) {
-      LiteProtoFileHelper<GoosciScalarSensorData.ScalarSensorData> dataProtoFileHelper =
-          new LiteProtoFileHelper<>();
-      GoosciScalarSensorData.ScalarSensorData dataProto =
-          dataProtoFileHelper.readFromFile(
-              dataFile,
-              GoosciScalarSensorData.ScalarSensorData::parseFrom,
-              WhistlePunkApplication.getUsageTracker(context));
-
-      if (dataProto != null) {
-        ScalarSensorDumpReader dumpReader =
-            new ScalarSensorDumpReader(
-                AppSingleton.getInstance(context)
-                    .getSensorEnvironment()
-                    .getDataController(appAccount));
-        dumpReader.readData(dataProto, trialIdMap);
-      }
-    }
 
     return newExperiment;
   }
 
-  private String versionToString(GoosciExperiment.Experiment proto) {
-    Version.FileVersion fileVersion = proto.getFileVersion();
-    return fileVersion.getVersion()
-        + "."
-        + fileVersion.getMinorVersion()
-        + "."
-        + fileVersion.getPlatform().getNumber()
-        + "."
-        + fileVersion.getPlatformVersion();
+  /**
+   * Deletes the sensor data that a failed import already added to the database. Its trials were
+   * never added to the experiment, so nothing else would ever delete it.
+   */
+  private void deleteImportedSensorData(Context context, ExperimentZipReader reader) {
+    List<Trial> trials = new ArrayList<>();
+    for (String trialId : reader.getNewTrialIds()) {
+      trials.add(Trial.fromTrialWithNewId(GoosciTrial.Trial.getDefaultInstance(), trialId));
+    }
+    if (trials.isEmpty()) {
+      return;
+    }
+    // Queued on the sensor data thread behind the imported readings, so it deletes all of them.
+    AppSingleton.getInstance(context)
+        .getDataController(appAccount)
+        .deleteTrialsData(
+            trials, LoggingConsumer.expectSuccess(TAG, "deleting data of failed import"));
   }
 
-  private Single<Boolean> unzipExperimentFile(
-      Context context, Uri data, ContentResolver resolver, File externalPath, File internalPath)
-      throws IOException {
+  private void createImportDirectories(File externalPath, File internalPath) throws IOException {
     if (!externalPath.exists() && !externalPath.mkdir()) {
       throw new IOException("Couldn't create external experiment directory");
     }
     if (!internalPath.exists() && !internalPath.mkdir()) {
       throw new IOException("Couldn't create internal experiment directory");
     }
-    File assetsDirectory = new File(internalPath, "assets");
+    File assetsDirectory = new File(internalPath, ASSETS_DIRECTORY);
     if (!assetsDirectory.exists() && !assetsDirectory.mkdir()) {
       throw new IOException("Couldn't create assets directory");
     }
+  }
 
-    return Single.create(
+  private Completable requestReadPermission(Context context) {
+    return Completable.create(
         s -> {
           AppSingleton.getInstance(context)
               .onNextActivity()
@@ -550,36 +575,7 @@ public class FileMetadataManager {
                         new PermissionUtils.PermissionListener() {
                           @Override
                           public void onPermissionGranted() {
-                            Boolean containsImage = false;
-                            try {
-                              ZipInputStream zis =
-                                  new ZipInputStream(resolver.openInputStream(data));
-                              ZipEntry entry = zis.getNextEntry();
-                              byte[] buffer = new byte[1024];
-
-                              while (entry != null) {
-                                String fileName = entry.getName();
-                                if (fileName.equals("experiment.proto")
-                                    || fileName.equals("sensorData.proto")) {
-                                  FileOutputStream fos =
-                                      new FileOutputStream(new File(externalPath, fileName));
-                                  readZipInputStream(zis, buffer, fos);
-                                } else if (fileName.matches(".*jpg")) {
-                                  if (fileName.matches(COVER_IMAGE_FILE)) {
-                                    containsImage = true;
-                                  }
-                                  FileOutputStream fos =
-                                      new FileOutputStream(new File(internalPath, fileName));
-                                  readZipInputStream(zis, buffer, fos);
-                                }
-
-                                entry = zis.getNextEntry();
-                              }
-                              zis.close();
-                              s.onSuccess(containsImage);
-                            } catch (Exception e) {
-                              s.onError(e);
-                            }
+                            s.onComplete();
                           }
 
                           @Override
@@ -596,15 +592,6 @@ public class FileMetadataManager {
         });
   }
 
-  private void readZipInputStream(ZipInputStream zis, byte[] buffer, FileOutputStream fos)
-      throws IOException {
-    int len;
-    while ((len = zis.read(buffer)) > 0) {
-      fos.write(buffer, 0, len);
-    }
-    fos.close();
-  }
-
   private GoosciExperiment.Experiment.Builder populateExperimentProto(
       Context context, File experimentPath) {
     File experimentFile = new File(experimentPath, "experiment.proto");
@@ -634,17 +621,18 @@ public class FileMetadataManager {
     return overview;
   }
 
-  private HashMap<String, String> updateTrials(
-      GoosciExperiment.Experiment.Builder proto, Experiment newExperiment) {
-    HashMap<String, String> trialIdMap = new HashMap<>();
+  private void updateTrials(
+      GoosciExperiment.Experiment.Builder proto,
+      Experiment newExperiment,
+      ExperimentZipReader reader) {
+    Map<String, String> trialIdMap = reader.getTrialIdMap();
     for (int i = 0; i < proto.getTrialsCount(); i++) {
       String oldId = proto.getTrials(i).getTrialId();
-      Trial t = Trial.fromTrialWithNewId(proto.getTrials(i));
+      Trial t = Trial.fromTrialWithNewId(proto.getTrials(i), trialIdMap.get(oldId));
+      reader.fillInMissingStats(t);
       newExperiment.addTrial(t);
       proto.setTrials(i, t.getTrialProto());
-      trialIdMap.put(oldId, proto.getTrials(i).getTrialId());
     }
-    return trialIdMap;
   }
 
   private void updateLabels(GoosciExperiment.Experiment proto, Experiment newExperiment) {
@@ -30,11 +30,13 @@ import com.google.android.apps.forscience.javalib.Success;
 import com.google.android.apps.forscience.whistlepunk.DataController;
 import com.google.android.apps.forscience.whistlepunk.ExportService;
 import com.google.android.apps.forscience.whistlepunk.R;
+import com.google.android.apps.forscience.whistlepunk.ThumbnailCache;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciExperimentLibrary.ExperimentLibrary;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciLocalSyncStatus;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.Version;
+import com.google.common.collect.ImmutableSet;
 import io.reactivex.Single;
 import java.io.DataInputStream;
 import java.io.File;
@@ -50,7 +52,7 @@ import java.util.zip.ZipOutputStream;
 /** Utility class for interacting with the file system * */
 public class FileMetadataUtil {
   public static final String COVER_IMAGE_FILE = "assets/ExperimentCoverImage.jpg";
-  static final String ASSETS_DIRECTORY = "assets";
+  public static final String ASSETS_DIRECTORY = "assets";
   public static final String EXPERIMENTS_DIRECTORY = "experiments";
   public static final String EXPERIMENT_FILE = "experiment.proto";
   public static final String EXPERIMENT_LIBRARY_FILE = "experiment_library.proto";
@@ -100,6 +102,19 @@ public class FileMetadataUtil {
     return new File(getFilesDir(appAccount), EXPERIMENTS_DIRECTORY);
   }
 
+  /** Gets the total size in bytes of the files in the given directory and its subdirectories. */
+  public long getDirectorySize(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return 0;
+    }
+    long size = 0;
+    for (File file : files) {
+      size += file.isDirectory() ? getDirectorySize(file) : file.length();
+    }
+    return size;
+  }
+
   public File getExternalExperimentsDirectory(Context context) {
     return context.getExternalFilesDir(null);
   }
@@ -222,30 +237,19 @@ public class FileMetadataUtil {
         });
   }
 
+  /**
+   * Zips every file in the directory except the cover image, which is added by {@link
+   * #zipExperimentImage}, and thumbnails, which are regenerated after import. See {@link
+   * ExperimentZipWriter} for how entries are written.
+   */
   public void zipDirectory(File directory, ZipOutputStream zipOutputStream, String path)
       throws IOException {
-    File[] fileList = directory.listFiles();
-    for (File f : fileList) {
-      if (f.isDirectory()) {
-        zipDirectory(f, zipOutputStream, path + f.getName() + "/");
-        continue;
-      }
-      FileInputStream fis = new FileInputStream(f.getAbsolutePath());
-      String zipPath = path + f.getName();
-      if (!zipPath.equals(COVER_IMAGE_FILE)) {
-        ZipEntry zipEntry = new ZipEntry(zipPath);
-        zipOutputStream.putNextEntry(zipEntry);
-
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fis.read(bytes)) >= 0) {
-          zipOutputStream.write(bytes, 0, length);
-        }
-        zipOutputStream.closeEntry();
-      }
-
-      fis.close();
-    }
+    ExperimentZipWriter writer = new ExperimentZipWriter();
+    writer.addDirectory(
+        directory,
+        path,
+        ImmutableSet.of(path + COVER_IMAGE_FILE, path + ThumbnailCache.THUMBNAILS_DIRECTORY));
+    writer.write(zipOutputStream);
   }
 
   public void zipExperimentImage(File image, ZipOutputStream zipOutputStream) throws IOException {
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.Log;
+import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.PictureUtils;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciCaption;
@@ -291,6 +292,7 @@ public class Label implements Parcelable {
       if (!deleted && Log.isLoggable(TAG, Log.WARN)) {
         Log.w(TAG, "Could not delete " + file.toString());
       }
+      AppSingleton.getInstance(context).getThumbnailCache().deleteThumbnails(file);
     }
   }
 
@@ -16,8 +16,10 @@
 
 package com.google.android.apps.forscience.whistlepunk.filemetadata;
 
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.graphics.Point;
 import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
 import android.provider.DocumentsContract.Document;
@@ -28,16 +30,18 @@ import android.util.Log;
 import android.webkit.MimeTypeMap;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.R;
+import com.google.android.apps.forscience.whistlepunk.ThumbnailCache;
 import com.google.android.apps.forscience.whistlepunk.WhistlePunkApplication;
 import com.google.android.apps.forscience.whistlepunk.accounts.AccountsProvider;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-/** Provides pictures for access outside the SJ app. TODO: Add thumbnails. */
+/** Provides pictures, and thumbnails of them, for access outside the SJ app. */
 public class ScienceJournalDocsProvider extends DocumentsProvider {
   private static final String TAG = "DocumentsProvider";
 
@@ -168,15 +172,12 @@ public class ScienceJournalDocsProvider extends DocumentsProvider {
     } else if (!documentId.contains("/")) {
       // It is an experiment directory
       // TODO: Use notifyChange to load data off-thread and update only when it is available.
-      List<ExperimentOverviewPojo> overviews =
+      ExperimentOverviewPojo overview =
           AppSingleton.getInstance(getContext())
               .getDataController(appAccount)
-              .blockingGetExperimentOverviews(true);
-      for (ExperimentOverviewPojo overview : overviews) {
-        if (TextUtils.equals(overview.getExperimentId(), documentId)) {
-          addExperimentToRow(row, overview);
-          break;
-        }
+              .blockingGetExperimentOverview(documentId);
+      if (overview != null) {
+        addExperimentToRow(row, overview);
       }
 
     } else {
@@ -214,6 +215,29 @@ public class ScienceJournalDocsProvider extends DocumentsProvider {
     }
   }
 
+  @Override
+  public AssetFileDescriptor openDocumentThumbnail(
+      String documentId, Point sizeHint, CancellationSignal signal) throws FileNotFoundException {
+    AppAccount appAccount = getAppAccountFromDocumentId(documentId);
+    File file =
+        new File(
+            FileMetadataUtil.getInstance().getExperimentsRootDirectory(appAccount)
+                + "/"
+                + documentId);
+    File thumbnail;
+    try {
+      // This runs on a binder thread, so it is fine to generate a missing thumbnail here.
+      thumbnail =
+          AppSingleton.getInstance(getContext()).getThumbnailCache().getOrCreateThumbnail(file);
+    } catch (IOException e) {
+      throw new FileNotFoundException("No thumbnail for " + documentId);
+    }
+    return new AssetFileDescriptor(
+        ParcelFileDescriptor.open(thumbnail, ParcelFileDescriptor.MODE_READ_ONLY),
+        0,
+        AssetFileDescriptor.UNKNOWN_LENGTH);
+  }
+
   @Override
   public boolean onCreate() {
     // return true if the provider was successfully loaded
@@ -227,21 +251,19 @@ public class ScienceJournalDocsProvider extends DocumentsProvider {
     if (accountsProvider.isAppAccount(documentId)) {
       return accountsProvider.getAccountByKey(documentId);
     }
-    // Else, let's see if it belongs to an experiment or the associated images.
+    // Else, let's see if it belongs to an experiment or the associated images. The documentId
+    // starts with the experiment id followed by a slash if the documentId was an image in the
+    // experiment's folder.
+    int slash = documentId.indexOf('/');
+    String experimentId = slash < 0 ? documentId : documentId.substring(0, slash);
     Set<AppAccount> accounts = accountsProvider.getAccounts();
     for (AppAccount appAccount : accounts) {
-      List<ExperimentOverviewPojo> overviews =
+      ExperimentOverviewPojo overview =
           AppSingleton.getInstance(getContext())
               .getDataController(appAccount)
-              .blockingGetExperimentOverviews(true);
-      for (ExperimentOverviewPojo overview : overviews) {
-        // If the documentId is an experiment overview or starts with the experiment overview id,
-        // return the associated app account. The documentId would start with the experiment
-        // overview id if the documentId was an image in the experiment's folder.
-        if (overview.getExperimentId().equals(documentId)
-            || documentId.startsWith(overview.getExperimentId())) {
-          return appAccount;
-        }
+              .blockingGetExperimentOverview(experimentId);
+      if (overview != null) {
+        return appAccount;
       }
     }
     // Couldn't find any app accounts with that documentId.
@@ -286,12 +308,15 @@ public class ScienceJournalDocsProvider extends DocumentsProvider {
         Experiment.getDisplayTitle(getContext(), overview.getTitle()));
     row.add(Document.COLUMN_MIME_TYPE, Document.MIME_TYPE_DIR);
     row.add(Document.COLUMN_LAST_MODIFIED, overview.getLastUsedTimeMs());
-    row.add(Document.COLUMN_SIZE, null);
+    // Overviews written before sizes were kept have a size of 0, which means unknown.
+    row.add(Document.COLUMN_SIZE, overview.getSizeBytes() > 0 ? overview.getSizeBytes() : null);
   }
 
   private void addAssetToRow(MatrixCursor.RowBuilder row, File file) {
     row.add(Document.COLUMN_DISPLAY_NAME, Experiment.getDisplayTitle(getContext(), file.getName()));
     row.add(Document.COLUMN_MIME_TYPE, getMimeType(file));
+    row.add(
+        Document.COLUMN_FLAGS, ThumbnailCache.isImage(file) ? Document.FLAG_SUPPORTS_THUMBNAIL : 0);
     row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
     row.add(Document.COLUMN_SIZE, file.length());
   }
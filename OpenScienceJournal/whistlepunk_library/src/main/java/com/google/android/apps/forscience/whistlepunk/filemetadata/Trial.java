@@ -39,6 +39,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Trial.AppearanceEntry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -86,8 +87,13 @@ public class Trial extends LabelListHolder {
 
   /** Populates the Trial from an existing proto, but changes the TrialId. */
   public static Trial fromTrialWithNewId(GoosciTrial.Trial trial) {
+    return fromTrialWithNewId(trial, java.util.UUID.randomUUID().toString());
+  }
+
+  /** Populates the Trial from an existing proto, but changes the TrialId to the one given. */
+  public static Trial fromTrialWithNewId(GoosciTrial.Trial trial, String newTrialId) {
     Trial t = new Trial(trial);
-    t.trialId = java.util.UUID.randomUUID().toString();
+    t.trialId = newTrialId;
     return t;
   }
 
@@ -191,6 +197,10 @@ public class Trial extends LabelListHolder {
     recordingRange = recordingRange.toBuilder().setEndMs(recordingEndTime).build();
   }
 
+  public void setRecordingStartTime(long recordingStartTime) {
+    recordingRange = recordingRange.toBuilder().setStartMs(recordingStartTime).build();
+  }
+
   public Range getOriginalRecordingRange() {
     return recordingRange;
   }
@@ -341,13 +351,25 @@ public class Trial extends LabelListHolder {
    * data, etc.
    */
   public void deleteContents(Context context, AppAccount appAccount, String experimentId) {
+    deleteAssets(context, appAccount, experimentId);
+    deleteData(context, appAccount, Collections.singletonList(this));
+  }
+
+  /** Deletes the label pictures and other files of the trial, but not its sensor data. */
+  void deleteAssets(Context context, AppAccount appAccount, String experimentId) {
     for (Label label : labels) {
       deleteLabelAssets(label, context, appAccount, experimentId);
     }
+    // TODO: Also delete any other assets associated with this trial, including icons, etc
+    // from the sensor appearance.
+  }
+
+  /** Deletes the sensor data of all of the given trials at once. */
+  static void deleteData(Context context, AppAccount appAccount, List<Trial> trials) {
     AppSingleton.getInstance(context)
         .getDataController(appAccount)
-        .deleteTrialData(
-            this,
+        .deleteTrialsData(
+            trials,
             MaybeConsumers.expectSuccess(
                 new FailureListener() {
                   @Override
@@ -357,8 +379,6 @@ public class Trial extends LabelListHolder {
                     }
                   }
                 }));
-    // TODO: Also delete any other assets associated with this trial, including icons, etc
-    // from the sensor appearance.
   }
 
   public void setOnLabelChangeListener(OnLabelChangeListener listener) {
@@ -21,7 +21,9 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Senso
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats.StatStatus;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.ValueDistribution;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /** Metadata object for the stats stored along with a trial */
@@ -80,6 +82,15 @@ public class TrialStats {
             .build();
   }
 
+  public void removeStat(StatType type) {
+    for (int i = 0; i < trialStats.getSensorStatsCount(); i++) {
+      if (trialStats.getSensorStats(i).getStatType() == type) {
+        trialStats = trialStats.toBuilder().removeSensorStats(i).build();
+        return;
+      }
+    }
+  }
+
   public double getStatValue(StatType type, double defaultValue) {
     for (SensorStat sensorStat : trialStats.getSensorStatsList()) {
       if (sensorStat.getStatType() == type) {
@@ -97,4 +108,37 @@ public class TrialStats {
     }
     return false;
   }
+
+  public boolean hasDistribution() {
+    return trialStats.hasDistribution();
+  }
+
+  public ValueDistribution getDistribution() {
+    return trialStats.getDistribution();
+  }
+
+  public void setDistribution(ValueDistribution distribution) {
+    trialStats = trialStats.toBuilder().setDistribution(distribution).build();
+  }
+
+  public void clearDistribution() {
+    trialStats = trialStats.toBuilder().clearDistribution().build();
+  }
+
+  public boolean hasZoomTierPointCounts() {
+    return trialStats.getZoomTierPointCountsCount() > 0;
+  }
+
+  /** Returns how many readings each zoom tier holds, starting with tier 0. */
+  public List<Long> getZoomTierPointCounts() {
+    return trialStats.getZoomTierPointCountsList();
+  }
+
+  public void setZoomTierPointCounts(long[] counts) {
+    SensorTrialStats.Builder builder = trialStats.toBuilder().clearZoomTierPointCounts();
+    for (long count : counts) {
+      builder.addZoomTierPointCounts(count);
+    }
+    trialStats = builder.build();
+  }
 }
@@ -28,9 +28,12 @@ import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
-/** Reads and writes ExperimentOverview lists */
-// TODO: Should this be a cache too?
+/**
+ * Reads and writes ExperimentOverview lists. Lists of overviews are served from an {@link
+ * ExperimentOverviewIndex}, which is kept up to date incrementally alongside the user metadata.
+ */
 public class UserMetadataManager {
   private static final String TAG = "UserMetadataManager";
 
@@ -50,6 +53,11 @@ public class UserMetadataManager {
   private boolean needsWrite = false;
   private UserMetadataPojo userMetadata;
   private UsageTracker usageTracker;
+  private final ExperimentOverviewIndex overviewIndex;
+  // Counts changes to the overview index, so that a background write only marks the index clean if
+  // nothing changed while it was in flight.
+  private final AtomicInteger overviewChanges = new AtomicInteger();
+  private boolean overviewIndexVerified = false;
 
   interface FailureListener {
     // TODO: What's helpful to pass back here? Maybe info about the type of error?
@@ -68,7 +76,17 @@ public class UserMetadataManager {
 
   public UserMetadataManager(
       Context context, AppAccount appAccount, FailureListener failureListener) {
+    this(context, appAccount, failureListener, new ExperimentOverviewIndex(context, appAccount));
+  }
+
+  @VisibleForTesting
+  UserMetadataManager(
+      Context context,
+      AppAccount appAccount,
+      FailureListener failureListener,
+      ExperimentOverviewIndex overviewIndex) {
     this.failureListener = failureListener;
+    this.overviewIndex = overviewIndex;
     overviewProtoFileHelper = new LiteProtoFileHelper<>();
     userMetadataFile = FileMetadataUtil.getInstance().getUserMetadataFile(appAccount);
     backgroundWriteThread = Executors.newSingleThreadExecutor();
@@ -112,6 +130,20 @@ public class UserMetadataManager {
     return userMetadata.getOverview(experimentId);
   }
 
+  /**
+   * Looks up a single experiment overview for read-only use. Unlike {@link #getExperimentOverview},
+   * this does not need to load the Shared Metadata if the overview index can answer on its own.
+   */
+  ExperimentOverviewPojo lookUpExperimentOverview(String experimentId) {
+    if (userMetadata != null) {
+      return userMetadata.getOverview(experimentId);
+    }
+    if (!verifyOverviewIndex()) {
+      return null;
+    }
+    return overviewIndex.get(experimentId);
+  }
+
   /** Adds a new experiment overview to the Shared Metadata. */
   void addExperimentOverview(ExperimentOverviewPojo overviewToAdd) {
     updateExperimentOverview(overviewToAdd);
@@ -124,6 +156,10 @@ public class UserMetadataManager {
       return;
     }
     userMetadata.insertOverview(overviewToUpdate);
+    if (verifyOverviewIndex()) {
+      overviewChanges.incrementAndGet();
+      overviewIndex.put(overviewToUpdate);
+    }
     startWriteTimer();
   }
 
@@ -135,6 +171,10 @@ public class UserMetadataManager {
   void deleteExperimentOverview(String experimentIdToDelete) {
     userMetadata = getUserMetadata();
     userMetadata.deleteOverview(experimentIdToDelete);
+    if (verifyOverviewIndex()) {
+      overviewChanges.incrementAndGet();
+      overviewIndex.delete(experimentIdToDelete);
+    }
     startWriteTimer();
   }
 
@@ -144,20 +184,58 @@ public class UserMetadataManager {
       return;
     }
     userMetadata.clearOverviews();
+    if (verifyOverviewIndex()) {
+      overviewChanges.incrementAndGet();
+      overviewIndex.deleteAll();
+    }
     startWriteTimer();
   }
 
   /**
-   * Gets all the experiment overviews
+   * Gets all the experiment overviews, most recently used first.
    *
    * @param includeArchived Whether to include the archived experiments.
    */
   List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived) {
-    userMetadata = getUserMetadata();
-    if (userMetadata == null) {
+    return getExperimentOverviews(includeArchived, 0, 0);
+  }
+
+  /**
+   * Gets a page of the experiment overviews, most recently used first.
+   *
+   * @param includeArchived Whether to include the archived experiments.
+   * @param offset The number of overviews to skip.
+   * @param limit The maximum number of overviews to return, or 0 for no limit.
+   */
+  List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    if (!verifyOverviewIndex()) {
       return null;
     }
-    return userMetadata.getOverviews(includeArchived);
+    return overviewIndex.getPage(includeArchived, offset, limit);
+  }
+
+  /**
+   * Makes sure the overview index matches the user metadata. This only needs to read the user
+   * metadata file the first time it is called, and only if the index was never populated, the app
+   * stopped before the user metadata caught up with the index, or the file was replaced.
+   *
+   * @return false if the user metadata could not be read.
+   */
+  private boolean verifyOverviewIndex() {
+    if (overviewIndexVerified) {
+      return true;
+    }
+    if (!overviewIndex.isUsable(userMetadataFile.length(), userMetadataFile.lastModified())) {
+      UserMetadataPojo metadata = getUserMetadata();
+      if (metadata == null) {
+        return false;
+      }
+      overviewIndex.rebuild(
+          metadata.getOverviews(true), userMetadataFile.length(), userMetadataFile.lastModified());
+    }
+    overviewIndexVerified = true;
+    return true;
   }
 
   /** Adds a device to the user's list of devices if it is not yet added. */
@@ -293,11 +371,15 @@ public class UserMetadataManager {
       failureListener.onNewerVersionDetected(); // TODO: Or should this throw onWriteFailed?
     }
     createUserMetadataFileIfNeeded();
+    int changesWritten = overviewChanges.get();
     if (!overviewProtoFileHelper.writeToFile(
         userMetadataFile, userMetadata.toProto(), usageTracker)) {
       failureListener.onWriteFailed();
     } else {
       needsWrite = false;
+      if (overviewIndexVerified && overviewChanges.get() == changesWritten) {
+        overviewIndex.markClean(userMetadataFile.length(), userMetadataFile.lastModified());
+      }
     }
   }
 
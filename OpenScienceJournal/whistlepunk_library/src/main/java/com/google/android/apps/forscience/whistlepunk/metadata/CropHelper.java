@@ -37,8 +37,12 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorTrialStats.StatStatus;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
@@ -98,6 +102,8 @@ public class CropHelper {
   }
 
   private int statsUpdated = 0;
+  // Readings read from the database to recalculate stats, on the crop stats executor.
+  private long readingsScanned = 0;
   private Executor cropStatsExecutor;
   private DataController dataController;
 
@@ -137,6 +143,9 @@ public class CropHelper {
       return;
     }
 
+    final Range<Long> previousRange =
+        Range.closed(trial.getFirstTimestamp(), trial.getLastTimestamp());
+    final Map<String, StatsAccumulator> previousStats = new HashMap<>();
     GoosciTrial.Range.Builder cropRange;
     if (trial.getCropRange() == null) {
       cropRange = GoosciTrial.Range.newBuilder();
@@ -149,6 +158,12 @@ public class CropHelper {
       // First delete the min/max/avg stats, but leave the rest available, because they are
       // used in loading data by ZoomPresenter.
       TrialStats stats = trial.getStatsForSensor(sensorId);
+      if (stats.statsAreValid()) {
+        // The first reading is at or just after the start of the previous range, which is as
+        // close as the saved stats tell.
+        previousStats.put(
+            sensorId, StatsAccumulator.fromTrialStats(stats, previousRange.lowerEndpoint()));
+      }
       stats.setStatStatus(StatStatus.NEEDS_UPDATE);
       trial.setStats(stats);
     }
@@ -160,7 +175,13 @@ public class CropHelper {
             // At this point, we can go back to RunReview.
             listener.onCropCompleted();
             for (String sensorId : trial.getSensorIds()) {
-              adjustTrialStats(context, experiment, trialId, sensorId);
+              adjustTrialStats(
+                  context,
+                  experiment,
+                  trialId,
+                  sensorId,
+                  previousStats.get(sensorId),
+                  previousRange);
             }
           }
         });
@@ -175,13 +196,17 @@ public class CropHelper {
       final Context context,
       final Experiment experiment,
       final String trialId,
-      final String sensorId) {
+      final String sensorId,
+      final StatsAccumulator previousStats,
+      final Range<Long> previousRange) {
     Runnable runnable =
         new Runnable() {
           @Override
           public void run() {
             // Moves the current Thread into the background
-            StatsAdjuster adjuster = new StatsAdjuster(sensorId, experiment, trialId, context);
+            StatsAdjuster adjuster =
+                new StatsAdjuster(
+                    sensorId, experiment, trialId, context, previousStats, previousRange);
             adjuster.recalculateStats(dataController);
           }
         };
@@ -196,10 +221,23 @@ public class CropHelper {
     private final String trialId;
     private StatsAccumulator statsAccumulator;
     StreamConsumer streamConsumer;
+    private long lastScannedTimestamp;
     private Context context;
-
-    StatsAdjuster(String sensorId, Experiment experiment, String trialId, Context context) {
+    // The stats of the range before this crop, or null if they weren't valid or were saved
+    // without their distribution.
+    private final StatsAccumulator previousStats;
+    private final Range<Long> previousRange;
+
+    StatsAdjuster(
+        String sensorId,
+        Experiment experiment,
+        String trialId,
+        Context context,
+        StatsAccumulator previousStats,
+        Range<Long> previousRange) {
       statsAccumulator = new StatsAccumulator(sensorId);
+      this.previousStats = previousStats;
+      this.previousRange = previousRange;
       this.sensorId = sensorId;
       this.experiment = experiment;
       this.trialId = trialId;
@@ -207,60 +245,107 @@ public class CropHelper {
           new StreamConsumer() {
             @Override
             public boolean addData(long timestampMillis, double value) {
+              readingsScanned++;
               statsAccumulator.updateRecordingStreamStats(timestampMillis, value);
+              lastScannedTimestamp = timestampMillis;
               return true;
             }
           };
       this.context = context;
     }
 
-    void recalculateStats(DataController dc) {
-      TimeRange range =
-          TimeRange.oldest(
-              Range.closed(
-                  experiment.getTrial(trialId).getFirstTimestamp(),
-                  experiment.getTrial(trialId).getLastTimestamp()));
-      addReadingsToStats(dc, range);
+    /**
+     * Recalculates the stats from the stats blocks that lie inside the crop range, and only reads
+     * the data in the partial blocks at its edges. The median and distribution are estimated from
+     * the quantiles kept in each block. Trials recorded before there were stats blocks have their
+     * data read in full. A crop that only widens the previous one adds the readings outside of it
+     * to its stats. Reads of an archived trial get its finest tier in place of tier 0, so only the
+     * edges of its stats are approximate.
+     */
+    void recalculateStats(final DataController dc) {
+      Trial trial = experiment.getTrial(trialId);
+      final long first = trial.getFirstTimestamp();
+      final long last = trial.getLastTimestamp();
+      if (previousStats != null && Range.closed(first, last).encloses(previousRange)) {
+        // Readings are added in order of time, so the previous stats go in between the edges.
+        scanReadings(
+            dc,
+            Range.closedOpen(first, previousRange.lowerEndpoint()),
+            () -> {
+              statsAccumulator.merge(previousStats);
+              scanReadings(
+                  dc,
+                  Range.openClosed(previousRange.upperEndpoint(), last),
+                  StatsAdjuster.this::saveStats);
+            });
+        return;
+      }
+      final long interiorStart = StatsBlock.getBlockStart(first - 1) + StatsBlock.BLOCK_MILLIS;
+      final long interiorEnd = StatsBlock.getBlockStart(last + 1);
+      if (interiorStart >= interiorEnd) {
+        // No whole block inside the crop.
+        scanReadings(dc, Range.closed(first, last), this::saveStats);
+        return;
+      }
+      dc.getStatsBlocks(
+          trialId,
+          sensorId,
+          // Get all of the trial's blocks, to tell a trial recorded without them from a crop
+          // with no data in it.
+          Range.closed(
+              StatsBlock.getBlockStart(trial.getOriginalFirstTimestamp()),
+              trial.getOriginalLastTimestamp()),
+          new LoggingConsumer<List<StatsBlock>>(TAG, "load stats blocks") {
+            @Override
+            public void success(List<StatsBlock> blocks) {
+              if (blocks.isEmpty()) {
+                scanReadings(dc, Range.closed(first, last), StatsAdjuster.this::saveStats);
+                return;
+              }
+              scanReadings(
+                  dc,
+                  Range.closedOpen(first, interiorStart),
+                  () -> {
+                    for (StatsBlock block : blocks) {
+                      long blockStart = block.getBlockStartMillis();
+                      if (blockStart >= interiorStart && blockStart < interiorEnd) {
+                        statsAccumulator.merge(block);
+                      }
+                    }
+                    scanReadings(
+                        dc, Range.closed(interiorEnd, last), StatsAdjuster.this::saveStats);
+                  });
+            }
+          });
     }
 
-    private void addReadingsToStats(final DataController dc, final TimeRange range) {
+    /** Adds every tier 0 reading in the range to the stats, a page at a time, then calls onDone. */
+    private void scanReadings(
+        final DataController dc, final Range<Long> times, final Runnable onDone) {
+      if (times.isEmpty()) {
+        // An edge that is block aligned. Don't query, or the database would fall back to
+        // readings saved without a trial id.
+        onDone.run();
+        return;
+      }
       dc.getScalarReadings(
           trialId,
           sensorId, /* tier 0 */
           0,
-          range,
+          TimeRange.oldest(times),
           DATAPOINTS_PER_LOAD,
           new MaybeConsumer<ScalarReadingList>() {
             @Override
             public void success(ScalarReadingList list) {
               list.deliver(streamConsumer);
-              Trial trial = experiment.getTrial(trialId);
-              if (list.size() == 0
-                  || list.size() < DATAPOINTS_PER_LOAD
-                  || statsAccumulator.getLatestTimestamp() >= trial.getLastTimestamp()) {
-                if (!statsAccumulator.isInitialized()) {
-                  // There was no data in this region, so the stats are still
-                  // not valid.
-                  return;
-                }
-                // Done! Save back to the database.
-                TrialStats fullStats = trial.getStatsForSensor(sensorId);
-                statsAccumulator.populateTrialStats(fullStats);
-                trial.setStats(fullStats);
-                dc.updateExperiment(
-                    experiment.getExperimentId(),
-                    new LoggingConsumer<Success>(TAG, "update stats") {
-                      @Override
-                      public void success(Success value) {
-                        sendStatsUpdatedBroadcast(context, sensorId, trialId);
-                      }
-                    });
+              if (list.size() < DATAPOINTS_PER_LOAD
+                  || !times.contains(lastScannedTimestamp + 1)) {
+                onDone.run();
               } else {
-                TimeRange nextRange =
-                    TimeRange.oldest(
-                        Range.openClosed(
-                            statsAccumulator.getLatestTimestamp(), trial.getLastTimestamp()));
-                addReadingsToStats(dc, nextRange);
+                scanReadings(
+                    dc,
+                    times.intersection(Range.greaterThan(lastScannedTimestamp)),
+                    onDone);
               }
             }
 
@@ -270,6 +355,27 @@ public class CropHelper {
             }
           });
     }
+
+    private void saveStats() {
+      if (!statsAccumulator.isInitialized()) {
+        // There was no data in this region, so the stats are still
+        // not valid.
+        return;
+      }
+      // Done! Save back to the database.
+      Trial trial = experiment.getTrial(trialId);
+      TrialStats fullStats = trial.getStatsForSensor(sensorId);
+      statsAccumulator.populateTrialStats(fullStats);
+      trial.setStats(fullStats);
+      dataController.updateExperiment(
+          experiment.getExperimentId(),
+          new LoggingConsumer<Success>(TAG, "update stats") {
+            @Override
+            public void success(Success value) {
+              sendStatsUpdatedBroadcast(context, sensorId, trialId);
+            }
+          });
+    }
   }
 
   // Use a Broadcast to tell RunReviewFragment or ExperimentDetailsFragment or anyone who uses
@@ -300,12 +406,48 @@ public class CropHelper {
     getBroadcastManager(context).unregisterReceiver(receiver);
   }
 
+  @VisibleForTesting
+  long getReadingsScanned() {
+    return readingsScanned;
+  }
+
   public static boolean experimentIsLongEnoughForCrop(Trial trial) {
     return trial.getOriginalLastTimestamp() - trial.getOriginalFirstTimestamp()
         > CropHelper.MINIMUM_CROP_MILLIS;
   }
 
-  public void throwAwayDataOutsideCroppedRegion(DataController dc, Trial trial) {
-    // TODO
+  /**
+   * Deletes the trial's sensor data outside of its crop range in the background. Once that is done,
+   * the trial's recording range is narrowed to the crop range, so that it can no longer be cropped
+   * back out into the deleted data.
+   */
+  public void throwAwayDataOutsideCroppedRegion(final Experiment experiment, final String trialId) {
+    final Trial trial = experiment.getTrial(trialId);
+    final GoosciTrial.Range reclaimedRange = trial.getCropRange();
+    if (reclaimedRange == null) {
+      return;
+    }
+    dataController.reclaimCroppedTrialData(
+        trial,
+        new LoggingConsumer<Long>(TAG, "reclaim cropped data") {
+          @Override
+          public void success(Long bytesReclaimed) {
+            if (Log.isLoggable(TAG, Log.INFO)) {
+              Log.i(TAG, "Reclaimed " + bytesReclaimed + " bytes from trial " + trialId);
+            }
+            trial.setRecordingStartTime(reclaimedRange.getStartMs());
+            trial.setRecordingEndTime(reclaimedRange.getEndMs());
+            // The crop may have been widened while the data was being deleted.
+            GoosciTrial.Range cropRange = trial.getCropRange();
+            trial.setCropRange(
+                cropRange.toBuilder()
+                    .setStartMs(Math.max(cropRange.getStartMs(), reclaimedRange.getStartMs()))
+                    .setEndMs(Math.min(cropRange.getEndMs(), reclaimedRange.getEndMs()))
+                    .build());
+            dataController.updateExperiment(
+                experiment.getExperimentId(),
+                LoggingConsumer.<Success>expectSuccess(TAG, "narrow trial to crop"));
+          }
+        });
   }
 }
@@ -53,6 +53,16 @@ public interface MetaDataManager {
   /** @return the list of all experiments. */
   List<ExperimentOverviewPojo> getExperimentOverviews(boolean includeArchived);
 
+  /**
+   * @return a page of experiments, most recently used first, of at most {@code limit} overviews
+   *     after skipping {@code offset} of them.
+   */
+  List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit);
+
+  /** @return the overview of the experiment with the given id, or null if there is none. */
+  ExperimentOverviewPojo getExperimentOverview(String experimentId);
+
   /** Gets all the external sensors previously saved. */
   Map<String, ExternalSensorSpec> getExternalSensors(Map<String, SensorProvider> providerMap);
 
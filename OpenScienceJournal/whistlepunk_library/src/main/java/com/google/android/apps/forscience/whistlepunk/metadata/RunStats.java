@@ -39,6 +39,8 @@ public class RunStats {
           .put(StatsAccumulator.KEY_MAX, StatType.MAXIMUM)
           .put(StatsAccumulator.KEY_NUM_DATA_POINTS, StatType.NUM_DATA_POINTS)
           .put(StatsAccumulator.KEY_TOTAL_DURATION, StatType.TOTAL_DURATION)
+          .put(StatsAccumulator.KEY_STANDARD_DEVIATION, StatType.STANDARD_DEVIATION)
+          .put(StatsAccumulator.KEY_MEDIAN, StatType.MEDIAN)
           .put(ZoomRecorder.STATS_KEY_TIER_COUNT, StatType.ZOOM_PRESENTER_TIER_COUNT)
           .put(
               ZoomRecorder.STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS,
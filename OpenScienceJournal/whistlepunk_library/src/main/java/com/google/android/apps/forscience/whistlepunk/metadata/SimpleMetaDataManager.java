@@ -49,6 +49,7 @@ import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableS
 import com.google.android.apps.forscience.whistlepunk.filemetadata.DeviceSpecPojo;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentLibraryManager;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentOverviewIndex;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.ExperimentOverviewPojo;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.FileMetadataUtil;
@@ -68,6 +69,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import com.google.common.util.concurrent.Futures;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -81,6 +83,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** An implementation of the {@link MetaDataManager} which uses a simple database. */
 public class SimpleMetaDataManager implements MetaDataManager {
@@ -93,6 +98,11 @@ public class SimpleMetaDataManager implements MetaDataManager {
   private static final String SENSOR_TRIGGER_LABEL_TAG = "sensorTriggerLabel";
   private static final String UNKNOWN_LABEL_TAG = "label";
   private static final String DEFAULT_PROJECT_ID = "defaultProjectId";
+  private static final String MIGRATE_EXPERIMENTS_TO_FILES = "experiments_to_files";
+  private static final int MIGRATION_COPY_THREADS = 4;
+
+  /** How many experiments are moved into files between checkpoints of the migration. */
+  @VisibleForTesting static final int MIGRATION_BATCH_SIZE = 25;
 
   private DatabaseHelper dbHelper;
   private Context context;
@@ -127,6 +137,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
     String EXPERIMENT_SENSOR_LAYOUT = "experiment_sensor_layout";
     String SENSOR_TRIGGERS = "sensor_triggers";
     String MY_DEVICES = "my_devices";
+    String MIGRATIONS = "migrations";
   }
 
   public SimpleMetaDataManager(Context context, AppAccount appAccount) {
@@ -204,55 +215,130 @@ public class SimpleMetaDataManager implements MetaDataManager {
     }
   }
 
+  @VisibleForTesting
+  boolean migrateExperimentsToFiles(int maxExperiments) {
+    synchronized (lock) {
+      final SQLiteDatabase db = dbHelper.getWritableDatabase();
+      return migrateExperimentsToFiles(db, maxExperiments);
+    }
+  }
+
   private void migrateExperimentsToFiles(SQLiteDatabase db) {
-    // For each experiment, migrate it over and delete it from the database.
-    List<String> experimentIds = getAllExperimentIds(db);
+    migrateExperimentsToFiles(db, Integer.MAX_VALUE);
+  }
 
+  /**
+   * Moves the experiments in the database into files, a batch at a time. Each batch is written to
+   * files, and then deleted from the database in the same transaction that records how many
+   * experiments have been moved so far, so a migration that is cut short carries on from the last
+   * batch that was committed.
+   *
+   * @param maxExperiments stop, as if the app had been killed, once this many experiments have been
+   *     written to files, before their batch is committed. Only for tests.
+   * @return true if all the experiments have been migrated.
+   */
+  private boolean migrateExperimentsToFiles(SQLiteDatabase db, int maxExperiments) {
     // Clean up if a previous migration was not successful / complete.
-    fileMetadataManager.deleteAll(experimentIds);
+    fileMetadataManager.deleteAll(getAllExperimentIds(db));
 
-    int colorIndex = 0;
+    int migrated = Math.max(0, getMigrationProgress(db, MIGRATE_EXPERIMENTS_TO_FILES));
+    int written = 0;
     int colorCount = context.getResources().getIntArray(R.array.experiment_colors_array).length;
-    for (String experimentId : experimentIds) {
-      Experiment experiment = getDatabaseExperimentById(db, experimentId, context, true);
-
-      // Assign a color. This is based on the order that experiments are retrieved from
-      // the database so it might not be in any particular order.
-      experiment.getExperimentOverview().setColorIndex(colorIndex);
-      colorIndex = (colorIndex + 1) % colorCount;
-
-      // This prepares the file system for the new experiment.
-      fileMetadataManager.addExperiment(experiment);
-
-      // Remove experiment description, turn it into a text note.
-      if (!TextUtils.isEmpty(experiment.getDescription())) {
-        GoosciTextLabelValue.TextLabelValue descriptionValue =
-            GoosciTextLabelValue.TextLabelValue.newBuilder()
-                .setText(experiment.getDescription())
-                .build();
-        Label descriptionLabel =
-            Label.newLabelWithValue(
-                experiment.getCreationTimeMs() - 500, ValueType.TEXT, descriptionValue, null);
-        experiment.setDescription("");
-        experiment.addLabel(experiment, descriptionLabel);
-      }
-      // Migrate assets
-      for (int i = 0; i < experiment.getLabelCount(); i++) {
-        Label label = experiment.getLabels().get(i);
-        updateLabelPictureAssets(experiment, label);
+    ExecutorService copyExecutor = Executors.newFixedThreadPool(MIGRATION_COPY_THREADS);
+    try {
+      List<String> experimentIds;
+      while (!(experimentIds = getExperimentIds(db, MIGRATION_BATCH_SIZE)).isEmpty()) {
+        List<Experiment> batch = new ArrayList<>();
+        for (String experimentId : experimentIds) {
+          Experiment experiment = getDatabaseExperimentById(db, experimentId, context, true);
+
+          // Assign a color. This is based on the order that experiments were added to the
+          // database, counting those migrated by earlier batches.
+          experiment
+              .getExperimentOverview()
+              .setColorIndex((migrated + batch.size()) % colorCount);
+
+          // This prepares the file system for the new experiment.
+          fileMetadataManager.addExperiment(experiment);
+
+          // Remove experiment description, turn it into a text note.
+          if (!TextUtils.isEmpty(experiment.getDescription())) {
+            GoosciTextLabelValue.TextLabelValue descriptionValue =
+                GoosciTextLabelValue.TextLabelValue.newBuilder()
+                    .setText(experiment.getDescription())
+                    .build();
+            Label descriptionLabel =
+                Label.newLabelWithValue(
+                    experiment.getCreationTimeMs() - 500, ValueType.TEXT, descriptionValue, null);
+            experiment.setDescription("");
+            experiment.addLabel(experiment, descriptionLabel);
+          }
+          batch.add(experiment);
+        }
+
+        migratePictureAssets(batch, copyExecutor);
+
+        // Now that all the labels have their assets in the right place, we can save them.
+        for (Experiment experiment : batch) {
+          fileMetadataManager.updateExperiment(experiment, true);
+        }
+        fileMetadataManager.saveImmediately();
+
+        written += batch.size();
+        if (written >= maxExperiments) {
+          return false;
+        }
+
+        db.beginTransaction();
+        try {
+          for (Experiment experiment : batch) {
+            deleteDatabaseExperiment(db, experiment, context);
+          }
+          migrated += batch.size();
+          setMigrationProgress(db, MIGRATE_EXPERIMENTS_TO_FILES, migrated);
+          db.setTransactionSuccessful();
+        } finally {
+          db.endTransaction();
+        }
       }
+    } finally {
+      copyExecutor.shutdown();
+    }
+    db.delete(
+        Tables.MIGRATIONS,
+        MigrationColumns.NAME + "=?",
+        new String[] {MIGRATE_EXPERIMENTS_TO_FILES});
+    return true;
+  }
+
+  /**
+   * Copies the picture assets of a batch of experiments in parallel, and then updates their labels
+   * one at a time in the original order, so that the result is the same as copying them in turn.
+   */
+  private void migratePictureAssets(List<Experiment> batch, ExecutorService copyExecutor) {
+    List<Experiment> experiments = new ArrayList<>();
+    List<Label> labels = new ArrayList<>();
+    List<Future<Boolean>> copies = new ArrayList<>();
+    for (Experiment experiment : batch) {
+      List<Label> experimentLabels = new ArrayList<>(experiment.getLabels());
       for (Trial trial : experiment.getTrials()) {
         // TODO: Also migrate any sensor specific assets needed to view this trial.
-        for (Label trialLabel : trial.getLabels()) {
-          updateLabelPictureAssets(experiment, trialLabel);
+        experimentLabels.addAll(trial.getLabels());
+      }
+      String experimentId = experiment.getExperimentId();
+      for (Label label : experimentLabels) {
+        if (label.getType() == ValueType.PICTURE) {
+          experiments.add(experiment);
+          labels.add(label);
+          copies.add(
+              copyExecutor.submit(() -> migratePictureAssetsIfNeeded(experimentId, label)));
         }
       }
-
-      // Now that all the labels have their assets in the right place, we can save them.
-      fileMetadataManager.updateExperiment(experiment, true);
-      fileMetadataManager.saveImmediately();
-
-      deleteDatabaseExperiment(db, experiment, context);
+    }
+    for (int i = 0; i < copies.size(); i++) {
+      if (Futures.getUnchecked(copies.get(i))) {
+        updateLabelPictureAssets(experiments.get(i), labels.get(i));
+      }
     }
   }
 
@@ -275,15 +361,16 @@ public class SimpleMetaDataManager implements MetaDataManager {
     }
   }
 
-  /** Migrates label picture assets, updating the Experiment Overview image if it is not yet set. */
+  /**
+   * Updates a label whose picture assets have been migrated, updating the Experiment Overview image
+   * if it is not yet set.
+   */
   private void updateLabelPictureAssets(Experiment experiment, Label label) {
-    if (migratePictureAssetsIfNeeded(experiment.getExperimentId(), label)) {
-      experiment.updateLabelWithoutSorting(experiment, label);
-      if (TextUtils.isEmpty(experiment.getExperimentOverview().getImagePath())) {
-        String path = label.getPictureLabelValue().getFilePath();
-        if (!TextUtils.isEmpty(path)) {
-          experiment.setImagePath(path);
-        }
+    experiment.updateLabelWithoutSorting(experiment, label);
+    if (TextUtils.isEmpty(experiment.getExperimentOverview().getImagePath())) {
+      String path = label.getPictureLabelValue().getFilePath();
+      if (!TextUtils.isEmpty(path)) {
+        experiment.setImagePath(path);
       }
     }
   }
@@ -337,6 +424,11 @@ public class SimpleMetaDataManager implements MetaDataManager {
   }
 
   private List<String> getAllExperimentIds(SQLiteDatabase db) {
+    return getExperimentIds(db, 0);
+  }
+
+  /** Gets the ids of up to {@code limit} experiments, or all if 0, in the order they were added. */
+  private static List<String> getExperimentIds(SQLiteDatabase db, int limit) {
     List<String> experimentIds = new ArrayList<>();
     Cursor cursor = null;
     try {
@@ -348,7 +440,8 @@ public class SimpleMetaDataManager implements MetaDataManager {
               null,
               null,
               null,
-              null);
+              BaseColumns._ID,
+              limit > 0 ? String.valueOf(limit) : null);
       while (cursor.moveToNext()) {
         experimentIds.add(cursor.getString(0));
       }
@@ -360,6 +453,28 @@ public class SimpleMetaDataManager implements MetaDataManager {
     return experimentIds;
   }
 
+  /** Returns the progress recorded for the given migration, or -1 if it is not under way. */
+  private static int getMigrationProgress(SQLiteDatabase db, String name) {
+    try (Cursor cursor =
+        db.query(
+            Tables.MIGRATIONS,
+            new String[] {MigrationColumns.PROGRESS},
+            MigrationColumns.NAME + "=?",
+            new String[] {name},
+            null,
+            null,
+            null)) {
+      return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+    }
+  }
+
+  private static void setMigrationProgress(SQLiteDatabase db, String name, int progress) {
+    ContentValues values = new ContentValues();
+    values.put(MigrationColumns.NAME, name);
+    values.put(MigrationColumns.PROGRESS, progress);
+    db.insertWithOnConflict(Tables.MIGRATIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
   @VisibleForTesting
   void migrateProjectData() {
     synchronized (lock) {
@@ -723,6 +838,9 @@ public class SimpleMetaDataManager implements MetaDataManager {
         Files.move(sourceFile, targetFile);
       }
     }
+
+    // The target account rebuilds its overview index from the user_metadata.proto moved above.
+    context.deleteDatabase(targetAccount.getDatabaseFileName(ExperimentOverviewIndex.DB_NAME));
   }
 
   @Override
@@ -776,6 +894,17 @@ public class SimpleMetaDataManager implements MetaDataManager {
     return getFileMetadataManager().getExperimentOverviews(includeArchived);
   }
 
+  @Override
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    return getFileMetadataManager().getExperimentOverviews(includeArchived, offset, limit);
+  }
+
+  @Override
+  public ExperimentOverviewPojo getExperimentOverview(String experimentId) {
+    return getFileMetadataManager().getExperimentOverview(experimentId);
+  }
+
   @VisibleForTesting
   List<ExperimentOverviewPojo> getDatabaseExperimentOverviews(boolean includeArchived) {
     List<ExperimentOverviewPojo> experiments = new ArrayList<>();
@@ -2173,6 +2302,14 @@ public class SimpleMetaDataManager implements MetaDataManager {
     String TRIGGER_INFORMATION = "trigger_information";
   }
 
+  public interface MigrationColumns {
+    /** Name of a data migration that has been started but not finished. Unique. */
+    String NAME = "name";
+
+    /** How far the migration has got, in units of its own. */
+    String PROGRESS = "progress";
+  }
+
   public interface MyDevicesColumns {
     /**
      * The id of a device that has been memorized to "My Devices" This should be a key to a row in
@@ -2183,7 +2320,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
 
   /** Manages the SQLite database backing the data for the entire app (per account). */
   private static class DatabaseHelper extends SQLiteOpenHelper {
-    private static final int DB_VERSION = 22;
+    private static final int DB_VERSION = 23;
     private static final String DB_NAME = "main.db";
 
     // Callbacks for database upgrades.
@@ -2191,7 +2328,7 @@ public class SimpleMetaDataManager implements MetaDataManager {
       // Called when project data needs to be migrated.
       void onMigrateProjectData(SQLiteDatabase db);
 
-      // Called when experiment data needs to be migrated.
+      // Called when the database is opened with experiment data still to be migrated.
       void onMigrateExperimentsToFiles(SQLiteDatabase db);
 
       void onMigrateMyDevicesToProto(SQLiteDatabase db);
@@ -2225,6 +2362,17 @@ public class SimpleMetaDataManager implements MetaDataManager {
       createExperimentSensorLayoutTable(db);
       createSensorTriggersTable(db);
       createMyDevicesTable(db);
+      createMigrationsTable(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+      super.onOpen(db);
+      // Finish any migration that was started by an upgrade, outside of the upgrade transaction so
+      // that the work is committed as it goes.
+      if (!db.isReadOnly() && getMigrationProgress(db, MIGRATE_EXPERIMENTS_TO_FILES) >= 0) {
+        upgradeCallback.onMigrateExperimentsToFiles(db);
+      }
     }
 
     private void createExperimentsTable(SQLiteDatabase db) {
@@ -2463,14 +2611,33 @@ public class SimpleMetaDataManager implements MetaDataManager {
       }
 
       if (version == 21 && version < newVersion) {
-        // Migrate experiment data into file-based system.
-        upgradeCallback.onMigrateExperimentsToFiles(db);
+        // Migrate experiment data into file-based system. There can be a lot of it, so it is moved
+        // in batches once the upgrade is done; see onOpen.
+        createMigrationsTable(db);
+        setMigrationProgress(db, MIGRATE_EXPERIMENTS_TO_FILES, 0);
         version = 22;
       }
 
+      if (version == 22 && version < newVersion) {
+        createMigrationsTable(db);
+        version = 23;
+      }
+
       // TODO: upgrade my devices (once device spec population is complete and tested).
     }
 
+    private void createMigrationsTable(SQLiteDatabase db) {
+      // May already have been created by the upgrade to version 22.
+      db.execSQL(
+          "CREATE TABLE IF NOT EXISTS "
+              + Tables.MIGRATIONS
+              + " ("
+              + MigrationColumns.NAME
+              + " TEXT PRIMARY KEY, "
+              + MigrationColumns.PROGRESS
+              + " INTEGER NOT NULL)");
+    }
+
     private void createProjectsTable(SQLiteDatabase db) {
       db.execSQL(
           "CREATE TABLE "
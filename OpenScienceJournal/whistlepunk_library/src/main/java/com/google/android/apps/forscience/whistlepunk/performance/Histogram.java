@@ -0,0 +1,162 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.performance;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in nanoseconds or queue
+ * depths.
+ *
+ * <p>Buckets are log-linear, as in HdrHistogram: each power of two is split into {@link
+ * #SUB_BUCKET_COUNT} equal buckets, so any recorded value is reported within about 3% of its true
+ * value, over the whole range of longs, in a fixed 15KB of memory. Recording is a handful of atomic
+ * operations and never allocates, so it is safe on sensor and database threads.
+ */
+public class Histogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+  /** Records a value. Negative values are recorded as 0. */
+  public void record(long value) {
+    record(value, 1);
+  }
+
+  /**
+   * Records a value {@code count} times, as cheaply as recording it once. Negative values are
+   * recorded as 0.
+   */
+  public void record(long value, long count) {
+    if (count <= 0) {
+      return;
+    }
+    if (value < 0) {
+      value = 0;
+    }
+    counts.addAndGet(bucketIndex(value), count);
+    totalCount.addAndGet(count);
+    sum.addAndGet(value * count);
+    long currentMin;
+    while (value < (currentMin = min.get()) && !min.compareAndSet(currentMin, value)) {}
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {}
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /** Returns the smallest recorded value, or 0 if nothing was recorded. */
+  public long getMin() {
+    return totalCount.get() == 0 ? 0 : min.get();
+  }
+
+  /** Returns the largest recorded value, or 0 if nothing was recorded. */
+  public long getMax() {
+    return totalCount.get() == 0 ? 0 : max.get();
+  }
+
+  /**
+   * Returns an estimate of the value below which the given percentage of recorded values fall, or
+   * 0 if nothing was recorded.
+   *
+   * @param percentile between 0 and 100.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    if (target >= count) {
+      return getMax();
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        long lower = bucketLowerBound(i);
+        long upper = bucketLowerBound(i + 1) - 1;
+        long estimate = lower + (upper - lower) / 2;
+        return Math.max(getMin(), Math.min(getMax(), estimate));
+      }
+    }
+    // Values were recorded while we were reading the buckets.
+    return getMax();
+  }
+
+  /** Forgets all recorded values. Not atomic with respect to concurrent recording. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    sum.set(0);
+    min.set(Long.MAX_VALUE);
+    max.set(Long.MIN_VALUE);
+  }
+
+  /** Returns a one line summary, dividing values by {@code unitDivisor} for display. */
+  public String summarize(double unitDivisor) {
+    return String.format(
+        Locale.US,
+        "count=%d mean=%.2f min=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+        getCount(),
+        getMean() / unitDivisor,
+        getMin() / unitDivisor,
+        getValueAtPercentile(50) / unitDivisor,
+        getValueAtPercentile(90) / unitDivisor,
+        getValueAtPercentile(99) / unitDivisor,
+        getMax() / unitDivisor);
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = (Long.SIZE - 1) - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+    return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    if (index >= BUCKET_COUNT) {
+      return Long.MAX_VALUE;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+    return subBucket << shift;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.performance;
+
+import android.app.Application;
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PerfTrackerProvider that records timers into {@link PerfMetrics} histograms, so that they can
+ * be inspected in any build. Jank, leak and battery tracking are not supported.
+ */
+public class HistogramPerfTrackerProvider implements PerfTrackerProvider {
+  private static final String TAG = "HistogramPerfTracker";
+
+  /** Prefix for the names of histograms recorded by timers. */
+  public static final String TIMER_PREFIX = "timer.";
+
+  /** Name of the file, in the app's files directory, that snapshots are written to. */
+  public static final String DUMP_FILE = "perf_metrics.txt";
+
+  private static class StartTimeToken extends TimerToken {
+    final long startNanos = System.nanoTime();
+  }
+
+  private final PerfMetrics metrics;
+  private final ConcurrentHashMap<String, Long> globalTimerStarts = new ConcurrentHashMap<>();
+
+  public HistogramPerfTrackerProvider() {
+    this(PerfMetrics.getInstance());
+  }
+
+  HistogramPerfTrackerProvider(PerfMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public TimerToken startTimer() {
+    return new StartTimeToken();
+  }
+
+  @Override
+  public void stopTimer(TimerToken token, String eventName) {
+    if (token instanceof StartTimeToken) {
+      metrics.recordNanosSince(timerName(eventName), ((StartTimeToken) token).startNanos);
+    }
+  }
+
+  @Override
+  public void startGlobalTimer(String eventName) {
+    globalTimerStarts.put(eventName, System.nanoTime());
+  }
+
+  @Override
+  public void stopGlobalTimer(String eventName) {
+    stopGlobalTimer(eventName, eventName);
+  }
+
+  @Override
+  public void stopGlobalTimer(String eventName, String newEventName) {
+    Long startNanos = globalTimerStarts.remove(eventName);
+    if (startNanos != null) {
+      metrics.recordNanosSince(timerName(newEventName), startNanos);
+    }
+  }
+
+  /**
+   * There is no debug activity; instead, writes a snapshot of all metrics to logcat and to {@link
+   * #DUMP_FILE}.
+   *
+   * @return True if the snapshot was written to the file.
+   */
+  @Override
+  public boolean startPerfTrackerEventDebugActivity(Context context) {
+    metrics.dumpToLog();
+    File file = new File(context.getFilesDir(), DUMP_FILE);
+    try {
+      metrics.dumpToFile(file);
+    } catch (IOException e) {
+      if (Log.isLoggable(TAG, Log.ERROR)) {
+        Log.e(TAG, "Could not write performance metrics", e);
+      }
+      return false;
+    }
+    Log.i(TAG, "Wrote performance metrics to " + file.getAbsolutePath());
+    return true;
+  }
+
+  @Override
+  public void startJankRecorder(String eventName) {}
+
+  @Override
+  public void stopJankRecorder(String eventName) {}
+
+  @Override
+  public void watchForMemoryLeak(Object object) {}
+
+  @Override
+  public void recordBatterySnapshotOnForegroundServiceStart() {}
+
+  @Override
+  public void recordBatterySnapshotOnForegroundServiceStop() {}
+
+  @Override
+  public void recordBatterySnapshot(String eventName) {}
+
+  @Override
+  public void onAppCreate(Application app) {}
+
+  @Override
+  public void onActivityInit() {}
+
+  @Override
+  public void onAppInteractive() {}
+
+  private static String timerName(String eventName) {
+    return TIMER_PREFIX + eventName + PerfMetrics.NANOS_SUFFIX;
+  }
+}
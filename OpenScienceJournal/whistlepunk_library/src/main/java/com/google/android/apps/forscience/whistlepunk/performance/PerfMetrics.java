@@ -0,0 +1,264 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.performance;
+
+import android.util.Log;
+import androidx.annotation.VisibleForTesting;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of latency histograms and event counters for hot paths, such as sensor
+ * data arrival and database writes, which run far from any Context and cannot reach a {@link
+ * PerfTrackerProvider}.
+ *
+ * <p>Recording never blocks or allocates once a metric exists, so it is always on, including in
+ * shipped builds. Use {@link #dump()} to get a snapshot.
+ */
+public class PerfMetrics {
+  private static final String TAG = "PerfMetrics";
+
+  /** Histograms with names ending in this record nanoseconds, and are dumped in milliseconds. */
+  public static final String NANOS_SUFFIX = "Nanos";
+
+  private static final double NANOS_PER_MILLI = 1e6;
+
+  /** Time spent by ScalarSensor processing one data point, from arrival to hand-off. */
+  public static final String SENSOR_ADD_DATA = "sensor.addDataNanos";
+
+  /** Number of data points that arrived from scalar sensors. */
+  public static final String SENSOR_DATA_ARRIVALS = "sensor.dataArrivals";
+
+  /** Number of times scalar sensors showed their last value again without recording it. */
+  public static final String SENSOR_DATA_HOLDS = "sensor.dataHolds";
+
+  /** Number of data points in each batch passed to ScalarSensor at once. */
+  public static final String SENSOR_BATCH_SIZE = "sensor.batchSize";
+
+  /**
+   * Time from DataControllerImpl being handed a scalar reading, alone or in a batch, to the reading
+   * being written. Recorded once for each reading.
+   */
+  public static final String SCALAR_READING_COMMIT = "dataController.addScalarReadingNanos";
+
+  /** Number of scalar readings that failed to be written. */
+  public static final String SCALAR_READING_FAILURES = "dataController.addScalarReadingFailures";
+
+  /** Time to write one batch of readings to the sensor database. */
+  public static final String DATABASE_BATCH_INSERT = "sensorDatabase.batchInsertNanos";
+
+  /** Number of readings in each batch written to the sensor database. */
+  public static final String DATABASE_BATCH_SIZE = "sensorDatabase.batchSize";
+
+  /** Time from ChartController starting to load a run's data to the chart being populated. */
+  public static final String CHART_LOAD_RUN_DATA = "chart.loadRunDataNanos";
+
+  /** Bytes by which the sensor database shrank after reclaiming a cropped trial's data. */
+  public static final String CROP_RECLAIMED_BYTES = "sensorDatabase.cropReclaimedBytes";
+
+  /** Bytes by which the sensor database shrank after archiving idle trials. */
+  public static final String ARCHIVE_RECLAIMED_BYTES = "sensorDatabase.archiveReclaimedBytes";
+
+  /** Time for one step of removing deleted trials' readings from the sensor database. */
+  public static final String TRIAL_PURGE_STEP = "sensorDatabase.trialPurgeStepNanos";
+
+  /** Time for the sensor database to query one range of readings from SQLite. */
+  public static final String DATABASE_READ = "sensorDatabase.readNanos";
+
+  /** Time for the sensor database to read one range of readings from a trial's snapshot. */
+  public static final String SNAPSHOT_READ = "sensorDatabase.snapshotReadNanos";
+
+  /** Time for the sensor database to compute the results of one aggregate query. */
+  public static final String AGGREGATE_QUERY = "sensorDatabase.aggregateQueryNanos";
+
+  /** Time for ExperimentCache to write an experiment proto to disk. */
+  public static final String EXPERIMENT_WRITE = "experimentCache.writeNanos";
+
+  /** Number of times a sensor discoverer reported seeing a sensor. */
+  public static final String DISCOVERY_SIGHTINGS = "discovery.sightings";
+
+  /** Number of sensor sightings passed on to be handled, rather than dropped as repeats. */
+  public static final String DISCOVERY_SIGHTINGS_PASSED_ON = "discovery.sightingsPassedOn";
+
+  /** Milliseconds from a discoverer starting to scan to the first sensor it found. */
+  public static final String DISCOVERY_FIRST_SENSOR_MILLIS = "discovery.firstSensorMillis";
+
+  /** Number of discoverer scans stopped at their deadline rather than finishing by themselves. */
+  public static final String DISCOVERY_DEADLINES = "discovery.deadlines";
+
+  /** Milliseconds from a GATT connection being made to its setup operations all completing. */
+  public static final String GATT_CONNECTION_SETUP_MILLIS = "gatt.connectionSetupMillis";
+
+  /** Number of GATT operations given up on after their callback never came. */
+  public static final String GATT_OPERATION_TIMEOUTS = "gatt.operationTimeouts";
+
+  /** Number of notifications of one characteristic passed on together in a batch. */
+  public static final String BLE_NOTIFICATION_BATCH_SIZE = "ble.notificationBatchSize";
+
+  /** Number of times a dropped connection to an MKR SCI board was retried. */
+  public static final String MKR_SCI_RECONNECTS = "mkrSci.reconnects";
+
+  /** Milliseconds by which external sensor samples arrived after their aligned timestamps. */
+  public static final String CLOCK_ALIGNMENT_RESIDUAL_MILLIS = "clockAlignment.residualMillis";
+
+  /** Appended to the name of an instrumented executor for the depth of its queue. */
+  public static final String QUEUE_DEPTH_SUFFIX = ".queueDepth";
+
+  /** Appended to the name of an instrumented executor for time spent waiting in its queue. */
+  public static final String QUEUE_WAIT_SUFFIX = ".queueWaitNanos";
+
+  private static final PerfMetrics INSTANCE = new PerfMetrics();
+
+  public static PerfMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  @VisibleForTesting
+  PerfMetrics() {}
+
+  /** Returns the histogram with the given name, creating it if needed. */
+  public Histogram getHistogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      Histogram created = new Histogram();
+      histogram = histograms.putIfAbsent(name, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    return histogram;
+  }
+
+  public void record(String name, long value) {
+    getHistogram(name).record(value);
+  }
+
+  /** Records a value shared by {@code count} events, such as the readings of one batch. */
+  public void record(String name, long value, long count) {
+    getHistogram(name).record(value, count);
+  }
+
+  /** Records the time since {@code startNanos}, which came from {@link System#nanoTime()}. */
+  public void recordNanosSince(String name, long startNanos) {
+    getHistogram(name).record(System.nanoTime() - startNanos);
+  }
+
+  public void increment(String name) {
+    getCounter(name).incrementAndGet();
+  }
+
+  public void increment(String name, long count) {
+    getCounter(name).addAndGet(count);
+  }
+
+  public long getCount(String name) {
+    return getCounter(name).get();
+  }
+
+  private AtomicLong getCounter(String name) {
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) {
+        counter = created;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Wraps an executor to record how many tasks are waiting when each one is queued, and how long
+   * each one waits before running.
+   */
+  public Executor instrumentExecutor(String name, Executor executor) {
+    Histogram depth = getHistogram(name + QUEUE_DEPTH_SUFFIX);
+    Histogram wait = getHistogram(name + QUEUE_WAIT_SUFFIX);
+    AtomicInteger pending = new AtomicInteger();
+    return command -> {
+      long queuedNanos = System.nanoTime();
+      depth.record(pending.getAndIncrement());
+      executor.execute(
+          () -> {
+            pending.decrementAndGet();
+            wait.record(System.nanoTime() - queuedNanos);
+            command.run();
+          });
+    };
+  }
+
+  /** Returns a human-readable snapshot of every metric, one per line, sorted by name. */
+  public String dump() {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      String name = entry.getKey();
+      Histogram histogram = entry.getValue();
+      if (name.endsWith(NANOS_SUFFIX)) {
+        lines.add(name + " (ms): " + histogram.summarize(NANOS_PER_MILLI));
+      } else {
+        lines.add(name + ": " + histogram.summarize(1));
+      }
+    }
+    for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+      lines.add(entry.getKey() + ": " + entry.getValue().get());
+    }
+    Collections.sort(lines);
+    StringBuilder builder = new StringBuilder();
+    for (String line : lines) {
+      builder.append(line).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /** Writes the snapshot to logcat. */
+  public void dumpToLog() {
+    for (String line : dump().split("\n")) {
+      Log.i(TAG, line);
+    }
+  }
+
+  /** Writes the snapshot to the given file, replacing its contents. */
+  public void dumpToFile(File file) throws IOException {
+    try (Writer writer = new FileWriter(file)) {
+      writer.write(dump());
+    }
+  }
+
+  /** Forgets all recorded values, keeping the metrics themselves. */
+  @VisibleForTesting
+  public void reset() {
+    for (Histogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+    for (AtomicLong counter : counters.values()) {
+      counter.set(0);
+    }
+  }
+}
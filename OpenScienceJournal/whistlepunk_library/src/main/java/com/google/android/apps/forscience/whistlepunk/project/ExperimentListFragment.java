@@ -132,6 +132,10 @@ public class ExperimentListFragment extends Fragment
   /** Duration of snackbar length long. 3.5 seconds */
   private static final int LONG_DELAY_MILLIS = 3500;
 
+  // Experiments are loaded a page at a time, the next page once the list is scrolled near the end
+  // of those loaded so far.
+  private static final int EXPERIMENT_PAGE_SIZE = 50;
+
   private Context applicationContext;
   private ExperimentListAdapter experimentListAdapter;
   private boolean includeArchived;
@@ -149,6 +153,11 @@ public class ExperimentListFragment extends Fragment
   private FeatureDiscoveryProvider featureDiscoveryProvider;
   private SwipeRefreshLayout swipeLayout;
   private final AtomicBoolean syncing = new AtomicBoolean(false);
+  private int loadedExperimentCount = 0;
+  private boolean hasMoreExperiments = false;
+  private boolean loadingExperimentPage = false;
+  // Incremented whenever the list is reloaded, so that pages of the earlier list are dropped.
+  private int experimentListGeneration = 0;
 
   public static ExperimentListFragment newInstance(AppAccount appAccount, boolean usePanes) {
     return newInstance(createArguments(appAccount, usePanes));
@@ -366,6 +375,17 @@ public class ExperimentListFragment extends Fragment
         });
     detailList.setLayoutManager(manager);
     detailList.setAdapter(experimentListAdapter);
+    detailList.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            // Also called after layout, so a first page that doesn't fill the screen is followed.
+            if (manager.findLastVisibleItemPosition()
+                >= experimentListAdapter.getItemCount() - EXPERIMENT_PAGE_SIZE / 2) {
+              loadNextExperimentPage();
+            }
+          }
+        });
 
     FloatingActionButton newExperimentButton =
         (FloatingActionButton) view.findViewById(R.id.new_experiment);
@@ -432,16 +452,23 @@ public class ExperimentListFragment extends Fragment
     PerfTrackerProvider perfTracker =
         WhistlePunkApplication.getPerfTrackerProvider(applicationContext);
     PerfTrackerProvider.TimerToken loadExperimentTimer = perfTracker.startTimer();
+    int generation = ++experimentListGeneration;
+    loadingExperimentPage = true;
     getDataController()
         .getExperimentOverviews(
             includeArchived,
+            0,
+            EXPERIMENT_PAGE_SIZE,
             new LoggingConsumer<List<ExperimentOverviewPojo>>(TAG, "Retrieve experiments") {
               @Override
               public void success(List<ExperimentOverviewPojo> experiments) {
                 // This fragment may be gone by the time this code executes.
-                if (isFragmentGone()) {
+                if (isFragmentGone() || generation != experimentListGeneration) {
                   return;
                 }
+                loadingExperimentPage = false;
+                loadedExperimentCount = experiments.size();
+                hasMoreExperiments = experiments.size() == EXPERIMENT_PAGE_SIZE;
                 if (experiments.isEmpty() && claimExperimentsMode) {
                   getActivity().finish();
                   return;
@@ -466,12 +493,50 @@ public class ExperimentListFragment extends Fragment
                   attachToExperiments(experiments);
                   perfTracker.stopTimer(
                       loadExperimentTimer, TrackerConstants.PRIMES_EXPERIMENT_LIST_LOADED);
+                  // Experiments from before thumbnails existed get them in the background.
+                  AppSingleton.getInstance(applicationContext)
+                      .getThumbnailCache()
+                      .backfill(appAccount);
                 }
                 perfTracker.onAppInteractive();
               }
             });
   }
 
+  private void loadNextExperimentPage() {
+    if (!hasMoreExperiments || loadingExperimentPage || isFragmentGone()) {
+      return;
+    }
+    int generation = experimentListGeneration;
+    loadingExperimentPage = true;
+    getDataController()
+        .getExperimentOverviews(
+            includeArchived,
+            loadedExperimentCount,
+            EXPERIMENT_PAGE_SIZE,
+            new LoggingConsumer<List<ExperimentOverviewPojo>>(TAG, "Retrieve more experiments") {
+              @Override
+              public void success(List<ExperimentOverviewPojo> experiments) {
+                if (isFragmentGone() || generation != experimentListGeneration) {
+                  return;
+                }
+                loadingExperimentPage = false;
+                loadedExperimentCount += experiments.size();
+                hasMoreExperiments = experiments.size() == EXPERIMENT_PAGE_SIZE;
+                experimentListAdapter.addData(experiments);
+              }
+
+              @Override
+              public void fail(Exception e) {
+                super.fail(e);
+                if (generation == experimentListGeneration) {
+                  // Scrolling again tries again.
+                  loadingExperimentPage = false;
+                }
+              }
+            });
+  }
+
   private void scheduleFeatureDiscovery() {
     Handler handler = new Handler(applicationContext.getMainLooper());
     handler.postDelayed(
@@ -976,6 +1041,8 @@ public class ExperimentListFragment extends Fragment
     private final Context applicationContext;
     private final List<ExperimentListItem> items;
     private boolean includeArchived;
+    // The date heading of the last experiment shown, so that a further page can continue under it.
+    private String lastDate = "";
     private final Calendar calendar;
     private final int currentYear;
     private final String monthYearFormat;
@@ -1011,32 +1078,46 @@ public class ExperimentListFragment extends Fragment
       if (parentReference.get().shouldShowAddExperimentsToDriveCard()) {
         items.add(new ExperimentListItem(VIEW_TYPE_ADD_EXPERIMENTS_TO_DRIVE));
       }
+      lastDate = "";
       if (experimentOverviews.isEmpty()) {
         items.add(new ExperimentListItem(VIEW_TYPE_EMPTY));
       } else {
-        // Sort most recent first
-        Collections.sort(
-            experimentOverviews,
-            (eo1, eo2) -> Long.compare(eo2.getLastUsedTimeMs(), eo1.getLastUsedTimeMs()));
-        String date = "";
-        for (ExperimentOverviewPojo overview : experimentOverviews) {
-          // Only show the year if it is not this year.
-          calendar.setTime(new Date(overview.getLastUsedTimeMs()));
-          String nextDate =
-              DateFormat.format(
-                      calendar.get(Calendar.YEAR) == currentYear ? "MMMM" : monthYearFormat,
-                      calendar)
-                  .toString();
-          if (!TextUtils.equals(date, nextDate)) {
-            date = nextDate;
-            items.add(new ExperimentListItem(date));
-          }
-          items.add(new ExperimentListItem(overview));
-        }
+        addExperiments(experimentOverviews);
       }
       notifyDataSetChanged();
     }
 
+    /** Appends a further page of experiments, used less recently than those already shown. */
+    void addData(List<ExperimentOverviewPojo> experimentOverviews) {
+      if (isParentGone() || experimentOverviews.isEmpty()) {
+        return;
+      }
+      int start = items.size();
+      addExperiments(experimentOverviews);
+      notifyItemRangeInserted(start, items.size() - start);
+    }
+
+    private void addExperiments(List<ExperimentOverviewPojo> experimentOverviews) {
+      // Sort most recent first
+      Collections.sort(
+          experimentOverviews,
+          (eo1, eo2) -> Long.compare(eo2.getLastUsedTimeMs(), eo1.getLastUsedTimeMs()));
+      for (ExperimentOverviewPojo overview : experimentOverviews) {
+        // Only show the year if it is not this year.
+        calendar.setTime(new Date(overview.getLastUsedTimeMs()));
+        String nextDate =
+            DateFormat.format(
+                    calendar.get(Calendar.YEAR) == currentYear ? "MMMM" : monthYearFormat,
+                    calendar)
+                .toString();
+        if (!TextUtils.equals(lastDate, nextDate)) {
+          lastDate = nextDate;
+          items.add(new ExperimentListItem(lastDate));
+        }
+        items.add(new ExperimentListItem(overview));
+      }
+    }
+
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
       Preconditions.checkState(!isParentGone());
@@ -1383,6 +1464,10 @@ public class ExperimentListFragment extends Fragment
     private void removeExperiment(int index) {
       items.remove(index);
       notifyItemRemoved(index);
+      if (!isParentGone()) {
+        // The experiment is no longer among those paged through, so the next page starts earlier.
+        parentReference.get().loadedExperimentCount--;
+      }
 
       // Remove the previous item if it is a date with no children.
       // We don't need to index check that index is zero because there must be a date card
@@ -1391,6 +1476,10 @@ public class ExperimentListFragment extends Fragment
         // The previous item is a date.
         // If there are no items after that date, or the item after that date is also a date
         if (index == items.size() || items.get(index).viewType == VIEW_TYPE_DATE) {
+          if (index == items.size()) {
+            // A further page may start with that date again.
+            lastDate = "";
+          }
           items.remove(index - 1);
           if (items.isEmpty()) {
             notifyDataSetChanged();
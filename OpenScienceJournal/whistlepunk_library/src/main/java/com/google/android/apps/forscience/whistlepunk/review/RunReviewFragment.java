@@ -1617,7 +1617,7 @@ public class RunReviewFragment extends Fragment
   }
 
   private void saveCrop(final ActionMode mode) {
-    CropHelper helper = new CropHelper(getDataController());
+    final CropHelper helper = new CropHelper(getDataController());
     helper.cropTrial(
         getActivity().getApplicationContext(),
         experiment,
@@ -1627,6 +1627,7 @@ public class RunReviewFragment extends Fragment
         new CropHelper.CropTrialListener() {
           @Override
           public void onCropCompleted() {
+            helper.throwAwayDataOutsideCroppedRegion(experiment, trialId);
             if (getActivity() == null || isDetached()) {
               // TODO: It's too late to save state that crop is completed, so it'll
               // be pulled up after rotation. That's better than a crash, but
@@ -20,6 +20,7 @@ import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import java.util.List;
 
 /**
  * Controls the zoom level at which to load data points into a line graph, based on the zoom levels
@@ -46,6 +47,7 @@ public class ZoomPresenter {
   private final int idealNumberOfDisplayedDatapoints;
   private TrialStats trialStats;
   private int currentTier;
+  private int finestTier;
 
   public ZoomPresenter() {
     this(IDEAL_NUMBER_OF_DISPLAYED_DATAPOINTS);
@@ -60,9 +62,22 @@ public class ZoomPresenter {
     trialStats = stats;
   }
 
+  /**
+   * Sets the finest resolution tier stored for the run, which is above 0 once the run's full-rate
+   * data has been archived. Finer tiers are never chosen.
+   */
+  public void setFinestTier(int finestTier) {
+    this.finestTier = finestTier;
+  }
+
+  public int getFinestTier() {
+    return finestTier;
+  }
+
   public int updateTier(long loadedRange) {
     currentTier =
-        computeTier(currentTier, idealNumberOfDisplayedDatapoints, trialStats, loadedRange);
+        computeTier(
+            currentTier, idealNumberOfDisplayedDatapoints, trialStats, loadedRange, finestTier);
     return currentTier;
   }
 
@@ -70,6 +85,18 @@ public class ZoomPresenter {
     return currentTier;
   }
 
+  @VisibleForTesting
+  public static int computeTier(
+      int currentTier,
+      int idealNumberOfDisplayedDatapoints,
+      TrialStats trialStats,
+      long loadedRange,
+      int finestTier) {
+    return Math.max(
+        finestTier,
+        computeTier(currentTier, idealNumberOfDisplayedDatapoints, trialStats, loadedRange));
+  }
+
   @VisibleForTesting
   public static int computeTier(
       int currentTier,
@@ -108,6 +135,12 @@ public class ZoomPresenter {
         trialStats.getStatValue(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 0)
             / trialStats.getStatValue(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, 1);
     double expectedTierZeroDatapointsInRange = loadedRange / meanMillisPerDataPoint;
+    if (trialStats.getZoomTierPointCounts().size() > 1) {
+      return computeIdealTierFromCounts(
+          idealNumberOfDisplayedDatapoints,
+          trialStats.getZoomTierPointCounts(),
+          expectedTierZeroDatapointsInRange);
+    }
     double idealTierZeroDatapointsPerDisplayedPoint =
         expectedTierZeroDatapointsInRange / idealNumberOfDisplayedDatapoints;
 
@@ -119,6 +152,39 @@ public class ZoomPresenter {
     return Math.log(idealTierZeroDatapointsPerDisplayedPoint) / Math.log(zoomLevelBetweenTiers);
   }
 
+  /**
+   * Finds the tier with the ideal number of data points in range from how many each tier holds,
+   * as the ratio between tiers varies with the signal when tiers are reduced adaptively. Between
+   * tiers, and beyond the first and last, the logarithm of the number of points is interpolated,
+   * so that a fixed ratio gives the same result as computing the tier from that ratio.
+   */
+  private static double computeIdealTierFromCounts(
+      int idealNumberOfDisplayedDatapoints,
+      List<Long> tierPointCounts,
+      double expectedTierZeroDatapointsInRange) {
+    // The counts are for the whole trial, which may since have been cropped, so only their ratios
+    // are used.
+    double tierZeroCount = Math.max(1, tierPointCounts.get(0));
+    double[] logPointsInRange = new double[tierPointCounts.size()];
+    for (int tier = 0; tier < logPointsInRange.length; tier++) {
+      double count = Math.max(1, tierPointCounts.get(tier));
+      logPointsInRange[tier] = Math.log(expectedTierZeroDatapointsInRange * count / tierZeroCount);
+    }
+
+    double target = Math.log(idealNumberOfDisplayedDatapoints);
+    int tier = 0;
+    while (tier < logPointsInRange.length - 2 && logPointsInRange[tier + 1] > target) {
+      tier++;
+    }
+    double finer = logPointsInRange[tier];
+    double coarser = logPointsInRange[tier + 1];
+    if (finer <= coarser) {
+      // The tiers hold as many points as each other, so either will do.
+      return target < finer ? tier + 1 : tier;
+    }
+    return tier + (finer - target) / (finer - coarser);
+  }
+
   private static boolean hasRequiredStats(TrialStats stats) {
     return stats.hasStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION)
         && stats.hasStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS)
@@ -36,9 +36,11 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorLayoutP
 import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
 import com.google.android.apps.forscience.whistlepunk.review.ZoomPresenter;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
 import com.google.android.apps.forscience.whistlepunk.wireapi.RecordingMetadata;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Range;
@@ -107,6 +109,11 @@ public class ChartController {
   private long resetTime = -1;
   private String sensorId;
   private String trialId;
+  // How the readings of the trial's sensor were held, or null if they were not.
+  private SeriesHold seriesHold;
+  // When the current loadRunData call started, or NO_LOAD_IN_PROGRESS.
+  private static final long NO_LOAD_IN_PROGRESS = -1;
+  private long loadRunDataStartNanos = NO_LOAD_IN_PROGRESS;
 
   private ZoomPresenter zoomPresenter;
   // Need to keep track of min/max loaded separately from what is in ChartData,
@@ -575,6 +582,7 @@ public class ChartController {
         trial.getOriginalLastTimestamp());
     sensorId = sensorLayout.getSensorId();
     trialId = trial.getTrialId();
+    loadRunDataStartNanos = System.nanoTime();
     tryLoadingChartData(
         trial.getTrialId(),
         sensorLayout,
@@ -613,6 +621,31 @@ public class ChartController {
     addChartDataLoadedCallback(fullChartLoadDataCallback);
     callChartDataStartLoadingCallbacks(true);
     final ZoomPresenter zp = getZoomPresenter(stats);
+    // Archived runs have no data below their finest tier. The database reads the finest tier in
+    // place of finer ones anyway, so zooming only needs this to avoid pointless reloads.
+    dc.getFinestTier(
+        runId,
+        new LoggingConsumer<Integer>(TAG, "loading finest tier") {
+          @Override
+          public void success(Integer finestTier) {
+            if (runId.equals(status.getRunId())) {
+              zp.setFinestTier(finestTier);
+            }
+          }
+        });
+    // Requested before the readings, so it arrives before they have finished loading.
+    seriesHold = null;
+    dc.getSeriesHold(
+        runId,
+        sensorLayout.getSensorId(),
+        new LoggingConsumer<SeriesHold>(TAG, "loading series hold") {
+          @Override
+          public void success(SeriesHold hold) {
+            if (runId.equals(status.getRunId())) {
+              seriesHold = hold;
+            }
+          }
+        });
     minLoadedX = firstTimestamp;
     maxLoadedX = lastTimestamp;
     int currentTier = zp.updateTier(lastTimestamp - firstTimestamp);
@@ -651,11 +684,17 @@ public class ChartController {
                       context);
                 } else {
                   currentLoadIds.remove(requestId);
+                  addHeldPoints(lastTimestamp);
                   callChartDataLoadedCallbacks(firstTimestamp, lastTimestamp);
                   if (fullChartLoadDataCallback != null) {
                     removeChartDataLoadedCallback(fullChartLoadDataCallback);
                   }
                   setShowProgress(false);
+                  if (loadRunDataStartNanos != NO_LOAD_IN_PROGRESS) {
+                    PerfMetrics.getInstance()
+                        .recordNanosSince(PerfMetrics.CHART_LOAD_RUN_DATA, loadRunDataStartNanos);
+                    loadRunDataStartNanos = NO_LOAD_IN_PROGRESS;
+                  }
                 }
               }
             },
@@ -823,6 +862,7 @@ public class ChartController {
                   currentLoadIds.remove(requestId);
                 }
                 if (currentLoadIds.size() == 0) {
+                  addHeldPoints(maxToLoad);
                   refreshLabels();
                 }
                 if (chartHiddenForLoad) {
@@ -845,6 +885,13 @@ public class ChartController {
     callChartDataStartLoadingCallbacks(chartHiddenForLoad);
   }
 
+  /** Draws held readings as they were shown while recording, rather than as ramps between them. */
+  private void addHeldPoints(long loadedUntilMillis) {
+    if (seriesHold != null && seriesHold.getSensorTag().equals(sensorId)) {
+      chartData.addHeldPoints(seriesHold, loadedUntilMillis);
+    }
+  }
+
   public void addChartDataLoadedCallback(ChartDataLoadedCallback callback) {
     if (callback != null) {
       chartDataLoadedCallbacks.add(callback);
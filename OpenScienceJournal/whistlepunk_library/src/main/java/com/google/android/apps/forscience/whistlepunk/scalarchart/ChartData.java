@@ -19,6 +19,7 @@ package com.google.android.apps.forscience.whistlepunk.scalarchart;
 import androidx.annotation.VisibleForTesting;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamStat;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -127,6 +128,36 @@ public class ChartData {
     Collections.sort(data, DATA_POINT_COMPARATOR);
   }
 
+  /**
+   * Adds the points needed to draw readings that were held as they were shown while recording,
+   * without drawing every repeat: each value stays level until an interval before the next, and
+   * the last stays level until the hold ended or the loaded data does, whichever is first. Adding
+   * them again after more data is loaded only adds those the new data needs.
+   */
+  public void addHeldPoints(SeriesHold hold, long loadedUntilMillis) {
+    if (data.isEmpty()) {
+      return;
+    }
+    long intervalMillis = hold.getIntervalMillis();
+    List<DataPoint> held = new ArrayList<>(data.size());
+    for (int i = 0; i < data.size(); i++) {
+      DataPoint point = data.get(i);
+      held.add(point);
+      if (i + 1 < data.size()) {
+        DataPoint next = data.get(i + 1);
+        if (next.getX() - point.getX() > intervalMillis && next.getY() != point.getY()) {
+          held.add(new DataPoint(next.getX() - intervalMillis, point.getY()));
+        }
+      }
+    }
+    DataPoint last = data.get(data.size() - 1);
+    long endMillis = Math.min(hold.getHeldUntilMillis(), loadedUntilMillis);
+    if (endMillis > last.getX()) {
+      held.add(new DataPoint(endMillis, last.getY()));
+    }
+    data = held;
+  }
+
   public List<DataPoint> getPointsInRangeToEnd(long xMin) {
     int startIndex = approximateBinarySearch(xMin, 0, true);
     return data.subList(startIndex, data.size());
@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A {@link StreamConsumer} that can also take many data points in one call, for sources that
+ * deliver their data in batches.
+ */
+public interface BatchStreamConsumer extends StreamConsumer {
+  /**
+   * New values have been seen, oldest first. Caveat implementor: this may be called from any
+   * thread, and the arrays are reused as soon as it returns.
+   *
+   * @return the number of the first {@code count} data points accepted by the consumer
+   */
+  int addBatch(long[] timestampsMillis, double[] values, int count);
+}
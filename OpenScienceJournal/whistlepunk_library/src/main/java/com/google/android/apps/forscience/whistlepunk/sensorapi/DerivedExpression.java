@@ -0,0 +1,505 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An expression that computes the value of a derived sensor from the values of other sensors, such
+ * as {@code sqrt(AccX^2 + AccY^2 + AccZ^2)} or {@code deriv(avg(BarometerSensor, 10))}.
+ *
+ * <p>Expressions are made of numbers, sensor ids, the operators {@code + - * / ^} and parentheses,
+ * and these functions:
+ *
+ * <ul>
+ *   <li>{@code abs sqrt exp log sin cos tan} of one argument;
+ *   <li>{@code min max} of two arguments;
+ *   <li>{@code mag(a, b, ...)}, the square root of the sum of the squares of its arguments;
+ *   <li>{@code avg(x, n)}, the average of the last {@code n} values of {@code x};
+ *   <li>{@code deriv(x)}, the rate of change of {@code x} per second.
+ * </ul>
+ *
+ * <p>A sensor id that isn't a plain name, such as that of a Bluetooth sensor, is written between
+ * backquotes.
+ *
+ * <p>The expression is parsed once into a flat program of operations on a stack. Each {@link
+ * Evaluator} runs that program with a stack and state allocated up front, so that computing a value
+ * allocates nothing.
+ */
+public class DerivedExpression {
+  private static final int OP_CONSTANT = 0;
+  private static final int OP_INPUT = 1;
+  private static final int OP_NEGATE = 2;
+  private static final int OP_ADD = 3;
+  private static final int OP_SUBTRACT = 4;
+  private static final int OP_MULTIPLY = 5;
+  private static final int OP_DIVIDE = 6;
+  private static final int OP_POWER = 7;
+  private static final int OP_ABS = 8;
+  private static final int OP_SQRT = 9;
+  private static final int OP_EXP = 10;
+  private static final int OP_LOG = 11;
+  private static final int OP_SIN = 12;
+  private static final int OP_COS = 13;
+  private static final int OP_TAN = 14;
+  private static final int OP_MIN = 15;
+  private static final int OP_MAX = 16;
+  private static final int OP_MAGNITUDE = 17;
+  private static final int OP_AVERAGE = 18;
+  private static final int OP_DERIVATIVE = 19;
+
+  // Functions of one argument, in the order of their operations.
+  private static final String[] UNARY_FUNCTIONS = {
+    "abs", "sqrt", "exp", "log", "sin", "cos", "tan"
+  };
+
+  private final String text;
+  private final List<String> inputIds;
+  // The program: each operation, and its argument (a constant, input, argument count or state).
+  private final int[] operations;
+  private final int[] arguments;
+  private final double[] constants;
+  private final int[] averageWindows;
+  private final int derivativeCount;
+  private final int maxStackDepth;
+
+  private DerivedExpression(String text, Parser parser) {
+    this.text = text;
+    inputIds = Collections.unmodifiableList(parser.inputIds);
+    operations = toArray(parser.operations);
+    arguments = toArray(parser.arguments);
+    constants = new double[parser.constants.size()];
+    for (int i = 0; i < constants.length; i++) {
+      constants[i] = parser.constants.get(i);
+    }
+    averageWindows = toArray(parser.averageWindows);
+    derivativeCount = parser.derivativeCount;
+    maxStackDepth = parser.maxDepth;
+  }
+
+  /** Parses an expression, or throws an exception saying where it went wrong. */
+  public static DerivedExpression parse(String text) throws ParseException {
+    Parser parser = new Parser(text);
+    parser.parse();
+    return new DerivedExpression(text, parser);
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  /**
+   * Returns the ids of the sensors used in the expression, in the order in which they first
+   * appear. The values passed to {@link Evaluator#evaluate} are in the same order.
+   */
+  public List<String> getInputIds() {
+    return inputIds;
+  }
+
+  /** Returns a new evaluator, with its own state for functions such as {@code avg}. */
+  public Evaluator newEvaluator() {
+    return new Evaluator();
+  }
+
+  /** Runs the program of the expression. Not thread-safe. */
+  public class Evaluator {
+    private final double[] stack = new double[maxStackDepth];
+    private final double[][] averageValues = new double[averageWindows.length][];
+    private final double[] averageSums = new double[averageWindows.length];
+    private final int[] averageCounts = new int[averageWindows.length];
+    private final int[] averagePositions = new int[averageWindows.length];
+    private final double[] lastValues = new double[derivativeCount];
+    private final long[] lastTimestamps = new long[derivativeCount];
+    private final double[] lastDerivatives = new double[derivativeCount];
+    private final boolean[] hasLastValue = new boolean[derivativeCount];
+
+    private Evaluator() {
+      for (int i = 0; i < averageWindows.length; i++) {
+        averageValues[i] = new double[averageWindows[i]];
+      }
+    }
+
+    /** Forgets the values seen so far by stateful functions. */
+    public void reset() {
+      for (int i = 0; i < averageWindows.length; i++) {
+        averageSums[i] = 0;
+        averageCounts[i] = 0;
+        averagePositions[i] = 0;
+      }
+      for (int i = 0; i < derivativeCount; i++) {
+        hasLastValue[i] = false;
+        lastDerivatives[i] = 0;
+      }
+    }
+
+    /**
+     * @param inputs the values of the sensors at {@code timestampMillis}, in the order of {@link
+     *     #getInputIds()}.
+     */
+    public double evaluate(long timestampMillis, double[] inputs) {
+      int top = -1;
+      for (int pc = 0; pc < operations.length; pc++) {
+        int argument = arguments[pc];
+        switch (operations[pc]) {
+          case OP_CONSTANT:
+            stack[++top] = constants[argument];
+            break;
+          case OP_INPUT:
+            stack[++top] = inputs[argument];
+            break;
+          case OP_NEGATE:
+            stack[top] = -stack[top];
+            break;
+          case OP_ADD:
+            stack[top - 1] += stack[top--];
+            break;
+          case OP_SUBTRACT:
+            stack[top - 1] -= stack[top--];
+            break;
+          case OP_MULTIPLY:
+            stack[top - 1] *= stack[top--];
+            break;
+          case OP_DIVIDE:
+            stack[top - 1] /= stack[top--];
+            break;
+          case OP_POWER:
+            stack[top - 1] = power(stack[top - 1], stack[top--]);
+            break;
+          case OP_ABS:
+            stack[top] = Math.abs(stack[top]);
+            break;
+          case OP_SQRT:
+            stack[top] = Math.sqrt(stack[top]);
+            break;
+          case OP_EXP:
+            stack[top] = Math.exp(stack[top]);
+            break;
+          case OP_LOG:
+            stack[top] = Math.log(stack[top]);
+            break;
+          case OP_SIN:
+            stack[top] = Math.sin(stack[top]);
+            break;
+          case OP_COS:
+            stack[top] = Math.cos(stack[top]);
+            break;
+          case OP_TAN:
+            stack[top] = Math.tan(stack[top]);
+            break;
+          case OP_MIN:
+            stack[top - 1] = Math.min(stack[top - 1], stack[top--]);
+            break;
+          case OP_MAX:
+            stack[top - 1] = Math.max(stack[top - 1], stack[top--]);
+            break;
+          case OP_MAGNITUDE:
+            double sumOfSquares = 0;
+            for (int i = 0; i < argument; i++) {
+              sumOfSquares += stack[top] * stack[top];
+              top--;
+            }
+            stack[++top] = Math.sqrt(sumOfSquares);
+            break;
+          case OP_AVERAGE:
+            stack[top] = average(argument, stack[top]);
+            break;
+          case OP_DERIVATIVE:
+            stack[top] = derivative(argument, timestampMillis, stack[top]);
+            break;
+        }
+      }
+      return stack[0];
+    }
+
+    private double average(int index, double value) {
+      double[] values = averageValues[index];
+      int position = averagePositions[index];
+      if (averageCounts[index] == values.length) {
+        averageSums[index] -= values[position];
+      } else {
+        averageCounts[index]++;
+      }
+      values[position] = value;
+      averageSums[index] += value;
+      averagePositions[index] = (position + 1) % values.length;
+      return averageSums[index] / averageCounts[index];
+    }
+
+    private double derivative(int index, long timestampMillis, double value) {
+      if (hasLastValue[index] && timestampMillis > lastTimestamps[index]) {
+        lastDerivatives[index] =
+            (value - lastValues[index]) * 1000 / (timestampMillis - lastTimestamps[index]);
+      }
+      hasLastValue[index] = true;
+      lastValues[index] = value;
+      lastTimestamps[index] = timestampMillis;
+      return lastDerivatives[index];
+    }
+  }
+
+  private static double power(double base, double exponent) {
+    // Squares are by far the most common, and much cheaper than Math.pow.
+    return exponent == 2 ? base * base : Math.pow(base, exponent);
+  }
+
+  private static int[] toArray(List<Integer> list) {
+    int[] result = new int[list.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = list.get(i);
+    }
+    return result;
+  }
+
+  /** A recursive-descent parser that writes out the program as it goes. */
+  private static class Parser {
+    private final String text;
+    private int position = 0;
+    private final List<String> inputIds = new ArrayList<>();
+    private final List<Integer> operations = new ArrayList<>();
+    private final List<Integer> arguments = new ArrayList<>();
+    private final List<Double> constants = new ArrayList<>();
+    private final List<Integer> averageWindows = new ArrayList<>();
+    private int derivativeCount = 0;
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    Parser(String text) {
+      this.text = text;
+    }
+
+    void parse() throws ParseException {
+      parseSum();
+      skipSpaces();
+      if (position < text.length()) {
+        throw error("Unexpected '" + text.charAt(position) + "'");
+      }
+    }
+
+    private void parseSum() throws ParseException {
+      parseProduct();
+      while (true) {
+        if (consume('+')) {
+          parseProduct();
+          emit(OP_ADD, 0, -1);
+        } else if (consume('-')) {
+          parseProduct();
+          emit(OP_SUBTRACT, 0, -1);
+        } else {
+          return;
+        }
+      }
+    }
+
+    private void parseProduct() throws ParseException {
+      parseUnary();
+      while (true) {
+        if (consume('*')) {
+          parseUnary();
+          emit(OP_MULTIPLY, 0, -1);
+        } else if (consume('/')) {
+          parseUnary();
+          emit(OP_DIVIDE, 0, -1);
+        } else {
+          return;
+        }
+      }
+    }
+
+    private void parseUnary() throws ParseException {
+      if (consume('-')) {
+        parseUnary();
+        emit(OP_NEGATE, 0, 0);
+      } else {
+        parsePower();
+      }
+    }
+
+    private void parsePower() throws ParseException {
+      parsePrimary();
+      if (consume('^')) {
+        // Right-associative, and binding tighter than a minus sign on its left: -2^2 is -4.
+        parseUnary();
+        emit(OP_POWER, 0, -1);
+      }
+    }
+
+    private void parsePrimary() throws ParseException {
+      skipSpaces();
+      if (position == text.length()) {
+        throw error("Unexpected end of expression");
+      }
+      char c = text.charAt(position);
+      if (consume('(')) {
+        parseSum();
+        expect(')');
+      } else if (c == '`') {
+        int end = text.indexOf('`', position + 1);
+        if (end < 0) {
+          throw error("Unclosed sensor id");
+        }
+        String id = text.substring(position + 1, end);
+        position = end + 1;
+        emitInput(id);
+      } else if (Character.isDigit(c) || c == '.') {
+        constants.add(parseNumber());
+        emit(OP_CONSTANT, constants.size() - 1, 1);
+      } else if (Character.isLetter(c) || c == '_') {
+        int start = position;
+        String name = parseName();
+        if (consume('(')) {
+          parseFunction(name, start);
+        } else {
+          emitInput(name);
+        }
+      } else {
+        throw error("Unexpected '" + c + "'");
+      }
+    }
+
+    private void parseFunction(String name, int start) throws ParseException {
+      for (int i = 0; i < UNARY_FUNCTIONS.length; i++) {
+        if (UNARY_FUNCTIONS[i].equals(name)) {
+          parseSum();
+          expect(')');
+          emit(OP_ABS + i, 0, 0);
+          return;
+        }
+      }
+      switch (name) {
+        case "min":
+        case "max":
+          parseSum();
+          expect(',');
+          parseSum();
+          expect(')');
+          emit(name.equals("min") ? OP_MIN : OP_MAX, 0, -1);
+          return;
+        case "mag":
+          int count = 0;
+          do {
+            parseSum();
+            count++;
+          } while (consume(','));
+          expect(')');
+          emit(OP_MAGNITUDE, count, 1 - count);
+          return;
+        case "avg":
+          parseSum();
+          expect(',');
+          skipSpaces();
+          int windowStart = position;
+          double window = parseNumber();
+          if (window < 1 || window != Math.floor(window) || window > 100000) {
+            position = windowStart;
+            throw error("Window must be a whole number of samples from 1 to 100000");
+          }
+          expect(')');
+          averageWindows.add((int) window);
+          emit(OP_AVERAGE, averageWindows.size() - 1, 0);
+          return;
+        case "deriv":
+          parseSum();
+          expect(')');
+          emit(OP_DERIVATIVE, derivativeCount++, 0);
+          return;
+        default:
+          position = start;
+          throw error("Unknown function " + name);
+      }
+    }
+
+    private void emitInput(String id) throws ParseException {
+      if (id.isEmpty()) {
+        throw error("Empty sensor id");
+      }
+      int index = inputIds.indexOf(id);
+      if (index < 0) {
+        inputIds.add(id);
+        index = inputIds.size() - 1;
+      }
+      emit(OP_INPUT, index, 1);
+    }
+
+    /** Adds an operation, which changes the depth of the stack by {@code depthChange}. */
+    private void emit(int operation, int argument, int depthChange) {
+      operations.add(operation);
+      arguments.add(argument);
+      depth += depthChange;
+      maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private double parseNumber() throws ParseException {
+      int start = position;
+      while (position < text.length()
+          && (Character.isDigit(text.charAt(position)) || text.charAt(position) == '.')) {
+        position++;
+      }
+      if (position < text.length() && (text.charAt(position) == 'e')) {
+        position++;
+        if (position < text.length() && "+-".indexOf(text.charAt(position)) >= 0) {
+          position++;
+        }
+        while (position < text.length() && Character.isDigit(text.charAt(position))) {
+          position++;
+        }
+      }
+      try {
+        return Double.parseDouble(text.substring(start, position));
+      } catch (NumberFormatException e) {
+        position = start;
+        throw error("Bad number");
+      }
+    }
+
+    private String parseName() {
+      int start = position;
+      while (position < text.length()
+          && (Character.isLetterOrDigit(text.charAt(position)) || text.charAt(position) == '_')) {
+        position++;
+      }
+      return text.substring(start, position);
+    }
+
+    private boolean consume(char c) {
+      skipSpaces();
+      if (position < text.length() && text.charAt(position) == c) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(char c) throws ParseException {
+      if (!consume(c)) {
+        throw error("Expected '" + c + "'");
+      }
+    }
+
+    private void skipSpaces() {
+      while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+        position++;
+      }
+    }
+
+    private ParseException error(String message) {
+      return new ParseException(message + " at position " + position, position);
+    }
+  }
+}
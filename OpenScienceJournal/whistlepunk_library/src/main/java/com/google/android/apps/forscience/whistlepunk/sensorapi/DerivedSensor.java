@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import android.content.Context;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.AppSingleton;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A sensor whose values are computed by a {@link DerivedExpression} from the values of other
+ * scalar sensors, such as the magnitude of acceleration from its three axes.
+ *
+ * <p>The sensor produces a value for each value of the first sensor in the expression, with the
+ * other sensors aligned to it in time by a {@link SampleAligner}. Its values are recorded, shown
+ * and summarized like those of any other {@link ScalarSensor}. The sensors it is computed from
+ * aren't recorded unless they are also being observed on their own.
+ */
+public class DerivedSensor extends ScalarSensor {
+  /** How the values of the other sensors are found at the time of a value of the first one. */
+  public enum Alignment {
+    /** The value of the nearest sample in time. */
+    NEAREST,
+    /** A straight line between the samples on either side. */
+    INTERPOLATE
+  }
+
+  /** How long a value waits for the other sensors to catch up before it is computed anyway. */
+  @VisibleForTesting static final long MAX_WAIT_MILLIS = 250;
+
+  private final DerivedExpression expression;
+  private final List<ScalarSensor> inputs;
+  private final Alignment alignment;
+
+  /**
+   * @param inputs the sensors with the ids of {@link DerivedExpression#getInputIds()}, in the same
+   *     order.
+   */
+  public DerivedSensor(
+      String id, DerivedExpression expression, List<ScalarSensor> inputs, Alignment alignment) {
+    this(id, expression, inputs, alignment, AppSingleton.getUiThreadExecutor());
+  }
+
+  @VisibleForTesting
+  public DerivedSensor(
+      String id,
+      DerivedExpression expression,
+      List<ScalarSensor> inputs,
+      Alignment alignment,
+      Executor uiThreadExecutor) {
+    super(id, uiThreadExecutor);
+    Preconditions.checkArgument(
+        inputs.size() == expression.getInputIds().size(), "Wrong number of input sensors");
+    for (int i = 0; i < inputs.size(); i++) {
+      Preconditions.checkArgument(
+          inputs.get(i).getId().equals(expression.getInputIds().get(i)),
+          "Input sensors out of order");
+    }
+    this.expression = expression;
+    this.inputs = new ArrayList<>(inputs);
+    this.alignment = alignment;
+  }
+
+  public DerivedExpression getExpression() {
+    return expression;
+  }
+
+  @Override
+  protected SensorRecorder makeScalarControl(
+      final StreamConsumer c,
+      SensorEnvironment environment,
+      Context context,
+      SensorStatusListener listener) {
+    final DerivedExpression.Evaluator evaluator = expression.newEvaluator();
+    final SampleAligner aligner =
+        new SampleAligner(
+            inputs.size(),
+            alignment == Alignment.INTERPOLATE,
+            MAX_WAIT_MILLIS,
+            (timestampMillis, values) ->
+                c.addData(timestampMillis, evaluator.evaluate(timestampMillis, values)));
+    InputStatusListener inputStatusListener = new InputStatusListener(listener);
+    final List<SensorRecorder> recorders = new ArrayList<>();
+    for (int i = 0; i < inputs.size(); i++) {
+      final int input = i;
+      recorders.add(
+          inputs
+              .get(i)
+              .makeScalarControl(
+                  (timestampMillis, value) -> {
+                    aligner.addSample(input, timestampMillis, value);
+                    return true;
+                  },
+                  environment,
+                  context,
+                  inputStatusListener));
+    }
+    return new AbstractSensorRecorder() {
+      @Override
+      public void startObserving() {
+        aligner.clear();
+        evaluator.reset();
+        for (SensorRecorder recorder : recorders) {
+          recorder.startObserving();
+        }
+      }
+
+      @Override
+      public void startRecording(String runId) {
+        for (SensorRecorder recorder : recorders) {
+          recorder.startRecording(runId);
+        }
+      }
+
+      @Override
+      public void stopRecording(Trial trialToUpdate) {
+        for (SensorRecorder recorder : recorders) {
+          recorder.stopRecording(null);
+        }
+      }
+
+      @Override
+      public void stopObserving() {
+        for (SensorRecorder recorder : recorders) {
+          recorder.stopObserving();
+        }
+      }
+    };
+  }
+
+  /** Reports the status of the input sensors as that of this sensor. */
+  private class InputStatusListener implements SensorStatusListener {
+    private final SensorStatusListener listener;
+    private final int[] statuses = new int[inputs.size()];
+
+    InputStatusListener(SensorStatusListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public synchronized void onSourceStatus(String id, @Status int status) {
+      for (int i = 0; i < inputs.size(); i++) {
+        if (inputs.get(i).getId().equals(id)) {
+          statuses[i] = status;
+        }
+      }
+      listener.onSourceStatus(getId(), combineStatuses());
+    }
+
+    private int combineStatuses() {
+      boolean allConnected = true;
+      boolean allDisconnected = true;
+      for (int status : statuses) {
+        allConnected &= status == STATUS_CONNECTED;
+        allDisconnected &= status == STATUS_DISCONNECTED;
+      }
+      if (allConnected) {
+        return STATUS_CONNECTED;
+      }
+      return allDisconnected ? STATUS_DISCONNECTED : STATUS_CONNECTING;
+    }
+
+    @Override
+    public void onSourceError(String id, @Error int error, String errorMessage) {
+      listener.onSourceError(getId(), error, id + ": " + errorMessage);
+    }
+  }
+}
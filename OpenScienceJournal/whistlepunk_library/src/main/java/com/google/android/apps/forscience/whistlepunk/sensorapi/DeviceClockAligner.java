@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.performance.Histogram;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.Arrays;
+
+/**
+ * Maps the timestamps an external device puts on its samples onto the phone's clock.
+ *
+ * <p>Stamping samples with the time they arrive turns radio buffering into bursts of identical or
+ * jittered timestamps. The device's own timestamps are evenly spaced, but count from an unknown
+ * start, and its clock runs a little fast or slow. This estimates the offset and drift between the
+ * two clocks, and uses them to convert the device's timestamps.
+ *
+ * <p>A sample can only be delayed on the way, never arrive early, so the least delayed samples show
+ * the offset best. Device time is cut into windows of {@link #WINDOW_MILLIS}, and the sample in
+ * each with the smallest gap between arrival and device time is kept. The drift is the median of
+ * the slopes between the kept samples of the last {@link #WINDOW_COUNT} windows, which ignores
+ * windows where every sample was held up. The line is then lowered until no kept sample lies below
+ * it, and at once whenever a sample arrives earlier than it predicts.
+ *
+ * <p>So converted timestamps are never later than arrival, and lag the true sampling times by the
+ * smallest delay seen, which is constant and can't be measured from one side. They are strictly
+ * increasing while the device's are. If the device's timestamps jump back, as when it restarts,
+ * the estimate starts again.
+ *
+ * <p>The residual jitter, how long after its converted timestamp each sample arrived, is kept in
+ * {@link #getResiduals()} and in {@link PerfMetrics#CLOCK_ALIGNMENT_RESIDUAL_MILLIS}. Converting a
+ * sample allocates nothing. Not thread-safe.
+ */
+public class DeviceClockAligner {
+  @VisibleForTesting static final long WINDOW_MILLIS = 1000;
+  @VisibleForTesting static final int WINDOW_COUNT = 16;
+
+  // Drift beyond this is no crystal; the samples are more likely from a device that restarted.
+  private static final double MAX_DRIFT = 0.01;
+
+  // Device timestamps going back by more than this mean the device's clock was reset.
+  private static final long MAX_BACKWARD_MILLIS = 1000;
+
+  // The kept sample of each of the last windows, as device time since the first sample, and
+  // arrival time minus device time, in a ring.
+  private final long[] keptDeviceTimes = new long[WINDOW_COUNT];
+  private final long[] keptOffsets = new long[WINDOW_COUNT];
+  private final double[] slopes = new double[WINDOW_COUNT * (WINDOW_COUNT - 1) / 2];
+  private int keptCount = 0;
+  private int nextKept = 0;
+
+  private final Histogram residuals = new Histogram();
+  private final Histogram globalResiduals =
+      PerfMetrics.getInstance().getHistogram(PerfMetrics.CLOCK_ALIGNMENT_RESIDUAL_MILLIS);
+
+  private boolean started = false;
+  private long originDeviceTime;
+  private long windowStart;
+  private long windowDeviceTime;
+  private long windowOffset;
+  private double drift;
+  private double intercept;
+  private long lastDeviceTime;
+  private long lastAligned;
+
+  /**
+   * @param deviceTime the timestamp the device put on a sample, in milliseconds
+   * @param arrivalTime when the sample arrived, on the phone's clock
+   * @return when the sample was taken, on the phone's clock
+   */
+  public long align(long deviceTime, long arrivalTime) {
+    if (started && deviceTime < lastDeviceTime - MAX_BACKWARD_MILLIS) {
+      reset();
+    }
+    long offset = arrivalTime - deviceTime;
+    if (!started) {
+      started = true;
+      originDeviceTime = deviceTime;
+      startWindow(deviceTime, offset);
+      intercept = offset;
+      lastDeviceTime = deviceTime;
+      lastAligned = Long.MIN_VALUE;
+    } else if (deviceTime - windowStart >= WINDOW_MILLIS) {
+      closeWindow();
+      startWindow(deviceTime, offset);
+    } else if (offset < windowOffset) {
+      windowDeviceTime = deviceTime;
+      windowOffset = offset;
+    }
+
+    double predicted = predictOffset(deviceTime);
+    if (offset < predicted) {
+      intercept -= predicted - offset;
+      predicted = offset;
+    }
+    long aligned = deviceTime + (long) Math.floor(predicted);
+    if (aligned <= lastAligned && deviceTime > lastDeviceTime) {
+      aligned = lastAligned + 1;
+    }
+    lastDeviceTime = deviceTime;
+    lastAligned = aligned;
+
+    long residual = arrivalTime - aligned;
+    residuals.record(residual);
+    globalResiduals.record(residual);
+    return aligned;
+  }
+
+  /** @return how much faster the phone's clock runs than the device's, as a fraction. */
+  public double getDrift() {
+    return drift;
+  }
+
+  /** @return how long after its converted timestamp each sample arrived, in milliseconds. */
+  public Histogram getResiduals() {
+    return residuals;
+  }
+
+  /** Forgets the estimate, for a device whose clock has started again. */
+  public void reset() {
+    started = false;
+    keptCount = 0;
+    nextKept = 0;
+    drift = 0;
+    intercept = 0;
+  }
+
+  private double predictOffset(long deviceTime) {
+    return intercept + drift * (deviceTime - originDeviceTime);
+  }
+
+  private void startWindow(long deviceTime, long offset) {
+    windowStart = deviceTime;
+    windowDeviceTime = deviceTime;
+    windowOffset = offset;
+  }
+
+  private void closeWindow() {
+    keptDeviceTimes[nextKept] = windowDeviceTime - originDeviceTime;
+    keptOffsets[nextKept] = windowOffset;
+    nextKept = (nextKept + 1) % WINDOW_COUNT;
+    if (keptCount < WINDOW_COUNT) {
+      keptCount++;
+    }
+    if (keptCount < 2) {
+      return;
+    }
+
+    int slopeCount = 0;
+    for (int i = 0; i < keptCount; i++) {
+      for (int j = i + 1; j < keptCount; j++) {
+        long dx = keptDeviceTimes[j] - keptDeviceTimes[i];
+        if (dx != 0) {
+          slopes[slopeCount++] = (double) (keptOffsets[j] - keptOffsets[i]) / dx;
+        }
+      }
+    }
+    if (slopeCount == 0) {
+      return;
+    }
+    Arrays.sort(slopes, 0, slopeCount);
+    double median =
+        slopeCount % 2 == 1
+            ? slopes[slopeCount / 2]
+            : (slopes[slopeCount / 2 - 1] + slopes[slopeCount / 2]) / 2;
+    if (Math.abs(median) > MAX_DRIFT) {
+      return;
+    }
+    drift = median;
+    intercept = Double.MAX_VALUE;
+    for (int i = 0; i < keptCount; i++) {
+      intercept = Math.min(intercept, keptOffsets[i] - drift * keptDeviceTimes[i]);
+    }
+  }
+}
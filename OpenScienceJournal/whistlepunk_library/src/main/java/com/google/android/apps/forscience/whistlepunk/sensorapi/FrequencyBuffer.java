@@ -16,12 +16,22 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
-import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
-import java.util.LinkedList;
-import java.util.List;
-
+/**
+ * Estimates the frequency of a signal from how often it crosses its average value within a sliding
+ * window.
+ *
+ * <p>Readings are kept in parallel primitive ring buffers, with a running sum for the average, so
+ * that adding a reading doesn't allocate once the buffers are big enough for the window.
+ */
 public class FrequencyBuffer implements ValueFilter {
-  private List<ScalarReading> readings = new LinkedList<>();
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] timestamps = new long[INITIAL_CAPACITY];
+  private double[] values = new double[INITIAL_CAPACITY];
+  // Index of the oldest reading, and the number of readings in the window.
+  private int head = 0;
+  private int count = 0;
+  private double sum = 0;
 
   private long window;
   private final double denominatorInMillis;
@@ -41,27 +51,63 @@ public class FrequencyBuffer implements ValueFilter {
 
   public void changeWindow(long newWindowMillis) {
     window = newWindowMillis;
-    if (!readings.isEmpty()) {
+    if (count > 0) {
       prune(getNewestTimestamp());
     }
   }
 
   @Override
   public double filterValue(long timestamp, double value) {
-    readings.add(new ScalarReading(timestamp, value));
+    add(timestamp, value);
     prune(timestamp);
     return getLatestFrequency();
   }
 
+  private void add(long timestamp, double value) {
+    if (count == timestamps.length) {
+      grow();
+    }
+    int tail = index(count);
+    timestamps[tail] = timestamp;
+    values[tail] = value;
+    count++;
+    sum += value;
+  }
+
+  private void grow() {
+    long[] newTimestamps = new long[timestamps.length * 2];
+    double[] newValues = new double[values.length * 2];
+    int firstPart = Math.min(count, timestamps.length - head);
+    System.arraycopy(timestamps, head, newTimestamps, 0, firstPart);
+    System.arraycopy(timestamps, 0, newTimestamps, firstPart, count - firstPart);
+    System.arraycopy(values, head, newValues, 0, firstPart);
+    System.arraycopy(values, 0, newValues, firstPart, count - firstPart);
+    timestamps = newTimestamps;
+    values = newValues;
+    head = 0;
+  }
+
   private void prune(long timestamp) {
     long oldestRemaining = timestamp - window;
-    while (readings.get(0).getCollectedTimeMillis() < oldestRemaining) {
-      readings.remove(0);
+    while (count > 0 && timestamps[head] < oldestRemaining) {
+      sum -= values[head];
+      head = index(1);
+      count--;
+    }
+    if (count == 0) {
+      // Don't let rounding errors in the running sum outlive the readings that caused them.
+      sum = 0;
     }
   }
 
+  /** Returns the ring buffer index of the i-th oldest reading. */
+  private int index(int i) {
+    int index = head + i;
+    return index < timestamps.length ? index : index - timestamps.length;
+  }
+
   public double getLatestFrequency() {
-    if (readings.size() < 2) {
+    if (count < 2) {
       return 0.0;
     }
 
@@ -70,16 +116,18 @@ public class FrequencyBuffer implements ValueFilter {
     long firstCrossingTime = -1;
     long lastCrossingTime = -1;
 
-    boolean higherThanAverage = readings.get(0).getValue() > average;
-    for (ScalarReading reading : readings.subList(1, readings.size())) {
-      boolean thisReadingHigher = reading.getValue() > average;
+    // The average moves with every reading, so crossings have to be counted over the whole window.
+    boolean higherThanAverage = values[head] > average;
+    for (int i = 1; i < count; i++) {
+      int index = index(i);
+      boolean thisReadingHigher = values[index] > average;
       if (higherThanAverage != thisReadingHigher) {
         higherThanAverage = thisReadingHigher;
         crossings++;
         if (firstCrossingTime == -1) {
-          firstCrossingTime = reading.getCollectedTimeMillis();
+          firstCrossingTime = timestamps[index];
         } else {
-          lastCrossingTime = reading.getCollectedTimeMillis();
+          lastCrossingTime = timestamps[index];
         }
       }
     }
@@ -111,17 +159,12 @@ public class FrequencyBuffer implements ValueFilter {
     // low-sampling-rate readings more heavily than high-sampling-rate.  But we'll just
     // assume for now that doesn't happen.
 
-    double total = 0;
-    for (ScalarReading reading : readings) {
-      total += reading.getValue();
-    }
     // Adding filter means that variations of less than filter won't register as cycles.
-    return total / readings.size() + filter;
+    return sum / count + filter;
   }
 
   private long getNewestTimestamp() {
-    final ScalarReading mostRecentReading = readings.get(readings.size() - 1);
-    return mostRecentReading.getCollectedTimeMillis();
+    return timestamps[index(count - 1)];
   }
 
   public void changeFilter(double newFilter) {
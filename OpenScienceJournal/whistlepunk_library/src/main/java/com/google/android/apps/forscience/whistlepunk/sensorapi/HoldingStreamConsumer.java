@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * A {@link StreamConsumer} that can also be told that the last value it was given still holds, for
+ * sources that only report changes but are shown as a steady stream.
+ */
+public interface HoldingStreamConsumer extends StreamConsumer {
+  /**
+   * The last value added is still the current one at {@code timestampMillis}. It is shown again
+   * at that time, but not recorded as a new data point. Caveat implementor: this may be called
+   * from any thread.
+   *
+   * @param intervalMillis how often the source shows the value again while it holds.
+   * @return true if the hold was accepted by the consumer, which is not the case if it has no
+   *     value yet.
+   */
+  boolean holdData(long timestampMillis, long intervalMillis);
+}
@@ -0,0 +1,250 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * Keeps one reading from each bucket of readings by Largest-Triangle-Three-Buckets: the reading
+ * that makes the largest triangle with the last reading kept and the mean of the next bucket. This
+ * follows the visual shape of the line more closely than a minimum and maximum would, with half as
+ * many readings.
+ *
+ * <p>The adaptive variant measures each bucket against a flatness threshold, which is a fraction of
+ * the range of values seen so far, so that it does not depend on the units of the sensor:
+ *
+ * <ul>
+ *   <li>Buckets that stay within the threshold of the last reading kept are skipped, keeping only
+ *       the end of each plateau.
+ *   <li>Buckets that stray further than the threshold from a straight line are busy, and keep their
+ *       minimum and maximum.
+ *   <li>Other buckets keep one reading, as above.
+ * </ul>
+ */
+public class LttbTierReducer implements TierReducer {
+  /** The default flatness threshold of the adaptive variant, as a fraction of the value range. */
+  public static final double DEFAULT_FLATNESS = 0.005;
+
+  private final int bucketSize;
+  // Negative if not adaptive.
+  private final double flatness;
+
+  // The last reading kept, which is the first corner of each triangle.
+  private boolean hasKept = false;
+  private long keptTimestamp;
+  private double keptValue;
+
+  // The bucket a reading is chosen from once the next bucket is complete.
+  private long[] heldTimestamps;
+  private double[] heldValues;
+  private int heldCount = 0;
+
+  private long[] timestamps;
+  private double[] values;
+  private int count = 0;
+
+  // For the adaptive variant: the range of values seen, and the end of the current plateau.
+  private double minSeen = Double.MAX_VALUE;
+  private double maxSeen = -Double.MAX_VALUE;
+  private boolean hasPlateauEnd = false;
+  private long plateauEndTimestamp;
+  private double plateauEndValue;
+
+  public static Factory factory(int bucketSize) {
+    return () -> new LttbTierReducer(bucketSize);
+  }
+
+  public static Factory adaptiveFactory(int bucketSize, double flatness) {
+    return () -> new LttbTierReducer(bucketSize, flatness);
+  }
+
+  /** @param bucketSize how many readings each reading kept stands for. */
+  public LttbTierReducer(int bucketSize) {
+    this(bucketSize, -1);
+  }
+
+  /**
+   * Makes the adaptive variant.
+   *
+   * @param flatness the fraction of the range of values seen within which a bucket is flat.
+   */
+  public LttbTierReducer(int bucketSize, double flatness) {
+    this.bucketSize = bucketSize;
+    this.flatness = flatness;
+    heldTimestamps = new long[bucketSize];
+    heldValues = new double[bucketSize];
+    timestamps = new long[bucketSize];
+    values = new double[bucketSize];
+  }
+
+  private boolean isAdaptive() {
+    return flatness >= 0;
+  }
+
+  private double getFlatnessThreshold() {
+    return flatness * (maxSeen - minSeen);
+  }
+
+  @Override
+  public void addReading(long timestampMillis, double value, Output output) {
+    minSeen = Math.min(minSeen, value);
+    maxSeen = Math.max(maxSeen, value);
+    if (!hasKept) {
+      // The first reading is always kept, so that the tier starts where the data does.
+      keep(timestampMillis, value, output);
+      return;
+    }
+    timestamps[count] = timestampMillis;
+    values[count] = value;
+    count++;
+    if (count < bucketSize) {
+      return;
+    }
+    if (heldCount > 0) {
+      reduceHeld(meanTimestamp(), meanValue(), output);
+    }
+    long[] swapTimestamps = heldTimestamps;
+    double[] swapValues = heldValues;
+    heldTimestamps = timestamps;
+    heldValues = values;
+    heldCount = count;
+    timestamps = swapTimestamps;
+    values = swapValues;
+    count = 0;
+  }
+
+  @Override
+  public void flush(Output output) {
+    if (heldCount > 0) {
+      if (count > 0) {
+        reduceHeld(meanTimestamp(), meanValue(), output);
+      } else {
+        reduceHeld(heldTimestamps[heldCount - 1], heldValues[heldCount - 1], output);
+      }
+    }
+    // The last reading is always kept, so that the tier ends where the data does.
+    if (count > 0) {
+      keepIfLater(timestamps[count - 1], values[count - 1], output);
+    } else if (heldCount > 0) {
+      keepIfLater(heldTimestamps[heldCount - 1], heldValues[heldCount - 1], output);
+    } else if (hasPlateauEnd) {
+      keep(plateauEndTimestamp, plateauEndValue, output);
+    }
+    heldCount = 0;
+    count = 0;
+  }
+
+  private double meanTimestamp() {
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += timestamps[i] - keptTimestamp;
+    }
+    return keptTimestamp + sum / count;
+  }
+
+  private double meanValue() {
+    double sum = 0;
+    for (int i = 0; i < count; i++) {
+      sum += values[i];
+    }
+    return sum / count;
+  }
+
+  private void reduceHeld(double nextTimestamp, double nextValue, Output output) {
+    if (isAdaptive()) {
+      int minIndex = 0;
+      int maxIndex = 0;
+      for (int i = 1; i < heldCount; i++) {
+        if (heldValues[i] < heldValues[minIndex]) {
+          minIndex = i;
+        }
+        if (heldValues[i] > heldValues[maxIndex]) {
+          maxIndex = i;
+        }
+      }
+      double threshold = getFlatnessThreshold();
+      if (heldValues[maxIndex] - keptValue <= threshold
+          && keptValue - heldValues[minIndex] <= threshold) {
+        hasPlateauEnd = true;
+        plateauEndTimestamp = heldTimestamps[heldCount - 1];
+        plateauEndValue = heldValues[heldCount - 1];
+        return;
+      }
+      if (deviationFromLine(nextTimestamp, nextValue) > threshold) {
+        int first = Math.min(minIndex, maxIndex);
+        int second = Math.max(minIndex, maxIndex);
+        keep(heldTimestamps[first], heldValues[first], output);
+        keep(heldTimestamps[second], heldValues[second], output);
+        return;
+      }
+    }
+    keepLargestTriangle(nextTimestamp, nextValue, output);
+  }
+
+  /**
+   * Returns how far the held bucket strays from the line between the last reading kept and the
+   * mean of the next bucket, which is how a bucket that follows a smooth curve differs from a busy
+   * one.
+   */
+  private double deviationFromLine(double nextTimestamp, double nextValue) {
+    double nextX = nextTimestamp - keptTimestamp;
+    double slope = nextX > 0 ? (nextValue - keptValue) / nextX : 0;
+    double deviation = 0;
+    for (int i = 0; i < heldCount; i++) {
+      double onLine = keptValue + slope * (heldTimestamps[i] - keptTimestamp);
+      deviation = Math.max(deviation, Math.abs(heldValues[i] - onLine));
+    }
+    return deviation;
+  }
+
+  private void keepLargestTriangle(double nextTimestamp, double nextValue, Output output) {
+    // Times are relative to the reading kept, to keep their precision as doubles.
+    double nextX = nextTimestamp - keptTimestamp;
+    double nextY = nextValue - keptValue;
+    int best = 0;
+    double bestArea = -1;
+    for (int i = 0; i < heldCount; i++) {
+      // Twice the area, which chooses the same reading.
+      double area =
+          Math.abs(
+              (heldTimestamps[i] - keptTimestamp) * nextY - nextX * (heldValues[i] - keptValue));
+      if (area > bestArea) {
+        bestArea = area;
+        best = i;
+      }
+    }
+    keep(heldTimestamps[best], heldValues[best], output);
+  }
+
+  private void keepIfLater(long timestampMillis, double value, Output output) {
+    if (timestampMillis > keptTimestamp) {
+      keep(timestampMillis, value, output);
+    }
+  }
+
+  private void keep(long timestampMillis, double value, Output output) {
+    if (hasPlateauEnd) {
+      hasPlateauEnd = false;
+      // The end is only needed if the line leaves the plateau.
+      if (plateauEndTimestamp < timestampMillis
+          && Math.abs(value - keptValue) > getFlatnessThreshold()) {
+        output.addReading(plateauEndTimestamp, plateauEndValue);
+      }
+    }
+    hasKept = true;
+    keptTimestamp = timestampMillis;
+    keptValue = value;
+    output.addReading(timestampMillis, value);
+  }
+}
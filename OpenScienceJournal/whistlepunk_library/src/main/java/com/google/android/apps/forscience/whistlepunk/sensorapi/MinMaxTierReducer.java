@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * Keeps the minimum and maximum of each run of readings. This captures the extremes of a noisy
+ * signal well, at the cost of two readings per run however flat the signal is.
+ */
+public class MinMaxTierReducer implements TierReducer {
+  private final int runLength;
+
+  private int seenThisRun = 0;
+  private long timestampOfMinSeen;
+  private double valueOfMinSeen;
+  private long timestampOfMaxSeen;
+  private double valueOfMaxSeen;
+
+  public static Factory factory(int runLength) {
+    return () -> new MinMaxTierReducer(runLength);
+  }
+
+  /** @param runLength how many readings are summarized by each minimum and maximum. */
+  public MinMaxTierReducer(int runLength) {
+    this.runLength = runLength;
+    resetRun();
+  }
+
+  private void resetRun() {
+    seenThisRun = 0;
+    valueOfMinSeen = Double.MAX_VALUE;
+    valueOfMaxSeen = -Double.MAX_VALUE;
+    timestampOfMaxSeen = timestampOfMinSeen = -1;
+  }
+
+  @Override
+  public void addReading(long timestampMillis, double value, Output output) {
+    seenThisRun++;
+    if (value > valueOfMaxSeen) {
+      valueOfMaxSeen = value;
+      timestampOfMaxSeen = timestampMillis;
+    }
+    if (value < valueOfMinSeen) {
+      valueOfMinSeen = value;
+      timestampOfMinSeen = timestampMillis;
+    }
+    if (seenThisRun == runLength) {
+      flush(output);
+    }
+  }
+
+  @Override
+  public void flush(Output output) {
+    if (seenThisRun == 0) {
+      return;
+    }
+    // In order of time, and only once if the minimum and maximum are the same reading.
+    if (timestampOfMinSeen <= timestampOfMaxSeen) {
+      output.addReading(timestampOfMinSeen, valueOfMinSeen);
+      if (timestampOfMaxSeen != timestampOfMinSeen) {
+        output.addReading(timestampOfMaxSeen, valueOfMaxSeen);
+      }
+    } else {
+      output.addReading(timestampOfMaxSeen, valueOfMaxSeen);
+      output.addReading(timestampOfMinSeen, valueOfMinSeen);
+    }
+    resetRun();
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Lines up the samples of several sensors in time. The first input sets the pace: for each of its
+ * samples, the values of the other inputs at the same time are found, and all of them are passed
+ * on together.
+ *
+ * <p>The value of another input is taken from its samples on either side of that time, either the
+ * nearer of the two or a straight line between them. Since those samples may not have arrived yet,
+ * a sample of the first input waits until they have, or until {@code maxWaitMillis} has passed
+ * since it was taken, after which the latest sample of each input is used as it is.
+ *
+ * <p>Samples are kept in rings of a fixed size, so that adding one allocates nothing. Samples of an
+ * input that arrive out of order are dropped. Thread-safe: inputs may arrive on any thread, and
+ * the output is called on the thread of the sample that completed it.
+ */
+class SampleAligner {
+  /** Receives the aligned values. */
+  interface Output {
+    /**
+     * @param values the value of each input at {@code timestampMillis}. Only valid until this
+     *     returns.
+     */
+    void onAligned(long timestampMillis, double[] values);
+  }
+
+  @VisibleForTesting static final int CAPACITY = 256;
+
+  private final int inputCount;
+  private final boolean interpolate;
+  private final long maxWaitMillis;
+  private final Output output;
+
+  // The samples of each input that may still be needed, oldest first. Those of the first input are
+  // the ones waiting to be passed on.
+  private final long[][] times;
+  private final double[][] values;
+  private final int[] starts;
+  private final int[] sizes;
+  private final double[] aligned;
+  private long newestMillis;
+  private long lastAlignedMillis;
+
+  SampleAligner(int inputCount, boolean interpolate, long maxWaitMillis, Output output) {
+    this.inputCount = inputCount;
+    this.interpolate = interpolate;
+    this.maxWaitMillis = maxWaitMillis;
+    this.output = output;
+    times = new long[inputCount][CAPACITY];
+    values = new double[inputCount][CAPACITY];
+    starts = new int[inputCount];
+    sizes = new int[inputCount];
+    aligned = new double[inputCount];
+    clear();
+  }
+
+  synchronized void clear() {
+    for (int i = 0; i < inputCount; i++) {
+      starts[i] = 0;
+      sizes[i] = 0;
+    }
+    newestMillis = Long.MIN_VALUE;
+    lastAlignedMillis = Long.MIN_VALUE;
+  }
+
+  synchronized void addSample(int input, long timestampMillis, double value) {
+    if (sizes[input] > 0 && timestampMillis <= getTime(input, sizes[input] - 1)) {
+      return;
+    }
+    if (sizes[input] == CAPACITY) {
+      removeOldest(input);
+    }
+    int slot = (starts[input] + sizes[input]) % CAPACITY;
+    times[input][slot] = timestampMillis;
+    values[input][slot] = value;
+    sizes[input]++;
+    newestMillis = Math.max(newestMillis, timestampMillis);
+
+    alignWaitingSamples();
+    long floor = sizes[0] > 0 ? getTime(0, 0) : lastAlignedMillis;
+    for (int i = 1; i < inputCount; i++) {
+      // Keep the last sample at or before the next time to be aligned, and all after it.
+      while (sizes[i] > 1 && getTime(i, 1) <= floor) {
+        removeOldest(i);
+      }
+    }
+  }
+
+  private void alignWaitingSamples() {
+    while (sizes[0] > 0) {
+      long timestampMillis = getTime(0, 0);
+      boolean waitedLongEnough = newestMillis - timestampMillis > maxWaitMillis;
+      if (waitedLongEnough && hasEmptyInput()) {
+        // Some input has nothing to offer, and can't be waited for any longer.
+        removeOldest(0);
+        continue;
+      }
+      if (!waitedLongEnough && !haveAllInputsReached(timestampMillis)) {
+        return;
+      }
+      aligned[0] = getValue(0, 0);
+      for (int i = 1; i < inputCount; i++) {
+        aligned[i] = getValueAt(i, timestampMillis);
+      }
+      removeOldest(0);
+      lastAlignedMillis = timestampMillis;
+      output.onAligned(timestampMillis, aligned);
+    }
+  }
+
+  private boolean hasEmptyInput() {
+    for (int i = 1; i < inputCount; i++) {
+      if (sizes[i] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns true if every other input has a sample at or after the given time. */
+  private boolean haveAllInputsReached(long timestampMillis) {
+    for (int i = 1; i < inputCount; i++) {
+      if (sizes[i] == 0 || getTime(i, sizes[i] - 1) < timestampMillis) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the value of the input at the given time, from the samples on either side of it. */
+  private double getValueAt(int input, long timestampMillis) {
+    int after = 0;
+    while (after < sizes[input] && getTime(input, after) <= timestampMillis) {
+      after++;
+    }
+    if (after == 0) {
+      return getValue(input, 0);
+    }
+    int before = after - 1;
+    long beforeMillis = getTime(input, before);
+    if (after == sizes[input] || beforeMillis == timestampMillis) {
+      return getValue(input, before);
+    }
+    long afterMillis = getTime(input, after);
+    if (interpolate) {
+      double fraction = (double) (timestampMillis - beforeMillis) / (afterMillis - beforeMillis);
+      return getValue(input, before)
+          + fraction * (getValue(input, after) - getValue(input, before));
+    } else if (timestampMillis - beforeMillis <= afterMillis - timestampMillis) {
+      return getValue(input, before);
+    } else {
+      return getValue(input, after);
+    }
+  }
+
+  private long getTime(int input, int index) {
+    return times[input][(starts[input] + index) % CAPACITY];
+  }
+
+  private double getValue(int input, int index) {
+    return values[input][(starts[input] + index) % CAPACITY];
+  }
+
+  private void removeOldest(int input) {
+    starts[input] = (starts[input] + 1) % CAPACITY;
+    sizes[input]--;
+  }
+}
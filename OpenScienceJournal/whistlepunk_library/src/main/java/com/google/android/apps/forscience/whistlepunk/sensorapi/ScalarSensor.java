@@ -29,6 +29,7 @@ import com.google.android.apps.forscience.javalib.FailureListener;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
 import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.DevOptionsFragment;
 import com.google.android.apps.forscience.whistlepunk.ExternalAxisController;
 import com.google.android.apps.forscience.whistlepunk.R;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
@@ -43,12 +44,14 @@ import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartController;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartOptions;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartView;
 import com.google.android.apps.forscience.whistlepunk.scalarchart.UptimeClock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.FrequencyOptionsPresenter.FilterChangeListener;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
 import com.google.common.base.Preconditions;
 import java.text.NumberFormat;
 import java.util.List;
@@ -370,13 +373,12 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     final RecordingDataController dataController =
         Preconditions.checkNotNull(environment.getDataController(appAccount));
 
-    // We need twice the buffer as the zoom level, because in this implementation of zoom, we
-    // decided to store min and max data points at each level.
-    // TODO: make this configurable?
-    int zoomBufferSize = zoomLevelBetweenTiers * 2;
-    final ZoomRecorder zoomRecorder = new ZoomRecorder(getId(), zoomBufferSize, 1);
+    final ZoomRecorder zoomRecorder =
+        new ZoomRecorder(getId(), getTierReducerFactory(context), 1);
+    final StatsBlockRecorder statsBlockRecorder = new StatsBlockRecorder(getId());
     final ScalarStreamConsumer consumer =
-        new ScalarStreamConsumer(statsAccumulator, observer, dataController, zoomRecorder);
+        new ScalarStreamConsumer(
+            statsAccumulator, observer, dataController, zoomRecorder, statsBlockRecorder);
     final SensorRecorder recorder = makeScalarControl(consumer, environment, context, listener);
     return new DelegatingSensorRecorder(recorder) {
       private String runId;
@@ -399,6 +401,8 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         statsAccumulator.clearStats();
         zoomRecorder.setTrialId(runId);
         zoomRecorder.clear();
+        statsBlockRecorder.setTrialId(runId);
+        statsBlockRecorder.clear();
         consumer.startRecording(this.runId);
         super.startRecording(runId);
       }
@@ -413,12 +417,14 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         trialStats.putStat(
             GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS,
             zoomLevelBetweenTiers);
+        trialStats.setZoomTierPointCounts(zoomRecorder.getTierPointCounts());
         if (trialToUpdate != null) {
           trialToUpdate.setStats(trialStats);
         }
         consumer.stopRecording();
         statsAccumulator.clearStats();
         zoomRecorder.clearTrialId();
+        statsBlockRecorder.clearTrialId();
       }
 
       @Override
@@ -450,6 +456,30 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     }
   }
 
+  /**
+   * Returns how the readings of each zoom tier are chosen from the tier below, as set in the
+   * developer options. Every choice keeps about one reading in every {@code
+   * zoomLevelBetweenTiers}, which is the ratio assumed for trials without stored tier sizes.
+   */
+  @VisibleForTesting
+  TierReducer.Factory getTierReducerFactory(Context context) {
+    String reducer =
+        context == null
+            ? DevOptionsFragment.ZOOM_TIER_REDUCER_MIN_MAX
+            : DevOptionsFragment.getZoomTierReducer(context);
+    switch (reducer) {
+      case DevOptionsFragment.ZOOM_TIER_REDUCER_LTTB:
+        return LttbTierReducer.factory(zoomLevelBetweenTiers);
+      case DevOptionsFragment.ZOOM_TIER_REDUCER_ADAPTIVE_LTTB:
+        return LttbTierReducer.adaptiveFactory(
+            zoomLevelBetweenTiers, LttbTierReducer.DEFAULT_FLATNESS);
+      default:
+        // We need twice the buffer as the zoom level, because in this implementation of zoom, we
+        // decided to store min and max data points at each level.
+        return MinMaxTierReducer.factory(zoomLevelBetweenTiers * 2);
+    }
+  }
+
   @Override
   public void setScalarFilter(ValueFilter filter) {
     valueFilter = filter;
@@ -472,15 +502,23 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
       Context context,
       SensorStatusListener listener);
 
-  private class ScalarStreamConsumer implements StreamConsumer {
+  private class ScalarStreamConsumer implements BatchStreamConsumer, HoldingStreamConsumer {
     private static final int NO_DATA_RECORDED = -1;
+    private static final long NOT_HELD = -1;
 
     private final StatsAccumulator statsAccumulator;
     private final RecordingDataController dataController;
     private final ZoomRecorder zoomRecorder;
+    private final StatsBlockRecorder statsBlockRecorder;
+    private final PerfMetrics metrics = PerfMetrics.getInstance();
     private boolean isRecording = false;
     private long lastDataTimestampMillis = NO_DATA_RECORDED;
     private long timestampBeforeRecordingStart = NO_DATA_RECORDED;
+    // The last value added, before and after filtering, which holds until the next.
+    private double lastRawValue;
+    private double lastValue;
+    // How often the value was shown again while it held, once it has held during the recording.
+    private long holdIntervalMillis = NOT_HELD;
     private SensorMessage.Pool messagePool;
     private String runId = null;
 
@@ -488,22 +526,31 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
         StatsAccumulator statsAccumulator,
         SensorObserver observer,
         RecordingDataController dataController,
-        ZoomRecorder zoomRecorder) {
+        ZoomRecorder zoomRecorder,
+        StatsBlockRecorder statsBlockRecorder) {
       this.statsAccumulator = statsAccumulator;
       this.dataController = dataController;
       this.zoomRecorder = zoomRecorder;
+      this.statsBlockRecorder = statsBlockRecorder;
       messagePool = new SensorMessage.Pool(observer);
     }
 
     public void startRecording(String runId) {
       isRecording = true;
       timestampBeforeRecordingStart = lastDataTimestampMillis;
+      holdIntervalMillis = NOT_HELD;
       this.runId = runId;
     }
 
     public void stopRecording() {
       isRecording = false;
       zoomRecorder.flushAllTiers(dataController);
+      statsBlockRecorder.flush(dataController);
+      if (holdIntervalMillis != NOT_HELD) {
+        // Only the changes were recorded, so readers need to know how the values held.
+        dataController.setSeriesHold(
+            new SeriesHold(runId, getId(), holdIntervalMillis, lastDataTimestampMillis));
+      }
     }
 
     public boolean maintainsTimeSeries(final long timestampMillis) {
@@ -516,24 +563,80 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     @Override
     public boolean addData(final long timestampMillis, double value) {
       // TODO: would inlining here gain performance?
+      long startNanos = System.nanoTime();
+      if (!acceptData(timestampMillis, value)) {
+        return false;
+      }
+      metrics.recordNanosSince(PerfMetrics.SENSOR_ADD_DATA, startNanos);
+      return true;
+    }
+
+    @Override
+    public int addBatch(long[] timestampsMillis, double[] values, int count) {
+      long startNanos = System.nanoTime();
+      int accepted = 0;
+      for (int i = 0; i < count; i++) {
+        if (acceptData(timestampsMillis[i], values[i])) {
+          accepted++;
+        }
+      }
+      metrics.record(PerfMetrics.SENSOR_BATCH_SIZE, count);
+      if (accepted > 0) {
+        metrics.record(PerfMetrics.SENSOR_ADD_DATA, (System.nanoTime() - startNanos) / accepted);
+      }
+      return accepted;
+    }
+
+    private boolean acceptData(long timestampMillis, double value) {
+      metrics.increment(PerfMetrics.SENSOR_DATA_ARRIVALS);
       if (!maintainsTimeSeries(timestampMillis)) {
         return false;
       }
-      value = maybeFilter(timestampMillis, value);
+      addFilteredData(timestampMillis, value, maybeFilter(timestampMillis, value));
+      return true;
+    }
+
+    private void addFilteredData(long timestampMillis, double rawValue, double value) {
       observeData(timestampMillis, value);
       recordData(timestampMillis, value);
       lastDataTimestampMillis = timestampMillis;
+      lastRawValue = rawValue;
+      lastValue = value;
+    }
+
+    @Override
+    public boolean holdData(long timestampMillis, long intervalMillis) {
+      if (lastDataTimestampMillis == NO_DATA_RECORDED || !maintainsTimeSeries(timestampMillis)) {
+        return false;
+      }
+      double value = maybeFilter(timestampMillis, lastRawValue);
+      if (value != lastValue) {
+        // A filter that depends on time, such as a frequency, can change while its input holds.
+        addFilteredData(timestampMillis, lastRawValue, value);
+        return true;
+      }
+      metrics.increment(PerfMetrics.SENSOR_DATA_HOLDS);
+      statsAccumulator.holdUntil(timestampMillis);
+      showData(timestampMillis, value);
+      if (isRecording) {
+        holdIntervalMillis = intervalMillis;
+      }
+      lastDataTimestampMillis = timestampMillis;
       return true;
     }
 
     public void observeData(final long timestampMillis, double value) {
+      statsAccumulator.updateRecordingStreamStats(timestampMillis, value);
+      showData(timestampMillis, value);
+    }
+
+    private void showData(long timestampMillis, double value) {
       // Each call to obtain is guaranteed to retrieve a currently-unused message...
       SensorMessage message = messagePool.obtain();
 
       // ...which is set up with the correct values here...
       message.setTimestamp(timestampMillis);
       message.getData().setValue(value);
-      statsAccumulator.updateRecordingStreamStats(timestampMillis, value);
       statsAccumulator.addStatsToBundle(message.getData());
 
       // ..and will be cleared and released back to the message pool when getRunnable is run.
@@ -543,6 +646,7 @@ public abstract class ScalarSensor extends SensorChoice implements FilterChangeL
     public void recordData(long timestampMillis, double value) {
       if (isRecording) {
         zoomRecorder.addData(timestampMillis, value, dataController);
+        statsBlockRecorder.addData(timestampMillis, value, dataController);
         dataController.addScalarReading(runId, getId(), 0, timestampMillis, value);
       }
     }
@@ -16,13 +16,23 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
-import android.util.Log;
 import com.google.android.apps.forscience.whistlepunk.BatchDataController;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,11 +43,32 @@ import java.util.Map;
 
 public class ScalarSensorDumpReader {
   private static final int NO_DATA_RECORDED = -1;
-  private static final String TAG = "ScalarSensorDumpReader";
+
+  // Wire tags of the ScalarSensorData fields, for reading it as a stream.
+  private static final int SENSORS_TAG =
+      makeTag(
+          GoosciScalarSensorData.ScalarSensorData.SENSORS_FIELD_NUMBER,
+          WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int DUMP_TAG_TAG =
+      makeTag(ScalarSensorDataDump.TAG_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int DUMP_ROWS_TAG =
+      makeTag(ScalarSensorDataDump.ROWS_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int DUMP_TRIAL_ID_TAG =
+      makeTag(ScalarSensorDataDump.TRIALID_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+  private static final int DUMP_RESOLUTION_TIER_TAG =
+      makeTag(ScalarSensorDataDump.RESOLUTIONTIER_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+  private static final int ROW_TIMESTAMP_TAG =
+      makeTag(ScalarSensorDataRow.TIMESTAMPMILLIS_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+  private static final int ROW_VALUE_TAG =
+      makeTag(ScalarSensorDataRow.VALUE_FIELD_NUMBER, WireFormat.WIRETYPE_FIXED64);
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
   private final RecordingDataController dataController;
-  private long lastDataTimestampMillis = NO_DATA_RECORDED;
   private final int zoomLevelBetweenTiers;
+  // Stats of the imported readings, by trial id and then sensor tag. A sensor maps to null if a
+  // coarser tier of it was imported, since the stats of its full-rate readings are unknown.
+  private final Map<String, Map<String, StatsAccumulator>> importedStats = new HashMap<>();
 
   public ScalarSensorDumpReader(RecordingDataController dataController) {
     this.dataController = dataController;
@@ -46,99 +77,229 @@ public class ScalarSensorDumpReader {
 
   public void readData(
       GoosciScalarSensorData.ScalarSensorData scalarSensorData, Map<String, String> idMap) {
-    int zoomBufferSize = zoomLevelBetweenTiers * 2;
     for (ScalarSensorDataDump sensor : scalarSensorData.getSensorsList()) {
-      ZoomRecorder zoomRecorder = new ZoomRecorder(sensor.getTag(), zoomBufferSize, 1);
-      String trialId = idMap.get(sensor.getTrialId());
-      zoomRecorder.setTrialId(trialId);
-      try (BatchDataController batchController = new BatchDataController(dataController)) {
-        addAllRows(sensor, zoomRecorder, trialId, batchController);
-        batchController.flushScalarReadings();
-      } catch (IOException ioe) {
-        Log.e(TAG, "Exception while flushing BatchDataController", ioe);
+      readDump(sensor, idMap.get(sensor.getTrialId()));
+    }
+  }
+
+  /**
+   * Reads a serialized ScalarSensorData proto from the stream, inserting the rows in batches as
+   * they are parsed instead of parsing the whole proto into memory first. A sensor's trial id is
+   * serialized after its rows, so the stream is copied to a temporary file, read once for the
+   * sensors' trial ids and then again for their rows.
+   */
+  public void readData(InputStream in, Map<String, String> idMap) throws IOException {
+    File copy = File.createTempFile("scalar_sensor_data", null);
+    try {
+      try (OutputStream out = new FileOutputStream(copy)) {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          out.write(buffer, 0, count);
+        }
+      }
+      List<RowSink> sinks;
+      try (InputStream copyIn = new BufferedInputStream(new FileInputStream(copy))) {
+        sinks = readHeaders(newCodedInput(copyIn), idMap);
       }
-      lastDataTimestampMillis = NO_DATA_RECORDED;
+      try (InputStream copyIn = new BufferedInputStream(new FileInputStream(copy))) {
+        readRows(newCodedInput(copyIn), sinks);
+      }
+    } finally {
+      copy.delete();
     }
   }
 
   public void readData(List<ScalarSensorDataDump> scalarSensorData) {
-    int zoomBufferSize = zoomLevelBetweenTiers * 2;
     for (ScalarSensorDataDump sensor : scalarSensorData) {
-      ZoomRecorder zoomRecorder = new ZoomRecorder(sensor.getTag(), zoomBufferSize, 1);
-      String trialId = sensor.getTrialId();
-      zoomRecorder.setTrialId(trialId);
-      try (BatchDataController batchController = new BatchDataController(dataController)) {
-        addAllRows(sensor, zoomRecorder, trialId, batchController);
-        batchController.flushScalarReadings();
-      } catch (IOException ioe) {
-        Log.e(TAG, "Exception while flushing BatchDataController", ioe);
-      }
-      lastDataTimestampMillis = NO_DATA_RECORDED;
+      readDump(sensor, sensor.getTrialId());
     }
   }
 
   public void readData(ScalarSensorDataDump sensor) {
-    int zoomBufferSize = zoomLevelBetweenTiers * 2;
+    readDump(sensor, sensor.getTrialId());
+  }
 
-    ZoomRecorder zoomRecorder = new ZoomRecorder(sensor.getTag(), zoomBufferSize, 1);
-    String trialId = sensor.getTrialId();
-    zoomRecorder.setTrialId(trialId);
-    try (BatchDataController batchController = new BatchDataController(dataController)) {
-      addAllRows(sensor, zoomRecorder, trialId, batchController);
-      batchController.flushScalarReadings();
-    } catch (IOException ioe) {
-      Log.e(TAG, "Exception while flushing BatchDataController", ioe);
+  /**
+   * Gets the stats of the readings imported so far for a sensor of a trial, merged over all the
+   * dumps they came in, or null if none were imported, or if only a coarser tier of an archived
+   * trial was.
+   */
+  public StatsAccumulator getImportedStats(String trialId, String sensorTag) {
+    Map<String, StatsAccumulator> trialStats = importedStats.get(trialId);
+    if (trialStats == null) {
+      return null;
     }
-    lastDataTimestampMillis = NO_DATA_RECORDED;
+    StatsAccumulator stats = trialStats.get(sensorTag);
+    return stats != null && stats.isInitialized() ? stats : null;
   }
 
-  private void addAllRows(
-      ScalarSensorDataDump sensor,
-      ZoomRecorder zoomRecorder,
-      String trialId,
-      RecordingDataController batchController) {
+  private void readDump(ScalarSensorDataDump sensor, String trialId) {
+    RowSink sink = new RowSink(sensor.getTag(), trialId, sensor.getResolutionTier());
     for (ScalarSensorDataRow row : sensor.getRowsList()) {
-      addData(
-          batchController,
-          zoomRecorder,
-          trialId,
-          sensor.getTag(),
-          row.getTimestampMillis(),
-          row.getValue());
+      sink.addRow(row.getTimestampMillis(), row.getValue());
+    }
+    sink.finish();
+  }
+
+  /** Reads the tag, trial id and tier of each sensor, skipping the rows, to make its sink. */
+  private List<RowSink> readHeaders(CodedInputStream input, Map<String, String> idMap)
+      throws IOException {
+    List<RowSink> sinks = new ArrayList<>();
+    int oldLimit;
+    while ((oldLimit = enterNextDump(input)) != -1) {
+      String sensorTag = "";
+      String trialId = "";
+      int resolutionTier = 0;
+      while (true) {
+        int dumpTag = input.readTag();
+        if (dumpTag == 0) {
+          break;
+        }
+        if (dumpTag == DUMP_TAG_TAG) {
+          sensorTag = input.readString();
+        } else if (dumpTag == DUMP_TRIAL_ID_TAG) {
+          trialId = input.readString();
+        } else if (dumpTag == DUMP_RESOLUTION_TIER_TAG) {
+          resolutionTier = input.readInt32();
+        } else {
+          input.skipField(dumpTag);
+        }
+      }
+      input.popLimit(oldLimit);
+      sinks.add(new RowSink(sensorTag, idMap.get(trialId), resolutionTier));
+    }
+    return sinks;
+  }
+
+  /** Passes the rows of each sensor, in order, to the sink made for it by readHeaders. */
+  private void readRows(CodedInputStream input, List<RowSink> sinks) throws IOException {
+    int oldLimit;
+    for (int i = 0; (oldLimit = enterNextDump(input)) != -1; i++) {
+      RowSink sink = sinks.get(i);
+      while (true) {
+        int dumpTag = input.readTag();
+        if (dumpTag == 0) {
+          break;
+        }
+        if (dumpTag != DUMP_ROWS_TAG) {
+          input.skipField(dumpTag);
+          continue;
+        }
+        int rowLimit = input.pushLimit(input.readRawVarint32());
+        long timestamp = 0;
+        double value = 0;
+        while (true) {
+          int rowTag = input.readTag();
+          if (rowTag == 0) {
+            break;
+          }
+          if (rowTag == ROW_TIMESTAMP_TAG) {
+            timestamp = input.readInt64();
+          } else if (rowTag == ROW_VALUE_TAG) {
+            value = input.readDouble();
+          } else {
+            input.skipField(rowTag);
+          }
+        }
+        input.popLimit(rowLimit);
+        sink.addRow(timestamp, value);
+      }
+      input.popLimit(oldLimit);
+      sink.finish();
     }
-    zoomRecorder.flushAllTiers(batchController);
   }
 
-  private boolean addData(
-      RecordingDataController dataController,
-      ZoomRecorder zoomRecorder,
-      String trialId,
-      String tag,
-      final long timestampMillis,
-      double value) {
-    if (!maintainsTimeSeries(timestampMillis)) {
-      return false;
+  private static CodedInputStream newCodedInput(InputStream in) {
+    CodedInputStream input = CodedInputStream.newInstance(in);
+    // Sensor data routinely exceeds the default 64MB message limit.
+    input.setSizeLimit(Integer.MAX_VALUE);
+    return input;
+  }
+
+  /**
+   * Skips to the next sensor of a ScalarSensorData and limits the input to it. Returns the limit
+   * to restore once the sensor has been read, or -1 if there are no more sensors.
+   */
+  private static int enterNextDump(CodedInputStream input) throws IOException {
+    while (true) {
+      int tag = input.readTag();
+      if (tag == 0) {
+        return -1;
+      }
+      if (tag == SENSORS_TAG) {
+        return input.pushLimit(input.readRawVarint32());
+      }
+      input.skipField(tag);
     }
-    recordData(dataController, zoomRecorder, trialId, tag, timestampMillis, value);
-    lastDataTimestampMillis = timestampMillis;
-    return true;
   }
 
-  private boolean maintainsTimeSeries(final long timestampMillis) {
-    if (timestampMillis > lastDataTimestampMillis) {
-      return true;
+  private void addImportedStats(
+      String trialId, String tag, int resolutionTier, StatsAccumulator stats) {
+    Map<String, StatsAccumulator> trialStats = importedStats.get(trialId);
+    if (trialStats == null) {
+      trialStats = new HashMap<>();
+      importedStats.put(trialId, trialStats);
+    }
+    if (resolutionTier > 0) {
+      trialStats.put(tag, null);
+    } else if (!trialStats.containsKey(tag)) {
+      trialStats.put(tag, stats);
+    } else if (trialStats.get(tag) != null) {
+      // The sensor's readings were split over more than one dump.
+      trialStats.get(tag).merge(stats);
     }
-    return false;
   }
 
-  private void recordData(
-      RecordingDataController batchController,
-      ZoomRecorder zoomRecorder,
-      String trialId,
-      String tag,
-      long timestampMillis,
-      double value) {
-    zoomRecorder.addData(timestampMillis, value, batchController);
-    batchController.addScalarReading(trialId, tag, 0, timestampMillis, value);
+  private static int makeTag(int fieldNumber, int wireType) {
+    // Same as WireFormat.makeTag, which is not public.
+    return (fieldNumber << 3) | wireType;
+  }
+
+  /**
+   * Stores the rows of one sensor dump, with their zoom tiers, stats blocks and stats. Readings
+   * go to the database in the fixed-size batches of a BatchDataController, so no more than a
+   * batch of them is held in memory at a time.
+   */
+  private class RowSink {
+    private final String tag;
+    private final String trialId;
+    private final int resolutionTier;
+    private final BatchDataController batchController;
+    private final ZoomRecorder zoomRecorder;
+    private final StatsBlockRecorder statsBlockRecorder;
+    private final StatsAccumulator stats;
+    private long lastDataTimestampMillis = NO_DATA_RECORDED;
+
+    RowSink(String tag, String trialId, int resolutionTier) {
+      this.tag = tag;
+      this.trialId = trialId;
+      this.resolutionTier = resolutionTier;
+      batchController = new BatchDataController(dataController);
+      zoomRecorder = new ZoomRecorder(tag, zoomLevelBetweenTiers * 2, 1);
+      zoomRecorder.setTrialId(trialId);
+      statsBlockRecorder = new StatsBlockRecorder(tag);
+      statsBlockRecorder.setTrialId(trialId);
+      stats = new StatsAccumulator(tag);
+    }
+
+    void addRow(long timestampMillis, double value) {
+      // Rows that would break the time series are dropped.
+      if (timestampMillis <= lastDataTimestampMillis) {
+        return;
+      }
+      zoomRecorder.addData(timestampMillis, value, batchController);
+      statsBlockRecorder.addData(timestampMillis, value, batchController);
+      stats.updateRecordingStreamStats(timestampMillis, value);
+      batchController.addScalarReading(trialId, tag, 0, timestampMillis, value);
+      lastDataTimestampMillis = timestampMillis;
+    }
+
+    void finish() {
+      zoomRecorder.flushAllTiers(batchController);
+      statsBlockRecorder.flush(batchController);
+      batchController.flushScalarReadings();
+      addImportedStats(trialId, tag, resolutionTier, stats);
+    }
   }
 }
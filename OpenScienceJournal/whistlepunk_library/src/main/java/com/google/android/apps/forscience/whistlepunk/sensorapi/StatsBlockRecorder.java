@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
+import java.util.Arrays;
+
+/**
+ * Summarizes recorded data in {@link StatsBlock}s, storing each one once data arrives for a later
+ * block. Data must arrive in order of time.
+ */
+public class StatsBlockRecorder {
+  private final String sensorId;
+
+  private String trialId = null;
+  private long blockStartMillis;
+  private long firstTimestampMillis;
+  private long lastTimestampMillis;
+  private int count;
+  private double min;
+  private double max;
+  private double sum;
+  private double mean;
+  private double sumOfSquaredDeviations;
+  // The values of the current block, to pick its quantiles from.
+  private double[] values = new double[64];
+
+  public StatsBlockRecorder(String sensorId) {
+    this.sensorId = sensorId;
+    clear();
+  }
+
+  public void setTrialId(String trialId) {
+    this.trialId = trialId;
+  }
+
+  public void clearTrialId() {
+    trialId = null;
+  }
+
+  public void clear() {
+    count = 0;
+    min = Double.MAX_VALUE;
+    max = -Double.MAX_VALUE;
+    sum = 0;
+    mean = 0;
+    sumOfSquaredDeviations = 0;
+  }
+
+  public void addData(long timestampMillis, double value, RecordingDataController dc) {
+    long blockStart = StatsBlock.getBlockStart(timestampMillis);
+    if (count > 0 && blockStart != blockStartMillis) {
+      flush(dc);
+    }
+    if (count == 0) {
+      blockStartMillis = blockStart;
+      firstTimestampMillis = timestampMillis;
+    }
+    lastTimestampMillis = timestampMillis;
+    if (count == values.length) {
+      values = Arrays.copyOf(values, count * 2);
+    }
+    values[count] = value;
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    sum += value;
+    double delta = value - mean;
+    mean += delta / count;
+    sumOfSquaredDeviations += delta * (value - mean);
+  }
+
+  /** Stores the current block, even though more data could still arrive for it. */
+  public void flush(RecordingDataController dc) {
+    if (count > 0) {
+      Arrays.sort(values, 0, count);
+      dc.addStatsBlock(
+          new StatsBlock(
+              trialId,
+              sensorId,
+              blockStartMillis,
+              firstTimestampMillis,
+              lastTimestampMillis,
+              count,
+              min,
+              max,
+              sum,
+              sumOfSquaredDeviations,
+              StatsBlock.pickQuantiles(values, count)));
+      clear();
+    }
+  }
+}
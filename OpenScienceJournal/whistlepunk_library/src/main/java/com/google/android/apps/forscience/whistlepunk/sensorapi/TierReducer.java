@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+/**
+ * Chooses which readings of one zoom tier are kept in the next, coarser tier. Readings are added
+ * in order of time, and the ones kept are passed to an {@link Output}, also in order of time.
+ *
+ * <p>Each {@link ZoomRecorder} has its own reducer, made by a {@link Factory}, so a reducer can
+ * hold on to readings until it has seen enough of the tier to choose.
+ */
+public interface TierReducer {
+  /** Receives the readings kept for the next tier. */
+  interface Output {
+    void addReading(long timestampMillis, double value);
+  }
+
+  /** Makes the reducer for each tier. */
+  interface Factory {
+    TierReducer create();
+  }
+
+  void addReading(long timestampMillis, double value, Output output);
+
+  /** Passes on whatever should be kept of the readings held so far, as the tier is ending. */
+  void flush(Output output);
+}
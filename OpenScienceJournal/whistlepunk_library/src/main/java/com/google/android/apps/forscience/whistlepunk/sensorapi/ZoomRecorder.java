@@ -16,14 +16,23 @@
 
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Stores data at multiple granularities. For each run of N*2 data points in tier X, there are 2
- * data points in tier X+1, and those are the max and min data points over that run.
+ * Stores data at multiple granularities. Each tier X+1 holds a selection of the data points in tier
+ * X, chosen by a {@link TierReducer}. By default, for each run of N*2 data points in tier X, there
+ * are 2 data points in tier X+1, and those are the max and min data points over that run.
  *
  * <p>This seems to allow us to capture the general shape of the graph better than trying to, for
  * example, synthesize an "average" data point for the run.
+ *
+ * <p>The data points of every tier are staged, and stored together in one batch at each checkpoint,
+ * rather than one at a time as they are made. {@link #flushAllTiers} stores the rest.
  */
 public class ZoomRecorder {
   /**
@@ -38,16 +47,42 @@ public class ZoomRecorder {
    */
   public static final String STATS_KEY_ZOOM_LEVEL_BETWEEN_TIERS = "stats_zoom_level";
 
+  /** How many staged data points are stored at once, if a checkpoint has not come first. */
+  @VisibleForTesting static final int MAX_STAGED_READINGS = 500;
+
+  /**
+   * How far apart checkpoints are, in the time of the data added. This bounds how much of the tiers
+   * would be lost in a crash to about as much as the stats blocks, which are stored as often.
+   */
+  @VisibleForTesting static final long CHECKPOINT_MILLIS = StatsBlock.BLOCK_MILLIS;
+
+  private static final long NO_CHECKPOINT = Long.MIN_VALUE;
+
+  /** The data points of every tier of one sensor that have yet to be stored. */
+  private static class StagedReadings {
+    final int maxReadings;
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    long checkpointMillis = NO_CHECKPOINT;
+
+    StagedReadings(int maxReadings) {
+      this.maxReadings = maxReadings;
+    }
+  }
+
   private final String sensorId;
-  private final int zoomBufferSize;
+  private final TierReducer.Factory reducerFactory;
   private final int tier;
+  private final TierReducer.Output output = this::addReadingAtThisTier;
+  // Shared by every tier, but only the bottom tier decides when to store them.
+  private final StagedReadings staged;
+  private final boolean isBottomTier;
 
+  private TierReducer reducer;
   private String trialId = null;
-  private int seenThisPass = 0;
-  private long timestampOfMinSeen;
-  private double valueOfMinSeen;
-  private long timestampOfMaxSeen;
-  private double valueOfMaxSeen;
+  // The data controller being written to while data is added, for output.
+  private RecordingDataController dataController;
+  private long pointsReceived = 0;
+  private long pointsWritten = 0;
   private ZoomRecorder nextTierUp = null;
 
   /**
@@ -56,15 +91,43 @@ public class ZoomRecorder {
    *     tier will hold (2 / zoomBufferSize) as many data points as the next tier down.
    */
   public ZoomRecorder(String id, int zoomBufferSize, int tier) {
+    this(id, MinMaxTierReducer.factory(zoomBufferSize), tier);
+  }
+
+  /** @param reducerFactory makes the reducer that chooses the data points of each tier. */
+  public ZoomRecorder(String id, TierReducer.Factory reducerFactory, int tier) {
+    this(id, reducerFactory, tier, MAX_STAGED_READINGS);
+  }
+
+  @VisibleForTesting
+  ZoomRecorder(String id, TierReducer.Factory reducerFactory, int tier, int maxStagedReadings) {
+    this(id, reducerFactory, tier, new StagedReadings(maxStagedReadings), true);
+  }
+
+  private ZoomRecorder(
+      String id,
+      TierReducer.Factory reducerFactory,
+      int tier,
+      StagedReadings staged,
+      boolean isBottomTier) {
     sensorId = id;
     this.tier = tier;
-    this.zoomBufferSize = zoomBufferSize;
-    resetBuffer();
+    this.reducerFactory = reducerFactory;
+    this.staged = staged;
+    this.isBottomTier = isBottomTier;
+    reducer = reducerFactory.create();
   }
 
   public void clear() {
     nextTierUp = null;
-    resetBuffer();
+    pointsReceived = 0;
+    pointsWritten = 0;
+    reducer = reducerFactory.create();
+    if (isBottomTier) {
+      // Anything staged was stored when the last recording flushed its tiers.
+      staged.readings = new ArrayList<>();
+      staged.checkpointMillis = NO_CHECKPOINT;
+    }
   }
 
   public void clearTrialId() {
@@ -81,36 +144,40 @@ public class ZoomRecorder {
     }
   }
 
-  private void resetBuffer() {
-    seenThisPass = 0;
-    valueOfMinSeen = Double.MAX_VALUE;
-    valueOfMaxSeen = -Double.MAX_VALUE;
-    timestampOfMaxSeen = timestampOfMinSeen = -1;
-  }
-
   public void addData(long timestampMillis, double value, RecordingDataController dc) {
-    seenThisPass++;
-    if (value > valueOfMaxSeen) {
-      valueOfMaxSeen = value;
-      timestampOfMaxSeen = timestampMillis;
-    }
-    if (value < valueOfMinSeen) {
-      valueOfMinSeen = value;
-      timestampOfMinSeen = timestampMillis;
+    pointsReceived++;
+    dataController = dc;
+    reducer.addReading(timestampMillis, value, output);
+    if (isBottomTier) {
+      if (staged.checkpointMillis == NO_CHECKPOINT) {
+        staged.checkpointMillis = timestampMillis;
+      } else if (timestampMillis - staged.checkpointMillis >= CHECKPOINT_MILLIS) {
+        storeStagedReadings(dc);
+        staged.checkpointMillis = timestampMillis;
+      }
     }
-    if (seenThisPass == zoomBufferSize) {
-      flush(dc);
+  }
+
+  private void addReadingAtThisTier(long timestamp, double value) {
+    pointsWritten++;
+    staged.readings.add(new BatchInsertScalarReading(trialId, sensorId, tier, timestamp, value));
+    if (staged.readings.size() >= staged.maxReadings) {
+      storeStagedReadings(dataController);
     }
+    getNextTierUp().addData(timestamp, value, dataController);
   }
 
-  private void addReadingAtThisTier(RecordingDataController dc, long timestamp, double value) {
-    dc.addScalarReading(trialId, sensorId, tier, timestamp, value);
-    getNextTierUp().addData(timestamp, value, dc);
+  private void storeStagedReadings(RecordingDataController dc) {
+    if (!staged.readings.isEmpty()) {
+      // Handed over whole, as the data controller stores them later on its own thread.
+      dc.addScalarReadings(staged.readings);
+      staged.readings = new ArrayList<>();
+    }
   }
 
   private ZoomRecorder getNextTierUp() {
     if (nextTierUp == null) {
-      nextTierUp = new ZoomRecorder(sensorId, zoomBufferSize, tier + 1);
+      nextTierUp = new ZoomRecorder(sensorId, reducerFactory, tier + 1, staged, false);
       nextTierUp.setTrialId(trialId);
     }
     return nextTierUp;
@@ -126,20 +193,44 @@ public class ZoomRecorder {
     }
   }
 
+  /**
+   * Returns how many data points each tier that has stored data holds, starting with the data
+   * points passed to this recorder, which make up the tier below it.
+   */
+  public long[] getTierPointCounts() {
+    long[] counts = new long[countTiers() - tier + 1];
+    counts[0] = pointsReceived;
+    ZoomRecorder recorder = this;
+    for (int i = 1; i < counts.length; i++) {
+      counts[i] = recorder.pointsWritten;
+      recorder = recorder.nextTierUp;
+    }
+    return counts;
+  }
+
+  /**
+   * Flushes this tier, and then each tier above it in turn, so that every tier includes a summary
+   * of the last data points added, and stores every staged data point. Only the tiers that were
+   * there before are flushed, as flushing the topmost tier starts another.
+   */
   public void flushAllTiers(RecordingDataController dc) {
-    if (nextTierUp != null) {
-      nextTierUp.flushAllTiers(dc);
-      nextTierUp = null;
+    flushTiers(dc);
+    storeStagedReadings(dc);
+  }
+
+  private void flushTiers(RecordingDataController dc) {
+    ZoomRecorder next = nextTierUp;
+    dataController = dc;
+    reducer.flush(output);
+    if (next != null) {
+      next.flushTiers(dc);
     }
-    flush(dc);
   }
 
+  /** Flushes this tier only, and stores every staged data point. */
   public void flush(RecordingDataController dc) {
-    if (seenThisPass > 0) {
-      // order of adding data to DB doesn't matter
-      addReadingAtThisTier(dc, timestampOfMinSeen, valueOfMinSeen);
-      addReadingAtThisTier(dc, timestampOfMaxSeen, valueOfMaxSeen);
-      resetBuffer();
-    }
+    dataController = dc;
+    reducer.flush(output);
+    storeStagedReadings(dc);
   }
 }
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Asks for summary statistics of the readings of one or more sensors, in one or more trials, such
+ * as the mean of a sensor in each trial of an experiment. See {@link
+ * SensorDatabase#getAggregates(AggregateQuery)}.
+ */
+public class AggregateQuery {
+  public enum Function {
+    MIN,
+    MAX,
+    SUM,
+    COUNT,
+    MEAN,
+    /** The value of the earliest reading. */
+    FIRST,
+    /** The value of the latest reading. */
+    LAST
+  }
+
+  /** The readings of one sensor in one trial, within a range of times. */
+  public static class Series {
+    private final String trialId;
+    private final String sensorTag;
+    private final Range<Long> times;
+
+    public Series(String trialId, String sensorTag, Range<Long> times) {
+      this.trialId = Preconditions.checkNotNull(trialId);
+      this.sensorTag = Preconditions.checkNotNull(sensorTag);
+      this.times = Preconditions.checkNotNull(times);
+    }
+
+    public String getTrialId() {
+      return trialId;
+    }
+
+    public String getSensorTag() {
+      return sensorTag;
+    }
+
+    public Range<Long> getTimes() {
+      return times;
+    }
+
+    /**
+     * Returns the time from which buckets are counted: the start of the range, or 0 if the range
+     * has no lower bound.
+     */
+    long getBucketOrigin() {
+      return times.hasLowerBound() ? times.lowerEndpoint() : 0;
+    }
+  }
+
+  private final List<Series> series;
+  private final Set<Function> functions;
+  private final long bucketWidthMillis;
+
+  public AggregateQuery(List<Series> series, Set<Function> functions) {
+    this(series, functions, 0);
+  }
+
+  /**
+   * @param bucketWidthMillis if more than 0, each series is split into buckets of this many
+   *     milliseconds, counted from the start of its range, and there is a result for each bucket
+   *     that has readings in it.
+   */
+  public AggregateQuery(List<Series> series, Set<Function> functions, long bucketWidthMillis) {
+    Preconditions.checkArgument(!functions.isEmpty(), "No aggregate functions requested");
+    Preconditions.checkArgument(bucketWidthMillis >= 0, "Negative bucket width");
+    this.series = Collections.unmodifiableList(series);
+    this.functions = Collections.unmodifiableSet(EnumSet.copyOf(functions));
+    this.bucketWidthMillis = bucketWidthMillis;
+  }
+
+  public List<Series> getSeries() {
+    return series;
+  }
+
+  public Set<Function> getFunctions() {
+    return functions;
+  }
+
+  public boolean isBucketed() {
+    return bucketWidthMillis > 0;
+  }
+
+  public long getBucketWidthMillis() {
+    return bucketWidthMillis;
+  }
+
+  /** Returns the start of the bucket that the given time falls in. */
+  long getBucketStart(Series series, long timestampMillis) {
+    long offset = timestampMillis - series.getBucketOrigin();
+    long bucket = offset / bucketWidthMillis;
+    if (offset < 0 && bucket * bucketWidthMillis != offset) {
+      // Round down, rather than towards zero.
+      bucket--;
+    }
+    return series.getBucketOrigin() + bucket * bucketWidthMillis;
+  }
+}
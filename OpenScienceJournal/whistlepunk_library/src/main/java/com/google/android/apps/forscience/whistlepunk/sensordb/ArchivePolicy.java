@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Says when the full-rate readings of a trial may be thrown away, keeping only the resolution tiers
+ * written by {@link com.google.android.apps.forscience.whistlepunk.sensorapi.ZoomRecorder}. Each
+ * reading in a tier above 0 is the minimum or maximum of a run of readings in the tier below, so
+ * the peaks of the trial survive archiving, at a fraction of the size. See {@link TrialArchiver}.
+ */
+public class ArchivePolicy {
+  public static final ArchivePolicy DEFAULT =
+      new ArchivePolicy(
+          TimeUnit.DAYS.toMillis(30), 1, ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+
+  private final long idleMillis;
+  private final int finestTier;
+  private final int zoomLevelBetweenTiers;
+
+  /**
+   * @param idleMillis how long after its last reading a trial is archived.
+   * @param finestTier the finest resolution tier to keep. All tiers below it are thrown away.
+   * @param zoomLevelBetweenTiers the ratio of readings between tiers, used to build the finest tier
+   *     for sensors whose data was stored without one, such as that of very old trials.
+   */
+  public ArchivePolicy(long idleMillis, int finestTier, int zoomLevelBetweenTiers) {
+    Preconditions.checkArgument(idleMillis >= 0, "Negative idle time");
+    Preconditions.checkArgument(finestTier > 0, "Archiving must drop at least tier 0");
+    Preconditions.checkArgument(zoomLevelBetweenTiers > 1, "Tiers must shrink");
+    this.idleMillis = idleMillis;
+    this.finestTier = finestTier;
+    this.zoomLevelBetweenTiers = zoomLevelBetweenTiers;
+  }
+
+  public long getIdleMillis() {
+    return idleMillis;
+  }
+
+  public int getFinestTier() {
+    return finestTier;
+  }
+
+  /**
+   * Returns how many readings of the given tier are summarized by each minimum and maximum pair in
+   * the finest tier, as they are by the tiers of a {@code ZoomRecorder}.
+   */
+  int getReadingsPerFinestPair(int fromTier) {
+    int readings = 2;
+    for (int tier = fromTier; tier < finestTier; tier++) {
+      readings *= zoomLevelBetweenTiers;
+    }
+    return readings;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Readings held in parallel arrays, without an object for each one. */
+class ArrayScalarReadingList implements ScalarReadingList {
+  private final long[] timestamps;
+  private final double[] values;
+  private final int size;
+
+  /** The first {@code size} entries of the arrays are the readings, in order. */
+  ArrayScalarReadingList(long[] timestamps, double[] values, int size) {
+    this.timestamps = timestamps;
+    this.values = values;
+    this.size = size;
+  }
+
+  @Override
+  public void deliver(StreamConsumer c) {
+    for (int i = 0; i < size; i++) {
+      c.addData(timestamps[i], values[i]);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public List<ChartData.DataPoint> asDataPoints() {
+    List<ChartData.DataPoint> result = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      result.add(new ChartData.DataPoint(timestamps[i], values[i]));
+    }
+    return result;
+  }
+}
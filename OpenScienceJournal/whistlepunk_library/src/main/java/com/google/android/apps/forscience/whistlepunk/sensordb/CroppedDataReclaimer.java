@@ -0,0 +1,214 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.common.collect.Range;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Deletes the sensor data of a trial that lies outside its crop range, writes the trial's snapshots
+ * again from what is left, and returns the freed space to the file system.
+ *
+ * <p>The work is split into small steps, each of which is a separate task on the executor, so that
+ * other work on the same executor (in particular, writing readings during a recording) never waits
+ * for more than one step.
+ *
+ * <p>Rows kept at the higher resolution tiers are all real readings from inside the crop range, but
+ * the summary points around the crop edges may have come from the data that was thrown away. So
+ * that every tier still reaches to the edges of the crop, the first and last readings inside the
+ * range are added to each tier.
+ */
+public class CroppedDataReclaimer implements Runnable {
+  @VisibleForTesting static final int RECORDS_PER_STEP = 500;
+
+  @VisibleForTesting static final int PAGES_PER_STEP = 64;
+
+  // How many steps of deletion to do before returning the freed pages.
+  private static final int DELETE_STEPS_PER_COMPACT = 8;
+
+  private enum Phase {
+    DELETE_BEFORE,
+    DELETE_AFTER,
+    REBUILD_EDGES,
+    FINALIZE,
+    COMPACT,
+    DONE
+  }
+
+  private final SensorDatabase db;
+  private final Executor executor;
+  private final String trialId;
+  private final List<String> sensorTags;
+  private final Range<Long> cropRange;
+  private final MaybeConsumer<Long> onReclaimed;
+
+  private Phase phase;
+  private int sensorIndex = 0;
+  private int deleteStepsSinceCompact = 0;
+  private long bytesReclaimed = 0;
+  // The size of the trial's snapshots before any of its data was deleted, or -1 before the first
+  // step.
+  private long snapshotBytesBefore = -1;
+
+  /**
+   * @param executor must be the only executor on which {@code db} is used.
+   * @param onReclaimed called on the executor with the number of bytes by which the database file
+   *     and the trial's snapshots shrank.
+   */
+  public CroppedDataReclaimer(
+      SensorDatabase db,
+      Executor executor,
+      String trialId,
+      List<String> sensorTags,
+      Range<Long> cropRange,
+      MaybeConsumer<Long> onReclaimed) {
+    this.db = db;
+    this.executor = executor;
+    this.trialId = trialId;
+    this.sensorTags = sensorTags;
+    this.cropRange = cropRange;
+    this.onReclaimed = onReclaimed;
+    phase = sensorTags.isEmpty() ? Phase.COMPACT : Phase.DELETE_BEFORE;
+  }
+
+  public void start() {
+    executor.execute(this);
+  }
+
+  @Override
+  public void run() {
+    try {
+      step();
+    } catch (Exception e) {
+      phase = Phase.DONE;
+      onReclaimed.fail(e);
+      return;
+    }
+    if (phase == Phase.DONE) {
+      onReclaimed.success(bytesReclaimed);
+    } else {
+      // Go to the back of the queue, behind anything that arrived during this step.
+      executor.execute(this);
+    }
+  }
+
+  @VisibleForTesting
+  boolean isDone() {
+    return phase == Phase.DONE;
+  }
+
+  private void step() {
+    if (snapshotBytesBefore < 0) {
+      snapshotBytesBefore = db.getSnapshotSizeBytes(trialId);
+    }
+    switch (phase) {
+      case DELETE_BEFORE:
+        if (deleteStep(Range.lessThan(cropRange.lowerEndpoint()))) {
+          phase = Phase.DELETE_AFTER;
+        }
+        break;
+      case DELETE_AFTER:
+        if (deleteStep(Range.greaterThan(cropRange.upperEndpoint()))) {
+          phase = Phase.REBUILD_EDGES;
+        }
+        break;
+      case REBUILD_EDGES:
+        rebuildEdges(sensorTags.get(sensorIndex));
+        sensorIndex++;
+        phase = sensorIndex < sensorTags.size() ? Phase.DELETE_BEFORE : Phase.FINALIZE;
+        break;
+      case FINALIZE:
+        // Deleting readings threw away the trial's snapshots, so make new ones.
+        if (db.finalizeTrialStep(trialId, RECORDS_PER_STEP)) {
+          // The snapshots of a trial that had none are new, rather than a change in size.
+          if (snapshotBytesBefore > 0) {
+            bytesReclaimed += snapshotBytesBefore - db.getSnapshotSizeBytes(trialId);
+          }
+          phase = Phase.COMPACT;
+        }
+        break;
+      case COMPACT:
+        if (compact() == 0) {
+          phase = Phase.DONE;
+        }
+        break;
+      case DONE:
+        break;
+    }
+  }
+
+  /** Returns true if there is nothing left to delete in the range. */
+  private boolean deleteStep(Range<Long> times) {
+    int deleted =
+        db.deleteScalarReadings(
+            trialId, sensorTags.get(sensorIndex), TimeRange.oldest(times), RECORDS_PER_STEP);
+    if (++deleteStepsSinceCompact >= DELETE_STEPS_PER_COMPACT) {
+      compact();
+    }
+    return deleted < RECORDS_PER_STEP;
+  }
+
+  private long compact() {
+    deleteStepsSinceCompact = 0;
+    long reclaimed = db.compact(PAGES_PER_STEP);
+    bytesReclaimed += reclaimed;
+    return reclaimed;
+  }
+
+  private void rebuildEdges(String sensorTag) {
+    TimeRange oldest = TimeRange.oldest(cropRange);
+    ScalarReading first = getEdgeReading(sensorTag, 0, oldest);
+    ScalarReading last = getEdgeReading(sensorTag, 0, TimeRange.newest(cropRange));
+    if (first == null) {
+      return;
+    }
+    for (int tier = 1; getEdgeReading(sensorTag, tier, oldest) != null; tier++) {
+      addIfMissing(sensorTag, tier, first);
+      if (last.getCollectedTimeMillis() != first.getCollectedTimeMillis()) {
+        addIfMissing(sensorTag, tier, last);
+      }
+    }
+  }
+
+  private void addIfMissing(String sensorTag, int tier, ScalarReading reading) {
+    long timestamp = reading.getCollectedTimeMillis();
+    if (getEdgeReading(sensorTag, tier, TimeRange.oldest(Range.singleton(timestamp))) == null) {
+      db.addScalarReading(trialId, sensorTag, tier, timestamp, reading.getValue());
+    }
+  }
+
+  /** Returns the first reading in the given order, or null if there are none. */
+  private ScalarReading getEdgeReading(String sensorTag, int tier, TimeRange range) {
+    ScalarReading[] result = new ScalarReading[1];
+    db.getScalarReadings(trialId, sensorTag, range, tier, 1)
+        .deliver(
+            new StreamConsumer() {
+              @Override
+              public boolean addData(long timestampMillis, double value) {
+                if (result[0] == null) {
+                  result[0] = new ScalarReading(timestampMillis, value, sensorTag);
+                }
+                return true;
+              }
+            });
+    return result[0];
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.android.apps.forscience.whistlepunk.sensordb.AggregateQuery.Function;
+import com.google.common.base.Preconditions;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Summary statistics of the readings of one series, or of one bucket of a series. */
+public class ScalarAggregate {
+  private final String trialId;
+  private final String sensorTag;
+  private final long bucketStartMillis;
+  private final Map<Function, Double> values = new EnumMap<>(Function.class);
+
+  /**
+   * @param first the value of the earliest reading, which is only used if {@link Function#FIRST}
+   *     was requested.
+   * @param last the value of the latest reading, which is only used if {@link Function#LAST} was
+   *     requested.
+   */
+  public ScalarAggregate(
+      String trialId,
+      String sensorTag,
+      long bucketStartMillis,
+      Set<Function> functions,
+      long count,
+      double min,
+      double max,
+      double sum,
+      double first,
+      double last) {
+    this.trialId = trialId;
+    this.sensorTag = sensorTag;
+    this.bucketStartMillis = bucketStartMillis;
+    boolean empty = count == 0;
+    for (Function function : functions) {
+      double value;
+      switch (function) {
+        case MIN:
+          value = empty ? Double.NaN : min;
+          break;
+        case MAX:
+          value = empty ? Double.NaN : max;
+          break;
+        case SUM:
+          value = sum;
+          break;
+        case COUNT:
+          value = count;
+          break;
+        case MEAN:
+          value = empty ? Double.NaN : sum / count;
+          break;
+        case FIRST:
+          value = empty ? Double.NaN : first;
+          break;
+        case LAST:
+          value = empty ? Double.NaN : last;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown function " + function);
+      }
+      values.put(function, value);
+    }
+  }
+
+  public String getTrialId() {
+    return trialId;
+  }
+
+  public String getSensorTag() {
+    return sensorTag;
+  }
+
+  /**
+   * Returns the start of the bucket, if the query was bucketed, or else the start of the range of
+   * the series (0 if it has no lower bound).
+   */
+  public long getBucketStartMillis() {
+    return bucketStartMillis;
+  }
+
+  /**
+   * Returns the value of a requested function. Every function but COUNT and SUM is NaN if there
+   * were no readings.
+   */
+  public double get(Function function) {
+    Preconditions.checkArgument(values.containsKey(function), "%s was not requested", function);
+    return values.get(function);
+  }
+
+  @Override
+  public String toString() {
+    return "ScalarAggregate{"
+        + "trialId='"
+        + trialId
+        + '\''
+        + ", sensorTag='"
+        + sensorTag
+        + '\''
+        + ", bucketStartMillis="
+        + bucketStartMillis
+        + ", values="
+        + values
+        + '}';
+  }
+}
@@ -20,8 +20,11 @@ import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.common.collect.Range;
 import io.reactivex.Observable;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Stores and retrieves sensor data from on-device storage. All access should be be from a single
@@ -62,11 +65,150 @@ public interface SensorDatabase {
    */
   String getFirstDatabaseTagAfter(long timestamp);
 
-  /** Deletes the scalar records for the given sensor for the given time range. */
+  /**
+   * Returns the series of readings stored for the given trial, one for each sensor and resolution
+   * tier with readings, without reading the readings themselves. Returns an empty list if the
+   * trial has been deleted.
+   */
+  List<SeriesSummary> getSeriesSummaries(String trialId);
+
+  /**
+   * Computes summary statistics of the given series in the database, without reading every
+   * reading. There is one result per series, in order, or, if the query is bucketed, one for each
+   * bucket with readings in it, in order of time.
+   */
+  List<ScalarAggregate> getAggregates(AggregateQuery query);
+
+  /** Stores a block of summary statistics, replacing any stored for the same block. */
+  void addStatsBlock(StatsBlock block);
+
+  /**
+   * Gets the stats blocks of the given sensor whose start times are in the given range, in order of
+   * time.
+   */
+  List<StatsBlock> getStatsBlocks(String trialId, String sensorTag, Range<Long> blockStarts);
+
+  /**
+   * Deletes the scalar records for the given sensor for the given time range, along with the stats
+   * blocks that start in it.
+   */
   void deleteScalarReadings(String trialId, String sensorTag, TimeRange range);
 
+  /**
+   * Deletes at most {@code maxRecords} of the scalar records, at any resolution tier, for the given
+   * sensor for the given time range. The stats blocks that start in the range are deleted too.
+   *
+   * @return the number of records deleted. If this is less than {@code maxRecords}, there are no
+   *     more records in the range.
+   */
+  int deleteScalarReadings(String trialId, String sensorTag, TimeRange range, int maxRecords);
+
+  /**
+   * Returns up to {@code maxPages} pages of free space in the database file to the file system.
+   * Does nothing unless {@link #isCompactionEnabled()}.
+   *
+   * @return the number of bytes by which the database file shrank.
+   */
+  long compact(int maxPages);
+
+  /**
+   * Returns true if {@link #compact(int)} can return free space. This is always true of databases
+   * created by this version of the app, and true of older ones once {@link #enableCompaction()} has
+   * been called.
+   */
+  boolean isCompactionEnabled();
+
+  /**
+   * Makes {@link #compact(int)} work on a database created by an older version of the app. This
+   * rewrites the whole database file in one go, so it should only be called when nothing is being
+   * recorded.
+   */
+  void enableCompaction();
+
+  /**
+   * Marks the given trials as deleted. From then on, none of their readings so far are returned,
+   * but they still take up space until removed by {@link #purgeDeletedTrials(int)}. Their stats
+   * blocks and other summaries are removed straight away. Readings added for a deleted trial id
+   * later, as when an experiment is moved back from another account, are kept.
+   */
+  void deleteTrials(Collection<String> trialIds);
+
+  /**
+   * Removes some of the readings of deleted trials, looking at no more than {@code maxRows} stored
+   * readings, so that a single call is quick however much data there is to remove.
+   *
+   * @return true if there is more to remove.
+   */
+  boolean purgeDeletedTrials(int maxRows);
+
+  /**
+   * Returns the ids of the trials whose last reading is before {@code lastReadingBeforeMillis} and
+   * which still keep readings below {@code finestTier}. Deleted trials are left out.
+   */
+  List<String> getIdleTrialIds(long lastReadingBeforeMillis, int finestTier);
+
+  /**
+   * Returns the finest resolution tier kept for the trial: 0, unless it has been archived by
+   * {@link #setFinestTier(String, int)}.
+   */
+  int getFinestTier(String trialId);
+
+  /**
+   * Marks the readings of the trial below {@code finestTier} as thrown away. From then on, requests
+   * for readings of the trial at a finer tier get those of {@code finestTier} instead, and exports
+   * of the trial hold that tier. The readings themselves are removed by {@link
+   * #deleteReadingsBelowFinestTier(String, int)}.
+   */
+  void setFinestTier(String trialId, int finestTier);
+
+  /**
+   * Deletes at most {@code maxRecords} of the readings of the trial below its finest tier.
+   *
+   * @return the number of records deleted. If this is less than {@code maxRecords}, there are no
+   *     more records below the finest tier.
+   */
+  int deleteReadingsBelowFinestTier(String trialId, int maxRecords);
+
+  /**
+   * Stores how the readings of a sensor that only reports changes were held in a trial, replacing
+   * any hold stored for the same sensor and trial. It is dropped with the trial, or if the readings
+   * it ends at are deleted.
+   */
+  void setSeriesHold(SeriesHold hold);
+
+  /** Returns how the readings of the sensor were held in the trial, or null if they were not. */
+  SeriesHold getSeriesHold(String trialId, String sensorTag);
+
+  /**
+   * Copies the readings of a trial that has finished recording into read-only snapshots, from
+   * which later reads of the trial are served without querying the stored readings. Any later
+   * change to the trial's readings throws its snapshots away, until it is finalized again.
+   */
+  void finalizeTrial(String trialId);
+
+  /**
+   * Does part of the work of {@link #finalizeTrial}, writing at most {@code maxRecords} readings,
+   * so that other work can be done between steps. The snapshots are only used once every step is
+   * done; a change to the trial's readings part way through means starting over.
+   *
+   * @return true if the trial is finalized, or could not be.
+   */
+  boolean finalizeTrialStep(String trialId, int maxRecords);
+
+  /** Returns the size of the snapshot files of the trial, or 0 if it is not finalized. */
+  long getSnapshotSizeBytes(String trialId);
+
+  /**
+   * Creates an observable of the readings of the sensors in the range, in order of time. Readings
+   * in snapshots are read on the subscribing thread. Otherwise each page of readings is queried as
+   * a separate task on {@code queryExecutor}, which must not be the subscribing thread.
+   */
   Observable<ScalarReading> createScalarObservable(
-      String trialId, String[] sensorTags, TimeRange range, int resolutionTier);
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier,
+      Executor queryExecutor);
 
   /**
    * Get a proto that contains all of the sensor data for the given experiment. Primarily used for
@@ -19,8 +19,11 @@ package com.google.android.apps.forscience.whistlepunk.sensordb;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 import androidx.annotation.VisibleForTesting;
 import androidx.core.util.Pair;
 import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
@@ -31,8 +34,7 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSenso
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
-import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
-import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.BoundType;
@@ -41,16 +43,42 @@ import com.google.common.collect.Range;
 import io.reactivex.Observable;
 import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class SensorDatabaseImpl implements SensorDatabase {
+  private static final String TAG = "SensorDatabaseImpl";
+  // Names the files of snapshots that are still being written.
+  private static final String PENDING_SNAPSHOT_PREFIX = "pending-";
+
   private static class DbVersions {
     public static final int V1_START = 1;
     public static final int V2_INDEX = 2;
     public static final int V3_TIER = 3;
     public static final int V4_TRIALID = 4;
-    public static final int CURRENT = V4_TRIALID;
+    public static final int V5_DELETED_TRIALS = 5;
+    public static final int V6_STATS_BLOCKS = 6;
+    public static final int V7_SERIES = 7;
+    public static final int V8_ARCHIVED_TRIALS = 8;
+    public static final int V9_SNAPSHOTS = 9;
+    public static final int V10_SERIES_HOLDS = 10;
+    public static final int V11_BLOCK_QUANTILES = 11;
+    public static final int V12_TOMBSTONE_ROWIDS = 12;
+    public static final int CURRENT = V12_TOMBSTONE_ROWIDS;
   }
 
   private static class ScalarSensorsTable {
@@ -83,18 +111,381 @@ public class SensorDatabaseImpl implements SensorDatabase {
 
     public static final String INDEX_SQL =
         "CREATE INDEX timestamp ON " + NAME + "(" + Column.TIMESTAMP_MILLIS + ");";
+
+    public static final String INSERT_SQL =
+        "INSERT INTO "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + ", "
+            + Column.TIMESTAMP_MILLIS
+            + ", "
+            + Column.VALUE
+            + ", "
+            + Column.RESOLUTION_TIER
+            + ") VALUES (?, ?, ?, ?, ?)";
+  }
+
+  /**
+   * Trials that have been deleted, but whose readings may not all have been removed from {@link
+   * ScalarSensorsTable} yet. Readings of these trials up to the largest rowid at the time of the
+   * delete are never returned. Later readings, as when an experiment is moved back from another
+   * account, are kept.
+   */
+  private static class DeletedTrialsTable {
+    public static final String NAME = "deleted_trials";
+
+    public static class Column {
+      public static final String TRIAL_ID = "trialId";
+      public static final String DELETED_THROUGH_ROWID = "deletedThroughRowid";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + " TEXT PRIMARY KEY, "
+            + Column.DELETED_THROUGH_ROWID
+            + " INTEGER NOT NULL);";
+
+    public static final String SELECT_SQL =
+        "SELECT " + Column.TRIAL_ID + ", " + Column.DELETED_THROUGH_ROWID + " FROM " + NAME;
+
+    // Selects the last deleted rowid of the trial bound to the argument, or no row.
+    public static final String SELECT_DELETED_THROUGH_SQL =
+        "SELECT "
+            + Column.DELETED_THROUGH_ROWID
+            + " FROM "
+            + NAME
+            + " WHERE "
+            + Column.TRIAL_ID
+            + " = ?";
+  }
+
+  /** Summary statistics of fixed-width blocks of tier 0 readings, see {@link StatsBlock}. */
+  private static class StatsBlocksTable {
+    public static final String NAME = "stats_blocks";
+
+    public static class Column {
+      public static final String TRIAL_ID = "trialId";
+      public static final String TAG = "tag";
+      public static final String BLOCK_START_MILLIS = "blockStartMillis";
+      public static final String FIRST_TIMESTAMP_MILLIS = "firstTimestampMillis";
+      public static final String LAST_TIMESTAMP_MILLIS = "lastTimestampMillis";
+      public static final String COUNT = "count";
+      public static final String MIN = "min";
+      public static final String MAX = "max";
+      public static final String SUM = "sum";
+      public static final String SUM_OF_SQUARED_DEVIATIONS = "sumOfSquaredDeviations";
+      public static final String QUANTILES = "quantiles";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + " TEXT NOT NULL, "
+            + Column.TAG
+            + " TEXT NOT NULL, "
+            + Column.BLOCK_START_MILLIS
+            + " INTEGER NOT NULL, "
+            + Column.FIRST_TIMESTAMP_MILLIS
+            + " INTEGER, "
+            + Column.LAST_TIMESTAMP_MILLIS
+            + " INTEGER, "
+            + Column.COUNT
+            + " INTEGER, "
+            + Column.MIN
+            + " REAL, "
+            + Column.MAX
+            + " REAL, "
+            + Column.SUM
+            + " REAL, "
+            + Column.SUM_OF_SQUARED_DEVIATIONS
+            + " REAL, "
+            + Column.QUANTILES
+            + " BLOB, PRIMARY KEY ("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + ", "
+            + Column.BLOCK_START_MILLIS
+            + "));";
+
+    public static final String[] COLUMNS = {
+      Column.BLOCK_START_MILLIS,
+      Column.FIRST_TIMESTAMP_MILLIS,
+      Column.LAST_TIMESTAMP_MILLIS,
+      Column.COUNT,
+      Column.MIN,
+      Column.MAX,
+      Column.SUM,
+      Column.SUM_OF_SQUARED_DEVIATIONS,
+      Column.QUANTILES
+    };
+  }
+
+  /**
+   * One row for each series of readings in {@link ScalarSensorsTable}, that is, for each trial, tag
+   * and resolution tier, with the times of its first and last readings and how many there are. It
+   * is updated in the same transaction as the readings, so finding which series exist never needs
+   * to look at the readings themselves.
+   */
+  private static class SeriesTable {
+    public static final String NAME = "series";
+
+    public static class Column {
+      public static final String TRIAL_ID = "trialId";
+      public static final String TAG = "tag";
+      public static final String RESOLUTION_TIER = "resolutionTier";
+      public static final String FIRST_TIMESTAMP_MILLIS = "firstTimestampMillis";
+      public static final String LAST_TIMESTAMP_MILLIS = "lastTimestampMillis";
+      public static final String COUNT = "count";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + " TEXT NOT NULL, "
+            + Column.TAG
+            + " TEXT, "
+            + Column.RESOLUTION_TIER
+            + " INTEGER NOT NULL, "
+            + Column.FIRST_TIMESTAMP_MILLIS
+            + " INTEGER, "
+            + Column.LAST_TIMESTAMP_MILLIS
+            + " INTEGER, "
+            + Column.COUNT
+            + " INTEGER, PRIMARY KEY ("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + ", "
+            + Column.RESOLUTION_TIER
+            + "));";
+
+    public static final String[] COLUMNS = {
+      Column.TRIAL_ID,
+      Column.TAG,
+      Column.RESOLUTION_TIER,
+      Column.FIRST_TIMESTAMP_MILLIS,
+      Column.LAST_TIMESTAMP_MILLIS,
+      Column.COUNT
+    };
+
+    // Fills the table from the readings of a database created before it existed.
+    public static final String POPULATE_SQL =
+        "INSERT INTO "
+            + NAME
+            + " ("
+            + Joiner.on(", ").join(COLUMNS)
+            + ") SELECT "
+            + ScalarSensorsTable.Column.TRIAL_ID
+            + ", "
+            + ScalarSensorsTable.Column.TAG
+            + ", "
+            + ScalarSensorsTable.Column.RESOLUTION_TIER
+            + ", MIN("
+            + ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + "), MAX("
+            + ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + "), COUNT(*) FROM "
+            + ScalarSensorsTable.NAME
+            + " GROUP BY 1, 2, 3;";
+
+    public static final String KEY_SELECTION =
+        Column.TRIAL_ID + " = ? AND " + Column.TAG + " = ? AND " + Column.RESOLUTION_TIER + " = ?";
+
+    // Android's SQLite has no upsert, so a new series is inserted when this changes nothing.
+    public static final String ADD_SQL =
+        "UPDATE "
+            + NAME
+            + " SET "
+            + Column.FIRST_TIMESTAMP_MILLIS
+            + " = MIN("
+            + Column.FIRST_TIMESTAMP_MILLIS
+            + ", ?), "
+            + Column.LAST_TIMESTAMP_MILLIS
+            + " = MAX("
+            + Column.LAST_TIMESTAMP_MILLIS
+            + ", ?), "
+            + Column.COUNT
+            + " = "
+            + Column.COUNT
+            + " + ? WHERE "
+            + KEY_SELECTION;
+  }
+
+  /**
+   * Trials whose readings below a resolution tier have been thrown away, see {@link
+   * SensorDatabase#setFinestTier(String, int)}. Trials that are not here keep every tier.
+   */
+  private static class ArchivedTrialsTable {
+    public static final String NAME = "archived_trials";
+
+    public static class Column {
+      public static final String TRIAL_ID = "trialId";
+      public static final String FINEST_TIER = "finestTier";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + " TEXT PRIMARY KEY, "
+            + Column.FINEST_TIER
+            + " INTEGER NOT NULL);";
+  }
+
+  /**
+   * The series of finalized trials that have a {@link SeriesSnapshot}. The snapshot of each is in
+   * the snapshot directory, named after the row's id.
+   */
+  private static class SnapshotsTable {
+    public static final String NAME = "snapshots";
+
+    public static class Column {
+      public static final String ID = "_id";
+      public static final String TRIAL_ID = "trialId";
+      public static final String TAG = "tag";
+      public static final String RESOLUTION_TIER = "resolutionTier";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.ID
+            + " INTEGER PRIMARY KEY, "
+            + Column.TRIAL_ID
+            + " TEXT NOT NULL, "
+            + Column.TAG
+            + " TEXT NOT NULL, "
+            + Column.RESOLUTION_TIER
+            + " INTEGER NOT NULL, UNIQUE("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + ", "
+            + Column.RESOLUTION_TIER
+            + "));";
+  }
+
+  /**
+   * How the tier 0 readings of sensors that only report changes were held, see {@link SeriesHold}.
+   * Sensors that are not here were shown with their readings alone.
+   */
+  private static class SeriesHoldsTable {
+    public static final String NAME = "series_holds";
+
+    public static class Column {
+      public static final String TRIAL_ID = "trialId";
+      public static final String TAG = "tag";
+      public static final String INTERVAL_MILLIS = "intervalMillis";
+      public static final String HELD_UNTIL_MILLIS = "heldUntilMillis";
+    }
+
+    public static final String CREATION_SQL =
+        "CREATE TABLE "
+            + NAME
+            + " ("
+            + Column.TRIAL_ID
+            + " TEXT NOT NULL, "
+            + Column.TAG
+            + " TEXT NOT NULL, "
+            + Column.INTERVAL_MILLIS
+            + " INTEGER NOT NULL, "
+            + Column.HELD_UNTIL_MILLIS
+            + " INTEGER NOT NULL, PRIMARY KEY ("
+            + Column.TRIAL_ID
+            + ", "
+            + Column.TAG
+            + "));";
+
+    public static final String KEY_SELECTION = Column.TRIAL_ID + " = ? AND " + Column.TAG + " = ?";
+  }
+
+  /** The readings added to one series by a single call. */
+  private static class SeriesAddition {
+    final String trialId;
+    final String tag;
+    final int resolutionTier;
+    long firstTimestampMillis = Long.MAX_VALUE;
+    long lastTimestampMillis = Long.MIN_VALUE;
+    long count = 0;
+
+    SeriesAddition(String trialId, String tag, int resolutionTier) {
+      this.trialId = trialId;
+      this.tag = tag;
+      this.resolutionTier = resolutionTier;
+    }
+
+    void add(long timestampMillis) {
+      firstTimestampMillis = Math.min(firstTimestampMillis, timestampMillis);
+      lastTimestampMillis = Math.max(lastTimestampMillis, timestampMillis);
+      count++;
+    }
   }
 
+  // Value of PRAGMA auto_vacuum for which freed pages can be returned on demand.
+  private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+  // How many ranges of time getAggregates reads in one query. SQLite limits how deep an expression
+  // can be, and each range adds a level.
+  private static final int MAX_RANGES_PER_AGGREGATE_QUERY = 100;
+
   private final SQLiteOpenHelper openHelper;
 
+  // The statements that add readings, compiled once for the database they were compiled against
+  // rather than for every write. Only used on the thread that writes readings.
+  private SQLiteDatabase addStatementsDb = null;
+  private SQLiteStatement insertReadingStatement = null;
+  private SQLiteStatement addToSeriesStatement = null;
+
+  // Progress of the current pass of purgeDeletedTrials over the rowids of ScalarSensorsTable. The
+  // pass removes the tombstones of purgingTrials, by trial id and last deleted rowid, when it has
+  // reached the last deleted rowid of every tombstone.
+  private long purgedThroughRowid = 0;
+  private Map<String, Long> purgingTrials = null;
+
+  private final File snapshotDir;
+  // The ids of the snapshots of each finalized trial, by sensor tag and tier. Loaded when first
+  // needed, and kept in step with SnapshotsTable, so that reads of trials without snapshots cost
+  // no query to find out. The caches are guarded by snapshotLock, as snapshots are read on
+  // whichever thread subscribes to createScalarObservable.
+  private final Object snapshotLock = new Object();
+  private Map<String, Map<List<Object>, Long>> snapshotIds = null;
+  private final Map<Long, SeriesSnapshot> openSnapshots = new HashMap<>();
+  // The snapshots that finalizeTrialStep is part way through writing, by trial id.
+  private final Map<String, PendingSnapshots> pendingSnapshots = new HashMap<>();
+  private long nextPendingFileNumber = 0;
+
   public SensorDatabaseImpl(Context context, AppAccount appAccount, String name) {
+    String fileName = appAccount.getDatabaseFileName(name);
+    snapshotDir =
+        new File(context.getDatabasePath(fileName).getParentFile(), fileName + "-snapshots");
     openHelper =
-        new SQLiteOpenHelper(
-            context, appAccount.getDatabaseFileName(name), null, DbVersions.CURRENT) {
+        new SQLiteOpenHelper(context, fileName, null, DbVersions.CURRENT) {
+          private boolean created = false;
+
           @Override
           public void onCreate(SQLiteDatabase db) {
+            created = true;
             db.execSQL(ScalarSensorsTable.CREATION_SQL);
             db.execSQL(ScalarSensorsTable.INDEX_SQL);
+            db.execSQL(DeletedTrialsTable.CREATION_SQL);
+            db.execSQL(StatsBlocksTable.CREATION_SQL);
+            db.execSQL(SeriesTable.CREATION_SQL);
+            db.execSQL(ArchivedTrialsTable.CREATION_SQL);
+            db.execSQL(SnapshotsTable.CREATION_SQL);
+            db.execSQL(SeriesHoldsTable.CREATION_SQL);
           }
 
           @Override
@@ -122,6 +513,82 @@ public class SensorDatabaseImpl implements SensorDatabase {
                         + " TEXT DEFAULT 0 NOT NULL;");
                 oldVersion = DbVersions.V4_TRIALID;
               }
+              if (oldVersion == DbVersions.V4_TRIALID) {
+                db.execSQL(DeletedTrialsTable.CREATION_SQL);
+                oldVersion = DbVersions.V5_DELETED_TRIALS;
+              }
+              if (oldVersion == DbVersions.V5_DELETED_TRIALS) {
+                // Existing trials have no blocks, so their stats are found from their readings.
+                db.execSQL(StatsBlocksTable.CREATION_SQL);
+                oldVersion = DbVersions.V6_STATS_BLOCKS;
+              }
+              if (oldVersion == DbVersions.V6_STATS_BLOCKS) {
+                // One pass over the readings, the only time the table is built from them.
+                db.execSQL(SeriesTable.CREATION_SQL);
+                db.execSQL(SeriesTable.POPULATE_SQL);
+                oldVersion = DbVersions.V7_SERIES;
+              }
+              if (oldVersion == DbVersions.V7_SERIES) {
+                db.execSQL(ArchivedTrialsTable.CREATION_SQL);
+                oldVersion = DbVersions.V8_ARCHIVED_TRIALS;
+              }
+              if (oldVersion == DbVersions.V8_ARCHIVED_TRIALS) {
+                db.execSQL(SnapshotsTable.CREATION_SQL);
+                oldVersion = DbVersions.V9_SNAPSHOTS;
+              }
+              if (oldVersion == DbVersions.V9_SNAPSHOTS) {
+                // Existing trials stored every repeat of their held readings, so have no holds.
+                db.execSQL(SeriesHoldsTable.CREATION_SQL);
+                oldVersion = DbVersions.V10_SERIES_HOLDS;
+              }
+              if (oldVersion == DbVersions.V10_SERIES_HOLDS) {
+                // Existing blocks have no quantiles, so crops that use them lose the median.
+                db.execSQL(
+                    "ALTER TABLE "
+                        + StatsBlocksTable.NAME
+                        + " ADD COLUMN "
+                        + StatsBlocksTable.Column.QUANTILES
+                        + " BLOB;");
+                oldVersion = DbVersions.V11_BLOCK_QUANTILES;
+              }
+              if (oldVersion == DbVersions.V11_BLOCK_QUANTILES) {
+                // Existing tombstones cover every reading stored so far, and the summaries of
+                // their trials go now, as they do for trials deleted from here on.
+                db.execSQL(
+                    "ALTER TABLE "
+                        + DeletedTrialsTable.NAME
+                        + " RENAME TO "
+                        + DeletedTrialsTable.NAME
+                        + "_old;");
+                db.execSQL(DeletedTrialsTable.CREATION_SQL);
+                db.execSQL(
+                    "INSERT INTO "
+                        + DeletedTrialsTable.NAME
+                        + " SELECT "
+                        + DeletedTrialsTable.Column.TRIAL_ID
+                        + ", (SELECT IFNULL(MAX(rowid), 0) FROM "
+                        + ScalarSensorsTable.NAME
+                        + ") FROM "
+                        + DeletedTrialsTable.NAME
+                        + "_old;");
+                db.execSQL("DROP TABLE " + DeletedTrialsTable.NAME + "_old;");
+                for (String trialId : getDeletedTrials(db).keySet()) {
+                  deleteTrialSummaries(db, trialId);
+                }
+                oldVersion = DbVersions.V12_TOMBSTONE_ROWIDS;
+              }
+            }
+          }
+
+          @Override
+          public void onOpen(SQLiteDatabase db) {
+            if (created) {
+              // auto_vacuum only takes effect through a VACUUM once any table exists, which is
+              // already the case in onCreate. The new database is empty, so this one is instant.
+              // Older databases are converted by enableCompaction.
+              created = false;
+              db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+              db.execSQL("VACUUM");
             }
           }
         };
@@ -129,34 +596,189 @@ public class SensorDatabaseImpl implements SensorDatabase {
 
   @Override
   public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+    long startNanos = System.nanoTime();
     SQLiteDatabase db = openHelper.getWritableDatabase();
+    compileAddStatements(db);
+    Map<List<Object>, SeriesAddition> additions = new HashMap<>();
     try {
       db.beginTransaction();
       for (BatchInsertScalarReading r : readings) {
-        ContentValues values = new ContentValues();
-        values.put(ScalarSensorsTable.Column.TRIAL_ID, r.trialId);
-        values.put(ScalarSensorsTable.Column.TAG, r.sensorId);
-        values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, r.timestampMillis);
-        values.put(ScalarSensorsTable.Column.VALUE, r.value);
-        values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, r.resolutionTier);
-        db.insert(ScalarSensorsTable.NAME, null, values);
+        insertReadingStatement.bindString(1, r.trialId);
+        insertReadingStatement.bindString(2, r.sensorId);
+        insertReadingStatement.bindLong(3, r.timestampMillis);
+        insertReadingStatement.bindDouble(4, r.value);
+        insertReadingStatement.bindLong(5, r.resolutionTier);
+        insertReadingStatement.executeInsert();
+        List<Object> key = Arrays.asList(r.trialId, r.sensorId, r.resolutionTier);
+        SeriesAddition addition = additions.get(key);
+        if (addition == null) {
+          addition = new SeriesAddition(r.trialId, r.sensorId, r.resolutionTier);
+          additions.put(key, addition);
+        }
+        addition.add(r.timestampMillis);
+      }
+      // A batch usually holds a few series, so this is a few statements however big it is.
+      Set<String> trialIds = new HashSet<>();
+      for (SeriesAddition addition : additions.values()) {
+        addToSeries(db, addition);
+        if (trialIds.add(addition.trialId)) {
+          dropSnapshots(db, addition.trialId);
+        }
       }
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
     }
+    PerfMetrics metrics = PerfMetrics.getInstance();
+    metrics.recordNanosSince(PerfMetrics.DATABASE_BATCH_INSERT, startNanos);
+    metrics.record(PerfMetrics.DATABASE_BATCH_SIZE, readings.size());
   }
 
   @Override
   public void addScalarReading(
       String trialId, String sourceTag, int resolutionTier, long timestampMillis, double value) {
+    addScalarReadings(
+        Collections.singletonList(
+            new BatchInsertScalarReading(
+                trialId, sourceTag, resolutionTier, timestampMillis, value)));
+  }
+
+  private void compileAddStatements(SQLiteDatabase db) {
+    if (addStatementsDb == db) {
+      return;
+    }
+    if (addStatementsDb != null) {
+      insertReadingStatement.close();
+      addToSeriesStatement.close();
+    }
+    insertReadingStatement = db.compileStatement(ScalarSensorsTable.INSERT_SQL);
+    addToSeriesStatement = db.compileStatement(SeriesTable.ADD_SQL);
+    addStatementsDb = db;
+  }
+
+  private void addToSeries(SQLiteDatabase db, SeriesAddition addition) {
+    SQLiteStatement update = addToSeriesStatement;
+    update.bindLong(1, addition.firstTimestampMillis);
+    update.bindLong(2, addition.lastTimestampMillis);
+    update.bindLong(3, addition.count);
+    update.bindString(4, addition.trialId);
+    update.bindString(5, addition.tag);
+    update.bindLong(6, addition.resolutionTier);
+    if (update.executeUpdateDelete() == 0) {
+      ContentValues values = new ContentValues();
+      values.put(SeriesTable.Column.TRIAL_ID, addition.trialId);
+      values.put(SeriesTable.Column.TAG, addition.tag);
+      values.put(SeriesTable.Column.RESOLUTION_TIER, addition.resolutionTier);
+      values.put(SeriesTable.Column.FIRST_TIMESTAMP_MILLIS, addition.firstTimestampMillis);
+      values.put(SeriesTable.Column.LAST_TIMESTAMP_MILLIS, addition.lastTimestampMillis);
+      values.put(SeriesTable.Column.COUNT, addition.count);
+      db.insert(SeriesTable.NAME, null, values);
+    }
+  }
+
+  @Override
+  public void addStatsBlock(StatsBlock block) {
     ContentValues values = new ContentValues();
-    values.put(ScalarSensorsTable.Column.TRIAL_ID, trialId);
-    values.put(ScalarSensorsTable.Column.TAG, sourceTag);
-    values.put(ScalarSensorsTable.Column.TIMESTAMP_MILLIS, timestampMillis);
-    values.put(ScalarSensorsTable.Column.VALUE, value);
-    values.put(ScalarSensorsTable.Column.RESOLUTION_TIER, resolutionTier);
-    openHelper.getWritableDatabase().insert(ScalarSensorsTable.NAME, null, values);
+    values.put(StatsBlocksTable.Column.TRIAL_ID, block.getTrialId());
+    values.put(StatsBlocksTable.Column.TAG, block.getSensorTag());
+    values.put(StatsBlocksTable.Column.BLOCK_START_MILLIS, block.getBlockStartMillis());
+    values.put(StatsBlocksTable.Column.FIRST_TIMESTAMP_MILLIS, block.getFirstTimestampMillis());
+    values.put(StatsBlocksTable.Column.LAST_TIMESTAMP_MILLIS, block.getLastTimestampMillis());
+    values.put(StatsBlocksTable.Column.COUNT, block.getCount());
+    values.put(StatsBlocksTable.Column.MIN, block.getMin());
+    values.put(StatsBlocksTable.Column.MAX, block.getMax());
+    values.put(StatsBlocksTable.Column.SUM, block.getSum());
+    values.put(
+        StatsBlocksTable.Column.SUM_OF_SQUARED_DEVIATIONS, block.getSumOfSquaredDeviations());
+    values.put(StatsBlocksTable.Column.QUANTILES, encodeDoubles(block.getQuantiles()));
+    openHelper
+        .getWritableDatabase()
+        .insertWithOnConflict(
+            StatsBlocksTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  @Override
+  public List<StatsBlock> getStatsBlocks(
+      String trialId, String sensorTag, Range<Long> blockStarts) {
+    Pair<String, String[]> selectionAndArgs =
+        getStatsBlockSelectionAndArgs(trialId, sensorTag, blockStarts);
+    List<StatsBlock> blocks = new ArrayList<>();
+    try (Cursor cursor =
+        openHelper
+            .getReadableDatabase()
+            .query(
+                StatsBlocksTable.NAME,
+                StatsBlocksTable.COLUMNS,
+                selectionAndArgs.first,
+                selectionAndArgs.second,
+                null,
+                null,
+                StatsBlocksTable.Column.BLOCK_START_MILLIS + " ASC")) {
+      while (cursor.moveToNext()) {
+        blocks.add(
+            new StatsBlock(
+                trialId,
+                sensorTag,
+                cursor.getLong(0),
+                cursor.getLong(1),
+                cursor.getLong(2),
+                cursor.getInt(3),
+                cursor.getDouble(4),
+                cursor.getDouble(5),
+                cursor.getDouble(6),
+                cursor.getDouble(7),
+                cursor.isNull(8) ? null : decodeDoubles(cursor.getBlob(8))));
+      }
+    }
+    return blocks;
+  }
+
+  private static byte[] encodeDoubles(double[] values) {
+    ByteBuffer buffer = ByteBuffer.allocate(values.length * Double.BYTES);
+    buffer.asDoubleBuffer().put(values);
+    return buffer.array();
+  }
+
+  private static double[] decodeDoubles(byte[] bytes) {
+    double[] values = new double[bytes.length / Double.BYTES];
+    ByteBuffer.wrap(bytes).asDoubleBuffer().get(values);
+    return values;
+  }
+
+  private static Pair<String, String[]> getStatsBlockSelectionAndArgs(
+      String trialId, String sensorTag, Range<Long> blockStarts) {
+    List<String> clauses = new ArrayList<>();
+    List<String> values = new ArrayList<>();
+    clauses.add(StatsBlocksTable.Column.TRIAL_ID + " = ?");
+    values.add(Preconditions.checkNotNull(trialId));
+    clauses.add(StatsBlocksTable.Column.TAG + " = ?");
+    values.add(sensorTag);
+    Range<Long> canonicalStarts = blockStarts.canonical(DiscreteDomain.longs());
+    if (canonicalStarts.hasLowerBound()) {
+      String comparator = (canonicalStarts.lowerBoundType() == BoundType.CLOSED) ? " >= ?" : " > ?";
+      clauses.add(StatsBlocksTable.Column.BLOCK_START_MILLIS + comparator);
+      values.add(String.valueOf(canonicalStarts.lowerEndpoint()));
+    }
+    if (canonicalStarts.hasUpperBound()) {
+      String comparator = (canonicalStarts.upperBoundType() == BoundType.CLOSED) ? " <= ?" : " < ?";
+      clauses.add(StatsBlocksTable.Column.BLOCK_START_MILLIS + comparator);
+      values.add(String.valueOf(canonicalStarts.upperEndpoint()));
+    }
+    return new Pair<>(Joiner.on(" AND ").join(clauses), values.toArray(new String[values.size()]));
+  }
+
+  private void deleteStatsBlocks(String trialId, String sensorTag, Range<Long> blockStarts) {
+    Pair<String, String[]> selectionAndArgs =
+        getStatsBlockSelectionAndArgs(trialId, sensorTag, blockStarts);
+    openHelper
+        .getWritableDatabase()
+        .delete(StatsBlocksTable.NAME, selectionAndArgs.first, selectionAndArgs.second);
+  }
+
+  private static String[] appendArg(String[] args, String arg) {
+    String[] result = Arrays.copyOf(args, args.length + 1);
+    result[args.length] = arg;
+    return result;
   }
 
   /**
@@ -192,6 +814,9 @@ public class SensorDatabaseImpl implements SensorDatabase {
 
     clauses.add(ScalarSensorsTable.Column.TRIAL_ID + " = ?");
     values.add(Preconditions.checkNotNull(trialId));
+    // The subquery does not depend on the row, so it is evaluated once per query.
+    clauses.add("rowid > IFNULL((" + DeletedTrialsTable.SELECT_DELETED_THROUGH_SQL + "), 0)");
+    values.add(trialId);
 
     if (resolutionTier >= 0) {
       clauses.add(ScalarSensorsTable.Column.RESOLUTION_TIER + " = ?");
@@ -217,6 +842,12 @@ public class SensorDatabaseImpl implements SensorDatabase {
   @Override
   public ScalarReadingList getScalarReadings(
       String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords) {
+    ScalarReadingList snapshotReadings =
+        readSnapshot(trialId, sensorTag, range, resolutionTier, maxRecords);
+    if (snapshotReadings != null) {
+      return snapshotReadings;
+    }
+    long startNanos = System.nanoTime();
     try (Cursor cursor =
         getCursor(trialId, new String[] {sensorTag}, range, resolutionTier, maxRecords)) {
       if (cursor.getCount() == 0) {
@@ -233,7 +864,31 @@ public class SensorDatabaseImpl implements SensorDatabase {
       } else {
         return cursorAsScalarReadingList(cursor, maxRecords);
       }
+    } finally {
+      PerfMetrics.getInstance().recordNanosSince(PerfMetrics.DATABASE_READ, startNanos);
+    }
+  }
+
+  /**
+   * Reads from the snapshot of the series, if the trial has been finalized.
+   *
+   * @return null if there is no snapshot, or no readings in the range. The database is then read
+   *     instead, which may fall back to readings stored before trial ids.
+   */
+  private ScalarReadingList readSnapshot(
+      String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords) {
+    if (resolutionTier < 0 || !hasSnapshots(trialId)) {
+      return null;
     }
+    SeriesSnapshot snapshot =
+        getSnapshot(trialId, sensorTag, getReadableTier(trialId, resolutionTier));
+    if (snapshot == null) {
+      return null;
+    }
+    long startNanos = System.nanoTime();
+    ScalarReadingList readings = snapshot.read(range, maxRecords);
+    PerfMetrics.getInstance().recordNanosSince(PerfMetrics.SNAPSHOT_READ, startNanos);
+    return readings.size() > 0 ? readings : null;
   }
 
   private ScalarReadingList cursorAsScalarReadingList(Cursor cursor, int maxRecords) {
@@ -246,35 +901,17 @@ public class SensorDatabaseImpl implements SensorDatabase {
       readValues[i] = cursor.getDouble(1);
       i++;
     }
-    final int actualCount = i;
-    return new ScalarReadingList() {
-      @Override
-      public void deliver(StreamConsumer c) {
-        for (int i = 0; i < actualCount; i++) {
-          c.addData(readTimestamps[i], readValues[i]);
-        }
-      }
-
-      @Override
-      public int size() {
-        return actualCount;
-      }
-
-      @Override
-      public List<ChartData.DataPoint> asDataPoints() {
-        List<ChartData.DataPoint> result = new ArrayList<>();
-        for (int i = 0; i < actualCount; i++) {
-          result.add(new ChartData.DataPoint(readTimestamps[i], readValues[i]));
-        }
-        return result;
-      }
-    };
+    return new ArrayScalarReadingList(readTimestamps, readValues, i);
   }
 
   @Override
   public Observable<ScalarReading> createScalarObservable(
-      String trialId, String[] sensorTags, final TimeRange range, int resolutionTier) {
-    return createScalarObservable(trialId, sensorTags, range, resolutionTier, 500);
+      String trialId,
+      String[] sensorTags,
+      final TimeRange range,
+      int resolutionTier,
+      Executor queryExecutor) {
+    return createScalarObservable(trialId, sensorTags, range, resolutionTier, 500, queryExecutor);
   }
 
   @VisibleForTesting
@@ -283,7 +920,8 @@ public class SensorDatabaseImpl implements SensorDatabase {
       String[] sensorTags,
       final TimeRange range,
       int resolutionTier,
-      int pageSize) {
+      int pageSize,
+      Executor queryExecutor) {
     return Observable.create(
         new ObservableOnSubscribe<ScalarReading>() {
 
@@ -292,25 +930,23 @@ public class SensorDatabaseImpl implements SensorDatabase {
           @Override
           public void subscribe(ObservableEmitter<ScalarReading> observableEmitter)
               throws Exception {
-            // Start by opening the cursor.
+            // Snapshots are only files, so they are read here rather than on the executor.
+            if (emitFromSnapshots(
+                observableEmitter, trialId, sensorTags, range, resolutionTier)) {
+              observableEmitter.onComplete();
+              return;
+            }
             TimeRange searchRange = range;
             while (true) {
-              try (Cursor cursor =
-                  getCursor(trialId, sensorTags, searchRange, resolutionTier, pageSize)) {
-                if (cursor != null) {
-                  int count = 0;
-                  while (cursor.moveToNext()) {
-                    long timeStamp = cursor.getLong(0);
-                    String sensorTag = cursor.getString(2);
-                    observableEmitter.onNext(
-                        new ScalarReading(timeStamp, cursor.getDouble(1), sensorTag));
-                    lastTimeStampWritten = timeStamp;
-                    count++;
-                  }
-                  if (count == 0 || observableEmitter.isDisposed()) {
-                    break;
-                  }
-                }
+              List<ScalarReading> page =
+                  queryPage(
+                      queryExecutor, trialId, sensorTags, searchRange, resolutionTier, pageSize);
+              for (ScalarReading reading : page) {
+                observableEmitter.onNext(reading);
+                lastTimeStampWritten = reading.getCollectedTimeMillis();
+              }
+              if (page.isEmpty() || observableEmitter.isDisposed()) {
+                break;
               }
               if (lastTimeStampWritten >= range.getTimes().upperEndpoint()) {
                 break;
@@ -328,22 +964,124 @@ public class SensorDatabaseImpl implements SensorDatabase {
         });
   }
 
-  private Cursor getCursor(
-      String trialId, String[] sensorTags, TimeRange range, int resolutionTier, int maxRecords) {
-    String[] columns =
-        new String[] {
-          ScalarSensorsTable.Column.TIMESTAMP_MILLIS, ScalarSensorsTable.Column.VALUE,
-          ScalarSensorsTable.Column.TAG, ScalarSensorsTable.Column.TRIAL_ID
-        };
-    Pair<String, String[]> selectionAndArgs =
-        getSelectionAndArgs(trialId, sensorTags, range, resolutionTier);
-    String selection = selectionAndArgs.first;
-    String[] selectionArgs = selectionAndArgs.second;
-    String orderBy =
-        ScalarSensorsTable.Column.TIMESTAMP_MILLIS
-            + (range.getOrder().equals(TimeRange.ObservationOrder.OLDEST_FIRST) ? " ASC" : " DESC");
-    String limit = maxRecords <= 0 ? null : String.valueOf(maxRecords);
-
+  /**
+   * Reads one page of readings as a task on the executor, so that other work on it waits for no
+   * more than a page, however slowly the readings are consumed. Must not be called on the executor.
+   */
+  private List<ScalarReading> queryPage(
+      Executor executor,
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier,
+      int pageSize)
+      throws Exception {
+    FutureTask<List<ScalarReading>> task =
+        new FutureTask<>(
+            () -> {
+              List<ScalarReading> page = new ArrayList<>();
+              try (Cursor cursor =
+                  getCursor(trialId, sensorTags, range, resolutionTier, pageSize)) {
+                while (cursor.moveToNext()) {
+                  page.add(
+                      new ScalarReading(
+                          cursor.getLong(0), cursor.getDouble(1), cursor.getString(2)));
+                }
+              }
+              return page;
+            });
+    executor.execute(task);
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+    }
+  }
+
+  /**
+   * Emits the readings of the sensors from their snapshots, merged in order of time, if the trial
+   * has been finalized.
+   *
+   * @return false if nothing was emitted, because the readings must come from the database.
+   */
+  private boolean emitFromSnapshots(
+      ObservableEmitter<ScalarReading> emitter,
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier) {
+    if (resolutionTier < 0
+        || range.getOrder() != TimeRange.ObservationOrder.OLDEST_FIRST
+        || !hasSnapshots(trialId)) {
+      return false;
+    }
+    int tier = getReadableTier(trialId, resolutionTier);
+    List<String> tags = new ArrayList<>();
+    List<SeriesSnapshot.ReadingIterator> iterators = new ArrayList<>();
+    for (String sensorTag : sensorTags) {
+      SeriesSnapshot snapshot = getSnapshot(trialId, sensorTag, tier);
+      if (snapshot != null) {
+        tags.add(sensorTag);
+        iterators.add(snapshot.iterate(range.getTimes()));
+      } else if (!hasSnapshots(trialId)) {
+        // The snapshots could not be opened, and have been dropped.
+        return false;
+      }
+      // Otherwise every series of the trial has a snapshot, so the sensor has no readings here.
+    }
+    while (!emitter.isDisposed()) {
+      int next = -1;
+      for (int i = 0; i < iterators.size(); i++) {
+        if (iterators.get(i).hasNext()
+            && (next < 0
+                || iterators.get(i).getTimestampMillis()
+                    < iterators.get(next).getTimestampMillis())) {
+          next = i;
+        }
+      }
+      if (next < 0) {
+        break;
+      }
+      SeriesSnapshot.ReadingIterator readings = iterators.get(next);
+      emitter.onNext(
+          new ScalarReading(readings.getTimestampMillis(), readings.getValue(), tags.get(next)));
+      readings.next();
+    }
+    return true;
+  }
+
+  /**
+   * Queries readings as {@link #queryReadings} does, but at the finest tier kept for the trial if
+   * the one asked for has been thrown away.
+   */
+  private Cursor getCursor(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier, int maxRecords) {
+    return queryReadings(
+        trialId, sensorTags, range, getReadableTier(trialId, resolutionTier), maxRecords);
+  }
+
+  /** Returns the tier whose readings stand in for those of the given tier of the trial. */
+  private int getReadableTier(String trialId, int resolutionTier) {
+    // Negative tiers ask for the readings of every tier.
+    return resolutionTier < 0 ? resolutionTier : Math.max(resolutionTier, getFinestTier(trialId));
+  }
+
+  private Cursor queryReadings(
+      String trialId, String[] sensorTags, TimeRange range, int resolutionTier, int maxRecords) {
+    String[] columns =
+        new String[] {
+          ScalarSensorsTable.Column.TIMESTAMP_MILLIS, ScalarSensorsTable.Column.VALUE,
+          ScalarSensorsTable.Column.TAG, ScalarSensorsTable.Column.TRIAL_ID
+        };
+    Pair<String, String[]> selectionAndArgs =
+        getSelectionAndArgs(trialId, sensorTags, range, resolutionTier);
+    String selection = selectionAndArgs.first;
+    String[] selectionArgs = selectionAndArgs.second;
+    String orderBy =
+        ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + (range.getOrder().equals(TimeRange.ObservationOrder.OLDEST_FIRST) ? " ASC" : " DESC");
+    String limit = maxRecords <= 0 ? null : String.valueOf(maxRecords);
+
     return openHelper
         .getReadableDatabase()
         .query(
@@ -381,18 +1119,41 @@ public class SensorDatabaseImpl implements SensorDatabase {
   // TimeRange.
   public ScalarSensorDataDump getScalarReadingSensorProtos(
       String trialId, String sensorTag, TimeRange range) {
-    try (Cursor cursor = getCursor(trialId, new String[] {sensorTag}, range, 0, 0)) {
-      if (cursor.getCount() == 0) {
-        // No results for the TrialId. Assume this is a pre-export trial, so query again
-        // with the default trial id.
-        try (Cursor fallbackCursor =
-            getCursor(ScalarSensorsTable.DEFAULT_TRIAL_ID, new String[] {sensorTag}, range, 0, 0)) {
-          return cursorAsScalarSensorDataDump(fallbackCursor, trialId, sensorTag);
-        }
-      } else {
-        return cursorAsScalarSensorDataDump(cursor, trialId, sensorTag);
+    // An archived trial exports the finest tier it has left, and says which one that is.
+    int tier = getFinestTier(trialId);
+    ScalarSensorDataDump dump = null;
+    SeriesSnapshot snapshot = hasSnapshots(trialId) ? getSnapshot(trialId, sensorTag, tier) : null;
+    if (snapshot != null) {
+      dump = readingsAsScalarSensorDataDump(snapshot.read(range, 0), trialId, sensorTag);
+    } else if (hasReadingsNear(trialId, sensorTag, range, tier)) {
+      // Checking the series table first means sensors without readings cost no scan of them.
+      try (Cursor cursor = queryReadings(trialId, new String[] {sensorTag}, range, tier, 0)) {
+        dump = cursorAsScalarSensorDataDump(cursor, trialId, sensorTag);
       }
     }
+    if (dump != null && dump.getRowsCount() > 0) {
+      return tier == 0 ? dump : dump.toBuilder().setResolutionTier(tier).build();
+    }
+    // No results for the TrialId. Assume this is a pre-export trial, so query again
+    // with the default trial id.
+    if (!hasReadingsNear(ScalarSensorsTable.DEFAULT_TRIAL_ID, sensorTag, range, 0)) {
+      return ScalarSensorDataDump.newBuilder().setTag(sensorTag).setTrialId(trialId).build();
+    }
+    try (Cursor fallbackCursor =
+        getCursor(ScalarSensorsTable.DEFAULT_TRIAL_ID, new String[] {sensorTag}, range, 0, 0)) {
+      return cursorAsScalarSensorDataDump(fallbackCursor, trialId, sensorTag);
+    }
+  }
+
+  /** Returns false if there are certainly no readings of the sensor in the tier and range. */
+  private boolean hasReadingsNear(String trialId, String sensorTag, TimeRange range, int tier) {
+    List<SeriesSummary> series =
+        querySeries(
+            openHelper.getReadableDatabase(),
+            SeriesTable.KEY_SELECTION,
+            new String[] {trialId, sensorTag, String.valueOf(tier)},
+            null);
+    return !series.isEmpty() && series.get(0).getTimes().isConnected(range.getTimes());
   }
 
   private ScalarSensorDataDump cursorAsScalarSensorDataDump(
@@ -414,38 +1175,1087 @@ public class SensorDatabaseImpl implements SensorDatabase {
     return sensor.addAllRows(rowsList).build();
   }
 
-  // TODO: test
+  private static ScalarSensorDataDump readingsAsScalarSensorDataDump(
+      ScalarReadingList readings, String trialId, String sensorTag) {
+    ScalarSensorDataDump.Builder sensor =
+        ScalarSensorDataDump.newBuilder().setTag(sensorTag).setTrialId(trialId);
+    readings.deliver(
+        (timestampMillis, value) -> {
+          sensor.addRows(
+              ScalarSensorDataRow.newBuilder().setTimestampMillis(timestampMillis).setValue(value));
+          return true;
+        });
+    return sensor.build();
+  }
+
+  @Override
+  public List<ScalarAggregate> getAggregates(AggregateQuery query) {
+    long startNanos = System.nanoTime();
+    SQLiteDatabase db = openHelper.getReadableDatabase();
+    List<ScalarAggregate> aggregates = new ArrayList<>();
+    for (AggregateQuery.Series series : query.getSeries()) {
+      List<ScalarAggregate> seriesAggregates =
+          getSeriesAggregates(db, query, series, series.getTrialId());
+      if (seriesAggregates.isEmpty()) {
+        // As in getScalarReadings, fall back to data recorded before trials had ids.
+        seriesAggregates =
+            getSeriesAggregates(db, query, series, ScalarSensorsTable.DEFAULT_TRIAL_ID);
+      }
+      if (seriesAggregates.isEmpty() && !query.isBucketed()) {
+        seriesAggregates.add(
+            new ScalarAggregate(
+                series.getTrialId(),
+                series.getSensorTag(),
+                series.getBucketOrigin(),
+                query.getFunctions(),
+                0,
+                0,
+                0,
+                0,
+                0,
+                0));
+      }
+      aggregates.addAll(seriesAggregates);
+    }
+    PerfMetrics.getInstance().recordNanosSince(PerfMetrics.AGGREGATE_QUERY, startNanos);
+    return aggregates;
+  }
+
+  /**
+   * Aggregates the readings of one series, which are stored under {@code storedTrialId}. Returns an
+   * empty list if there are no readings.
+   *
+   * <p>The stats blocks are the coarsest summary that is exact: each one has the count, extremes
+   * and sum of the tier 0 readings of a second. Blocks that lie wholly inside the range and inside
+   * one bucket are used as they are, and only the readings around them are read. The zoom tiers
+   * are no use here, as LTTB tiers do not keep the extremes. The first and last values need the
+   * readings themselves, so all of them are read when those are asked for.
+   */
+  private List<ScalarAggregate> getSeriesAggregates(
+      SQLiteDatabase db, AggregateQuery query, AggregateQuery.Series series, String storedTrialId) {
+    boolean needsFirst = query.getFunctions().contains(AggregateQuery.Function.FIRST);
+    boolean needsLast = query.getFunctions().contains(AggregateQuery.Function.LAST);
+    // By bucket start.
+    TreeMap<Long, BucketAggregate> buckets = new TreeMap<>();
+    List<Range<Long>> readingTimes =
+        needsFirst || needsLast
+            ? Collections.singletonList(series.getTimes())
+            : addWholeStatsBlocks(query, series, storedTrialId, buckets);
+    // Archived trials have no tier 0, and their finest tier keeps only the extremes exact.
+    Pair<String, String[]> selectionAndArgs =
+        getSelectionAndArgs(
+            storedTrialId,
+            new String[] {series.getSensorTag()},
+            TimeRange.oldest(series.getTimes()),
+            getReadableTier(storedTrialId, 0));
+    for (int i = 0; i < readingTimes.size(); i += MAX_RANGES_PER_AGGREGATE_QUERY) {
+      List<Range<Long>> times =
+          readingTimes.subList(
+              i, Math.min(readingTimes.size(), i + MAX_RANGES_PER_AGGREGATE_QUERY));
+      aggregateReadings(
+          db, query, series, selectionAndArgs, times, needsFirst, needsLast, buckets);
+    }
+    List<ScalarAggregate> aggregates = new ArrayList<>();
+    for (Map.Entry<Long, BucketAggregate> entry : buckets.entrySet()) {
+      BucketAggregate bucket = entry.getValue();
+      if (bucket.count == 0) {
+        continue;
+      }
+      aggregates.add(
+          new ScalarAggregate(
+              series.getTrialId(),
+              series.getSensorTag(),
+              entry.getKey(),
+              query.getFunctions(),
+              bucket.count,
+              bucket.min,
+              bucket.max,
+              bucket.sum,
+              bucket.first,
+              bucket.last));
+    }
+    return aggregates;
+  }
+
+  /**
+   * Adds the stats blocks of the series that lie wholly inside its range and inside one bucket to
+   * the buckets, and returns the times whose readings are left to be aggregated. A series with no
+   * blocks at all was recorded before they were kept, and all of its readings are left.
+   */
+  private List<Range<Long>> addWholeStatsBlocks(
+      AggregateQuery query,
+      AggregateQuery.Series series,
+      String storedTrialId,
+      TreeMap<Long, BucketAggregate> buckets) {
+    Range<Long> times = series.getTimes();
+    // Blocks that start before the range can't lie inside it.
+    List<StatsBlock> blocks = getStatsBlocks(storedTrialId, series.getSensorTag(), times);
+    List<Range<Long>> readingTimes = new ArrayList<>();
+    // The part of the range after the last block used.
+    Range<Long> rest = times;
+    for (StatsBlock block : blocks) {
+      long blockStart = block.getBlockStartMillis();
+      long blockEnd = blockStart + StatsBlock.BLOCK_MILLIS;
+      long bucketStart = getBucketStart(query, series, blockStart);
+      if (block.getCount() == 0
+          || !times.encloses(Range.closedOpen(blockStart, blockEnd))
+          || bucketStart != getBucketStart(query, series, blockEnd - 1)) {
+        continue;
+      }
+      Range<Long> before = intersect(rest, Range.lessThan(blockStart));
+      if (!before.isEmpty()) {
+        readingTimes.add(before);
+      }
+      rest = intersect(rest, Range.atLeast(blockEnd));
+      getBucket(buckets, bucketStart).add(block);
+    }
+    if (!rest.isEmpty()) {
+      readingTimes.add(rest);
+    }
+    return readingTimes;
+  }
+
+  /**
+   * Adds the readings of the series at the given times to the buckets, in one query. The value of
+   * the first and last reading of each bucket come from the readings at the earliest and latest
+   * time of the bucket, which are joined to the rest: SQLite takes the other columns of a query
+   * with a single MIN or MAX from the row that has it.
+   */
+  private void aggregateReadings(
+      SQLiteDatabase db,
+      AggregateQuery query,
+      AggregateQuery.Series series,
+      Pair<String, String[]> selectionAndArgs,
+      List<Range<Long>> times,
+      boolean needsFirst,
+      boolean needsLast,
+      TreeMap<Long, BucketAggregate> buckets) {
+    String value = ScalarSensorsTable.Column.VALUE;
+    String timestamp = ScalarSensorsTable.Column.TIMESTAMP_MILLIS;
+    List<String> timeClauses = new ArrayList<>();
+    for (Range<Long> range : times) {
+      // Half open, so both ends are plain comparisons.
+      Range<Long> canonical = range.canonical(DiscreteDomain.longs());
+      List<String> bounds = new ArrayList<>();
+      if (range.hasLowerBound()) {
+        bounds.add(timestamp + " >= " + canonical.lowerEndpoint());
+      }
+      if (canonical.hasUpperBound()) {
+        bounds.add(timestamp + " < " + canonical.upperEndpoint());
+      }
+      timeClauses.add(bounds.isEmpty() ? "1" : "(" + Joiner.on(" AND ").join(bounds) + ")");
+    }
+    String where =
+        " FROM "
+            + ScalarSensorsTable.NAME
+            + " WHERE "
+            + selectionAndArgs.first
+            + " AND ("
+            + Joiner.on(" OR ").join(timeClauses)
+            + ") GROUP BY 1";
+    String bucket = getBucketSql(query, series);
+    StringBuilder sql =
+        new StringBuilder("SELECT totals.bucket, readingCount, minValue, maxValue, valueTotal")
+            .append(needsFirst ? ", firsts." + value : ", 0")
+            .append(needsLast ? ", lasts." + value : ", 0")
+            .append(" FROM (SELECT ")
+            .append(bucket)
+            .append(" AS bucket, COUNT(*) AS readingCount, MIN(")
+            .append(value)
+            .append(") AS minValue, MAX(")
+            .append(value)
+            .append(") AS maxValue, TOTAL(")
+            .append(value)
+            .append(") AS valueTotal")
+            .append(where)
+            .append(") AS totals");
+    List<String> args = new ArrayList<>(Arrays.asList(selectionAndArgs.second));
+    if (needsFirst) {
+      appendEdgeJoin(sql, "firsts", "MIN", bucket, where);
+      args.addAll(Arrays.asList(selectionAndArgs.second));
+    }
+    if (needsLast) {
+      appendEdgeJoin(sql, "lasts", "MAX", bucket, where);
+      args.addAll(Arrays.asList(selectionAndArgs.second));
+    }
+    try (Cursor cursor = db.rawQuery(sql.toString(), args.toArray(new String[args.size()]))) {
+      while (cursor.moveToNext()) {
+        long bucketStart =
+            query.isBucketed()
+                ? series.getBucketOrigin() + cursor.getLong(0) * query.getBucketWidthMillis()
+                : series.getBucketOrigin();
+        getBucket(buckets, bucketStart)
+            .add(
+                cursor.getLong(1),
+                cursor.getDouble(2),
+                cursor.getDouble(3),
+                cursor.getDouble(4),
+                cursor.getDouble(5),
+                cursor.getDouble(6));
+      }
+    }
+  }
+
+  private static void appendEdgeJoin(
+      StringBuilder sql, String name, String function, String bucket, String where) {
+    sql.append(" JOIN (SELECT ")
+        .append(bucket)
+        .append(" AS bucket, ")
+        .append(function)
+        .append("(")
+        .append(ScalarSensorsTable.Column.TIMESTAMP_MILLIS)
+        .append("), ")
+        .append(ScalarSensorsTable.Column.VALUE)
+        .append(where)
+        .append(") AS ")
+        .append(name)
+        .append(" ON ")
+        .append(name)
+        .append(".bucket = totals.bucket");
+  }
+
+  /** Returns the SQL for the index of the bucket of a reading, counted from the origin. */
+  private static String getBucketSql(AggregateQuery query, AggregateQuery.Series series) {
+    if (!query.isBucketed()) {
+      return "0";
+    }
+    // Integer division rounds towards zero, so round readings before the origin down by hand.
+    String offset =
+        "(" + ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " - " + series.getBucketOrigin() + ")";
+    long width = query.getBucketWidthMillis();
+    return "CASE WHEN "
+        + offset
+        + " >= 0 THEN "
+        + offset
+        + " / "
+        + width
+        + " ELSE ("
+        + offset
+        + " - "
+        + (width - 1)
+        + ") / "
+        + width
+        + " END";
+  }
+
+  private static long getBucketStart(
+      AggregateQuery query, AggregateQuery.Series series, long timestampMillis) {
+    return query.isBucketed()
+        ? query.getBucketStart(series, timestampMillis)
+        : series.getBucketOrigin();
+  }
+
+  private static BucketAggregate getBucket(
+      TreeMap<Long, BucketAggregate> buckets, long bucketStart) {
+    BucketAggregate bucket = buckets.get(bucketStart);
+    if (bucket == null) {
+      bucket = new BucketAggregate();
+      buckets.put(bucketStart, bucket);
+    }
+    return bucket;
+  }
+
+  /** Returns the times in both ranges, which is empty if they don't meet. */
+  private static Range<Long> intersect(Range<Long> a, Range<Long> b) {
+    return a.isConnected(b) ? a.intersection(b) : Range.closedOpen(0L, 0L);
+  }
+
+  /** The aggregates of the readings of one bucket that have been added so far. */
+  private static class BucketAggregate {
+    long count = 0;
+    double min = Double.MAX_VALUE;
+    double max = -Double.MAX_VALUE;
+    double sum = 0;
+    double first = 0;
+    double last = 0;
+
+    void add(StatsBlock block) {
+      add(block.getCount(), block.getMin(), block.getMax(), block.getSum(), 0, 0);
+    }
+
+    void add(long count, double min, double max, double sum, double first, double last) {
+      this.count += count;
+      this.min = Math.min(this.min, min);
+      this.max = Math.max(this.max, max);
+      this.sum += sum;
+      // Only set when the readings are read in a single query.
+      this.first = first;
+      this.last = last;
+    }
+  }
+
   @Override
   public String getFirstDatabaseTagAfter(long timestamp) {
-    final String timestampString = String.valueOf(timestamp);
+    SQLiteDatabase db = openHelper.getReadableDatabase();
+    // Only series that end after the timestamp have readings after it.
+    List<SeriesSummary> candidates =
+        querySeries(
+            db,
+            SeriesTable.Column.LAST_TIMESTAMP_MILLIS + " > ?",
+            new String[] {String.valueOf(timestamp)},
+            SeriesTable.Column.FIRST_TIMESTAMP_MILLIS + " ASC");
+    String firstTag = null;
+    long firstTimestamp = Long.MAX_VALUE;
+    for (SeriesSummary series : candidates) {
+      long seriesTimestamp = series.getFirstTimestampMillis();
+      if (seriesTimestamp >= firstTimestamp) {
+        // No later series starts any sooner.
+        break;
+      }
+      if (seriesTimestamp <= timestamp) {
+        // The series spans the timestamp, so look up its first reading after it.
+        seriesTimestamp =
+            getEdgeTimestamp(series, TimeRange.oldest(Range.greaterThan(timestamp)));
+      }
+      if (seriesTimestamp < firstTimestamp) {
+        firstTimestamp = seriesTimestamp;
+        firstTag = series.getSensorTag();
+      }
+    }
+    return firstTag;
+  }
+
+  @Override
+  public List<SeriesSummary> getSeriesSummaries(String trialId) {
+    return querySeries(
+        openHelper.getReadableDatabase(),
+        SeriesTable.Column.TRIAL_ID + " = ?",
+        new String[] {trialId},
+        SeriesTable.Column.TAG + ", " + SeriesTable.Column.RESOLUTION_TIER);
+  }
+
+  private static List<SeriesSummary> querySeries(
+      SQLiteDatabase db, String selection, String[] selectionArgs, String orderBy) {
+    List<SeriesSummary> result = new ArrayList<>();
+    try (Cursor cursor =
+        db.query(
+            SeriesTable.NAME, SeriesTable.COLUMNS, selection, selectionArgs, null, null, orderBy)) {
+      while (cursor.moveToNext()) {
+        result.add(
+            new SeriesSummary(
+                cursor.getString(0),
+                cursor.getString(1),
+                cursor.getInt(2),
+                cursor.getLong(3),
+                cursor.getLong(4),
+                cursor.getLong(5)));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the time of the first reading of the series in the range, in the range's order, or
+   * {@link Long#MAX_VALUE} if there are none.
+   */
+  private long getEdgeTimestamp(SeriesSummary series, TimeRange range) {
+    try (Cursor cursor =
+        queryReadings(
+            series.getTrialId(),
+            new String[] {series.getSensorTag()},
+            range,
+            series.getResolutionTier(),
+            1)) {
+      return cursor.moveToNext() ? cursor.getLong(0) : Long.MAX_VALUE;
+    }
+  }
+
+  @Override
+  public void deleteScalarReadings(String trialId, String sensorTag, TimeRange range) {
+    deleteSeriesReadings(trialId, sensorTag, range, 0 /* no limit */);
+  }
+
+  @Override
+  public int deleteScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int maxRecords) {
+    return deleteSeriesReadings(trialId, sensorTag, range, maxRecords);
+  }
+
+  /**
+   * Deletes the readings of each resolution tier of the sensor in turn, at most {@code maxRecords}
+   * in all if it is positive, and updates {@link SeriesTable} in the same transaction.
+   */
+  private int deleteSeriesReadings(
+      String trialId, String sensorTag, TimeRange range, int maxRecords) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    int deleted = 0;
+    try {
+      db.beginTransaction();
+      List<SeriesSummary> allSeries =
+          querySeries(
+              db,
+              SeriesTable.Column.TRIAL_ID + " = ? AND " + SeriesTable.Column.TAG + " = ?",
+              new String[] {trialId, sensorTag},
+              SeriesTable.Column.RESOLUTION_TIER);
+      for (SeriesSummary series : allSeries) {
+        if (maxRecords > 0 && deleted >= maxRecords) {
+          break;
+        }
+        if (!series.getTimes().isConnected(range.getTimes())) {
+          continue;
+        }
+        if (series.getResolutionTier() == 0) {
+          deleteSeriesHold(db, series, range.getTimes());
+        }
+        Pair<String, String[]> selectionAndArgs =
+            getSelectionAndArgs(
+                trialId, new String[] {sensorTag}, range, series.getResolutionTier());
+        String selection = selectionAndArgs.first;
+        if (maxRecords > 0) {
+          // SQLite on Android is not built with DELETE ... LIMIT, so pick the rows in a subquery.
+          selection =
+              "rowid IN (SELECT rowid FROM "
+                  + ScalarSensorsTable.NAME
+                  + " WHERE "
+                  + selection
+                  + " LIMIT "
+                  + (maxRecords - deleted)
+                  + ")";
+        }
+        int seriesDeleted =
+            db.delete(ScalarSensorsTable.NAME, selection, selectionAndArgs.second);
+        if (seriesDeleted > 0) {
+          updateSeriesAfterDelete(db, series, range.getTimes(), seriesDeleted);
+        }
+        deleted += seriesDeleted;
+      }
+      // Blocks are few, and deleting them again on a later call is harmless.
+      deleteStatsBlocks(trialId, sensorTag, range.getTimes());
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    return deleted;
+  }
+
+  /** Deletes the hold of the series if the readings to be deleted include the end of it. */
+  private static void deleteSeriesHold(
+      SQLiteDatabase db, SeriesSummary series, Range<Long> deletedTimes) {
+    String[] key = {series.getTrialId(), series.getSensorTag()};
+    SeriesHold hold = querySeriesHold(db, SeriesHoldsTable.KEY_SELECTION, key);
+    if (hold != null
+        && (deletedTimes.contains(hold.getHeldUntilMillis())
+            || deletedTimes.contains(series.getLastTimestampMillis()))) {
+      db.delete(SeriesHoldsTable.NAME, SeriesHoldsTable.KEY_SELECTION, key);
+    }
+  }
+
+  private void updateSeriesAfterDelete(
+      SQLiteDatabase db, SeriesSummary series, Range<Long> deletedTimes, int deletedCount) {
+    dropSnapshots(db, series.getTrialId());
+    String[] key = {
+      series.getTrialId(), series.getSensorTag(), String.valueOf(series.getResolutionTier())
+    };
+    long count = series.getCount() - deletedCount;
+    if (count <= 0) {
+      db.delete(SeriesTable.NAME, SeriesTable.KEY_SELECTION, key);
+      return;
+    }
+    ContentValues values = new ContentValues();
+    values.put(SeriesTable.Column.COUNT, count);
+    // The deleted readings are all in one range of time, so an end of the series can only have
+    // moved if it was in that range.
+    if (deletedTimes.contains(series.getFirstTimestampMillis())) {
+      values.put(
+          SeriesTable.Column.FIRST_TIMESTAMP_MILLIS,
+          getEdgeTimestamp(
+              series, TimeRange.oldest(Range.atLeast(series.getFirstTimestampMillis()))));
+    }
+    if (deletedTimes.contains(series.getLastTimestampMillis())) {
+      values.put(
+          SeriesTable.Column.LAST_TIMESTAMP_MILLIS,
+          getEdgeTimestamp(
+              series, TimeRange.newest(Range.atMost(series.getLastTimestampMillis()))));
+    }
+    db.update(SeriesTable.NAME, values, SeriesTable.KEY_SELECTION, key);
+  }
+
+  @Override
+  public long compact(int maxPages) {
+    if (!isCompactionEnabled()) {
+      // Freed pages stay in the file, to be reused by new readings.
+      return 0;
+    }
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    long sizeBefore = getSizeBytes(db);
+    // incremental_vacuum only does its work as its result rows are stepped through.
+    try (Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null)) {
+      while (cursor.moveToNext()) {}
+    }
+    return sizeBefore - getSizeBytes(db);
+  }
+
+  @Override
+  public boolean isCompactionEnabled() {
+    return DatabaseUtils.longForQuery(
+            openHelper.getReadableDatabase(), "PRAGMA auto_vacuum", null)
+        == AUTO_VACUUM_INCREMENTAL;
+  }
+
+  @Override
+  public void enableCompaction() {
+    if (isCompactionEnabled()) {
+      return;
+    }
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    // Databases only track free pages once incremental vacuum is on, and turning it on for an
+    // existing database takes one full rewrite.
+    db.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+    db.execSQL("VACUUM");
+    // VACUUM may renumber rowids, so any purge in progress has to start over.
+    purgingTrials = null;
+    purgedThroughRowid = 0;
+  }
+
+  @Override
+  public void deleteTrials(Collection<String> trialIds) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    try {
+      db.beginTransaction();
+      long maxRowid = getMaxReadingRowid(db);
+      for (String trialId : trialIds) {
+        ContentValues values = new ContentValues();
+        values.put(DeletedTrialsTable.Column.TRIAL_ID, trialId);
+        values.put(DeletedTrialsTable.Column.DELETED_THROUGH_ROWID, maxRowid);
+        db.insertWithOnConflict(
+            DeletedTrialsTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        dropSnapshots(db, trialId);
+        // Readings written for the trial from now on start new summaries.
+        deleteTrialSummaries(db, trialId);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /** Deletes everything kept about a trial apart from its readings. */
+  private static void deleteTrialSummaries(SQLiteDatabase db, String trialId) {
+    String[] args = new String[] {trialId};
+    // There is about one block per second of recording, so they can all go at once.
+    db.delete(StatsBlocksTable.NAME, StatsBlocksTable.Column.TRIAL_ID + " = ?", args);
+    db.delete(SeriesTable.NAME, SeriesTable.Column.TRIAL_ID + " = ?", args);
+    db.delete(SeriesHoldsTable.NAME, SeriesHoldsTable.Column.TRIAL_ID + " = ?", args);
+    db.delete(ArchivedTrialsTable.NAME, ArchivedTrialsTable.Column.TRIAL_ID + " = ?", args);
+  }
+
+  private static long getMaxReadingRowid(SQLiteDatabase db) {
+    return DatabaseUtils.longForQuery(
+        db, "SELECT IFNULL(MAX(rowid), 0) FROM " + ScalarSensorsTable.NAME, null);
+  }
+
+  @Override
+  public boolean purgeDeletedTrials(int maxRows) {
+    long startNanos = System.nanoTime();
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    Map<String, Long> trials = purgingTrials;
+    long fromRowid = trials == null ? 0 : purgedThroughRowid;
+    long toRowid = fromRowid + maxRows;
+    boolean passFinished;
+    boolean hasMore;
+    try {
+      db.beginTransaction();
+      if (trials == null) {
+        trials = getDeletedTrials(db);
+        if (trials.isEmpty()) {
+          return false;
+        }
+      }
+      // The trialId column is not indexed, so walk the table in rowid order. Each step only looks
+      // at maxRows rows, however few of them belong to deleted trials. Rows of a deleted trial
+      // past its tombstone's rowid were written after the delete, so are kept.
+      db.delete(
+          ScalarSensorsTable.NAME,
+          "rowid > ? AND rowid <= ? AND rowid <= (SELECT "
+              + DeletedTrialsTable.Column.DELETED_THROUGH_ROWID
+              + " FROM "
+              + DeletedTrialsTable.NAME
+              + " WHERE "
+              + DeletedTrialsTable.NAME
+              + "."
+              + DeletedTrialsTable.Column.TRIAL_ID
+              + " = "
+              + ScalarSensorsTable.NAME
+              + "."
+              + ScalarSensorsTable.Column.TRIAL_ID
+              + ")",
+          new String[] {String.valueOf(fromRowid), String.valueOf(toRowid)});
+      long lastDeletedRowid =
+          DatabaseUtils.longForQuery(
+              db,
+              "SELECT IFNULL(MAX("
+                  + DeletedTrialsTable.Column.DELETED_THROUGH_ROWID
+                  + "), 0) FROM "
+                  + DeletedTrialsTable.NAME,
+              null);
+      passFinished = toRowid >= lastDeletedRowid;
+      if (passFinished) {
+        for (Map.Entry<String, Long> trial : trials.entrySet()) {
+          // A trial deleted again during the pass may have readings behind it, so keeps its
+          // newer tombstone for a pass of its own.
+          db.delete(
+              DeletedTrialsTable.NAME,
+              DeletedTrialsTable.Column.TRIAL_ID
+                  + " = ? AND "
+                  + DeletedTrialsTable.Column.DELETED_THROUGH_ROWID
+                  + " = ?",
+              new String[] {trial.getKey(), String.valueOf(trial.getValue())});
+        }
+        // Trials deleted during this pass may have readings behind it, so need a pass of their own.
+        hasMore = DatabaseUtils.queryNumEntries(db, DeletedTrialsTable.NAME) > 0;
+      } else {
+        hasMore = true;
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+    // Only move on once the step has been committed.
+    purgingTrials = passFinished ? null : trials;
+    purgedThroughRowid = passFinished ? 0 : toRowid;
+    PerfMetrics.getInstance().recordNanosSince(PerfMetrics.TRIAL_PURGE_STEP, startNanos);
+    return hasMore;
+  }
+
+  /** Returns the last deleted rowid of each tombstone, by trial id. */
+  private static Map<String, Long> getDeletedTrials(SQLiteDatabase db) {
+    Map<String, Long> trials = new HashMap<>();
+    try (Cursor cursor = db.rawQuery(DeletedTrialsTable.SELECT_SQL, null)) {
+      while (cursor.moveToNext()) {
+        trials.put(cursor.getString(0), cursor.getLong(1));
+      }
+    }
+    return trials;
+  }
+
+  @Override
+  public List<String> getIdleTrialIds(long lastReadingBeforeMillis, int finestTier) {
+    // Found from the series table alone, which has a few rows per trial.
+    String sql =
+        "SELECT "
+            + SeriesTable.Column.TRIAL_ID
+            + " FROM "
+            + SeriesTable.NAME
+            + " WHERE "
+            + SeriesTable.Column.TRIAL_ID
+            + " != ? GROUP BY 1 HAVING MAX("
+            + SeriesTable.Column.LAST_TIMESTAMP_MILLIS
+            + ") < ? AND MIN("
+            + SeriesTable.Column.RESOLUTION_TIER
+            + ") < ? ORDER BY MAX("
+            + SeriesTable.Column.LAST_TIMESTAMP_MILLIS
+            + ")";
+    List<String> trialIds = new ArrayList<>();
+    // Readings stored before trials had ids may belong to any number of trials, so are left alone.
     try (Cursor cursor =
         openHelper
             .getReadableDatabase()
-            .query(
+            .rawQuery(
+                sql,
+                new String[] {
+                  ScalarSensorsTable.DEFAULT_TRIAL_ID,
+                  String.valueOf(lastReadingBeforeMillis),
+                  String.valueOf(finestTier)
+                })) {
+      while (cursor.moveToNext()) {
+        trialIds.add(cursor.getString(0));
+      }
+    }
+    return trialIds;
+  }
+
+  @Override
+  public int getFinestTier(String trialId) {
+    return (int)
+        DatabaseUtils.longForQuery(
+            openHelper.getReadableDatabase(),
+            "SELECT IFNULL(MAX("
+                + ArchivedTrialsTable.Column.FINEST_TIER
+                + "), 0) FROM "
+                + ArchivedTrialsTable.NAME
+                + " WHERE "
+                + ArchivedTrialsTable.Column.TRIAL_ID
+                + " = ?",
+            new String[] {trialId});
+  }
+
+  @Override
+  public void setFinestTier(String trialId, int finestTier) {
+    ContentValues values = new ContentValues();
+    values.put(ArchivedTrialsTable.Column.TRIAL_ID, trialId);
+    values.put(ArchivedTrialsTable.Column.FINEST_TIER, finestTier);
+    openHelper
+        .getWritableDatabase()
+        .insertWithOnConflict(
+            ArchivedTrialsTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  @Override
+  public int deleteReadingsBelowFinestTier(String trialId, int maxRecords) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    int deleted = 0;
+    try {
+      db.beginTransaction();
+      List<SeriesSummary> allSeries =
+          querySeries(
+              db,
+              SeriesTable.Column.TRIAL_ID
+                  + " = ? AND "
+                  + SeriesTable.Column.RESOLUTION_TIER
+                  + " < ?",
+              new String[] {trialId, String.valueOf(getFinestTier(trialId))},
+              SeriesTable.Column.RESOLUTION_TIER);
+      for (SeriesSummary series : allSeries) {
+        if (deleted >= maxRecords) {
+          break;
+        }
+        Pair<String, String[]> selectionAndArgs =
+            getSelectionAndArgs(
+                trialId,
+                new String[] {series.getSensorTag()},
+                TimeRange.oldest(Range.<Long>all()),
+                series.getResolutionTier());
+        // As in deleteSeriesReadings, pick the rows to delete in a subquery.
+        int seriesDeleted =
+            db.delete(
                 ScalarSensorsTable.NAME,
-                new String[] {ScalarSensorsTable.Column.TAG},
-                ScalarSensorsTable.Column.TIMESTAMP_MILLIS + ">?",
-                new String[] {timestampString},
-                null,
-                null,
-                ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " ASC",
-                "1")) {
-      if (cursor.moveToNext()) {
-        return cursor.getString(0);
-      } else {
-        return null;
+                "rowid IN (SELECT rowid FROM "
+                    + ScalarSensorsTable.NAME
+                    + " WHERE "
+                    + selectionAndArgs.first
+                    + " LIMIT "
+                    + (maxRecords - deleted)
+                    + ")",
+                selectionAndArgs.second);
+        if (seriesDeleted > 0) {
+          updateSeriesAfterDelete(db, series, Range.<Long>all(), seriesDeleted);
+        }
+        deleted += seriesDeleted;
       }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
+    return deleted;
   }
 
   @Override
-  public void deleteScalarReadings(String trialId, String sensorTag, TimeRange range) {
+  public void setSeriesHold(SeriesHold hold) {
+    ContentValues values = new ContentValues();
+    values.put(SeriesHoldsTable.Column.TRIAL_ID, hold.getTrialId());
+    values.put(SeriesHoldsTable.Column.TAG, hold.getSensorTag());
+    values.put(SeriesHoldsTable.Column.INTERVAL_MILLIS, hold.getIntervalMillis());
+    values.put(SeriesHoldsTable.Column.HELD_UNTIL_MILLIS, hold.getHeldUntilMillis());
+    openHelper
+        .getWritableDatabase()
+        .insertWithOnConflict(SeriesHoldsTable.NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  @Override
+  public SeriesHold getSeriesHold(String trialId, String sensorTag) {
+    return querySeriesHold(
+        openHelper.getReadableDatabase(),
+        SeriesHoldsTable.KEY_SELECTION,
+        new String[] {trialId, sensorTag});
+  }
+
+  /** Returns the hold selected by arguments starting with its trial id and tag, or null. */
+  private static SeriesHold querySeriesHold(
+      SQLiteDatabase db, String selection, String[] selectionArgs) {
+    try (Cursor cursor =
+        db.query(
+            SeriesHoldsTable.NAME,
+            new String[] {
+              SeriesHoldsTable.Column.INTERVAL_MILLIS, SeriesHoldsTable.Column.HELD_UNTIL_MILLIS
+            },
+            selection,
+            selectionArgs,
+            null,
+            null,
+            null)) {
+      return cursor.moveToNext()
+          ? new SeriesHold(
+              selectionArgs[0], selectionArgs[1], cursor.getLong(0), cursor.getLong(1))
+          : null;
+    }
+  }
+
+  @Override
+  public void finalizeTrial(String trialId) {
+    while (!finalizeTrialStep(trialId, Integer.MAX_VALUE)) {}
+  }
+
+  @Override
+  public boolean finalizeTrialStep(String trialId, int maxRecords) {
+    SQLiteDatabase db = openHelper.getWritableDatabase();
+    PendingSnapshots pending;
+    synchronized (snapshotLock) {
+      pending = pendingSnapshots.get(trialId);
+    }
+    if (pending == null) {
+      // Finalizing again brings the snapshots up to date.
+      dropSnapshots(db, trialId);
+      List<SeriesSummary> allSeries = getSeriesSummaries(trialId);
+      if (allSeries.isEmpty()) {
+        return true;
+      }
+      snapshotDir.mkdirs();
+      pending = new PendingSnapshots(allSeries);
+      synchronized (snapshotLock) {
+        pendingSnapshots.put(trialId, pending);
+      }
+    }
+    try {
+      if (pending.seriesIndex < pending.allSeries.size()) {
+        writeSnapshotPage(db, pending, maxRecords);
+        return false;
+      }
+      commitSnapshots(db, trialId, pending);
+    } catch (IOException e) {
+      // The readings are all still in the database, which is read instead.
+      Log.e(TAG, "Failed to write snapshots of trial " + trialId, e);
+      synchronized (snapshotLock) {
+        pendingSnapshots.remove(trialId);
+      }
+      pending.abandon();
+    }
+    return true;
+  }
+
+  /** Writes up to maxRecords more readings of the series whose snapshot is being written. */
+  private void writeSnapshotPage(SQLiteDatabase db, PendingSnapshots pending, int maxRecords)
+      throws IOException {
+    SeriesSummary series = pending.allSeries.get(pending.seriesIndex);
+    if (pending.writer == null) {
+      File file;
+      synchronized (snapshotLock) {
+        file = new File(snapshotDir, PENDING_SNAPSHOT_PREFIX + nextPendingFileNumber++);
+      }
+      pending.files.add(file);
+      pending.writer = new SeriesSnapshot.Writer(file);
+    }
+    // Readings are paged by time and then rowid, so that none are skipped or repeated when several
+    // share a timestamp.
     Pair<String, String[]> selectionAndArgs =
         getSelectionAndArgs(
-            trialId, new String[] {sensorTag}, range, -1 /* delete all resolutions */);
-    String selection = selectionAndArgs.first;
-    String[] selectionArgs = selectionAndArgs.second;
-    openHelper.getWritableDatabase().delete(ScalarSensorsTable.NAME, selection, selectionArgs);
+            series.getTrialId(),
+            new String[] {series.getSensorTag()},
+            TimeRange.oldest(Range.atLeast(pending.lastTimestampMillis)),
+            series.getResolutionTier());
+    String selection =
+        selectionAndArgs.first
+            + " AND ("
+            + ScalarSensorsTable.Column.TIMESTAMP_MILLIS
+            + " > ? OR rowid > ?)";
+    String[] selectionArgs =
+        appendArg(
+            appendArg(selectionAndArgs.second, String.valueOf(pending.lastTimestampMillis)),
+            String.valueOf(pending.lastRowid));
+    int count = 0;
+    try (Cursor cursor =
+        db.query(
+            ScalarSensorsTable.NAME,
+            new String[] {
+              ScalarSensorsTable.Column.TIMESTAMP_MILLIS, ScalarSensorsTable.Column.VALUE, "rowid"
+            },
+            selection,
+            selectionArgs,
+            null,
+            null,
+            ScalarSensorsTable.Column.TIMESTAMP_MILLIS + " ASC, rowid ASC",
+            String.valueOf(maxRecords))) {
+      while (cursor.moveToNext()) {
+        pending.writer.add(cursor.getLong(0), cursor.getDouble(1));
+        pending.lastTimestampMillis = cursor.getLong(0);
+        pending.lastRowid = cursor.getLong(2);
+        count++;
+      }
+    }
+    if (count < maxRecords) {
+      pending.writer.finish();
+      pending.writer = null;
+      pending.lastTimestampMillis = Long.MIN_VALUE;
+      pending.lastRowid = -1;
+      pending.seriesIndex++;
+    }
+  }
+
+  /** Records the written snapshots of the trial, from which its reads are then served. */
+  private void commitSnapshots(SQLiteDatabase db, String trialId, PendingSnapshots pending)
+      throws IOException {
+    Map<List<Object>, Long> ids = new HashMap<>();
+    try {
+      db.beginTransaction();
+      for (int i = 0; i < pending.allSeries.size(); i++) {
+        SeriesSummary series = pending.allSeries.get(i);
+        ContentValues values = new ContentValues();
+        values.put(SnapshotsTable.Column.TRIAL_ID, trialId);
+        values.put(SnapshotsTable.Column.TAG, series.getSensorTag());
+        values.put(SnapshotsTable.Column.RESOLUTION_TIER, series.getResolutionTier());
+        long id = db.insertOrThrow(SnapshotsTable.NAME, null, values);
+        ids.put(getSnapshotKey(series.getSensorTag(), series.getResolutionTier()), id);
+        if (!pending.files.get(i).renameTo(getSnapshotFile(id))) {
+          throw new IOException("Could not rename " + pending.files.get(i));
+        }
+      }
+      db.setTransactionSuccessful();
+    } catch (IOException e) {
+      for (Long id : ids.values()) {
+        getSnapshotFile(id).delete();
+      }
+      throw e;
+    } finally {
+      db.endTransaction();
+    }
+    synchronized (snapshotLock) {
+      pendingSnapshots.remove(trialId);
+      getSnapshotIds().put(trialId, ids);
+    }
+  }
+
+  @Override
+  public long getSnapshotSizeBytes(String trialId) {
+    long bytes = 0;
+    synchronized (snapshotLock) {
+      Map<List<Object>, Long> ids = getSnapshotIds().get(trialId);
+      if (ids != null) {
+        for (Long id : ids.values()) {
+          bytes += getSnapshotFile(id).length();
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private boolean hasSnapshots(String trialId) {
+    synchronized (snapshotLock) {
+      return getSnapshotIds().containsKey(trialId);
+    }
+  }
+
+  /** Must be called holding snapshotLock. */
+  private Map<String, Map<List<Object>, Long>> getSnapshotIds() {
+    if (snapshotIds == null) {
+      snapshotIds = new HashMap<>();
+      // Left by finalizing that was cut short, as when the app is stopped part way through.
+      File[] stale =
+          snapshotDir.listFiles((dir, name) -> name.startsWith(PENDING_SNAPSHOT_PREFIX));
+      if (stale != null) {
+        for (File file : stale) {
+          file.delete();
+        }
+      }
+      String[] columns = {
+        SnapshotsTable.Column.ID,
+        SnapshotsTable.Column.TRIAL_ID,
+        SnapshotsTable.Column.TAG,
+        SnapshotsTable.Column.RESOLUTION_TIER
+      };
+      try (Cursor cursor =
+          openHelper
+              .getReadableDatabase()
+              .query(SnapshotsTable.NAME, columns, null, null, null, null, null)) {
+        while (cursor.moveToNext()) {
+          String trialId = cursor.getString(1);
+          Map<List<Object>, Long> ids = snapshotIds.get(trialId);
+          if (ids == null) {
+            ids = new HashMap<>();
+            snapshotIds.put(trialId, ids);
+          }
+          ids.put(getSnapshotKey(cursor.getString(2), cursor.getInt(3)), cursor.getLong(0));
+        }
+      }
+    }
+    return snapshotIds;
+  }
+
+  private static List<Object> getSnapshotKey(String sensorTag, int resolutionTier) {
+    return Arrays.<Object>asList(sensorTag, resolutionTier);
+  }
+
+  /** Returns the snapshot of the series, or null if it has none or it could not be opened. */
+  private SeriesSnapshot getSnapshot(String trialId, String sensorTag, int resolutionTier) {
+    synchronized (snapshotLock) {
+      Map<List<Object>, Long> ids = getSnapshotIds().get(trialId);
+      Long id = ids == null ? null : ids.get(getSnapshotKey(sensorTag, resolutionTier));
+      if (id == null) {
+        return null;
+      }
+      SeriesSnapshot snapshot = openSnapshots.get(id);
+      if (snapshot == null) {
+        try {
+          snapshot = SeriesSnapshot.open(getSnapshotFile(id));
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to open snapshot of trial " + trialId, e);
+          dropSnapshots(openHelper.getWritableDatabase(), trialId);
+          return null;
+        }
+        openSnapshots.put(id, snapshot);
+      }
+      // Snapshots only use absolute reads, so one can be read on several threads at once.
+      return snapshot;
+    }
+  }
+
+  /** Throws away the snapshots of the trial, if any, as its readings are changing. */
+  private void dropSnapshots(SQLiteDatabase db, String trialId) {
+    synchronized (snapshotLock) {
+      PendingSnapshots pending = pendingSnapshots.remove(trialId);
+      if (pending != null) {
+        // What has been written is already out of date, so finalizing starts over.
+        pending.abandon();
+      }
+      Map<List<Object>, Long> ids = getSnapshotIds().remove(trialId);
+      if (ids == null) {
+        return;
+      }
+      db.delete(
+          SnapshotsTable.NAME, SnapshotsTable.Column.TRIAL_ID + " = ?", new String[] {trialId});
+      for (Long id : ids.values()) {
+        openSnapshots.remove(id);
+        getSnapshotFile(id).delete();
+      }
+    }
+  }
+
+  private File getSnapshotFile(long id) {
+    return new File(snapshotDir, id + ".series");
+  }
+
+  /** The snapshots of a trial that {@link #finalizeTrialStep} has not finished writing. */
+  private static class PendingSnapshots {
+    final List<SeriesSummary> allSeries;
+    // The file written for each series so far, named until they are all committed.
+    final List<File> files = new ArrayList<>();
+    int seriesIndex = 0;
+    SeriesSnapshot.Writer writer = null;
+    // The last reading written for the current series.
+    long lastTimestampMillis = Long.MIN_VALUE;
+    long lastRowid = -1;
+
+    PendingSnapshots(List<SeriesSummary> allSeries) {
+      this.allSeries = allSeries;
+    }
+
+    /** Deletes everything written so far. */
+    void abandon() {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Failed to close abandoned snapshot", e);
+        }
+        writer = null;
+      }
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  private static long getSizeBytes(SQLiteDatabase db) {
+    return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+        * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
   }
 
   @Override
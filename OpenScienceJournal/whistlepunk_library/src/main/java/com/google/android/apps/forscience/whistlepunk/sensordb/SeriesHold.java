@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How the stored readings of a sensor that only reports changes, such as the ambient light sensor,
+ * stand for the readings it was shown with. Each reading held until the next, being shown again
+ * every {@link #getIntervalMillis()} milliseconds, and the last held until {@link
+ * #getHeldUntilMillis()}. Only the readings themselves are stored; the repeats are filled in by
+ * {@link #expand(List)} when a reader asks for them.
+ */
+public class SeriesHold {
+  private final String trialId;
+  private final String sensorTag;
+  private final long intervalMillis;
+  private final long heldUntilMillis;
+
+  public SeriesHold(String trialId, String sensorTag, long intervalMillis, long heldUntilMillis) {
+    this.trialId = trialId;
+    this.sensorTag = sensorTag;
+    this.intervalMillis = intervalMillis;
+    this.heldUntilMillis = heldUntilMillis;
+  }
+
+  public String getTrialId() {
+    return trialId;
+  }
+
+  public String getSensorTag() {
+    return sensorTag;
+  }
+
+  /** Returns how often a held reading was shown again. */
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /** Returns the time at which the last reading was last shown. */
+  public long getHeldUntilMillis() {
+    return heldUntilMillis;
+  }
+
+  /**
+   * Returns the readings, oldest first, with each one repeated every interval for as long as it
+   * held, as they were shown while recording.
+   */
+  public List<ScalarReading> expand(List<ScalarReading> readings) {
+    List<ScalarReading> expanded = new ArrayList<>();
+    for (int i = 0; i < readings.size(); i++) {
+      ScalarReading reading = readings.get(i);
+      // A repeat at the same time as the next reading would be replaced by it.
+      long endMillis =
+          i + 1 < readings.size()
+              ? readings.get(i + 1).getCollectedTimeMillis() - 1
+              : heldUntilMillis;
+      expanded.add(reading);
+      if (intervalMillis <= 0) {
+        continue;
+      }
+      for (long time = reading.getCollectedTimeMillis() + intervalMillis;
+          time <= endMillis;
+          time += intervalMillis) {
+        expanded.add(new ScalarReading(time, reading.getValue(), reading.getSensorTag()));
+      }
+    }
+    return expanded;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    SeriesHold other = (SeriesHold) o;
+    return intervalMillis == other.intervalMillis
+        && heldUntilMillis == other.heldUntilMillis
+        && trialId.equals(other.trialId)
+        && sensorTag.equals(other.sensorTag);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = trialId.hashCode();
+    result = 31 * result + sensorTag.hashCode();
+    result = 31 * result + (int) (intervalMillis ^ (intervalMillis >>> 32));
+    result = 31 * result + (int) (heldUntilMillis ^ (heldUntilMillis >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "SeriesHold{"
+        + trialId
+        + ", "
+        + sensorTag
+        + ", every "
+        + intervalMillis
+        + " ms until "
+        + heldUntilMillis
+        + "}";
+  }
+}
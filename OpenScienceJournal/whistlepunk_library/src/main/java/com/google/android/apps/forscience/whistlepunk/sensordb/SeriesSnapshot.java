@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A read-only copy of one series of readings, in a file that is memory-mapped for reading, so that
+ * reads of a finished trial cost no SQLite queries and no object for each reading.
+ *
+ * <p>The readings are stored in order of time, in blocks of {@link #READINGS_PER_BLOCK}. In each
+ * block, the first reading is its value alone; each of the others is the number of milliseconds
+ * since the one before, as a varint, and then its value. A sparse index holds the timestamp and
+ * file offset of the first reading of each block, so a read finds its starting block by binary
+ * search and decodes at most one block that it doesn't need. A footer at the end of the file holds
+ * the reading count, block count, index offset, format version and a magic number.
+ */
+class SeriesSnapshot {
+  private static final int MAGIC = 0x4f534a53;
+  private static final int VERSION = 1;
+
+  @VisibleForTesting static final int READINGS_PER_BLOCK = 64;
+
+  // Timestamp of the first reading in a block, and its offset.
+  private static final int INDEX_ENTRY_BYTES = 12;
+  private static final int FOOTER_BYTES = 20;
+
+  private final ByteBuffer buffer;
+  private final int count;
+  private final int blockCount;
+  private final int indexOffset;
+
+  /** Maps the snapshot in the given file. */
+  static SeriesSnapshot open(File file) throws IOException {
+    // The mapping stays valid once the file is closed.
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      FileChannel channel = input.getChannel();
+      return new SeriesSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  private SeriesSnapshot(ByteBuffer buffer) throws IOException {
+    int size = buffer.limit();
+    // Only absolute gets are used, so that reads never change the buffer's state.
+    if (size < FOOTER_BYTES
+        || buffer.getInt(size - 4) != MAGIC
+        || buffer.getInt(size - 8) != VERSION) {
+      throw new IOException("Not a series snapshot");
+    }
+    this.buffer = buffer;
+    count = buffer.getInt(size - FOOTER_BYTES);
+    blockCount = buffer.getInt(size - FOOTER_BYTES + 4);
+    indexOffset = buffer.getInt(size - FOOTER_BYTES + 8);
+    if (indexOffset + (long) blockCount * INDEX_ENTRY_BYTES != size - FOOTER_BYTES) {
+      throw new IOException("Corrupt series snapshot index");
+    }
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the readings in the range, in its order, as {@link
+   * SensorDatabase#getScalarReadings(String, String, TimeRange, int, int)} does.
+   */
+  ScalarReadingList read(TimeRange range, int maxRecords) {
+    int max = maxRecords <= 0 ? Integer.MAX_VALUE : maxRecords;
+    long[] timestamps = new long[Math.min(Math.min(max, count), 256)];
+    double[] values = new double[timestamps.length];
+    int size = 0;
+    Range<Long> times = range.getTimes().canonical(DiscreteDomain.longs());
+    long first = times.hasLowerBound() ? times.lowerEndpoint() : Long.MIN_VALUE;
+    if (range.getOrder() == TimeRange.ObservationOrder.OLDEST_FIRST) {
+      ReadingIterator readings = iterate(times);
+      while (size < max && readings.hasNext()) {
+        if (size == timestamps.length) {
+          timestamps = Arrays.copyOf(timestamps, size * 2);
+          values = Arrays.copyOf(values, size * 2);
+        }
+        timestamps[size] = readings.getTimestampMillis();
+        values[size] = readings.getValue();
+        size++;
+        readings.next();
+      }
+    } else {
+      long[] blockTimestamps = new long[READINGS_PER_BLOCK];
+      double[] blockValues = new double[READINGS_PER_BLOCK];
+      long last = times.hasUpperBound() ? times.upperEndpoint() - 1 : Long.MAX_VALUE;
+      for (int block = findBlock(last); block >= 0 && size < max; block--) {
+        int blockSize = decodeBlock(block, blockTimestamps, blockValues);
+        for (int i = blockSize - 1; i >= 0 && size < max; i--) {
+          if (blockTimestamps[i] < first) {
+            return new ArrayScalarReadingList(timestamps, values, size);
+          }
+          if (blockTimestamps[i] <= last) {
+            if (size == timestamps.length) {
+              timestamps = Arrays.copyOf(timestamps, size * 2);
+              values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = blockTimestamps[i];
+            values[size] = blockValues[i];
+            size++;
+          }
+        }
+      }
+    }
+    return new ArrayScalarReadingList(timestamps, values, size);
+  }
+
+  /** Returns an iterator over the readings in the given range, oldest first. */
+  ReadingIterator iterate(Range<Long> times) {
+    Range<Long> canonical = times.canonical(DiscreteDomain.longs());
+    long first = canonical.hasLowerBound() ? canonical.lowerEndpoint() : Long.MIN_VALUE;
+    long last = canonical.hasUpperBound() ? canonical.upperEndpoint() - 1 : Long.MAX_VALUE;
+    return new ReadingIterator(first, last);
+  }
+
+  /** Returns the last block that starts at or before the given time, or -1 if there is none. */
+  private int findBlock(long timestampMillis) {
+    int low = 0;
+    int high = blockCount - 1;
+    int found = -1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (getBlockStart(middle) <= timestampMillis) {
+        found = middle;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found;
+  }
+
+  private long getBlockStart(int block) {
+    return buffer.getLong(indexOffset + block * INDEX_ENTRY_BYTES);
+  }
+
+  /** Decodes the readings of a block into the arrays, and returns how many there are. */
+  private int decodeBlock(int block, long[] timestamps, double[] values) {
+    int position = buffer.getInt(indexOffset + block * INDEX_ENTRY_BYTES + 8);
+    int blockSize = Math.min(READINGS_PER_BLOCK, count - block * READINGS_PER_BLOCK);
+    long timestamp = getBlockStart(block);
+    for (int i = 0; i < blockSize; i++) {
+      if (i > 0) {
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buffer.get(position++);
+          delta |= (long) (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        timestamp += delta;
+      }
+      timestamps[i] = timestamp;
+      values[i] = buffer.getDouble(position);
+      position += 8;
+    }
+    return blockSize;
+  }
+
+  /** Steps through the readings in a range of time, oldest first, a block at a time. */
+  class ReadingIterator {
+    private final long last;
+    private final long[] blockTimestamps = new long[READINGS_PER_BLOCK];
+    private final double[] blockValues = new double[READINGS_PER_BLOCK];
+    private int block;
+    private int blockSize = 0;
+    private int index = 0;
+
+    private ReadingIterator(long first, long last) {
+      this.last = last;
+      block = Math.max(0, findBlock(first));
+      if (block < blockCount) {
+        blockSize = decodeBlock(block, blockTimestamps, blockValues);
+      }
+      while (hasReading() && blockTimestamps[index] < first) {
+        next();
+      }
+    }
+
+    boolean hasNext() {
+      return hasReading() && blockTimestamps[index] <= last;
+    }
+
+    long getTimestampMillis() {
+      return blockTimestamps[index];
+    }
+
+    double getValue() {
+      return blockValues[index];
+    }
+
+    void next() {
+      index++;
+      if (index == blockSize && block + 1 < blockCount) {
+        block++;
+        blockSize = decodeBlock(block, blockTimestamps, blockValues);
+        index = 0;
+      }
+    }
+
+    private boolean hasReading() {
+      return index < blockSize;
+    }
+  }
+
+  /**
+   * Writes a snapshot. Readings must be added in order of time. The file only appears, in one
+   * step, when the writer is finished, so that a snapshot that exists is always complete.
+   */
+  static class Writer implements Closeable {
+    private final File file;
+    private final File tempFile;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    private final DataOutputStream index = new DataOutputStream(indexBytes);
+    private int count = 0;
+    private long previousTimestamp;
+    private boolean finished = false;
+
+    Writer(File file) throws IOException {
+      this.file = file;
+      tempFile = new File(file.getPath() + ".tmp");
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+    }
+
+    void add(long timestampMillis, double value) throws IOException {
+      if (count % READINGS_PER_BLOCK == 0) {
+        index.writeLong(timestampMillis);
+        index.writeInt(out.size());
+      } else {
+        Preconditions.checkArgument(
+            timestampMillis >= previousTimestamp, "Readings must be in order of time");
+        long delta = timestampMillis - previousTimestamp;
+        while ((delta & ~0x7fL) != 0) {
+          out.writeByte((int) ((delta & 0x7f) | 0x80));
+          delta >>>= 7;
+        }
+        out.writeByte((int) delta);
+      }
+      out.writeDouble(value);
+      previousTimestamp = timestampMillis;
+      count++;
+    }
+
+    void finish() throws IOException {
+      int indexOffset = out.size();
+      indexBytes.writeTo(out);
+      out.writeInt(count);
+      out.writeInt((count + READINGS_PER_BLOCK - 1) / READINGS_PER_BLOCK);
+      out.writeInt(indexOffset);
+      out.writeInt(VERSION);
+      out.writeInt(MAGIC);
+      out.close();
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not write " + file);
+      }
+      finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!finished) {
+        out.close();
+        tempFile.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import com.google.common.collect.Range;
+
+/**
+ * The extent of one series of stored readings: those of one sensor, in one trial, at one
+ * resolution tier.
+ */
+public class SeriesSummary {
+  private final String trialId;
+  private final String sensorTag;
+  private final int resolutionTier;
+  private final long firstTimestampMillis;
+  private final long lastTimestampMillis;
+  private final long count;
+
+  public SeriesSummary(
+      String trialId,
+      String sensorTag,
+      int resolutionTier,
+      long firstTimestampMillis,
+      long lastTimestampMillis,
+      long count) {
+    this.trialId = trialId;
+    this.sensorTag = sensorTag;
+    this.resolutionTier = resolutionTier;
+    this.firstTimestampMillis = firstTimestampMillis;
+    this.lastTimestampMillis = lastTimestampMillis;
+    this.count = count;
+  }
+
+  public String getTrialId() {
+    return trialId;
+  }
+
+  public String getSensorTag() {
+    return sensorTag;
+  }
+
+  public int getResolutionTier() {
+    return resolutionTier;
+  }
+
+  public long getFirstTimestampMillis() {
+    return firstTimestampMillis;
+  }
+
+  public long getLastTimestampMillis() {
+    return lastTimestampMillis;
+  }
+
+  /** Returns the range from the first reading to the last. */
+  public Range<Long> getTimes() {
+    return Range.closed(firstTimestampMillis, lastTimestampMillis);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    SeriesSummary other = (SeriesSummary) o;
+    return resolutionTier == other.resolutionTier
+        && firstTimestampMillis == other.firstTimestampMillis
+        && lastTimestampMillis == other.lastTimestampMillis
+        && count == other.count
+        && trialId.equals(other.trialId)
+        && sensorTag.equals(other.sensorTag);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = trialId.hashCode();
+    result = 31 * result + sensorTag.hashCode();
+    result = 31 * result + resolutionTier;
+    result = 31 * result + (int) (firstTimestampMillis ^ (firstTimestampMillis >>> 32));
+    result = 31 * result + (int) (lastTimestampMillis ^ (lastTimestampMillis >>> 32));
+    result = 31 * result + (int) (count ^ (count >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "SeriesSummary{"
+        + trialId
+        + ", "
+        + sensorTag
+        + ", tier "
+        + resolutionTier
+        + ", "
+        + getTimes()
+        + ", count="
+        + count
+        + "}";
+  }
+}
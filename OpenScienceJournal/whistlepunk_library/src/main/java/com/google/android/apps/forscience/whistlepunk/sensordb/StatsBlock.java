@@ -0,0 +1,153 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of the tier 0 readings of one sensor in one trial, over a fixed-width block of
+ * time. Blocks start at multiples of {@link #BLOCK_MILLIS}, so the stats of any range can be found
+ * from the blocks that lie inside it, plus the readings in the partial blocks at its edges.
+ *
+ * <p>The distribution of a block's values is summarized by up to {@link #MAX_QUANTILES} of them,
+ * evenly spaced in rank, which are enough to estimate the median of many blocks together.
+ */
+public class StatsBlock {
+  public static final long BLOCK_MILLIS = 1000;
+  public static final int MAX_QUANTILES = 16;
+  private static final double[] NO_QUANTILES = new double[0];
+
+  private final String trialId;
+  private final String sensorTag;
+  private final long blockStartMillis;
+  private final long firstTimestampMillis;
+  private final long lastTimestampMillis;
+  private final int count;
+  private final double min;
+  private final double max;
+  private final double sum;
+  private final double sumOfSquaredDeviations;
+  private final double[] quantiles;
+
+  /**
+   * @param sumOfSquaredDeviations the sum of the squared differences of the values from their
+   *     mean.
+   * @param quantiles the values in order, if there are no more than {@link #MAX_QUANTILES},
+   *     otherwise that many of them, evenly spaced in rank. Null for blocks stored before they
+   *     were kept.
+   */
+  public StatsBlock(
+      String trialId,
+      String sensorTag,
+      long blockStartMillis,
+      long firstTimestampMillis,
+      long lastTimestampMillis,
+      int count,
+      double min,
+      double max,
+      double sum,
+      double sumOfSquaredDeviations,
+      double[] quantiles) {
+    this.trialId = trialId;
+    this.sensorTag = sensorTag;
+    this.blockStartMillis = blockStartMillis;
+    this.firstTimestampMillis = firstTimestampMillis;
+    this.lastTimestampMillis = lastTimestampMillis;
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.sum = sum;
+    this.sumOfSquaredDeviations = sumOfSquaredDeviations;
+    this.quantiles = quantiles == null ? NO_QUANTILES : quantiles;
+  }
+
+  /**
+   * Picks the quantiles to keep of a block's values.
+   *
+   * @param sortedValues the values, in increasing order.
+   */
+  public static double[] pickQuantiles(double[] sortedValues, int count) {
+    if (count <= MAX_QUANTILES) {
+      return Arrays.copyOf(sortedValues, count);
+    }
+    double[] quantiles = new double[MAX_QUANTILES];
+    for (int i = 0; i < MAX_QUANTILES; i++) {
+      // The middle of each of MAX_QUANTILES equal slices of the values.
+      quantiles[i] = sortedValues[(int) ((i + 0.5) * count / MAX_QUANTILES)];
+    }
+    return quantiles;
+  }
+
+  /** Returns the start of the block that contains the given time. */
+  public static long getBlockStart(long timestampMillis) {
+    long blockStart = timestampMillis - timestampMillis % BLOCK_MILLIS;
+    // The remainder is negative for times before the epoch.
+    return blockStart > timestampMillis ? blockStart - BLOCK_MILLIS : blockStart;
+  }
+
+  public String getTrialId() {
+    return trialId;
+  }
+
+  public String getSensorTag() {
+    return sensorTag;
+  }
+
+  public long getBlockStartMillis() {
+    return blockStartMillis;
+  }
+
+  public long getFirstTimestampMillis() {
+    return firstTimestampMillis;
+  }
+
+  public long getLastTimestampMillis() {
+    return lastTimestampMillis;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  public double getSumOfSquaredDeviations() {
+    return sumOfSquaredDeviations;
+  }
+
+  /** Returns the quantiles kept of the values, which is empty if none were. Don't modify it. */
+  public double[] getQuantiles() {
+    return quantiles;
+  }
+
+  /** Returns how many of the values the quantile at the given index stands for. */
+  public long getQuantileWeight(int index) {
+    // Spread the count as evenly as whole numbers allow, so that the weights add up to it.
+    long n = quantiles.length;
+    return (index + 1) * (long) count / n - index * (long) count / n;
+  }
+}
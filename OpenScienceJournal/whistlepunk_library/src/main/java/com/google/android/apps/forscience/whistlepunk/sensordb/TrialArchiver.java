@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.common.collect.Range;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Archives the trials that have been idle for longer than an {@link ArchivePolicy} allows: the
+ * readings below the finest tier of the policy are deleted, the trial's snapshots are written
+ * again from what is left, and the freed space is returned to the file system.
+ *
+ * <p>Like {@link CroppedDataReclaimer}, the work is split into small steps, each of which is a
+ * separate task on the executor, so that other work on the same executor never waits for more than
+ * one step.
+ *
+ * <p>Sensors that were recorded without the finest tier get one first, built from the finest tier
+ * they have in the same way as ZoomRecorder would have built it: the minimum and maximum of each
+ * run of readings. A trial is only marked as archived once every sensor has the finest tier, so
+ * that an archiver that is stopped part way through starts over on the same trial next time.
+ */
+public class TrialArchiver implements Runnable {
+  @VisibleForTesting static final int RECORDS_PER_STEP = 500;
+
+  @VisibleForTesting static final int PAGES_PER_STEP = 64;
+
+  // How many steps of deletion to do before returning the freed pages.
+  private static final int DELETE_STEPS_PER_COMPACT = 8;
+
+  private enum Phase {
+    FIND,
+    FILL,
+    MARK,
+    DELETE,
+    FINALIZE,
+    COMPACT,
+    DONE
+  }
+
+  private final SensorDatabase db;
+  private final Executor executor;
+  private final ArchivePolicy policy;
+  private final long nowMillis;
+  private final MaybeConsumer<Long> onArchived;
+
+  private Phase phase = Phase.FIND;
+  private List<String> trialIds;
+  private int trialIndex = 0;
+  // The series of the current trial that the finest tier is built from, and how far it has got.
+  private List<SeriesSummary> seriesToFill;
+  private int seriesIndex = 0;
+  private Range<Long> unfilledTimes;
+  private int deleteStepsSinceCompact = 0;
+  private long bytesReclaimed = 0;
+  // The size of the current trial's snapshots before it was archived.
+  private long snapshotBytesBefore = 0;
+
+  /**
+   * @param executor must be the only executor on which {@code db} is used.
+   * @param nowMillis the time from which idleness is measured.
+   * @param onArchived called on the executor with the number of bytes by which the database file
+   *     and the snapshots of the archived trials shrank.
+   */
+  public TrialArchiver(
+      SensorDatabase db,
+      Executor executor,
+      ArchivePolicy policy,
+      long nowMillis,
+      MaybeConsumer<Long> onArchived) {
+    this.db = db;
+    this.executor = executor;
+    this.policy = policy;
+    this.nowMillis = nowMillis;
+    this.onArchived = onArchived;
+  }
+
+  public void start() {
+    executor.execute(this);
+  }
+
+  @Override
+  public void run() {
+    try {
+      step();
+    } catch (Exception e) {
+      phase = Phase.DONE;
+      onArchived.fail(e);
+      return;
+    }
+    if (phase == Phase.DONE) {
+      onArchived.success(bytesReclaimed);
+    } else {
+      // Go to the back of the queue, behind anything that arrived during this step.
+      executor.execute(this);
+    }
+  }
+
+  @VisibleForTesting
+  boolean isDone() {
+    return phase == Phase.DONE;
+  }
+
+  private void step() {
+    switch (phase) {
+      case FIND:
+        trialIds =
+            db.getIdleTrialIds(nowMillis - policy.getIdleMillis(), policy.getFinestTier());
+        // Nothing to archive means nothing to compact, either.
+        if (trialIds.isEmpty()) {
+          phase = Phase.DONE;
+        } else {
+          startTrial();
+        }
+        break;
+      case FILL:
+        if (fillStep()) {
+          seriesIndex++;
+          if (seriesIndex < seriesToFill.size()) {
+            unfilledTimes = seriesToFill.get(seriesIndex).getTimes();
+          } else {
+            phase = Phase.MARK;
+          }
+        }
+        break;
+      case MARK:
+        db.setFinestTier(trialIds.get(trialIndex), policy.getFinestTier());
+        phase = Phase.DELETE;
+        break;
+      case DELETE:
+        if (deleteStep()) {
+          phase = Phase.FINALIZE;
+        }
+        break;
+      case FINALIZE:
+        // Deleting readings threw away the trial's snapshots, so make new ones.
+        if (db.finalizeTrialStep(trialIds.get(trialIndex), RECORDS_PER_STEP)) {
+          // The snapshots of a trial that had none are new, rather than a change in size.
+          if (snapshotBytesBefore > 0) {
+            bytesReclaimed +=
+                snapshotBytesBefore - db.getSnapshotSizeBytes(trialIds.get(trialIndex));
+          }
+          trialIndex++;
+          if (trialIndex < trialIds.size()) {
+            startTrial();
+          } else {
+            phase = Phase.COMPACT;
+          }
+        }
+        break;
+      case COMPACT:
+        if (compact() == 0) {
+          phase = Phase.DONE;
+        }
+        break;
+      case DONE:
+        break;
+    }
+  }
+
+  /**
+   * Finds, for each sensor of the current trial without the finest tier, the series it is to be
+   * built from.
+   */
+  private void startTrial() {
+    int finestTier = policy.getFinestTier();
+    snapshotBytesBefore = db.getSnapshotSizeBytes(trialIds.get(trialIndex));
+    Map<String, SeriesSummary> sources = new HashMap<>();
+    List<String> sensorTags = new ArrayList<>();
+    for (SeriesSummary series : db.getSeriesSummaries(trialIds.get(trialIndex))) {
+      String sensorTag = series.getSensorTag();
+      if (!sources.containsKey(sensorTag)) {
+        sensorTags.add(sensorTag);
+      }
+      if (series.getResolutionTier() >= finestTier) {
+        // Null marks the sensors that need no filling.
+        sources.put(sensorTag, null);
+      } else if (!sources.containsKey(sensorTag)) {
+        // Series come in order of tier, so this is the finest one.
+        sources.put(sensorTag, series);
+      }
+    }
+    seriesToFill = new ArrayList<>();
+    for (String sensorTag : sensorTags) {
+      if (sources.get(sensorTag) != null) {
+        seriesToFill.add(sources.get(sensorTag));
+      }
+    }
+    seriesIndex = 0;
+    if (seriesToFill.isEmpty()) {
+      phase = Phase.MARK;
+    } else {
+      unfilledTimes = seriesToFill.get(0).getTimes();
+      phase = Phase.FILL;
+    }
+  }
+
+  /**
+   * Adds the finest tier readings for the next page of the current series.
+   *
+   * @return true if the series is done.
+   */
+  private boolean fillStep() {
+    SeriesSummary series = seriesToFill.get(seriesIndex);
+    int runLength = policy.getReadingsPerFinestPair(series.getResolutionTier());
+    int pageSize = runLength * Math.max(1, RECORDS_PER_STEP / runLength);
+    List<ScalarReading> page =
+        ScalarReading.slurp(
+            db.getScalarReadings(
+                series.getTrialId(),
+                series.getSensorTag(),
+                TimeRange.oldest(unfilledTimes),
+                series.getResolutionTier(),
+                pageSize));
+
+    List<BatchInsertScalarReading> summary = new ArrayList<>();
+    for (int start = 0; start < page.size(); start += runLength) {
+      addMinAndMax(series, page.subList(start, Math.min(start + runLength, page.size())), summary);
+    }
+    db.addScalarReadings(summary);
+
+    if (page.size() < pageSize) {
+      return true;
+    }
+    long lastFilled = page.get(page.size() - 1).getCollectedTimeMillis();
+    // Stop at the end of the series rather than ask for readings after it, which would fall back
+    // to those stored before trial ids.
+    if (lastFilled >= series.getLastTimestampMillis()) {
+      return true;
+    }
+    unfilledTimes = Range.openClosed(lastFilled, series.getLastTimestampMillis());
+    return false;
+  }
+
+  private void addMinAndMax(
+      SeriesSummary series, List<ScalarReading> run, List<BatchInsertScalarReading> summary) {
+    ScalarReading min = run.get(0);
+    ScalarReading max = run.get(0);
+    for (ScalarReading reading : run) {
+      if (reading.getValue() < min.getValue()) {
+        min = reading;
+      }
+      if (reading.getValue() > max.getValue()) {
+        max = reading;
+      }
+    }
+    // In order of time, as they would be read back.
+    ScalarReading first = min.getCollectedTimeMillis() <= max.getCollectedTimeMillis() ? min : max;
+    ScalarReading second = first == min ? max : min;
+    summary.add(toFinestTier(series, first));
+    if (second != first) {
+      summary.add(toFinestTier(series, second));
+    }
+  }
+
+  private BatchInsertScalarReading toFinestTier(SeriesSummary series, ScalarReading reading) {
+    return new BatchInsertScalarReading(
+        series.getTrialId(),
+        series.getSensorTag(),
+        policy.getFinestTier(),
+        reading.getCollectedTimeMillis(),
+        reading.getValue());
+  }
+
+  /** Returns true if there is nothing left to delete in the current trial. */
+  private boolean deleteStep() {
+    int deleted = db.deleteReadingsBelowFinestTier(trialIds.get(trialIndex), RECORDS_PER_STEP);
+    if (++deleteStepsSinceCompact >= DELETE_STEPS_PER_COMPACT) {
+      compact();
+    }
+    return deleted < RECORDS_PER_STEP;
+  }
+
+  private long compact() {
+    deleteStepsSinceCompact = 0;
+    long reclaimed = db.compact(PAGES_PER_STEP);
+    bytesReclaimed += reclaimed;
+    return reclaimed;
+  }
+}
@@ -19,11 +19,10 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -55,8 +54,6 @@ public class AccelerometerSensor extends ScalarSensor {
     }
   }
 
-  private SensorEventListener sensorEventListener;
-
   public AccelerometerSensor(Axis axis) {
     super(axis.getSensorId());
     this.axis = axis;
@@ -69,33 +66,44 @@ public class AccelerometerSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventBatcher batcher;
+      private SensorSampling sampling = SensorSampling.UI;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
         SensorManager sensorManager = getSensorManager(context);
         Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        if (sensorEventListener != null) {
-          getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
         }
-        final Clock clock = environment.getDefaultClock();
-        sensorEventListener =
-            new SensorEventListener() {
-              @Override
-              public void onSensorChanged(SensorEvent event) {
-                c.addData(clock.getNow(), axis.getValue(event));
-              }
-
-              @Override
-              public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            };
-        sensorManager.registerListener(sensorEventListener, sensor, SensorManager.SENSOR_DELAY_UI);
+        batcher =
+            new SensorEventBatcher(
+                sensorManager,
+                environment.getDefaultClock(),
+                getId(),
+                c,
+                axis::getValue,
+                sensor);
+        batcher.start(sampling);
       }
 
       @Override
       public void stopObserving() {
-        getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
+          batcher = null;
+        }
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
+
+      @Override
+      public void applyOptions(ReadableSensorOptions settings) {
+        sampling = SensorSampling.fromOptions(settings, SensorSampling.UI);
+        if (batcher != null) {
+          batcher.start(sampling);
+        }
+      }
     };
   }
 
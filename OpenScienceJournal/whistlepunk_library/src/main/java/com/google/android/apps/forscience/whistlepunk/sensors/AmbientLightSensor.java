@@ -40,8 +40,6 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 public class AmbientLightSensor extends ScalarSensor {
   public static final String ID = "AmbientLightSensor";
   private final SystemScheduler scheduler = new SystemScheduler();
-  private SensorEventListener sensorEventListener;
-  private DataRefresher dataRefresher;
 
   public AmbientLightSensor() {
     super(ID);
@@ -54,6 +52,9 @@ public class AmbientLightSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventListener sensorEventListener;
+      private DataRefresher dataRefresher;
+
       @Override
       public void startObserving() {
         dataRefresher = new DataRefresher(scheduler, environment.getDefaultClock());
@@ -33,7 +33,6 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 /** Class to get sensor data from the Ambient Temperature sensor. */
 public class AmbientTemperatureSensor extends ScalarSensor {
   public static final String ID = "AmbientTemperatureSensor";
-  private SensorEventListener sensorEventListener;
 
   public AmbientTemperatureSensor() {
     super(ID);
@@ -46,6 +45,8 @@ public class AmbientTemperatureSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventListener sensorEventListener;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
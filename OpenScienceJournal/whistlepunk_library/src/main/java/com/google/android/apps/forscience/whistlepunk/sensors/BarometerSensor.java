@@ -18,12 +18,10 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -33,7 +31,6 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 /** Class to get sensor data from the Pressure Sensor (barometer). */
 public class BarometerSensor extends ScalarSensor {
   public static final String ID = "BarometerSensor";
-  private SensorEventListener sensorEventListener;
 
   public BarometerSensor() {
     super(ID);
@@ -46,35 +43,46 @@ public class BarometerSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventBatcher batcher;
+      private SensorSampling sampling = SensorSampling.UI;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
         SensorManager sensorManager = getSensorManager(context);
         Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_PRESSURE);
-        if (sensorEventListener != null) {
-          getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
         }
-        final Clock clock = environment.getDefaultClock();
-        sensorEventListener =
-            new SensorEventListener() {
-              @Override
-              public void onSensorChanged(SensorEvent event) {
+        batcher =
+            new SensorEventBatcher(
+                sensorManager,
+                environment.getDefaultClock(),
+                getId(),
+                c,
                 // values[0]: Atmospheric pressure in hPa (millibar).
                 // 1 hPa == 1 millibar
-                c.addData(clock.getNow(), event.values[0]);
-              }
-
-              @Override
-              public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            };
-        sensorManager.registerListener(sensorEventListener, sensor, SensorManager.SENSOR_DELAY_UI);
+                event -> event.values[0],
+                sensor);
+        batcher.start(sampling);
       }
 
       @Override
       public void stopObserving() {
-        getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
+          batcher = null;
+        }
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
+
+      @Override
+      public void applyOptions(ReadableSensorOptions settings) {
+        sampling = SensorSampling.fromOptions(settings, SensorSampling.UI);
+        if (batcher != null) {
+          batcher.start(sampling);
+        }
+      }
     };
   }
 
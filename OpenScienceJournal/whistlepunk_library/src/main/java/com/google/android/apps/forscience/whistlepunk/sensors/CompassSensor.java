@@ -19,11 +19,10 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -33,7 +32,6 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 /** Class to create a compass sensor from the magnetic field and accelerometer. */
 public class CompassSensor extends ScalarSensor {
   public static final String ID = "CompassSensor";
-  private SensorEventListener sensorEventListener;
 
   public CompassSensor() {
     super(ID);
@@ -46,62 +44,77 @@ public class CompassSensor extends ScalarSensor {
       Context context,
       SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventBatcher batcher;
+      private SensorSampling sampling = SensorSampling.UI;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
         SensorManager sensorManager = getSensorManager(context);
         Sensor magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
         Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        if (sensorEventListener != null) {
-          getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
         }
-        final Clock clock = environment.getDefaultClock();
-        sensorEventListener =
-            new SensorEventListener() {
-              private float[] orientation = new float[3];
-              private float[] magneticRotation;
-              private float[] acceleration;
-              private float[] rotation = new float[9];
-              private float[] inclination = new float[9];
-
-              @Override
-              public void onSensorChanged(SensorEvent event) {
-                if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-                  acceleration = event.values;
-                } else {
-                  magneticRotation = event.values;
-                }
-                // Update data as long as we have a value for both. This is the highest
-                // rate of update.
-                // If we want a slower rate, we can update when *both* values have changed,
-                // or only when magneticRotation changes, for example.
-                if (acceleration == null || magneticRotation == null) {
-                  return;
-                }
-                boolean hasRotation =
-                    SensorManager.getRotationMatrix(
-                        rotation, inclination, acceleration, magneticRotation);
-                if (hasRotation) {
-                  SensorManager.getOrientation(rotation, orientation);
-                  // Use a positive angle in degrees between 0 and 360.
-                  c.addData(clock.getNow(), 360 - (360 - (Math.toDegrees(orientation[0]))) % 360);
-                }
-              }
+        batcher =
+            new SensorEventBatcher(
+                sensorManager,
+                environment.getDefaultClock(),
+                getId(),
+                c,
+                new SensorEventBatcher.EventValue() {
+                  private float[] orientation = new float[3];
+                  private float[] magneticRotation;
+                  private float[] acceleration;
+                  private float[] rotation = new float[9];
+                  private float[] inclination = new float[9];
 
-              @Override
-              public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            };
-        sensorManager.registerListener(
-            sensorEventListener, magnetometer, SensorManager.SENSOR_DELAY_UI);
-        sensorManager.registerListener(
-            sensorEventListener, accelerometer, SensorManager.SENSOR_DELAY_UI);
+                  @Override
+                  public double getValue(SensorEvent event) {
+                    if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+                      acceleration = event.values;
+                    } else {
+                      magneticRotation = event.values;
+                    }
+                    // Update data as long as we have a value for both. This is the highest
+                    // rate of update.
+                    // If we want a slower rate, we can update when *both* values have changed,
+                    // or only when magneticRotation changes, for example.
+                    if (acceleration == null || magneticRotation == null) {
+                      return Double.NaN;
+                    }
+                    boolean hasRotation =
+                        SensorManager.getRotationMatrix(
+                            rotation, inclination, acceleration, magneticRotation);
+                    if (!hasRotation) {
+                      return Double.NaN;
+                    }
+                    SensorManager.getOrientation(rotation, orientation);
+                    // Use a positive angle in degrees between 0 and 360.
+                    return 360 - (360 - (Math.toDegrees(orientation[0]))) % 360;
+                  }
+                },
+                magnetometer,
+                accelerometer);
+        batcher.start(sampling);
       }
 
       @Override
       public void stopObserving() {
-        getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
+          batcher = null;
+        }
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
+
+      @Override
+      public void applyOptions(ReadableSensorOptions settings) {
+        sampling = SensorSampling.fromOptions(settings, SensorSampling.UI);
+        if (batcher != null) {
+          batcher.start(sampling);
+        }
+      }
     };
   }
 
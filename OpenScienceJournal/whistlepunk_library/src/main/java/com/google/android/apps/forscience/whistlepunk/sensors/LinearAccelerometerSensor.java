@@ -18,12 +18,10 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -36,7 +34,6 @@ import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
  */
 public class LinearAccelerometerSensor extends ScalarSensor {
   public static final String ID = "LinearAccelerometerSensor";
-  private SensorEventListener sensorEventListener;
 
   public LinearAccelerometerSensor() {
     super(ID);
@@ -49,38 +46,48 @@ public class LinearAccelerometerSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventBatcher batcher;
+      private SensorSampling sampling = SensorSampling.UI;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
         SensorManager sensorManager = getSensorManager(context);
         Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_LINEAR_ACCELERATION);
-        if (sensorEventListener != null) {
-          getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
         }
-        final Clock clock = environment.getDefaultClock();
-        sensorEventListener =
-            new SensorEventListener() {
-              @Override
-              public void onSensorChanged(SensorEvent event) {
-                c.addData(
-                    clock.getNow(),
+        batcher =
+            new SensorEventBatcher(
+                sensorManager,
+                environment.getDefaultClock(),
+                getId(),
+                c,
+                event ->
                     Math.sqrt(
                         event.values[0] * event.values[0]
                             + event.values[1] * event.values[1]
-                            + event.values[2] * event.values[2]));
-              }
-
-              @Override
-              public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            };
-        sensorManager.registerListener(sensorEventListener, sensor, SensorManager.SENSOR_DELAY_UI);
+                            + event.values[2] * event.values[2]),
+                sensor);
+        batcher.start(sampling);
       }
 
       @Override
       public void stopObserving() {
-        getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
+          batcher = null;
+        }
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
+
+      @Override
+      public void applyOptions(ReadableSensorOptions settings) {
+        sampling = SensorSampling.fromOptions(settings, SensorSampling.UI);
+        if (batcher != null) {
+          batcher.start(sampling);
+        }
+      }
     };
   }
 
@@ -18,12 +18,10 @@ package com.google.android.apps.forscience.whistlepunk.sensors;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import com.google.android.apps.forscience.whistlepunk.Clock;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AbstractSensorRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.AvailableSensors;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorEnvironment;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
@@ -35,7 +33,6 @@ public class MagneticStrengthSensor extends ScalarSensor {
   // For historical reasons, the ID is MagneticRotationSensor. Since this is not exposed to the
   // user, we will just not mind the inconsistency.
   public static final String ID = "MagneticRotationSensor";
-  private SensorEventListener sensorEventListener;
 
   public MagneticStrengthSensor() {
     super(ID);
@@ -48,41 +45,50 @@ public class MagneticStrengthSensor extends ScalarSensor {
       final Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private SensorEventBatcher batcher;
+      private SensorSampling sampling = SensorSampling.UI;
+
       @Override
       public void startObserving() {
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED);
         SensorManager sensorManager = getSensorManager(context);
         Sensor magnetometer = sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        if (sensorEventListener != null) {
-          getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
         }
-        final Clock clock = environment.getDefaultClock();
-        sensorEventListener =
-            new SensorEventListener() {
-              @Override
-              public void onSensorChanged(SensorEvent event) {
+        batcher =
+            new SensorEventBatcher(
+                sensorManager,
+                environment.getDefaultClock(),
+                getId(),
+                c,
                 // The strength is the square root of the sum of the squares of the
                 // values in X, Y and Z.
-                c.addData(
-                    clock.getNow(),
+                event ->
                     Math.sqrt(
                         Math.pow(event.values[0], 2)
                             + Math.pow(event.values[1], 2)
-                            + Math.pow(event.values[2], 2)));
-              }
-
-              @Override
-              public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-            };
-        sensorManager.registerListener(
-            sensorEventListener, magnetometer, SensorManager.SENSOR_DELAY_UI);
+                            + Math.pow(event.values[2], 2)),
+                magnetometer);
+        batcher.start(sampling);
       }
 
       @Override
       public void stopObserving() {
-        getSensorManager(context).unregisterListener(sensorEventListener);
+        if (batcher != null) {
+          batcher.stop();
+          batcher = null;
+        }
         listener.onSourceStatus(getId(), SensorStatusListener.STATUS_DISCONNECTED);
       }
+
+      @Override
+      public void applyOptions(ReadableSensorOptions settings) {
+        sampling = SensorSampling.fromOptions(settings, SensorSampling.UI);
+        if (batcher != null) {
+          batcher.start(sampling);
+        }
+      }
     };
   }
 
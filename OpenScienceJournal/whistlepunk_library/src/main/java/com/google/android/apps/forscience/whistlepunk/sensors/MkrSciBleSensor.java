@@ -149,13 +149,13 @@ public class MkrSciBleSensor extends ScalarSensor {
           }
 
           @Override
-          public void onValuesUpdated(double[] values) {
+          public void onValuesUpdated(double[] values, long ageMillis) {
             if (!connected) {
               connected = true;
               handler.post(
                   () -> listener.onSourceStatus(getId(), SensorStatusListener.STATUS_CONNECTED));
             }
-            valueHandler.handle(c, clock.getNow(), values);
+            valueHandler.handle(c, clock.getNow() - ageMillis, values);
           }
         };
     return new AbstractSensorRecorder() {
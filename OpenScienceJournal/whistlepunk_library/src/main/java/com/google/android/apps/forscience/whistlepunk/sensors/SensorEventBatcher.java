@@ -0,0 +1,207 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import androidx.annotation.VisibleForTesting;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.BatchStreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import java.util.concurrent.Executor;
+
+/**
+ * Listens to sensors through {@link SensorManager} on a thread of its own, and passes their values
+ * on to a {@link StreamConsumer} a batch at a time.
+ *
+ * <p>With a maximum report latency, the hardware keeps samples in its FIFO and delivers them
+ * together, so the app is woken once per batch rather than once per sample. The events delivered
+ * together are collected and passed on in one call. Each value is timestamped with when the event
+ * was sampled rather than when it arrived, so samples held back in the FIFO keep their place in
+ * time.
+ */
+class SensorEventBatcher {
+  /** Computes the value to pass on from an event. */
+  interface EventValue {
+    /** @return the value of the event, or NaN if it has none to pass on. */
+    double getValue(SensorEvent event);
+  }
+
+  @VisibleForTesting static final int MAX_BATCH_SIZE = 256;
+
+  private static final long NANOS_PER_MILLI = 1000000;
+
+  // Events on devices that don't timestamp them in elapsed realtime look further off than this,
+  // beyond the time they may have waited in the FIFO.
+  private static final long MAX_CLOCK_SKEW_NANOS = 1000 * NANOS_PER_MILLI;
+
+  private final SensorManager sensorManager;
+  private final Clock clock;
+  private final String threadName;
+  private final StreamConsumer consumer;
+  private final EventValue eventValue;
+  private final Sensor[] sensors;
+  private HandlerThread thread;
+  private Handler handler;
+  private BatchingListener listener;
+
+  SensorEventBatcher(
+      SensorManager sensorManager,
+      Clock clock,
+      String threadName,
+      StreamConsumer consumer,
+      EventValue eventValue,
+      Sensor... sensors) {
+    this.sensorManager = sensorManager;
+    this.clock = clock;
+    this.threadName = threadName;
+    this.consumer = consumer;
+    this.eventValue = eventValue;
+    this.sensors = sensors;
+  }
+
+  /** Starts listening, or changes the sampling if already listening. */
+  void start(SensorSampling sampling) {
+    if (thread == null) {
+      thread = new HandlerThread(threadName);
+      thread.start();
+      handler = new Handler(thread.getLooper());
+      listener =
+          new BatchingListener(
+              clock,
+              clock.getNow() * NANOS_PER_MILLI - SystemClock.elapsedRealtimeNanos(),
+              MAX_CLOCK_SKEW_NANOS + sampling.getMaxReportLatencyUs() * 1000L,
+              consumer,
+              eventValue,
+              handler::post);
+    } else {
+      sensorManager.unregisterListener(listener);
+    }
+    for (Sensor sensor : sensors) {
+      sensorManager.registerListener(
+          listener,
+          sensor,
+          sampling.getSamplingPeriodUs(),
+          sampling.getMaxReportLatencyUs(),
+          handler);
+    }
+  }
+
+  /** Stops listening, once the values already delivered have been passed on. */
+  void stop() {
+    if (thread == null) {
+      return;
+    }
+    sensorManager.unregisterListener(listener);
+    handler.post(listener::flush);
+    thread.quitSafely();
+    thread = null;
+    handler = null;
+    listener = null;
+  }
+
+  /**
+   * Collects the events delivered together, and passes their values on once the thread has
+   * nothing else to do. Only used on one thread.
+   */
+  @VisibleForTesting
+  static class BatchingListener implements SensorEventListener {
+    private final Clock clock;
+    private final StreamConsumer consumer;
+    private final EventValue eventValue;
+    private final Executor flushExecutor;
+    private final Runnable flush = this::flush;
+    private final long[] timestampsMillis = new long[MAX_BATCH_SIZE];
+    private final double[] values = new double[MAX_BATCH_SIZE];
+    private int size = 0;
+    private final long maxSkewNanos;
+    private long clockOffsetNanos;
+    private boolean checkedTimeBase = false;
+
+    /**
+     * @param clockOffsetNanos added to the elapsed realtime of an event to get the time of {@code
+     *     clock}.
+     * @param maxSkewNanos how far the first event may be from the time of {@code clock} before
+     *     its timestamp is taken to be in some other time base.
+     * @param flushExecutor runs its runnables after the events already delivered on this thread.
+     */
+    BatchingListener(
+        Clock clock,
+        long clockOffsetNanos,
+        long maxSkewNanos,
+        StreamConsumer consumer,
+        EventValue eventValue,
+        Executor flushExecutor) {
+      this.clock = clock;
+      this.clockOffsetNanos = clockOffsetNanos;
+      this.maxSkewNanos = maxSkewNanos;
+      this.consumer = consumer;
+      this.eventValue = eventValue;
+      this.flushExecutor = flushExecutor;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+      double value = eventValue.getValue(event);
+      if (Double.isNaN(value)) {
+        return;
+      }
+      long sampledNanos = event.timestamp + clockOffsetNanos;
+      if (!checkedTimeBase) {
+        // Some devices timestamp events in another time base. Take the first event as having
+        // just been sampled instead, since every event after it is timed from it.
+        checkedTimeBase = true;
+        long deliveredNanos = clock.getNow() * NANOS_PER_MILLI;
+        if (Math.abs(deliveredNanos - sampledNanos) > maxSkewNanos) {
+          clockOffsetNanos = deliveredNanos - event.timestamp;
+          sampledNanos = deliveredNanos;
+        }
+      }
+      if (size == 0) {
+        flushExecutor.execute(flush);
+      }
+      timestampsMillis[size] = sampledNanos / NANOS_PER_MILLI;
+      values[size] = value;
+      size++;
+      if (size == MAX_BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+    void flush() {
+      if (size == 0) {
+        return;
+      }
+      if (consumer instanceof BatchStreamConsumer) {
+        ((BatchStreamConsumer) consumer).addBatch(timestampsMillis, values, size);
+      } else {
+        for (int i = 0; i < size; i++) {
+          consumer.addData(timestampsMillis[i], values[i]);
+        }
+      }
+      size = 0;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import android.hardware.SensorManager;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ReadableSensorOptions;
+
+/**
+ * How often a sensor read through {@link SensorManager} is sampled, and how long its samples may
+ * wait in the hardware FIFO so that they can be delivered together. Set for each sensor through
+ * its options.
+ */
+public class SensorSampling {
+  public static final String PREFS_KEY_SAMPLING_PERIOD_US = "sampling_period_us";
+  public static final String PREFS_KEY_MAX_REPORT_LATENCY_US = "max_report_latency_us";
+
+  /** Sampled fast enough for the graph, and delivered as soon as it is sampled. */
+  public static final SensorSampling UI = new SensorSampling(SensorManager.SENSOR_DELAY_UI, 0);
+
+  private final int samplingPeriodUs;
+  private final int maxReportLatencyUs;
+
+  /**
+   * @param samplingPeriodUs the time between samples, or one of the {@code SENSOR_DELAY_*}
+   *     constants of {@link SensorManager}.
+   * @param maxReportLatencyUs how long samples may be held back to be delivered together, or 0 to
+   *     deliver each as soon as it is sampled.
+   */
+  public SensorSampling(int samplingPeriodUs, int maxReportLatencyUs) {
+    this.samplingPeriodUs = samplingPeriodUs;
+    this.maxReportLatencyUs = maxReportLatencyUs;
+  }
+
+  /** Reads the sampling from the options, using {@code defaultSampling} for any not set. */
+  public static SensorSampling fromOptions(
+      ReadableSensorOptions options, SensorSampling defaultSampling) {
+    int samplingPeriodUs =
+        options.getInt(PREFS_KEY_SAMPLING_PERIOD_US, defaultSampling.samplingPeriodUs);
+    int maxReportLatencyUs =
+        options.getInt(PREFS_KEY_MAX_REPORT_LATENCY_US, defaultSampling.maxReportLatencyUs);
+    if (samplingPeriodUs < 0 || maxReportLatencyUs < 0) {
+      return defaultSampling;
+    }
+    return new SensorSampling(samplingPeriodUs, maxReportLatencyUs);
+  }
+
+  public int getSamplingPeriodUs() {
+    return samplingPeriodUs;
+  }
+
+  public int getMaxReportLatencyUs() {
+    return maxReportLatencyUs;
+  }
+}
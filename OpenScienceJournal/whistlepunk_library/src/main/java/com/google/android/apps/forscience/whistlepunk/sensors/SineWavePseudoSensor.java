@@ -31,7 +31,6 @@ public class SineWavePseudoSensor extends ScalarSensor {
   public static final String ID = "SINE_WAVE_X";
   public static final long DEFAULT_FREQENCY_MILLIS = 5000;
   public static final String PREFS_KEY_FREQUENCY_MILLIS = "prefs_frequency";
-  private DataRefresher dataRefresher;
 
   public SineWavePseudoSensor() {
     // TODO(katie): Replace placeholder drawable with appropriate "unknown" sensor symbol.
@@ -45,6 +44,7 @@ public class SineWavePseudoSensor extends ScalarSensor {
       Context context,
       final SensorStatusListener listener) {
     return new AbstractSensorRecorder() {
+      private DataRefresher dataRefresher;
       private long frequencyMillis = DEFAULT_FREQENCY_MILLIS;
 
       @Override
@@ -29,9 +29,15 @@ import com.google.android.apps.forscience.whistlepunk.metadata.ExperimentSensors
 import com.google.android.apps.forscience.whistlepunk.metadata.ExternalSensorSpec;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.sensordb.AggregateQuery;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ArchivePolicy;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarAggregate;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
@@ -66,6 +72,36 @@ public class StubDataController implements DataController {
   @Override
   public void deleteTrialData(Trial trial, MaybeConsumer<Success> onSuccess) {}
 
+  @Override
+  public void getAggregates(
+      AggregateQuery query, MaybeConsumer<List<ScalarAggregate>> onSuccess) {}
+
+  @Override
+  public void getStatsBlocks(
+      String trialId,
+      String sensorId,
+      Range<Long> blockStarts,
+      MaybeConsumer<List<StatsBlock>> onSuccess) {}
+
+  @Override
+  public void deleteTrialsData(List<Trial> trials, MaybeConsumer<Success> onSuccess) {}
+
+  @Override
+  public void reclaimCroppedTrialData(Trial trial, MaybeConsumer<Long> onSuccess) {}
+
+  @Override
+  public void archiveIdleTrials(ArchivePolicy policy, MaybeConsumer<Long> onSuccess) {}
+
+  @Override
+  public void finalizeTrial(String trialId, MaybeConsumer<Success> onSuccess) {}
+
+  @Override
+  public void getFinestTier(String trialId, MaybeConsumer<Integer> onSuccess) {}
+
+  @Override
+  public void getSeriesHold(
+      String trialId, String sensorId, MaybeConsumer<SeriesHold> onSuccess) {}
+
   @Override
   public void createExperiment(MaybeConsumer<Experiment> onSuccess) {}
 
@@ -161,11 +197,23 @@ public class StubDataController implements DataController {
   public void getExperimentOverviews(
       boolean includeArchived, MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {}
 
+  @Override
+  public void getExperimentOverviews(
+      boolean includeArchived,
+      int offset,
+      int limit,
+      MaybeConsumer<List<ExperimentOverviewPojo>> onSuccess) {}
+
   @Override
   public List<ExperimentOverviewPojo> blockingGetExperimentOverviews(boolean includeArchived) {
     return null;
   }
 
+  @Override
+  public ExperimentOverviewPojo blockingGetExperimentOverview(String experimentId) {
+    return null;
+  }
+
   @Override
   public void getLastUsedUnarchivedExperiment(MaybeConsumer<Experiment> onSuccess) {}
 
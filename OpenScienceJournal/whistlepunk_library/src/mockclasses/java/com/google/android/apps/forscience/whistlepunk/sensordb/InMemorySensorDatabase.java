@@ -37,13 +37,22 @@ import com.google.common.collect.Range;
 import com.google.common.util.concurrent.MoreExecutors;
 import io.reactivex.Observable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 public class InMemorySensorDatabase implements SensorDatabase {
   private List<List<Reading>> readings = new ArrayList<>();
+  private List<StatsBlock> statsBlocks = new ArrayList<>();
+  private Map<String, Integer> finestTiers = new HashMap<>();
+  private Map<List<String>, SeriesHold> holds = new HashMap<>();
 
   public static DataControllerImpl makeSimpleController() {
     return new InMemorySensorDatabase().makeSimpleController(new MemoryMetadataManager());
@@ -97,6 +106,42 @@ public class InMemorySensorDatabase implements SensorDatabase {
     getTierReadings(resolutionTier).add(new Reading(trialId, databaseTag, timestampMillis, value));
   }
 
+  @Override
+  public void addStatsBlock(StatsBlock block) {
+    removeStatsBlocks(
+        block.getTrialId(), block.getSensorTag(), Range.singleton(block.getBlockStartMillis()));
+    statsBlocks.add(block);
+  }
+
+  @Override
+  public List<StatsBlock> getStatsBlocks(
+      String trialId, String sensorTag, Range<Long> blockStarts) {
+    List<StatsBlock> result = new ArrayList<>();
+    for (StatsBlock block : statsBlocks) {
+      if (isInRange(block, trialId, sensorTag, blockStarts)) {
+        result.add(block);
+      }
+    }
+    Collections.sort(
+        result, (a, b) -> Long.compare(a.getBlockStartMillis(), b.getBlockStartMillis()));
+    return result;
+  }
+
+  private void removeStatsBlocks(String trialId, String sensorTag, Range<Long> blockStarts) {
+    for (int index = statsBlocks.size() - 1; index >= 0; --index) {
+      if (isInRange(statsBlocks.get(index), trialId, sensorTag, blockStarts)) {
+        statsBlocks.remove(index);
+      }
+    }
+  }
+
+  private static boolean isInRange(
+      StatsBlock block, String trialId, String sensorTag, Range<Long> blockStarts) {
+    return block.getTrialId().equals(trialId)
+        && block.getSensorTag().equals(sensorTag)
+        && blockStarts.contains(block.getBlockStartMillis());
+  }
+
   private List<Reading> getTierReadings(int resolutionTier) {
     while (resolutionTier >= readings.size()) {
       readings.add(new ArrayList<Reading>());
@@ -108,6 +153,9 @@ public class InMemorySensorDatabase implements SensorDatabase {
   public ScalarReadingList getScalarReadings(
       String trialId, String sensorTag, TimeRange range, int resolutionTier, int maxRecords) {
     final List<ScalarReading> readingsToReturn = new ArrayList<>();
+    if (resolutionTier >= 0) {
+      resolutionTier = Math.max(resolutionTier, getFinestTier(trialId));
+    }
     for (Reading reading : getReadings(resolutionTier)) {
       if (range.getTimes().contains(reading.getTimestampMillis())) {
         readingsToReturn.add(
@@ -205,13 +253,118 @@ public class InMemorySensorDatabase implements SensorDatabase {
     return sensor.addAllRows(rows).build();
   }
 
+  @Override
+  public List<ScalarAggregate> getAggregates(AggregateQuery query) {
+    List<ScalarAggregate> aggregates = new ArrayList<>();
+    for (AggregateQuery.Series series : query.getSeries()) {
+      TreeMap<Long, List<Reading>> buckets = new TreeMap<>();
+      if (!query.isBucketed()) {
+        buckets.put(series.getBucketOrigin(), new ArrayList<>());
+      }
+      for (Reading reading : getReadings(0)) {
+        long timestamp = reading.getTimestampMillis();
+        if (reading.getTrialId().equals(series.getTrialId())
+            && reading.getDatabaseTag().equals(series.getSensorTag())
+            && series.getTimes().contains(timestamp)) {
+          long bucketStart =
+              query.isBucketed()
+                  ? query.getBucketStart(series, timestamp)
+                  : series.getBucketOrigin();
+          if (!buckets.containsKey(bucketStart)) {
+            buckets.put(bucketStart, new ArrayList<>());
+          }
+          buckets.get(bucketStart).add(reading);
+        }
+      }
+      for (Map.Entry<Long, List<Reading>> bucket : buckets.entrySet()) {
+        aggregates.add(aggregate(query, series, bucket.getKey(), bucket.getValue()));
+      }
+    }
+    return aggregates;
+  }
+
+  private static ScalarAggregate aggregate(
+      AggregateQuery query, AggregateQuery.Series series, long bucketStart, List<Reading> bucket) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0;
+    Reading first = null;
+    Reading last = null;
+    for (Reading reading : bucket) {
+      min = Math.min(min, reading.getValue());
+      max = Math.max(max, reading.getValue());
+      sum += reading.getValue();
+      if (first == null || reading.getTimestampMillis() < first.getTimestampMillis()) {
+        first = reading;
+      }
+      if (last == null || reading.getTimestampMillis() > last.getTimestampMillis()) {
+        last = reading;
+      }
+    }
+    return new ScalarAggregate(
+        series.getTrialId(),
+        series.getSensorTag(),
+        bucketStart,
+        query.getFunctions(),
+        bucket.size(),
+        min,
+        max,
+        sum,
+        first == null ? 0 : first.getValue(),
+        last == null ? 0 : last.getValue());
+  }
+
   @Override
   public String getFirstDatabaseTagAfter(long timestamp) {
-    return null;
+    Reading first = null;
+    for (List<Reading> readingList : readings) {
+      for (Reading reading : readingList) {
+        if (reading.getTimestampMillis() > timestamp
+            && (first == null || reading.getTimestampMillis() < first.getTimestampMillis())) {
+          first = reading;
+        }
+      }
+    }
+    return first == null ? null : first.getDatabaseTag();
+  }
+
+  @Override
+  public List<SeriesSummary> getSeriesSummaries(String trialId) {
+    List<SeriesSummary> result = new ArrayList<>();
+    for (int tier = 0; tier < readings.size(); tier++) {
+      Map<String, List<Reading>> byTag = new TreeMap<>();
+      for (Reading reading : readings.get(tier)) {
+        if (reading.getTrialId().equals(trialId)) {
+          if (!byTag.containsKey(reading.getDatabaseTag())) {
+            byTag.put(reading.getDatabaseTag(), new ArrayList<>());
+          }
+          byTag.get(reading.getDatabaseTag()).add(reading);
+        }
+      }
+      for (Map.Entry<String, List<Reading>> entry : byTag.entrySet()) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Reading reading : entry.getValue()) {
+          first = Math.min(first, reading.getTimestampMillis());
+          last = Math.max(last, reading.getTimestampMillis());
+        }
+        result.add(
+            new SeriesSummary(
+                trialId, entry.getKey(), tier, first, last, entry.getValue().size()));
+      }
+    }
+    Collections.sort(
+        result,
+        (a, b) ->
+            a.getSensorTag().equals(b.getSensorTag())
+                ? Integer.compare(a.getResolutionTier(), b.getResolutionTier())
+                : a.getSensorTag().compareTo(b.getSensorTag()));
+    return result;
   }
 
   @Override
   public void deleteScalarReadings(String trialId, String sensorTag, TimeRange range) {
+    removeStatsBlocks(trialId, sensorTag, range.getTimes());
     for (List<Reading> readingList : readings) {
       for (int index = readingList.size() - 1; index >= 0; --index) {
         Reading reading = readingList.get(index);
@@ -224,9 +377,153 @@ public class InMemorySensorDatabase implements SensorDatabase {
     }
   }
 
+  @Override
+  public int deleteScalarReadings(
+      String trialId, String sensorTag, TimeRange range, int maxRecords) {
+    removeStatsBlocks(trialId, sensorTag, range.getTimes());
+    int deleted = 0;
+    for (List<Reading> readingList : readings) {
+      for (int index = readingList.size() - 1; index >= 0 && deleted < maxRecords; --index) {
+        Reading reading = readingList.get(index);
+        if (reading.getDatabaseTag().equals(sensorTag)
+            && reading.getTrialId().equals(trialId)
+            && range.getTimes().contains(reading.getTimestampMillis())) {
+          readingList.remove(index);
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  @Override
+  public long compact(int maxPages) {
+    return 0;
+  }
+
+  @Override
+  public boolean isCompactionEnabled() {
+    return true;
+  }
+
+  @Override
+  public void enableCompaction() {}
+
+  @Override
+  public void deleteTrials(Collection<String> trialIds) {
+    // Nothing to gain from removing them a little at a time in memory.
+    for (List<Reading> readingList : readings) {
+      for (int index = readingList.size() - 1; index >= 0; --index) {
+        if (trialIds.contains(readingList.get(index).getTrialId())) {
+          readingList.remove(index);
+        }
+      }
+    }
+    for (int index = statsBlocks.size() - 1; index >= 0; --index) {
+      if (trialIds.contains(statsBlocks.get(index).getTrialId())) {
+        statsBlocks.remove(index);
+      }
+    }
+    for (String trialId : trialIds) {
+      finestTiers.remove(trialId);
+    }
+    for (SeriesHold hold : new ArrayList<>(holds.values())) {
+      if (trialIds.contains(hold.getTrialId())) {
+        holds.remove(Arrays.asList(hold.getTrialId(), hold.getSensorTag()));
+      }
+    }
+  }
+
+  @Override
+  public boolean purgeDeletedTrials(int maxRows) {
+    return false;
+  }
+
+  @Override
+  public List<String> getIdleTrialIds(long lastReadingBeforeMillis, int finestTier) {
+    Map<String, Long> lastTimestamps = new TreeMap<>();
+    Set<String> unarchived = new HashSet<>();
+    for (int tier = 0; tier < readings.size(); tier++) {
+      for (Reading reading : readings.get(tier)) {
+        String trialId = reading.getTrialId();
+        Long last = lastTimestamps.get(trialId);
+        if (last == null || reading.getTimestampMillis() > last) {
+          lastTimestamps.put(trialId, reading.getTimestampMillis());
+        }
+        if (tier < finestTier) {
+          unarchived.add(trialId);
+        }
+      }
+    }
+    List<String> result = new ArrayList<>();
+    for (Map.Entry<String, Long> entry : lastTimestamps.entrySet()) {
+      String trialId = entry.getKey();
+      if (entry.getValue() < lastReadingBeforeMillis
+          && unarchived.contains(trialId)) {
+        result.add(trialId);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public int getFinestTier(String trialId) {
+    Integer finestTier = finestTiers.get(trialId);
+    return finestTier == null ? 0 : finestTier;
+  }
+
+  @Override
+  public void setFinestTier(String trialId, int finestTier) {
+    finestTiers.put(trialId, finestTier);
+  }
+
+  @Override
+  public int deleteReadingsBelowFinestTier(String trialId, int maxRecords) {
+    int deleted = 0;
+    for (int tier = 0; tier < getFinestTier(trialId) && tier < readings.size(); tier++) {
+      List<Reading> readingList = readings.get(tier);
+      for (int index = readingList.size() - 1; index >= 0 && deleted < maxRecords; --index) {
+        if (readingList.get(index).getTrialId().equals(trialId)) {
+          readingList.remove(index);
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  @Override
+  public void setSeriesHold(SeriesHold hold) {
+    holds.put(Arrays.asList(hold.getTrialId(), hold.getSensorTag()), hold);
+  }
+
+  @Override
+  public SeriesHold getSeriesHold(String trialId, String sensorTag) {
+    return holds.get(Arrays.asList(trialId, sensorTag));
+  }
+
+  @Override
+  public void finalizeTrial(String trialId) {
+    // Readings are always served from memory.
+  }
+
+  @Override
+  public boolean finalizeTrialStep(String trialId, int maxRecords) {
+    return true;
+  }
+
+  @Override
+  public long getSnapshotSizeBytes(String trialId) {
+    return 0;
+  }
+
   @Override
   public Observable<ScalarReading> createScalarObservable(
-      String trialId, String[] sensorTags, TimeRange range, int resolutionTier) {
+      String trialId,
+      String[] sensorTags,
+      TimeRange range,
+      int resolutionTier,
+      Executor queryExecutor) {
     return null;
   }
 
@@ -238,6 +535,22 @@ public class InMemorySensorDatabase implements SensorDatabase {
     }
   }
 
+  /**
+   * Returns the readings of one sensor in one trial at the given tier, in time order, as {@link
+   * SensorDatabaseImpl} would return them.
+   */
+  public List<ScalarReading> getReadings(String trialId, String sensorTag, int resolutionTier) {
+    List<ScalarReading> result = new ArrayList<>();
+    for (Reading reading : getReadings(resolutionTier)) {
+      if (trialId.equals(reading.getTrialId()) && sensorTag.equals(reading.getDatabaseTag())) {
+        result.add(new ScalarReading(reading.getTimestampMillis(), reading.getValue()));
+      }
+    }
+    Collections.sort(
+        result, (a, b) -> Long.compare(a.getCollectedTimeMillis(), b.getCollectedTimeMillis()));
+    return result;
+  }
+
   public RecordingDataController makeSimpleRecordingController() {
     return makeSimpleRecordingController(new MemoryMetadataManager());
   }
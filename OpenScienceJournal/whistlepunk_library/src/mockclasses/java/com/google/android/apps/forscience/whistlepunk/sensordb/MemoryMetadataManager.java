@@ -37,6 +37,7 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -108,6 +109,26 @@ public class MemoryMetadataManager implements MetaDataManager {
     return result;
   }
 
+  @Override
+  public List<ExperimentOverviewPojo> getExperimentOverviews(
+      boolean includeArchived, int offset, int limit) {
+    List<ExperimentOverviewPojo> result = getExperimentOverviews(includeArchived);
+    Collections.sort(
+        result, (a, b) -> Long.compare(b.getLastUsedTimeMs(), a.getLastUsedTimeMs()));
+    int end = limit > 0 ? Math.min(offset + limit, result.size()) : result.size();
+    return new ArrayList<>(result.subList(Math.min(offset, end), end));
+  }
+
+  @Override
+  public ExperimentOverviewPojo getExperimentOverview(String experimentId) {
+    for (Experiment experiment : experiments) {
+      if (experiment.getExperimentId().equals(experimentId)) {
+        return experiment.getExperimentOverview();
+      }
+    }
+    return null;
+  }
+
   @Override
   public Experiment importExperimentFromZip(Uri zipUri, ContentResolver resolver) {
     return null;
@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.ble.GattOperationQueue.Operation;
+import com.google.android.apps.forscience.ble.GattOperationQueue.Type;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class GattOperationQueueTest {
+  private static final long LATENCY_MILLIS = 30;
+  private static final long TIMEOUT_MILLIS = 1000;
+
+  private final MockScheduler scheduler = new MockScheduler();
+  private final PerfMetrics metrics = PerfMetrics.getInstance();
+  private final GattOperationQueue queue =
+      new GattOperationQueue(scheduler, scheduler.getClock(), Delay.millis(TIMEOUT_MILLIS));
+  private final FakeGatt gatt = new FakeGatt();
+
+  @Before
+  public void setUp() {
+    metrics.reset();
+  }
+
+  @Test
+  public void setupIsIssuedBackToBack() {
+    List<Operation> setup =
+        Arrays.asList(
+            Operation.requestConnectionPriority(1),
+            Operation.requestMtu(247),
+            Operation.discoverServices(),
+            Operation.read("version"),
+            Operation.enableNotification("input1"),
+            Operation.enableNotification("input2"),
+            Operation.enableNotification("input3"));
+    queue.onConnected(gatt, setup);
+
+    // The priority request completes at once, and each of the other six operations is issued
+    // as soon as the one before completes, so setup takes exactly six round trips.
+    long setupMillis = 6 * LATENCY_MILLIS;
+    scheduler.incrementTime(setupMillis - 1);
+    assertThat(queue.isBusy()).isTrue();
+    scheduler.incrementTime(1);
+    assertThat(queue.isBusy()).isFalse();
+
+    assertThat(gatt.issued)
+        .containsExactly(
+            "REQUEST_CONNECTION_PRIORITY",
+            "REQUEST_MTU",
+            "DISCOVER_SERVICES",
+            "READ version",
+            "SET_NOTIFICATION input1 true",
+            "SET_NOTIFICATION input2 true",
+            "SET_NOTIFICATION input3 true")
+        .inOrder();
+    assertThat(gatt.maxOutstanding).isEqualTo(1);
+    assertThat(metrics.getHistogram(PerfMetrics.GATT_CONNECTION_SETUP_MILLIS).getMax())
+        .isEqualTo(setupMillis);
+  }
+
+  @Test
+  public void operationsWaitForConnection() {
+    queue.enqueue(Operation.read("version"));
+    scheduler.incrementTime(LATENCY_MILLIS);
+    assertThat(gatt.issued).isEmpty();
+
+    // Operations from before the connection are replaced by its setup.
+    queue.onConnected(gatt, Arrays.asList(Operation.discoverServices()));
+    queue.enqueue(Operation.enableNotification("input1"));
+    scheduler.incrementTime(2 * LATENCY_MILLIS);
+    assertThat(gatt.issued)
+        .containsExactly("DISCOVER_SERVICES", "SET_NOTIFICATION input1 true")
+        .inOrder();
+    assertThat(queue.isBusy()).isFalse();
+  }
+
+  @Test
+  public void lostCallbackTimesOut() {
+    gatt.lost.add("READ version");
+    queue.onConnected(
+        gatt,
+        Arrays.asList(Operation.read("version"), Operation.write("config", new byte[] {1})));
+
+    scheduler.incrementTime(TIMEOUT_MILLIS - 1);
+    assertThat(gatt.issued).containsExactly("READ version");
+    scheduler.incrementTime(1);
+    assertThat(gatt.issued).containsExactly("READ version", "WRITE config").inOrder();
+    assertThat(metrics.getCount(PerfMetrics.GATT_OPERATION_TIMEOUTS)).isEqualTo(1);
+
+    // A late callback for the lost read does not complete the write.
+    queue.onComplete(Type.READ);
+    assertThat(queue.isBusy()).isTrue();
+    scheduler.incrementTime(LATENCY_MILLIS);
+    assertThat(queue.isBusy()).isFalse();
+  }
+
+  @Test
+  public void operationThatCannotStartIsSkipped() {
+    gatt.rejected.add("READ missing");
+    queue.onConnected(
+        gatt, Arrays.asList(Operation.read("missing"), Operation.enableNotification("input1")));
+
+    scheduler.incrementTime(LATENCY_MILLIS);
+    assertThat(gatt.issued).containsExactly("READ missing", "SET_NOTIFICATION input1 true");
+    assertThat(queue.isBusy()).isFalse();
+    assertThat(metrics.getCount(PerfMetrics.GATT_OPERATION_TIMEOUTS)).isEqualTo(0);
+  }
+
+  @Test
+  public void disconnectStopsIssuing() {
+    queue.onConnected(
+        gatt, Arrays.asList(Operation.discoverServices(), Operation.read("version")));
+    queue.onDisconnected();
+    scheduler.incrementTime(TIMEOUT_MILLIS);
+    assertThat(gatt.issued).containsExactly("DISCOVER_SERVICES");
+    assertThat(metrics.getCount(PerfMetrics.GATT_OPERATION_TIMEOUTS)).isEqualTo(0);
+  }
+
+  /** Completes each operation after a fixed latency, as a remote device would. */
+  private class FakeGatt implements GattOperationQueue.Gatt {
+    final List<String> issued = new ArrayList<>();
+    final Set<String> lost = new HashSet<>();
+    final Set<String> rejected = new HashSet<>();
+    int outstanding = 0;
+    int maxOutstanding = 0;
+
+    private boolean issue(String name, Type type) {
+      issued.add(name);
+      if (rejected.contains(name)) {
+        return false;
+      }
+      if (lost.contains(name)) {
+        return true;
+      }
+      outstanding++;
+      maxOutstanding = Math.max(maxOutstanding, outstanding);
+      scheduler.schedule(
+          Delay.millis(LATENCY_MILLIS),
+          () -> {
+            outstanding--;
+            queue.onComplete(type);
+          });
+      return true;
+    }
+
+    @Override
+    public boolean discoverServices() {
+      return issue("DISCOVER_SERVICES", Type.DISCOVER_SERVICES);
+    }
+
+    @Override
+    public boolean readCharacteristic(String characteristic) {
+      return issue("READ " + characteristic, Type.READ);
+    }
+
+    @Override
+    public boolean writeCharacteristic(String characteristic, byte[] value) {
+      return issue("WRITE " + characteristic, Type.WRITE);
+    }
+
+    @Override
+    public boolean setNotification(String characteristic, boolean enable) {
+      return issue("SET_NOTIFICATION " + characteristic + " " + enable, Type.SET_NOTIFICATION);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      return issue("REQUEST_MTU", Type.REQUEST_MTU);
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      // Android has no callback for this.
+      issued.add("REQUEST_CONNECTION_PRIORITY");
+      return true;
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.ble.GattOperationQueue.Type;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.Clock;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class MkrSciSessionManagerTest {
+  private static final long LATENCY_MILLIS = 20;
+  private static final long SETUP_MILLIS = 1000;
+  private static final MkrSciChannel[] CHANNELS = {
+    MkrSciChannel.INPUT_1,
+    MkrSciChannel.INPUT_2,
+    MkrSciChannel.INPUT_3,
+    MkrSciChannel.VOLTAGE,
+    MkrSciChannel.CURRENT,
+    MkrSciChannel.RESISTANCE,
+    MkrSciChannel.ACCELEROMETER,
+    MkrSciChannel.GYROSCOPE
+  };
+
+  private final MockScheduler scheduler = new MockScheduler();
+  private final ExplicitExecutor executor = new ExplicitExecutor();
+  private final Map<String, FakeBoard> boards = new HashMap<>();
+  private final MkrSciSessionManager manager =
+      new MkrSciSessionManager(
+          (address, callback) -> {
+            FakeBoard board = new FakeBoard(callback);
+            boards.put(address, board);
+            return board;
+          },
+          scheduler,
+          scheduler.getClock(),
+          executor);
+
+  @Before
+  public void setUp() {
+    PerfMetrics.getInstance().reset();
+  }
+
+  @Test
+  public void oneConnectionPerBoardWithFanOut() {
+    int boardCount = 4;
+    // Two listeners on every channel of every board.
+    RecordingListener[][][] listeners = new RecordingListener[boardCount][CHANNELS.length][2];
+    for (int b = 0; b < boardCount; b++) {
+      for (int c = 0; c < CHANNELS.length; c++) {
+        for (int l = 0; l < 2; l++) {
+          listeners[b][c][l] = new RecordingListener();
+          manager.subscribe(address(b), CHANNELS[c].getCharacteristic(), listeners[b][c][l]);
+        }
+      }
+    }
+    scheduler.incrementTime(SETUP_MILLIS);
+
+    assertThat(manager.getSessionCount()).isEqualTo(boardCount);
+    for (int b = 0; b < boardCount; b++) {
+      FakeBoard board = boards.get(address(b));
+      assertThat(board.connectCount).isEqualTo(1);
+      assertThat(board.enabled).hasSize(CHANNELS.length);
+      for (int c = 0; c < CHANNELS.length; c++) {
+        board.notify(CHANNELS[c], b * 100 + c);
+      }
+    }
+    executor.drain();
+
+    for (int b = 0; b < boardCount; b++) {
+      for (int c = 0; c < CHANNELS.length; c++) {
+        for (int l = 0; l < 2; l++) {
+          assertThat(listeners[b][c][l].values).containsExactly((double) (b * 100 + c));
+          assertThat(listeners[b][c][l].firmwareVersion).isEqualTo(FakeBoard.FIRMWARE_VERSION);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void sharedChannelIsEnabledOnceAndDisabledWithLastListener() {
+    RecordingListener first = new RecordingListener();
+    RecordingListener second = new RecordingListener();
+    String characteristic = MkrSciChannel.VOLTAGE.getCharacteristic();
+    manager.subscribe(address(0), characteristic, first);
+    scheduler.incrementTime(SETUP_MILLIS);
+    manager.subscribe(address(0), characteristic, second);
+    scheduler.incrementTime(SETUP_MILLIS);
+    FakeBoard board = boards.get(address(0));
+    assertThat(board.enableCount).isEqualTo(1);
+
+    manager.unsubscribe(address(0), characteristic, first);
+    scheduler.incrementTime(MkrSciSessionManager.DISCONNECT_DELAY_MILLIS);
+    assertThat(board.enabled).hasSize(1);
+    assertThat(board.closeCount).isEqualTo(0);
+
+    manager.unsubscribe(address(0), characteristic, second);
+    scheduler.incrementTime(LATENCY_MILLIS);
+    assertThat(board.enabled).isEmpty();
+    scheduler.incrementTime(MkrSciSessionManager.DISCONNECT_DELAY_MILLIS);
+    assertThat(board.closeCount).isEqualTo(1);
+    assertThat(manager.getSessionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void reconnectsWithBackoffAndKeepsData() {
+    RecordingListener[] listeners = new RecordingListener[CHANNELS.length];
+    for (int c = 0; c < CHANNELS.length; c++) {
+      listeners[c] = new RecordingListener();
+      manager.subscribe(address(0), CHANNELS[c].getCharacteristic(), listeners[c]);
+    }
+    scheduler.incrementTime(SETUP_MILLIS);
+    FakeBoard board = boards.get(address(0));
+
+    // Values arrive, and the connection drops before they are passed on.
+    for (int i = 0; i < 10; i++) {
+      for (MkrSciChannel channel : CHANNELS) {
+        board.notify(channel, i);
+      }
+      scheduler.incrementTime(1);
+    }
+    board.drop();
+    executor.drain();
+    for (RecordingListener listener : listeners) {
+      assertThat(listener.values).hasSize(10);
+    }
+
+    // The first attempt to reconnect fails, so the next waits twice as long.
+    board.failNextConnect = true;
+    scheduler.incrementTime(MkrSciBoardSession.FIRST_RECONNECT_DELAY_MILLIS + LATENCY_MILLIS);
+    assertThat(board.connectCount).isEqualTo(2);
+    scheduler.incrementTime(2 * MkrSciBoardSession.FIRST_RECONNECT_DELAY_MILLIS - 1);
+    assertThat(board.connectCount).isEqualTo(2);
+    scheduler.incrementTime(1);
+    assertThat(board.connectCount).isEqualTo(3);
+    scheduler.incrementTime(SETUP_MILLIS);
+    assertThat(board.enabled).hasSize(CHANNELS.length);
+    assertThat(PerfMetrics.getInstance().getCount(PerfMetrics.MKR_SCI_RECONNECTS)).isEqualTo(2);
+
+    // The same listeners carry on, with every value after the ones before the drop.
+    for (int i = 10; i < 20; i++) {
+      for (MkrSciChannel channel : CHANNELS) {
+        board.notify(channel, i);
+      }
+      scheduler.incrementTime(1);
+    }
+    executor.drain();
+    for (RecordingListener listener : listeners) {
+      assertThat(listener.values).hasSize(20);
+      for (int i = 0; i < 20; i++) {
+        assertThat(listener.values.get(i)).isEqualTo((double) i);
+      }
+      assertThat(listener.timestamps).isStrictlyOrdered();
+    }
+    assertThat(manager.getSessionCount()).isEqualTo(1);
+  }
+
+  private static String address(int board) {
+    return "AA:BB:CC:DD:EE:0" + board;
+  }
+
+  private class RecordingListener implements MkrSciBleManager.Listener {
+    final Clock clock = scheduler.getClock();
+    final List<Double> values = new ArrayList<>();
+    final List<Long> timestamps = new ArrayList<>();
+    long firmwareVersion = -1;
+
+    @Override
+    public void onFirmwareVersion(long firmwareVersion) {
+      this.firmwareVersion = firmwareVersion;
+    }
+
+    @Override
+    public void onValuesUpdated(double[] values, long ageMillis) {
+      this.values.add(values[0]);
+      timestamps.add(clock.getNow() - ageMillis);
+    }
+  }
+
+  /** A board that answers every operation after a fixed latency. */
+  private class FakeBoard implements MkrSciBoardConnection {
+    static final long FIRMWARE_VERSION = 0x01020304;
+
+    final Callback callback;
+    final Set<String> enabled = new HashSet<>();
+    boolean connected = false;
+    boolean failNextConnect = false;
+    int connectCount = 0;
+    int closeCount = 0;
+    int enableCount = 0;
+
+    FakeBoard(Callback callback) {
+      this.callback = callback;
+    }
+
+    void notify(MkrSciChannel channel, int value) {
+      if (!connected || !enabled.contains(channel.getCharacteristic())) {
+        return;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      if (channel.ordinal() <= MkrSciChannel.INPUT_3.ordinal()) {
+        buffer.putShort((short) value);
+      } else {
+        buffer.putFloat(value);
+      }
+      callback.onNotification(channel.getUuid(), buffer.array());
+    }
+
+    void drop() {
+      connected = false;
+      enabled.clear();
+      callback.onDisconnected();
+    }
+
+    private boolean respond(Type type, Runnable effect) {
+      if (!connected) {
+        return false;
+      }
+      scheduler.schedule(
+          Delay.millis(LATENCY_MILLIS),
+          () -> {
+            effect.run();
+            callback.onOperationComplete(type);
+          });
+      return true;
+    }
+
+    @Override
+    public void connect() {
+      connectCount++;
+      boolean fail = failNextConnect;
+      failNextConnect = false;
+      scheduler.schedule(
+          Delay.millis(LATENCY_MILLIS),
+          () -> {
+            if (fail) {
+              callback.onDisconnected();
+            } else {
+              connected = true;
+              callback.onConnected();
+            }
+          });
+    }
+
+    @Override
+    public void close() {
+      closeCount++;
+      connected = false;
+      enabled.clear();
+    }
+
+    @Override
+    public boolean discoverServices() {
+      return respond(Type.DISCOVER_SERVICES, () -> {});
+    }
+
+    @Override
+    public boolean readCharacteristic(String characteristic) {
+      return respond(
+          Type.READ,
+          () -> {
+            ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt((int) FIRMWARE_VERSION);
+            callback.onCharacteristicRead(UUID.fromString(characteristic), buffer.array());
+          });
+    }
+
+    @Override
+    public boolean writeCharacteristic(String characteristic, byte[] value) {
+      return respond(Type.WRITE, () -> {});
+    }
+
+    @Override
+    public boolean setNotification(String characteristic, boolean enable) {
+      return respond(
+          Type.SET_NOTIFICATION,
+          () -> {
+            if (enable) {
+              enableCount++;
+              enabled.add(characteristic);
+            } else {
+              enabled.remove(characteristic);
+            }
+          });
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+      return respond(Type.REQUEST_MTU, () -> {});
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int priority) {
+      return connected;
+    }
+  }
+}
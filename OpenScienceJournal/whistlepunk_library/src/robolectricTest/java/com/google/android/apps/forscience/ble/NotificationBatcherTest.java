@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.ble;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class NotificationBatcherTest {
+  private final MockScheduler scheduler = new MockScheduler();
+  private final ExplicitExecutor executor = new ExplicitExecutor();
+  private final Map<String, NotificationBatcher.Batch> batches = new LinkedHashMap<>();
+  private int taskCount = 0;
+  private int batchCount = 0;
+  private final NotificationBatcher<String> batcher =
+      new NotificationBatcher<>(
+          command -> {
+            taskCount++;
+            executor.execute(command);
+          },
+          scheduler.getClock(),
+          (characteristic, batch) -> {
+            batchCount++;
+            batches.put(characteristic, batch);
+          });
+
+  @Before
+  public void setUp() {
+    PerfMetrics.getInstance().reset();
+  }
+
+  @Test
+  public void burstIsPassedOnInOneBatchPerCharacteristic() {
+    // Three characteristics notifying in turn, one notification every millisecond.
+    int notifications = 3000;
+    String[] characteristics = {"accelerometer", "gyroscope", "magnetometer"};
+    for (int i = 0; i < notifications; i++) {
+      batcher.add(characteristics[i % 3], new byte[] {(byte) i});
+      scheduler.incrementTime(1);
+    }
+
+    // The whole burst is decoded by one task, rather than one per notification.
+    assertThat(taskCount).isEqualTo(1);
+    executor.drain();
+    assertThat(batchCount).isEqualTo(3);
+    assertThat(batches.keySet())
+        .containsExactly("accelerometer", "gyroscope", "magnetometer")
+        .inOrder();
+    for (int c = 0; c < 3; c++) {
+      NotificationBatcher.Batch batch = batches.get(characteristics[c]);
+      assertThat(batch.size()).isEqualTo(notifications / 3);
+      for (int j = 0; j < batch.size(); j++) {
+        int i = j * 3 + c;
+        assertThat(batch.getValue(j)[0]).isEqualTo((byte) i);
+        assertThat(batch.getArrivalTime(j)).isEqualTo(i);
+      }
+    }
+    assertThat(
+            PerfMetrics.getInstance()
+                .getHistogram(PerfMetrics.BLE_NOTIFICATION_BATCH_SIZE)
+                .getMean())
+        .isEqualTo(notifications / 3.0);
+  }
+
+  @Test
+  public void valuesAreCopied() {
+    byte[] value = {1, 2};
+    batcher.add("input1", value);
+    value[0] = 3;
+    executor.drain();
+    assertThat(batches.get("input1").getValue(0)).isEqualTo(new byte[] {1, 2});
+  }
+
+  @Test
+  public void notificationsAfterDrainStartNewBatch() {
+    batcher.add("input1", new byte[] {1});
+    executor.drain();
+    batcher.add("input1", new byte[] {2});
+    assertThat(taskCount).isEqualTo(2);
+    executor.drain();
+    assertThat(batchCount).isEqualTo(2);
+    assertThat(batches.get("input1").size()).isEqualTo(1);
+    assertThat(batches.get("input1").getValue(0)).isEqualTo(new byte[] {2});
+  }
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
 import com.google.android.apps.forscience.javalib.DataRefresher;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.HoldingStreamConsumer;
 import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -55,6 +56,27 @@ public class DataRefresherTest {
     }
   }
 
+  // A stream consumer that counts the values it adds and the times it is told they still hold.
+  private class MockHoldingStreamConsumer extends MockStreamConsumer
+      implements HoldingStreamConsumer {
+    private int addedCount = 0;
+    private int heldCount = 0;
+    private long heldInterval;
+
+    @Override
+    public boolean addData(long timestampMillis, double value) {
+      addedCount++;
+      return super.addData(timestampMillis, value);
+    }
+
+    @Override
+    public boolean holdData(long timestampMillis, long intervalMillis) {
+      heldCount++;
+      heldInterval = intervalMillis;
+      return true;
+    }
+  }
+
   private MockStreamConsumer streamConsumer = new MockStreamConsumer();
   private MockScheduler scheduler = new MockScheduler();
 
@@ -127,6 +149,50 @@ public class DataRefresherTest {
     assertEquals(255d, streamConsumer.getLastValue(), 0.001);
   }
 
+  @Test
+  public void testDataRefresherHoldsUnchangedValues() {
+    MockHoldingStreamConsumer consumer = new MockHoldingStreamConsumer();
+    DataRefresher dr = makeRefresher();
+    dr.setStreamConsumer(consumer);
+    dr.setValue(3d);
+    dr.startStreaming();
+    for (int i = 0; i < 10; i++) {
+      scheduler.incrementTime(100);
+    }
+    assertEquals(1, consumer.addedCount);
+    assertEquals(10, consumer.heldCount);
+    assertEquals(100, consumer.heldInterval);
+
+    dr.setValue(4d);
+    scheduler.incrementTime(100);
+    assertEquals(2, consumer.addedCount);
+    assertEquals(4d, consumer.getLastValue(), 0.001);
+
+    // A restart adds the value again, rather than holding one from before.
+    dr.stopStreaming();
+    dr.startStreaming();
+    assertEquals(3, consumer.addedCount);
+  }
+
+  @Test
+  public void testDataRefresherAddsChangingValues() {
+    MockHoldingStreamConsumer consumer = new MockHoldingStreamConsumer();
+    DataRefresher dr =
+        new DataRefresher(scheduler, scheduler.getClock()) {
+          @Override
+          public double getValue(long now) {
+            return now;
+          }
+        };
+    dr.setStreamConsumer(consumer);
+    dr.startStreaming();
+    for (int i = 0; i < 10; i++) {
+      scheduler.incrementTime(100);
+    }
+    assertEquals(11, consumer.addedCount);
+    assertEquals(0, consumer.heldCount);
+  }
+
   private DataRefresher makeRefresher() {
     return new DataRefresher(scheduler, scheduler.getClock());
   }
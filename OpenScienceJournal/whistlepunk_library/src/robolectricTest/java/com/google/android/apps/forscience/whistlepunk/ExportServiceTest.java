@@ -20,6 +20,8 @@ import static org.junit.Assert.assertEquals;
 
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.collect.ImmutableMap;
+import java.util.Map;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -81,6 +83,26 @@ public class ExportServiceTest {
     assertEquals("_Untitled_Experiment_0_.sj", filename);
   }
 
+  @Test
+  public void makeCSVLinesForFullData() {
+    String[] sensorIds = new String[] {"a", "b,c"};
+    assertEquals("timestamp,a,b_c\n", ExportService.makeCSVHeader(false, sensorIds, 0));
+    assertEquals("relative_time,a,b_c\n", ExportService.makeCSVHeader(true, sensorIds, 0));
+    Map<String, Double> values = ImmutableMap.of("a", 1.5);
+    assertEquals("1000,1.5,\n", ExportService.makeCSVRow("1000", sensorIds, values, 0));
+  }
+
+  @Test
+  public void makeCSVLinesForArchivedData() {
+    // Only a coarser tier is left, and every row says which one.
+    String[] sensorIds = new String[] {"a", "b"};
+    assertEquals(
+        "timestamp,a,b," + ExportService.RESOLUTION_TIER_COLUMN + "\n",
+        ExportService.makeCSVHeader(false, sensorIds, 2));
+    Map<String, Double> values = ImmutableMap.of("a", 1.5, "b", 2.0);
+    assertEquals("1000,1.5,2.0,2\n", ExportService.makeCSVRow("1000", sensorIds, values, 2));
+  }
+
   private Trial makeTrial(String runTitle) {
     GoosciTrial.Trial trial =
         GoosciTrial.Trial.newBuilder().setTrialId("runId").setTitle(runTitle).build();
@@ -26,7 +26,11 @@ class ManualSensorRegistry extends SensorRegistry {
   private Map<String, String> sensorNames = new ArrayMap<>();
 
   public ManualSensor addSensor(String id, String name) {
-    ManualSensor sensor = new ManualSensor(id, 100, 100);
+    return addSensor(id, name, 100);
+  }
+
+  public ManualSensor addSensor(String id, String name, int zoomLevelBetweenTiers) {
+    ManualSensor sensor = new ManualSensor(id, 100, zoomLevelBetweenTiers);
     addBuiltInSensor(sensor);
     sensorNames.put(id, name);
     return sensor;
@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class QuantileSketchTest {
+  private static final int STREAM_LENGTH = 10_000_000;
+  // Well within the sketch's bound, so that unlucky compactions don't make this flaky.
+  private static final double MAX_RANK_ERROR = 0.01;
+
+  @Test
+  public void testAccurateOnLongStream() {
+    QuantileSketch sketch = new QuantileSketch();
+    for (long i = 0; i < STREAM_LENGTH; i++) {
+      sketch.add(permuted(i));
+    }
+
+    assertThat(sketch.getCount()).isEqualTo((long) STREAM_LENGTH);
+    assertAccurate(sketch);
+    // Memory stays small, however long the stream.
+    assertThat(sketch.getRetainedCount()).isLessThan(2000);
+  }
+
+  @Test
+  public void testMergedIsAccurate() {
+    QuantileSketch low = new QuantileSketch();
+    QuantileSketch high = new QuantileSketch();
+    for (long i = 0; i < STREAM_LENGTH; i++) {
+      double value = permuted(i);
+      // Very different halves, to check that merging doesn't favor either one.
+      if (value < STREAM_LENGTH / 4) {
+        low.add(value);
+      } else {
+        high.add(value);
+      }
+    }
+
+    low.merge(high);
+
+    assertThat(low.getCount()).isEqualTo((long) STREAM_LENGTH);
+    assertAccurate(low);
+  }
+
+  @Test
+  public void testFromLevels() {
+    QuantileSketch sketch = new QuantileSketch();
+    for (long i = 0; i < 100000; i++) {
+      sketch.add(i);
+    }
+
+    QuantileSketch copy = QuantileSketch.fromLevels(sketch.getLevels());
+
+    assertThat(copy.getCount()).isEqualTo(sketch.getCount());
+    for (int percent = 0; percent <= 100; percent += 10) {
+      assertThat(copy.getQuantile(percent / 100.0)).isEqualTo(sketch.getQuantile(percent / 100.0));
+    }
+  }
+
+  @Test
+  public void testSmallAndEmpty() {
+    QuantileSketch sketch = new QuantileSketch();
+    assertThat(sketch.getQuantile(0.5)).isNaN();
+
+    sketch.add(3);
+    sketch.add(Double.NaN);
+    sketch.add(1);
+    sketch.add(2);
+
+    // Too few values to have compacted any, so the answers are exact.
+    assertThat(sketch.getCount()).isEqualTo(3L);
+    assertThat(sketch.getQuantile(0)).isEqualTo(1.0);
+    assertThat(sketch.getQuantile(0.5)).isEqualTo(2.0);
+    assertThat(sketch.getQuantile(1)).isEqualTo(3.0);
+    assertThat(sketch.getRank(2)).isWithin(1e-9).of(2.0 / 3);
+  }
+
+  @Test
+  public void testWeightedAdd() {
+    QuantileSketch sketch = new QuantileSketch();
+
+    sketch.add(1, 5);
+    sketch.add(3, 2);
+    sketch.add(2, 1);
+    sketch.add(4, 0);
+    sketch.add(Double.NaN, 3);
+
+    // As if each value had been added weight times.
+    assertThat(sketch.getCount()).isEqualTo(8L);
+    assertThat(sketch.getQuantile(0)).isEqualTo(1.0);
+    assertThat(sketch.getQuantile(0.5)).isEqualTo(1.0);
+    assertThat(sketch.getQuantile(1)).isEqualTo(3.0);
+    assertThat(sketch.getRank(2)).isWithin(1e-9).of(6.0 / 8);
+  }
+
+  /** Each value from 0 to STREAM_LENGTH - 1 once, in a scrambled order. */
+  private static double permuted(long i) {
+    return (i * 7919) % STREAM_LENGTH;
+  }
+
+  private static void assertAccurate(QuantileSketch sketch) {
+    for (int percent = 1; percent < 100; percent++) {
+      double fraction = percent / 100.0;
+      // The exact quantile of the stream is fraction * STREAM_LENGTH.
+      double rank = sketch.getQuantile(fraction) / STREAM_LENGTH;
+      assertThat(rank).isWithin(MAX_RANK_ERROR).of(fraction);
+      assertThat(sketch.getRank(fraction * STREAM_LENGTH)).isWithin(MAX_RANK_ERROR).of(fraction);
+    }
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk;
+
+import android.content.Context;
+import android.content.Intent;
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.FakeUnitAppearanceProvider;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.FakeBleClient;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Replays a {@link SensorTrace} through the whole recording pipeline, from {@link
+ * RecorderControllerImpl} through each sensor's stream consumer and zoom recorder into a {@link
+ * SensorDatabase}, with no device or threads involved.
+ *
+ * <p>Time is kept by a {@link MockScheduler}, which is moved to each reading's timestamp before the
+ * reading is delivered, so a replay stores the same trial whenever and however fast it runs.
+ */
+class RecordingReplayHarness {
+  /** Replays as fast as the pipeline can take the readings. */
+  static final double FULL_SPEED = 0;
+
+  /** A trigger that fired during a replay, and the trace time it fired at. */
+  static class Firing {
+    final SensorTrigger trigger;
+    final long timestampMillis;
+
+    Firing(SensorTrigger trigger, long timestampMillis) {
+      this.trigger = trigger;
+      this.timestampMillis = timestampMillis;
+    }
+  }
+
+  private final MockScheduler scheduler = new MockScheduler();
+  private final ManualSensorRegistry sensorRegistry = new ManualSensorRegistry();
+  private final Map<String, ManualSensor> sensors = new HashMap<>();
+  private final List<SensorTrigger> triggers = new ArrayList<>();
+  private final List<Firing> firings = new ArrayList<>();
+  private final SensorDatabase database;
+  // The same database when it is in memory, whose queries don't separate trials or sensors.
+  private final InMemorySensorDatabase memoryDatabase;
+  private final DataControllerImpl dataController;
+  private final RecorderControllerImpl recorderController;
+  private final int zoomLevelBetweenTiers;
+  private long replayNanos = 0;
+  private int replayedCount = 0;
+
+  /**
+   * Makes a harness that stores readings in memory.
+   *
+   * @param zoomLevelBetweenTiers how many readings of each tier are summarized by two in the next
+   */
+  static RecordingReplayHarness inMemory(int zoomLevelBetweenTiers) {
+    InMemorySensorDatabase database = new InMemorySensorDatabase();
+    return new RecordingReplayHarness(database, database, zoomLevelBetweenTiers);
+  }
+
+  /**
+   * Makes a harness that stores readings in a {@link SensorDatabaseImpl}, whose file Robolectric
+   * keeps in a temporary directory.
+   *
+   * @param zoomLevelBetweenTiers how many readings of each tier are summarized by two in the next
+   */
+  static RecordingReplayHarness inDatabaseFile(String name, int zoomLevelBetweenTiers) {
+    return new RecordingReplayHarness(
+        new SensorDatabaseImpl(getContext(), getAppAccount(), name), null, zoomLevelBetweenTiers);
+  }
+
+  private RecordingReplayHarness(
+      SensorDatabase database, InMemorySensorDatabase memoryDatabase, int zoomLevelBetweenTiers) {
+    this.database = database;
+    this.memoryDatabase = memoryDatabase;
+    this.zoomLevelBetweenTiers = zoomLevelBetweenTiers;
+    Map<String, SensorProvider> providerMap = new HashMap<>();
+    dataController =
+        new DataControllerImpl(
+            getContext(),
+            getAppAccount(),
+            database,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            new MemoryMetadataManager(),
+            scheduler.getClock(),
+            providerMap,
+            new ConnectableSensor.Connector(providerMap));
+    recorderController =
+        new RecorderControllerImpl(
+            getContext(),
+            getAppAccount(),
+            new MemorySensorEnvironment(
+                dataController,
+                new FakeBleClient(null),
+                new MemorySensorHistoryStorage(),
+                scheduler.getClock()),
+            new RecorderListenerRegistry(),
+            RecordingReplayHarness::connectToFakeService,
+            dataController,
+            scheduler,
+            Delay.ZERO,
+            new FakeUnitAppearanceProvider());
+    recorderController.setClock(scheduler.getClock());
+    recorderController.addTriggerFiredListener(
+        new RecorderController.TriggerFiredListener() {
+          @Override
+          public void onTriggerFired(SensorTrigger trigger) {
+            firings.add(new Firing(trigger, scheduler.getClock().getNow()));
+          }
+
+          @Override
+          public void onRequestStartRecording() {}
+
+          @Override
+          public void onRequestStopRecording(RecorderController rc) {}
+        });
+  }
+
+  /** Adds a trigger, which is checked against every reading of its sensor once observing. */
+  void addTrigger(SensorTrigger trigger) {
+    triggers.add(trigger);
+  }
+
+  /**
+   * Observes every sensor in {@code trace}, records the whole trace into a new trial, and returns
+   * the trial as saved.
+   *
+   * @param speed how many times faster than real time to replay, or {@link #FULL_SPEED}
+   */
+  Trial record(SensorTrace trace, double speed) {
+    List<String> observerIds = new ArrayList<>();
+    for (String tag : trace.getTags()) {
+      observerIds.add(observe(tag));
+    }
+    Experiment experiment = RxDataController.createExperiment(dataController).blockingGet();
+    recorderController.setSelectedExperiment(experiment);
+    advanceTo(trace.getFirstTimestamp());
+    recorderController.startRecording(null, true).blockingAwait();
+
+    replay(trace, speed);
+
+    recorderController.stopRecording(sensorRegistry).blockingAwait();
+    int i = 0;
+    for (String tag : trace.getTags()) {
+      recorderController.stopObserving(tag, observerIds.get(i++));
+    }
+    Experiment saved =
+        RxDataController.getExperimentById(dataController, experiment.getExperimentId())
+            .blockingGet();
+    List<Trial> trials = saved.getTrials();
+    return trials.get(trials.size() - 1);
+  }
+
+  private String observe(String tag) {
+    if (!sensors.containsKey(tag)) {
+      sensors.put(tag, sensorRegistry.addSensor(tag, tag, zoomLevelBetweenTiers));
+    }
+    List<SensorTrigger> sensorTriggers = new ArrayList<>();
+    for (SensorTrigger trigger : triggers) {
+      if (trigger.getSensorId().equals(tag)) {
+        sensorTriggers.add(trigger);
+      }
+    }
+    return recorderController.startObserving(
+        tag,
+        sensorTriggers,
+        new RecordingSensorObserver(),
+        new RecordingStatusListener(),
+        null,
+        sensorRegistry);
+  }
+
+  private void replay(SensorTrace trace, double speed) {
+    long startNanos = System.nanoTime();
+    for (SensorTrace.Sample sample : trace.getSamples()) {
+      if (speed != FULL_SPEED) {
+        long dueNanos =
+            startNanos
+                + (long)
+                    ((sample.timestampMillis - trace.getFirstTimestamp())
+                        * TimeUnit.MILLISECONDS.toNanos(1)
+                        / speed);
+        sleepUntil(dueNanos);
+      }
+      advanceTo(sample.timestampMillis);
+      sensors.get(sample.tag).pushValue(sample.timestampMillis, sample.value);
+    }
+    replayNanos += System.nanoTime() - startNanos;
+    replayedCount += trace.getSamples().size();
+  }
+
+  private static void sleepUntil(long dueNanos) {
+    long waitNanos;
+    while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void advanceTo(long timestampMillis) {
+    long now = scheduler.getClock().getNow();
+    if (timestampMillis > now) {
+      scheduler.incrementTime(timestampMillis - now);
+    }
+  }
+
+  /** Returns the readings stored for {@code tag} in {@code trial}, at the given tier. */
+  List<ScalarReading> getReadings(Trial trial, String tag, int tier) {
+    if (memoryDatabase != null) {
+      return memoryDatabase.getReadings(trial.getTrialId(), tag, tier);
+    }
+    return ScalarReading.slurp(
+        database.getScalarReadings(
+            trial.getTrialId(), tag, TimeRange.oldest(Range.<Long>all()), tier, 0));
+  }
+
+  List<Firing> getFirings() {
+    return firings;
+  }
+
+  /** Returns how many readings were replayed for each second of wall time spent replaying. */
+  double getSamplesPerSecond() {
+    return replayedCount * 1e9 / Math.max(replayNanos, 1);
+  }
+
+  long getReplayNanos() {
+    return replayNanos;
+  }
+
+  private static RecorderServiceConnection connectToFakeService() {
+    return c -> {
+      try {
+        c.take(
+            new IRecorderService() {
+              @Override
+              public void beginServiceRecording(String experimentName, Intent launchIntent) {}
+
+              @Override
+              public void endServiceRecording(
+                  AppAccount appAccount,
+                  boolean notifyRecordingEnded,
+                  String runId,
+                  String experimentId,
+                  String experimentTitle) {}
+            });
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+
+  private static AppAccount getAppAccount() {
+    return NonSignedInAccount.getInstance(getContext());
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.android.apps.forscience.synthetic.SignalShape;
+import com.google.android.apps.forscience.synthetic.SyntheticSensorConfig;
+import com.google.android.apps.forscience.synthetic.SyntheticSignal;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorTrigger;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciSensorTriggerInformation.TriggerInformation.TriggerWhen;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ScalarSensor;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class RecordingReplayTest {
+  // Small enough that the recorded trace fills more than one tier.
+  private static final int ZOOM_LEVEL = 2;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replayIntoMemory() throws IOException {
+    checkRecordedTrace(RecordingReplayHarness.inMemory(ZOOM_LEVEL));
+  }
+
+  @Test
+  public void replayIntoDatabaseFile() throws IOException {
+    checkRecordedTrace(RecordingReplayHarness.inDatabaseFile("replay.db", ZOOM_LEVEL));
+  }
+
+  @Test
+  public void scaledReplayTakesScaledTime() throws IOException {
+    SensorTrace trace = SensorTrace.readResource("two_sensors.trace");
+    RecordingReplayHarness harness = RecordingReplayHarness.inMemory(ZOOM_LEVEL);
+    Trial trial = harness.record(trace, 10);
+
+    long traceNanos =
+        TimeUnit.MILLISECONDS.toNanos(trace.getLastTimestamp() - trace.getFirstTimestamp());
+    assertThat(harness.getReplayNanos()).isAtLeast(traceNanos / 10);
+    assertThat(harness.getReadings(trial, "temp", 0)).isEqualTo(getReadings(trace, "temp"));
+  }
+
+  @Test
+  public void replayKeepsUpWithRecordedRate() throws IOException {
+    // Four seconds of three sensors at 500 Hz, through a trace file.
+    SensorTrace generated = new SensorTrace();
+    SignalShape[] shapes = {SignalShape.SINE, SignalShape.NOISE, SignalShape.CHIRP};
+    List<SyntheticSignal> signals = new ArrayList<>();
+    for (SignalShape shape : shapes) {
+      SyntheticSensorConfig config = new SyntheticSensorConfig();
+      config.shape = shape;
+      config.rateHz = 500;
+      config.seed = shape.ordinal();
+      signals.add(new SyntheticSignal(config, 1000));
+    }
+    for (long now = 1002; now <= 5000; now += 2) {
+      for (int i = 0; i < shapes.length; i++) {
+        String tag = shapes[i].name();
+        signals
+            .get(i)
+            .generateUntil(now, (timestamp, value) -> generated.add(timestamp, tag, value));
+      }
+    }
+    File file = folder.newFile("generated.trace");
+    generated.write(file);
+    SensorTrace trace = SensorTrace.read(file);
+    assertThat(trace.getSamples()).hasSize(6000);
+
+    RecordingReplayHarness harness =
+        RecordingReplayHarness.inDatabaseFile(
+            "throughput.db", ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS);
+    Trial trial = harness.record(trace, RecordingReplayHarness.FULL_SPEED);
+
+    for (SignalShape shape : shapes) {
+      assertThat(harness.getReadings(trial, shape.name(), 0)).hasSize(2000);
+      assertThat(getStat(trial, shape.name(), StatType.NUM_DATA_POINTS)).isEqualTo(2000.0);
+    }
+    // Ingesting readings more slowly than a device takes them would leave a backlog that grows
+    // for as long as the recording goes on.
+    double recordedRate =
+        trace.getSamples().size() * 1000.0 / (trace.getLastTimestamp() - trace.getFirstTimestamp());
+    String report =
+        String.format(
+            "%d readings in %d ms, %.0f per second",
+            trace.getSamples().size(),
+            TimeUnit.NANOSECONDS.toMillis(harness.getReplayNanos()),
+            harness.getSamplesPerSecond());
+    assertWithMessage(report).that(harness.getSamplesPerSecond()).isAtLeast(recordedRate);
+  }
+
+  private void checkRecordedTrace(RecordingReplayHarness harness) throws IOException {
+    SensorTrace trace = SensorTrace.readResource("two_sensors.trace");
+    harness.addTrigger(
+        SensorTrigger.newNoteTypeTrigger(
+            "temp", TriggerWhen.TRIGGER_WHEN_RISES_ABOVE, "hot", 24.5));
+    harness.addTrigger(
+        SensorTrigger.newNoteTypeTrigger(
+            "light", TriggerWhen.TRIGGER_WHEN_DROPS_BELOW, "dim", 100));
+    Trial trial = harness.record(trace, RecordingReplayHarness.FULL_SPEED);
+
+    // Every reading is stored at full resolution.
+    assertThat(harness.getReadings(trial, "temp", 0)).isEqualTo(getReadings(trace, "temp"));
+    assertThat(harness.getReadings(trial, "light", 0)).isEqualTo(getReadings(trace, "light"));
+
+    // Each run of four readings is summarized by its lowest and highest in the next tier, and
+    // the readings left over when recording stops are summarized too.
+    assertThat(harness.getReadings(trial, "temp", 1))
+        .containsExactly(
+            new ScalarReading(1000, 20),
+            new ScalarReading(1300, 25),
+            new ScalarReading(1400, 23),
+            new ScalarReading(1700, 27),
+            new ScalarReading(1800, 22),
+            new ScalarReading(1900, 21))
+        .inOrder();
+    assertThat(harness.getReadings(trial, "light", 1))
+        .containsExactly(
+            new ScalarReading(1050, 100),
+            new ScalarReading(1350, 400),
+            new ScalarReading(1450, 350),
+            new ScalarReading(1750, 50))
+        .inOrder();
+    for (String tag : trace.getTags()) {
+      for (int tier = 2; tier < 5; tier++) {
+        assertThat(harness.getReadings(trial, tag, tier - 1))
+            .containsAllIn(harness.getReadings(trial, tag, tier));
+      }
+    }
+
+    assertThat(getStat(trial, "temp", StatType.MINIMUM)).isEqualTo(20.0);
+    assertThat(getStat(trial, "temp", StatType.MAXIMUM)).isEqualTo(27.0);
+    assertThat(getStat(trial, "temp", StatType.AVERAGE)).isWithin(1e-9).of(23.1);
+    assertThat(getStat(trial, "temp", StatType.NUM_DATA_POINTS)).isEqualTo(10.0);
+    assertThat(getStat(trial, "temp", StatType.TOTAL_DURATION)).isEqualTo(900.0);
+    assertThat(getStat(trial, "light", StatType.MINIMUM)).isEqualTo(50.0);
+    assertThat(getStat(trial, "light", StatType.MAXIMUM)).isEqualTo(400.0);
+    assertThat(getStat(trial, "light", StatType.AVERAGE)).isWithin(1e-9).of(225.0);
+    assertThat(getStat(trial, "light", StatType.NUM_DATA_POINTS)).isEqualTo(8.0);
+    assertThat(getStat(trial, "light", StatType.TOTAL_DURATION)).isEqualTo(700.0);
+
+    List<String> firings = new ArrayList<>();
+    for (RecordingReplayHarness.Firing firing : harness.getFirings()) {
+      firings.add(firing.trigger.getSensorId() + "@" + firing.timestampMillis);
+    }
+    assertThat(firings).containsExactly("temp@1300", "temp@1600", "light@1750").inOrder();
+    List<Long> labelTimes = new ArrayList<>();
+    for (Label label : trial.getLabels()) {
+      labelTimes.add(label.getTimeStamp());
+    }
+    assertThat(labelTimes).containsExactly(1300L, 1600L, 1750L).inOrder();
+  }
+
+  private static double getStat(Trial trial, String sensorId, StatType type) {
+    TrialStats stats = trial.getStatsForSensor(sensorId);
+    assertWithMessage("stats for " + sensorId).that(stats).isNotNull();
+    return stats.getStatValue(type, Double.NaN);
+  }
+
+  private static List<ScalarReading> getReadings(SensorTrace trace, String tag) {
+    List<ScalarReading> readings = new ArrayList<>();
+    for (SensorTrace.Sample sample : trace.getSamples()) {
+      if (sample.tag.equals(tag)) {
+        readings.add(new ScalarReading(sample.timestampMillis, sample.value));
+      }
+    }
+    return readings;
+  }
+}
@@ -16,14 +16,20 @@
 package com.google.android.apps.forscience.whistlepunk;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
+import com.google.android.apps.forscience.javalib.Consumer;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.RecordingUsageTracker;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ScalarInputDiscoverer;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ScalarInputSpec;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.devicemanager.EnumeratedDiscoverer;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.DerivedSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorChoice;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +53,56 @@ public class SensorRegistryUnitTest {
     assertEquals(Lists.newArrayList(), registry.updateExternalSensors(sensors, getProviders()));
   }
 
+  @Test
+  public void addDerivedSensor() throws ParseException {
+    ManualSensorRegistry registry = new ManualSensorRegistry();
+    registry.addSensor("AccX", "x");
+    registry.addSensor("AccY", "y");
+
+    registry.addDerivedSensor("sum", "AccX + AccY", DerivedSensor.Alignment.NEAREST);
+    assertEquals(Lists.newArrayList("AccX", "AccY", "sum"), registry.getAllSources());
+    // Derived sensors aren't external, so they don't go away with the external ones.
+    registry.updateExternalSensors(Lists.newArrayList(), getProviders());
+    assertEquals(Lists.newArrayList("AccX", "AccY", "sum"), registry.getAllSources());
+    final List<SensorChoice> choices = new ArrayList<>();
+    registry.withSensorChoice(
+        "tag",
+        "sum",
+        new Consumer<SensorChoice>() {
+          @Override
+          public void take(SensorChoice choice) {
+            choices.add(choice);
+          }
+        });
+    assertEquals("AccX + AccY", ((DerivedSensor) choices.get(0)).getExpression().getText());
+  }
+
+  @Test
+  public void addDerivedSensorWithBadExpression() {
+    ManualSensorRegistry registry = new ManualSensorRegistry();
+    registry.addSensor("AccX", "x");
+    try {
+      registry.addDerivedSensor("bad", "AccX +", DerivedSensor.Alignment.NEAREST);
+    } catch (ParseException expected) {
+      assertEquals(Lists.newArrayList("AccX"), registry.getAllSources());
+      return;
+    }
+    fail("Should have thrown");
+  }
+
+  @Test
+  public void addDerivedSensorWithUnknownInput() throws ParseException {
+    ManualSensorRegistry registry = new ManualSensorRegistry();
+    registry.addSensor("AccX", "x");
+    try {
+      registry.addDerivedSensor("unknown", "AccX + AccQ", DerivedSensor.Alignment.NEAREST);
+    } catch (IllegalArgumentException expected) {
+      assertEquals(Lists.newArrayList("AccX"), registry.getAllSources());
+      return;
+    }
+    fail("Should have thrown");
+  }
+
   private Map<String, SensorProvider> getProviders() {
     Map<String, SensorProvider> providers = new HashMap<>();
 
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Readings from any number of sensors, in the order they arrived. A trace file has one reading per
+ * line, as {@code timestampMillis,tag,value}. Blank lines and lines starting with {@code #} are
+ * ignored.
+ */
+class SensorTrace {
+  static class Sample {
+    final long timestampMillis;
+    final String tag;
+    final double value;
+
+    Sample(long timestampMillis, String tag, double value) {
+      this.timestampMillis = timestampMillis;
+      this.tag = tag;
+      this.value = value;
+    }
+  }
+
+  private final List<Sample> samples = new ArrayList<>();
+  private final Set<String> tags = new LinkedHashSet<>();
+
+  void add(long timestampMillis, String tag, double value) {
+    if (tag.isEmpty() || tag.contains(",")) {
+      throw new IllegalArgumentException("Bad tag: '" + tag + "'");
+    }
+    samples.add(new Sample(timestampMillis, tag, value));
+    tags.add(tag);
+  }
+
+  List<Sample> getSamples() {
+    return Collections.unmodifiableList(samples);
+  }
+
+  /** Returns the tags of the sensors in the trace, in the order they first appear. */
+  Set<String> getTags() {
+    return Collections.unmodifiableSet(tags);
+  }
+
+  long getFirstTimestamp() {
+    return samples.isEmpty() ? 0 : samples.get(0).timestampMillis;
+  }
+
+  long getLastTimestamp() {
+    return samples.isEmpty() ? 0 : samples.get(samples.size() - 1).timestampMillis;
+  }
+
+  static SensorTrace read(File file) throws IOException {
+    try (Reader reader = new FileReader(file)) {
+      return read(reader);
+    }
+  }
+
+  /** Reads a trace from the test resource at {@code name}, relative to this class. */
+  static SensorTrace readResource(String name) throws IOException {
+    try (Reader reader =
+        new InputStreamReader(
+            SensorTrace.class.getResourceAsStream(name), StandardCharsets.UTF_8)) {
+      return read(reader);
+    }
+  }
+
+  static SensorTrace read(Reader reader) throws IOException {
+    SensorTrace trace = new SensorTrace();
+    BufferedReader lines = new BufferedReader(reader);
+    int lineNumber = 0;
+    String line;
+    while ((line = lines.readLine()) != null) {
+      lineNumber++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split(",");
+      if (fields.length != 3) {
+        throw new IOException("Line " + lineNumber + ": expected timestamp,tag,value");
+      }
+      try {
+        trace.add(
+            Long.parseLong(fields[0].trim()), fields[1].trim(), Double.parseDouble(fields[2]));
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Line " + lineNumber + ": " + e.getMessage(), e);
+      }
+    }
+    return trace;
+  }
+
+  void write(File file) throws IOException {
+    try (Writer writer = new FileWriter(file)) {
+      for (Sample sample : samples) {
+        writer.write(sample.timestampMillis + "," + sample.tag + "," + sample.value + "\n");
+      }
+    }
+  }
+}
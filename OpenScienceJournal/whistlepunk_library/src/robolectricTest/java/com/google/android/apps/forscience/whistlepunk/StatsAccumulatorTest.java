@@ -16,10 +16,13 @@
 
 package com.google.android.apps.forscience.whistlepunk;
 
+import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -41,4 +44,94 @@ public class StatsAccumulatorTest {
     assertEquals(
         2.0, stats.getStatValue(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, -1), 0.001);
   }
+
+  @Test
+  public void testLongStreamAccuracyAndCost() {
+    int streamLength = 10_000_000;
+    // A large offset, which loses precision in a naive sum of squares.
+    double offset = 1e9;
+    StatsAccumulator acc = new StatsAccumulator("sensorId");
+
+    long startNanos = System.nanoTime();
+    for (long i = 0; i < streamLength; i++) {
+      acc.updateRecordingStreamStats(i, offset + (i * 7919) % streamLength);
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    // The values are each of 0 to n - 1, plus the offset.
+    double exactDeviation = Math.sqrt(((double) streamLength * streamLength - 1) / 12);
+    assertThat(acc.getStandardDeviation()).isWithin(exactDeviation * 1e-9).of(exactDeviation);
+    assertThat(acc.getQuantile(0.5) - offset).isWithin(streamLength * 0.01).of(streamLength / 2);
+    assertThat(acc.getQuantile(0.9) - offset).isWithin(streamLength * 0.01).of(streamLength * 0.9);
+    // Sensors deliver at most a few thousand values a second, so even a generous bound leaves
+    // plenty of headroom.
+    assertThat(elapsedNanos / streamLength).isLessThan(2000L);
+  }
+
+  @Test
+  public void testMergeMatchesCombined() {
+    Random random = new Random(5);
+    StatsAccumulator combined = new StatsAccumulator("sensorId");
+    StatsAccumulator first = new StatsAccumulator("sensorId");
+    StatsAccumulator second = new StatsAccumulator("sensorId");
+    for (int i = 0; i < 100000; i++) {
+      double value = i < 60000 ? random.nextGaussian() : 50 + random.nextGaussian() * 10;
+      combined.updateRecordingStreamStats(i, value);
+      (i < 60000 ? first : second).updateRecordingStreamStats(i, value);
+    }
+
+    first.merge(second);
+
+    TrialStats expected = combined.makeSaveableStats();
+    TrialStats actual = first.makeSaveableStats();
+    for (StatType type :
+        new StatType[] {
+          StatType.MINIMUM, StatType.MAXIMUM, StatType.NUM_DATA_POINTS, StatType.TOTAL_DURATION
+        }) {
+      assertThat(actual.getStatValue(type, -1)).isEqualTo(expected.getStatValue(type, -1));
+    }
+    assertThat(actual.getStatValue(StatType.AVERAGE, -1))
+        .isWithin(1e-9)
+        .of(expected.getStatValue(StatType.AVERAGE, -1));
+    assertThat(actual.getStatValue(StatType.STANDARD_DEVIATION, -1))
+        .isWithin(1e-9)
+        .of(expected.getStatValue(StatType.STANDARD_DEVIATION, -1));
+    assertThat(first.getHistogram().getCounts()).isEqualTo(combined.getHistogram().getCounts());
+    // Sketches are approximate, and merging compacts differently from adding one by one.
+    assertThat(first.getQuantile(0.5)).isWithin(1).of(combined.getQuantile(0.5));
+  }
+
+  @Test
+  public void testRebuildFromTrialStats() {
+    StatsAccumulator acc = new StatsAccumulator("sensorId");
+    for (int i = 0; i < 5000; i++) {
+      acc.updateRecordingStreamStats(1000 + i, Math.sin(i / 10.0));
+    }
+    TrialStats saved = acc.makeSaveableStats();
+
+    StatsAccumulator rebuilt = StatsAccumulator.fromTrialStats(saved, 1000);
+
+    TrialStats resaved = rebuilt.makeSaveableStats();
+    for (StatType type :
+        new StatType[] {
+          StatType.MINIMUM,
+          StatType.MAXIMUM,
+          StatType.AVERAGE,
+          StatType.NUM_DATA_POINTS,
+          StatType.TOTAL_DURATION,
+          StatType.STANDARD_DEVIATION,
+          StatType.MEDIAN
+        }) {
+      assertThat(resaved.getStatValue(type, -1)).isWithin(1e-12).of(saved.getStatValue(type, -1));
+    }
+    assertThat(rebuilt.getLatestTimestamp()).isEqualTo(acc.getLatestTimestamp());
+    assertThat(resaved.getDistribution()).isEqualTo(saved.getDistribution());
+  }
+
+  @Test
+  public void testRebuildFromOldTrialStats() {
+    TrialStats old = new TrialStats("sensorId");
+    old.putStat(StatType.AVERAGE, 1);
+    assertThat(StatsAccumulator.fromTrialStats(old, 0)).isNull();
+  }
 }
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowBitmapFactory;
+
+@RunWith(RobolectricTestRunner.class)
+public class ThumbnailCacheTest {
+  private static final int PHOTO_BYTES = 200 * 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private File experimentDirectory;
+  private File assetsDirectory;
+  private ThumbnailCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    experimentDirectory = folder.newFolder("experimentId");
+    assetsDirectory = new File(experimentDirectory, "assets");
+    assetsDirectory.mkdir();
+    // Runs generation on the calling thread.
+    cache = new ThumbnailCache(Runnable::run);
+  }
+
+  @Test
+  public void testInSampleSize() {
+    assertThat(ThumbnailCache.calculateInSampleSize(4000, 3000, 512)).isEqualTo(4);
+    assertThat(ThumbnailCache.calculateInSampleSize(1024, 4096, 512)).isEqualTo(2);
+    assertThat(ThumbnailCache.calculateInSampleSize(1023, 4096, 512)).isEqualTo(1);
+    assertThat(ThumbnailCache.calculateInSampleSize(512, 512, 512)).isEqualTo(1);
+    assertThat(ThumbnailCache.calculateInSampleSize(100, 100, 512)).isEqualTo(1);
+  }
+
+  @Test
+  public void testBindLoadsThumbnailInsteadOfPhoto() throws IOException {
+    File photo = writePhoto("photo.jpg", 4000, 3000);
+
+    // Nothing to show yet: the photo is loaded, and a thumbnail is generated for next time.
+    assertThat(cache.getImageToLoad(photo)).isEqualTo(photo);
+
+    File thumbnail = cache.getImageToLoad(photo);
+    assertThat(thumbnail).isNotEqualTo(photo);
+    assertThat(thumbnail.getParentFile().getName()).isEqualTo(ThumbnailCache.THUMBNAILS_DIRECTORY);
+    assertThat(thumbnail.getParentFile().getParentFile()).isEqualTo(experimentDirectory);
+    assertThat(thumbnail.length()).isLessThan(photo.length());
+    assertThat(cache.getThumbnail(photo)).isEqualTo(thumbnail);
+  }
+
+  @Test
+  public void testChangedPhotoInvalidatesThumbnail() throws IOException {
+    File photo = writePhoto("photo.jpg", 4000, 3000);
+    File oldThumbnail = cache.getOrCreateThumbnail(photo);
+
+    writeBytes(photo, PHOTO_BYTES + 1);
+    assertThat(cache.getThumbnail(photo)).isNull();
+
+    File newThumbnail = cache.getOrCreateThumbnail(photo);
+    assertThat(newThumbnail).isNotEqualTo(oldThumbnail);
+    assertThat(oldThumbnail.exists()).isFalse();
+  }
+
+  @Test
+  public void testDeletingPhotoDeletesThumbnail() throws IOException {
+    File photo = writePhoto("photo.jpg", 4000, 3000);
+    File otherPhoto = writePhoto("photo2.jpg", 300, 200);
+    File thumbnail = cache.getOrCreateThumbnail(photo);
+    File otherThumbnail = cache.getOrCreateThumbnail(otherPhoto);
+
+    photo.delete();
+    cache.deleteThumbnails(photo);
+
+    assertThat(thumbnail.exists()).isFalse();
+    assertThat(otherThumbnail.exists()).isTrue();
+  }
+
+  @Test
+  public void testBackfill() throws IOException {
+    File photo = writePhoto("photo.jpg", 4000, 3000);
+    File deletedPhoto = writePhoto("deleted.jpg", 4000, 3000);
+    File staleThumbnail = cache.getOrCreateThumbnail(deletedPhoto);
+    deletedPhoto.delete();
+    File notes = new File(assetsDirectory, "notes.txt");
+    writeBytes(notes, 10);
+
+    cache.backfillExperiments(experimentDirectory.getParentFile());
+
+    assertThat(cache.getThumbnail(photo)).isNotNull();
+    assertThat(staleThumbnail.exists()).isFalse();
+    assertThat(new File(experimentDirectory, ThumbnailCache.THUMBNAILS_DIRECTORY).list())
+        .hasLength(1);
+  }
+
+  private File writePhoto(String name, int width, int height) throws IOException {
+    File photo = new File(assetsDirectory, name);
+    writeBytes(photo, PHOTO_BYTES);
+    ShadowBitmapFactory.provideWidthAndHeightHints(photo.getAbsolutePath(), width, height);
+    return photo;
+  }
+
+  private static void writeBytes(File file, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ValueHistogramTest {
+  @Test
+  public void testEveryValueInItsBin() {
+    ValueHistogram histogram = new ValueHistogram();
+    double[] values = randomValues(new Random(7), 10000);
+    for (double value : values) {
+      histogram.add(value);
+    }
+
+    assertThat(histogram.getCount()).isEqualTo((long) values.length);
+    assertThat(histogram.getCounts()).isEqualTo(countInBins(histogram, values));
+  }
+
+  @Test
+  public void testMergeMatchesCombined() {
+    Random random = new Random(11);
+    double[] first = randomValues(random, 5000);
+    double[] second = new double[5000];
+    for (int i = 0; i < second.length; i++) {
+      // Narrower, and far away from the first.
+      second[i] = 1e4 + random.nextDouble();
+    }
+    ValueHistogram combined = new ValueHistogram();
+    ValueHistogram merged = new ValueHistogram();
+    ValueHistogram other = new ValueHistogram();
+    for (double value : first) {
+      combined.add(value);
+      merged.add(value);
+    }
+    for (double value : second) {
+      combined.add(value);
+      other.add(value);
+    }
+
+    merged.merge(other);
+
+    assertThat(merged.getCount()).isEqualTo(combined.getCount());
+    assertThat(merged.getStart()).isEqualTo(combined.getStart());
+    assertThat(merged.getBinWidth()).isEqualTo(combined.getBinWidth());
+    assertThat(merged.getCounts()).isEqualTo(combined.getCounts());
+  }
+
+  @Test
+  public void testWeightedAddMatchesRepeated() {
+    Random random = new Random(13);
+    double[] values = randomValues(random, 1000);
+    ValueHistogram weighted = new ValueHistogram();
+    ValueHistogram repeated = new ValueHistogram();
+    for (double value : values) {
+      int weight = 1 + random.nextInt(5);
+      weighted.add(value, weight);
+      for (int i = 0; i < weight; i++) {
+        repeated.add(value);
+      }
+    }
+
+    assertThat(weighted.getCount()).isEqualTo(repeated.getCount());
+    assertThat(weighted.getStart()).isEqualTo(repeated.getStart());
+    assertThat(weighted.getBinWidth()).isEqualTo(repeated.getBinWidth());
+    assertThat(weighted.getCounts()).isEqualTo(repeated.getCounts());
+  }
+
+  @Test
+  public void testConstantValues() {
+    ValueHistogram histogram = new ValueHistogram();
+    for (int i = 0; i < 10; i++) {
+      histogram.add(3);
+    }
+    assertThat(histogram.getBinWidth()).isEqualTo(0.0);
+    assertThat(histogram.getCounts()[0]).isEqualTo(10L);
+
+    histogram.add(3.5);
+
+    assertThat(histogram.getBinWidth()).isGreaterThan(0.0);
+    long[] expected = countInBins(histogram, 3, 3.5);
+    expected[0] += 9;
+    assertThat(histogram.getCounts()).isEqualTo(expected);
+  }
+
+  @Test
+  public void testRoundTrip() {
+    ValueHistogram histogram = new ValueHistogram();
+    for (double value : randomValues(new Random(3), 1000)) {
+      histogram.add(value);
+    }
+
+    ValueHistogram copy =
+        new ValueHistogram(histogram.getStart(), histogram.getBinWidth(), histogram.getCounts());
+
+    assertThat(copy.getCount()).isEqualTo(histogram.getCount());
+    assertThat(copy.getCounts()).isEqualTo(histogram.getCounts());
+  }
+
+  private static double[] randomValues(Random random, int count) {
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = random.nextGaussian() * 100 - 20;
+    }
+    return values;
+  }
+
+  private static long[] countInBins(ValueHistogram histogram, double... values) {
+    long[] counts = new long[ValueHistogram.BIN_COUNT];
+    for (double value : values) {
+      int bin = (int) Math.floor((value - histogram.getStart()) / histogram.getBinWidth());
+      assertThat(bin).isAtLeast(0);
+      assertThat(bin).isLessThan(ValueHistogram.BIN_COUNT);
+      counts[bin]++;
+    }
+    return counts;
+  }
+}
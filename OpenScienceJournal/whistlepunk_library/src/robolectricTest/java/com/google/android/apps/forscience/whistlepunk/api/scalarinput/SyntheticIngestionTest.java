@@ -0,0 +1,190 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.api.scalarinput;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.os.RemoteException;
+import com.google.android.apps.forscience.synthetic.SignalShape;
+import com.google.android.apps.forscience.synthetic.SyntheticSensorConfig;
+import com.google.android.apps.forscience.synthetic.SyntheticSignal;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.RecordingStatusListener;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.MemorySensorEnvironment;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Feeds the samples of synthetic sensors through a {@link ScalarInputSensor} into the database, as
+ * the synthetic sensor provider app would, and reports how fast and how completely they are stored.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SyntheticIngestionTest {
+  private static final long START_MILLIS = 1000;
+  // How often the provider app sends the samples that have come due.
+  private static final long TICK_MILLIS = 10;
+
+  private final MockScheduler scheduler = new MockScheduler();
+  private final RecordingSensorObserver observer = new RecordingSensorObserver();
+  private final RecordingStatusListener listener = new RecordingStatusListener();
+  private final InMemorySensorDatabase db = new InMemorySensorDatabase();
+
+  @Test
+  public void noLossWhileSamplesAreMillisecondsApart() throws RemoteException {
+    // Jitter can't move two samples into the same millisecond.
+    SyntheticSensorConfig config = makeConfig(SignalShape.NOISE, 500);
+    config.jitterMicros = 300;
+    config.dropoutPeriod = 100;
+    config.dropoutLength = 5;
+    Ingestion ingestion = ingest(config, 10);
+
+    assertThat(ingestion.signal.getSentCount()).isEqualTo(4750);
+    assertWithMessage(ingestion.report())
+        .that(ingestion.getStoredCount())
+        .isEqualTo(ingestion.signal.getSentCount());
+    assertWithMessage(ingestion.report())
+        .that(ingestion.getSamplesPerSecond())
+        .isAtLeast(config.rateHz);
+    listener.assertNoErrors();
+  }
+
+  @Test
+  public void sameMillisecondSamplesDroppedAtFiveKilohertz() throws RemoteException {
+    SyntheticSensorConfig config = makeConfig(SignalShape.CHIRP, SyntheticSensorConfig.MAX_RATE_HZ);
+    config.jitterMicros = 50;
+    config.dropoutProbability = 0.01;
+    Ingestion ingestion = ingest(config, 4);
+
+    // Readings are kept in whole milliseconds, and a reading no later than the one before it is
+    // dropped, so at most one sample per millisecond can be stored.
+    assertWithMessage(ingestion.report())
+        .that(ingestion.getStoredCount())
+        .isEqualTo(ingestion.increasingCount);
+    assertThat(ingestion.increasingCount).isLessThan(ingestion.signal.getSentCount());
+    assertWithMessage(ingestion.report())
+        .that(ingestion.getSamplesPerSecond())
+        .isAtLeast(config.rateHz);
+    listener.assertNoErrors();
+  }
+
+  @Test
+  public void sameRunSameReadings() throws RemoteException {
+    SyntheticSensorConfig config = makeConfig(SignalShape.BURSTY, 500);
+    config.jitterMicros = 1000;
+    config.dropoutProbability = 0.1;
+    ingest(config, 2);
+    InMemorySensorDatabase first = db;
+
+    SyntheticIngestionTest second = new SyntheticIngestionTest();
+    second.ingest(config, 2);
+    assertThat(second.db.getReadings(0)).containsExactlyElementsIn(first.getReadings(0)).inOrder();
+  }
+
+  private static SyntheticSensorConfig makeConfig(SignalShape shape, double rateHz) {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.shape = shape;
+    config.rateHz = rateHz;
+    config.frequencyHz = 5;
+    config.seed = 7;
+    return config;
+  }
+
+  /** Records {@code seconds} of samples from a synthetic sensor with the given configuration. */
+  private Ingestion ingest(SyntheticSensorConfig config, int seconds) throws RemoteException {
+    final TestFinder serviceFinder = new TestFinder("serviceId");
+    SensorBehavior behavior = new SensorBehavior();
+    behavior.expectedSamplesPerSecond = (float) config.rateHz;
+    ScalarInputSpec spec =
+        new ScalarInputSpec("sensorName", "serviceId", "address", behavior, null, "devId");
+    ScalarInputSensor sensor =
+        new ScalarInputSensor(
+            "sensorId",
+            MoreExecutors.directExecutor(),
+            serviceFinder,
+            new TestStringSource(),
+            spec,
+            scheduler);
+    SensorRecorder recorder =
+        sensor.createRecorder(
+            null,
+            StubAppAccount.getInstance(),
+            observer,
+            listener,
+            new MemorySensorEnvironment(
+                db.makeSimpleRecordingController(), null, null, scheduler.getClock()));
+    recorder.startObserving();
+    recorder.startRecording("runId");
+
+    final Ingestion ingestion = new Ingestion(new SyntheticSignal(config, START_MILLIS));
+    SyntheticSignal.Sink sink =
+        new SyntheticSignal.Sink() {
+          @Override
+          public void onSample(long timestampMillis, double value) {
+            if (timestampMillis > ingestion.lastTimestampMillis) {
+              ingestion.increasingCount++;
+              ingestion.lastTimestampMillis = timestampMillis;
+            }
+            try {
+              serviceFinder.observer.onNewData(timestampMillis, value);
+            } catch (RemoteException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+    long endMillis = START_MILLIS + seconds * 1000;
+    long startNanos = System.nanoTime();
+    for (long now = START_MILLIS + TICK_MILLIS; now <= endMillis; now += TICK_MILLIS) {
+      ingestion.signal.generateUntil(now, sink);
+    }
+    ingestion.nanos = System.nanoTime() - startNanos;
+
+    recorder.stopRecording(null);
+    recorder.stopObserving();
+    return ingestion;
+  }
+
+  private class Ingestion {
+    final SyntheticSignal signal;
+    long lastTimestampMillis = Long.MIN_VALUE;
+    long increasingCount = 0;
+    long nanos;
+
+    Ingestion(SyntheticSignal signal) {
+      this.signal = signal;
+    }
+
+    long getStoredCount() {
+      return db.getReadings(0).size();
+    }
+
+    double getSamplesPerSecond() {
+      return signal.getSentCount() * 1e9 / Math.max(nanos, 1);
+    }
+
+    String report() {
+      return String.format(
+          "%d sent, %d stored, %.0f samples per second",
+          signal.getSentCount(), getStoredCount(), getSamplesPerSecond());
+    }
+  }
+}
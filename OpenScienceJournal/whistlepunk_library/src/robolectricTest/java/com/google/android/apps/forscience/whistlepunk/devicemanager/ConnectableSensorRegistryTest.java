@@ -16,9 +16,11 @@
 package com.google.android.apps.forscience.whistlepunk.devicemanager;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import androidx.annotation.NonNull;
+import com.google.android.apps.forscience.javalib.Delay;
 import com.google.android.apps.forscience.javalib.Scheduler;
 import com.google.android.apps.forscience.javalib.Success;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
@@ -249,6 +251,37 @@ public class ConnectableSensorRegistryTest {
     Assert.assertEquals(1, availableDevices.size());
   }
 
+  @Test
+  public void testManyAdvertisements() {
+    int devices = 50;
+    BleSensorSpec[] advertisements = new BleSensorSpec[10_000];
+    for (int i = 0; i < advertisements.length; i++) {
+      advertisements[i] = new BleSensorSpec("address" + (i % devices), "name" + (i % devices));
+    }
+    Map<String, SensorDiscoverer> discoverers = new HashMap<>();
+    discoverers.put(BleSensorSpec.TYPE, new EnumeratedDiscoverer(advertisements));
+    ConnectableSensorRegistry registry =
+        new ConnectableSensorRegistry(
+            makeDataController(),
+            discoverers,
+            presenter,
+            scheduler,
+            new CurrentTimeClock(),
+            optionsListener,
+            null,
+            appearanceProvider,
+            UsageTracker.STUB,
+            ConnectableSensor.Connector.fromDiscoverers(discoverers));
+    registry.setScanDeadline(BleSensorSpec.TYPE, Delay.seconds(1));
+
+    registry.startScanningInDiscoverers(false);
+    Assert.assertEquals(devices, availableDevices.size());
+    assertTrue(registry.isScanning());
+
+    ((MockScheduler) scheduler).incrementTime(1000);
+    assertFalse(registry.isScanning());
+  }
+
   @Test
   public void testDontAddAvailableWhenAlreadyPaired() {
     Map<String, SensorDiscoverer> discoverers = new HashMap<>();
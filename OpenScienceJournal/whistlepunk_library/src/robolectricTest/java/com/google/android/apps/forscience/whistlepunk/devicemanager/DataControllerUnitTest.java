@@ -22,19 +22,25 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.android.apps.forscience.javalib.Success;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
 import com.google.android.apps.forscience.whistlepunk.ExplodingFactory;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.RxDataController;
 import com.google.android.apps.forscience.whistlepunk.TestConsumers;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout.SensorLayout;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.SensorLayoutPojo;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.StoringConsumer;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -59,6 +65,49 @@ public class DataControllerUnitTest {
     assertEquals(12.34, reading.getValue(), 0.001);
   }
 
+  @Test
+  public void testSingleReadingsWrittenTogether() {
+    final List<Integer> batchSizes = new ArrayList<>();
+    InMemorySensorDatabase db =
+        new InMemorySensorDatabase() {
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            batchSizes.add(readings.size());
+            super.addScalarReadings(readings);
+          }
+        };
+    List<Runnable> sensorDataTasks = new ArrayList<>();
+    DataControllerImpl controller =
+        new DataControllerImpl(
+            null, // context
+            StubAppAccount.getInstance(),
+            db,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            sensorDataTasks::add,
+            new MemoryMetadataManager(),
+            new MonotonicClock(),
+            new HashMap<>(),
+            new ConnectableSensor.Connector(new HashMap<>()));
+
+    // Readings that arrive before the sensor data thread gets to them share one write.
+    controller.addScalarReading("runId", "tag", 0, 1, 1.0);
+    controller.addScalarReading("runId", "tag", 0, 2, 2.0);
+    controller.addScalarReading("runId", "tag", 1, 2, 2.0);
+    assertEquals(1, sensorDataTasks.size());
+    sensorDataTasks.remove(0).run();
+
+    controller.addScalarReading("runId", "tag", 0, 3, 3.0);
+    assertEquals(1, sensorDataTasks.size());
+    sensorDataTasks.remove(0).run();
+
+    assertEquals(2, batchSizes.size());
+    assertEquals(3, (int) batchSizes.get(0));
+    assertEquals(1, (int) batchSizes.get(1));
+    assertEquals(3, db.getReadings(0).size());
+    assertEquals(1, db.getReadings(1).size());
+  }
+
   @Test
   public void testStopRun() {
     InMemorySensorDatabase db = new InMemorySensorDatabase();
@@ -0,0 +1,231 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.devicemanager;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.javalib.Delay;
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.MockScheduler;
+import com.google.android.apps.forscience.whistlepunk.TestConsumers;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.metadata.BleSensorSpec;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DiscoveryCoordinatorTest {
+  private final MockScheduler scheduler = new MockScheduler();
+  private final PerfMetrics metrics = PerfMetrics.getInstance();
+  private int allDoneCount = 0;
+  private final DiscoveryCoordinator coordinator =
+      new DiscoveryCoordinator(scheduler, scheduler.getClock(), () -> allDoneCount++);
+
+  @Before
+  public void setUp() {
+    metrics.reset();
+  }
+
+  @Test
+  public void coalescesRepeatedAdvertisements() {
+    AdvertisingDiscoverer discoverer = new AdvertisingDiscoverer();
+    CountingListener listener = new CountingListener();
+    coordinator.startScanning(
+        "ble", discoverer, listener, Delay.seconds(60), TestConsumers.EXPECT_NOTHING);
+
+    // 20 devices take turns advertising, one advertisement every millisecond, from 5ms in.
+    scheduler.incrementTime(5);
+    int devices = 20;
+    int advertisements = 10_000;
+    for (int i = 0; i < advertisements; i++) {
+      discoverer.advertise(new BleSensorSpec("address" + (i % devices), "name"));
+      scheduler.incrementTime(1);
+    }
+
+    // Each device is passed on once for each second it advertised in, not every time.
+    long seconds = advertisements / DiscoveryCoordinator.COALESCE_WINDOW_MILLIS;
+    assertThat(listener.sensorsFound).isAtLeast(devices);
+    assertThat(listener.sensorsFound).isAtMost((int) (devices * (seconds + 1)));
+    assertThat(metrics.getCount(PerfMetrics.DISCOVERY_SIGHTINGS)).isEqualTo(advertisements);
+    assertThat(metrics.getCount(PerfMetrics.DISCOVERY_SIGHTINGS_PASSED_ON))
+        .isEqualTo(listener.sensorsFound);
+
+    // ...and the first sighting is never held back.
+    assertThat(listener.firstFoundMillis).isEqualTo(5);
+    assertThat(metrics.getHistogram(PerfMetrics.DISCOVERY_FIRST_SENSOR_MILLIS).getCount())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void changedSensorIsPassedOnRightAway() {
+    AdvertisingDiscoverer discoverer = new AdvertisingDiscoverer();
+    CountingListener listener = new CountingListener();
+    coordinator.startScanning(
+        "ble", discoverer, listener, Delay.seconds(60), TestConsumers.EXPECT_NOTHING);
+
+    BleSensorSpec a1 = new BleSensorSpec("address", "name");
+    a1.setCustomPin("A1");
+    BleSensorSpec a2 = new BleSensorSpec("address", "name");
+    a2.setCustomPin("A2");
+    discoverer.advertise(a1);
+    discoverer.advertise(a1);
+    discoverer.advertise(a2);
+    assertThat(listener.sensorsFound).isEqualTo(2);
+  }
+
+  @Test
+  public void eachDiscovererHasItsOwnDeadline() {
+    AdvertisingDiscoverer fast = new AdvertisingDiscoverer();
+    AdvertisingDiscoverer slow = new AdvertisingDiscoverer();
+    CountingListener fastListener = new CountingListener();
+    CountingListener slowListener = new CountingListener();
+    coordinator.startScanning(
+        "fast", fast, fastListener, Delay.seconds(1), TestConsumers.EXPECT_NOTHING);
+    coordinator.startScanning(
+        "slow", slow, slowListener, Delay.seconds(5), TestConsumers.EXPECT_NOTHING);
+
+    scheduler.incrementTime(1000);
+    assertThat(fast.stopped).isTrue();
+    assertThat(fastListener.scansDone).isEqualTo(1);
+    assertThat(slow.stopped).isFalse();
+    assertThat(coordinator.isScanning()).isTrue();
+    assertThat(allDoneCount).isEqualTo(0);
+
+    // What a stopped discoverer finds late is dropped.
+    fast.advertise(new BleSensorSpec("late", "name"));
+    slow.advertise(new BleSensorSpec("onTime", "name"));
+    assertThat(fastListener.sensorsFound).isEqualTo(0);
+    assertThat(slowListener.sensorsFound).isEqualTo(1);
+
+    scheduler.incrementTime(4000);
+    assertThat(slow.stopped).isTrue();
+    assertThat(coordinator.isScanning()).isFalse();
+    assertThat(allDoneCount).isEqualTo(1);
+    assertThat(metrics.getCount(PerfMetrics.DISCOVERY_DEADLINES)).isEqualTo(2);
+  }
+
+  @Test
+  public void finishingBeforeDeadlineEndsScan() {
+    AdvertisingDiscoverer discoverer = new AdvertisingDiscoverer();
+    CountingListener listener = new CountingListener();
+    coordinator.startScanning(
+        "api", discoverer, listener, Delay.seconds(10), TestConsumers.EXPECT_NOTHING);
+
+    discoverer.finish();
+    assertThat(listener.scansDone).isEqualTo(1);
+    assertThat(coordinator.isScanning()).isFalse();
+    assertThat(allDoneCount).isEqualTo(1);
+
+    scheduler.incrementTime(10_000);
+    assertThat(discoverer.stopped).isFalse();
+    assertThat(metrics.getCount(PerfMetrics.DISCOVERY_DEADLINES)).isEqualTo(0);
+  }
+
+  @Test
+  public void stopAllDropsLaterResults() {
+    AdvertisingDiscoverer discoverer = new AdvertisingDiscoverer();
+    CountingListener listener = new CountingListener();
+    coordinator.startScanning(
+        "ble", discoverer, listener, Delay.seconds(10), TestConsumers.EXPECT_NOTHING);
+
+    coordinator.stopAll();
+    discoverer.advertise(new BleSensorSpec("address", "name"));
+    assertThat(listener.sensorsFound).isEqualTo(0);
+    assertThat(coordinator.isScanning()).isFalse();
+
+    scheduler.incrementTime(10_000);
+    assertThat(discoverer.stopped).isFalse();
+    assertThat(allDoneCount).isEqualTo(0);
+  }
+
+  /**
+   * Reports a sensor at every advertisement, as BLE does, and only reports that it is done when
+   * stopped, but keeps its listener so that it can still report something late.
+   */
+  private static class AdvertisingDiscoverer extends StubSensorDiscoverer {
+    private ScanListener listener;
+    private boolean stopped = false;
+
+    @Override
+    public boolean startScanning(ScanListener listener, FailureListener onScanError) {
+      this.listener = listener;
+      return true;
+    }
+
+    @Override
+    public void stopScanning() {
+      stopped = true;
+      listener.onScanDone();
+    }
+
+    void advertise(BleSensorSpec spec) {
+      GoosciSensorSpec.SensorSpec sensorSpec = spec.asGoosciSpec();
+      listener.onSensorFound(
+          new DiscoveredSensor() {
+            @Override
+            public GoosciSensorSpec.SensorSpec getSensorSpec() {
+              return sensorSpec;
+            }
+
+            @Override
+            public SettingsInterface getSettingsInterface() {
+              return null;
+            }
+
+            @Override
+            public boolean shouldReplaceStoredSensor(ConnectableSensor oldSensor) {
+              return false;
+            }
+          });
+    }
+
+    void finish() {
+      listener.onScanDone();
+    }
+  }
+
+  private class CountingListener implements SensorDiscoverer.ScanListener {
+    private int sensorsFound = 0;
+    private int scansDone = 0;
+    private long firstFoundMillis = -1;
+
+    @Override
+    public void onServiceFound(SensorDiscoverer.DiscoveredService service) {}
+
+    @Override
+    public void onDeviceFound(SensorDiscoverer.DiscoveredDevice device) {}
+
+    @Override
+    public void onSensorFound(SensorDiscoverer.DiscoveredSensor sensor) {
+      if (sensorsFound == 0) {
+        firstFoundMillis = scheduler.getClock().getNow();
+      }
+      sensorsFound++;
+    }
+
+    @Override
+    public void onServiceScanComplete(String serviceId) {}
+
+    @Override
+    public void onScanDone() {
+      scansDone++;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciUserMetadata;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for ExperimentOverviewIndex and how UserMetadataManager keeps it up to date. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentOverviewIndexTest {
+  private static final int SYNTHETIC_EXPERIMENT_COUNT = 1000;
+
+  private UserMetadataManager.FailureListener getFailureFailsListener() {
+    return new UserMetadataManager.FailureListener() {
+      @Override
+      public void onWriteFailed() {
+        throw new RuntimeException("Expected success");
+      }
+
+      @Override
+      public void onReadFailed() {
+        throw new RuntimeException("Expected success");
+      }
+
+      @Override
+      public void onNewerVersionDetected() {
+        throw new RuntimeException("Expected success");
+      }
+    };
+  }
+
+  @Before
+  public void setUp() {
+    cleanUp();
+  }
+
+  @After
+  public void tearDown() {
+    cleanUp();
+  }
+
+  private void cleanUp() {
+    FileMetadataUtil.getInstance().getUserMetadataFile(getAppAccount()).delete();
+    getContext()
+        .deleteDatabase(getAppAccount().getDatabaseFileName(ExperimentOverviewIndex.DB_NAME));
+  }
+
+  @Test
+  public void testPagesSortedByLastUsed() {
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(getContext(), getAppAccount());
+    List<ExperimentOverviewPojo> overviews = new ArrayList<>();
+    overviews.add(makeOverview("exp1", 10, false));
+    overviews.add(makeOverview("exp2", 30, true));
+    overviews.add(makeOverview("exp3", 20, false));
+    overviews.add(makeOverview("exp4", 40, false));
+    index.rebuild(overviews, 0, 0);
+
+    assertThat(ids(index.getPage(true, 0, 0)))
+        .containsExactly("exp4", "exp2", "exp3", "exp1")
+        .inOrder();
+    assertThat(ids(index.getPage(false, 0, 0))).containsExactly("exp4", "exp3", "exp1").inOrder();
+    assertThat(ids(index.getPage(true, 1, 2))).containsExactly("exp2", "exp3").inOrder();
+    assertThat(ids(index.getPage(false, 2, 0))).containsExactly("exp1");
+  }
+
+  @Test
+  public void testPointLookup() {
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(getContext(), getAppAccount());
+    ExperimentOverviewPojo overview = makeOverview("exp1", 10, true);
+    overview.setTitle("title");
+    overview.setImagePath("experiments/exp1/assets/cover.jpg");
+    overview.setTrialCount(3);
+    overview.setColorIndex(2);
+    index.put(overview);
+
+    assertThat(index.get("exp1")).isEqualTo(overview);
+    assertThat(index.get("doesNotExist")).isNull();
+
+    index.delete("exp1");
+    assertThat(index.get("exp1")).isNull();
+  }
+
+  @Test
+  public void testUsableOnlyWhenCleanAndMatchingFile() {
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(getContext(), getAppAccount());
+    assertThat(index.isUsable(0, 0)).isFalse();
+
+    index.rebuild(new ArrayList<>(), 100, 200);
+    assertThat(index.isUsable(100, 200)).isTrue();
+    assertThat(index.isUsable(101, 200)).isFalse();
+
+    index.put(makeOverview("exp1", 10, false));
+    assertThat(index.isUsable(100, 200)).isFalse();
+
+    index.markClean(150, 300);
+    assertThat(index.isUsable(150, 300)).isTrue();
+
+    // A new instance reads the dirty flag back from the database.
+    index.put(makeOverview("exp2", 10, false));
+    ExperimentOverviewIndex reopened = new ExperimentOverviewIndex(getContext(), getAppAccount());
+    assertThat(reopened.isUsable(150, 300)).isFalse();
+  }
+
+  @Test
+  public void testManagerRebuildsFromUserMetadataWhenIndexIsAhead() {
+    UserMetadataManager first =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    first.addExperimentOverview(makeOverview("saved", 10, false));
+    first.saveImmediately();
+    // Never written to user metadata, as if the app stopped before the write timer fired.
+    first.addExperimentOverview(makeOverview("unsaved", 20, false));
+
+    UserMetadataManager second =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    assertThat(ids(second.getExperimentOverviews(true))).containsExactly("saved");
+    assertThat(second.lookUpExperimentOverview("unsaved")).isNull();
+  }
+
+  @Test
+  public void testManagerRebuildsWhenUserMetadataFileIsReplaced() {
+    UserMetadataManager first =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    first.addExperimentOverview(makeOverview("exp1", 10, false));
+    first.saveImmediately();
+
+    FileMetadataUtil.getInstance().getUserMetadataFile(getAppAccount()).delete();
+
+    UserMetadataManager second =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    assertThat(second.getExperimentOverviews(true)).isEmpty();
+  }
+
+  @Test
+  public void testManagerServesReadsFromIndexWithoutUserMetadata() {
+    UserMetadataManager first =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    for (int i = 0; i < SYNTHETIC_EXPERIMENT_COUNT; i++) {
+      first.addExperimentOverview(makeOverview("exp" + i, i, i % 10 == 0));
+    }
+    first.saveImmediately();
+
+    UserMetadataManager second =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    List<ExperimentOverviewPojo> page = second.getExperimentOverviews(false, 0, 20);
+    assertThat(page).hasSize(20);
+    assertThat(page.get(0).getExperimentId()).isEqualTo("exp999");
+    assertThat(second.getExperimentOverviews(true)).hasSize(SYNTHETIC_EXPERIMENT_COUNT);
+
+    for (int i = 0; i < SYNTHETIC_EXPERIMENT_COUNT; i++) {
+      if (second.lookUpExperimentOverview("exp" + i) == null) {
+        fail("Missing exp" + i);
+      }
+    }
+  }
+
+  @Test
+  public void testSizeIsIndexed() {
+    ExperimentOverviewIndex index = new ExperimentOverviewIndex(getContext(), getAppAccount());
+    ExperimentOverviewPojo overview = makeOverview("exp1", 10, false);
+    overview.setSizeBytes(123456789L);
+    index.rebuild(Collections.singletonList(overview), 0, 0);
+    assertThat(index.get("exp1").getSizeBytes()).isEqualTo(123456789L);
+    assertThat(index.getPage(true, 0, 0).get(0).getSizeBytes()).isEqualTo(123456789L);
+
+    // The size survives a round trip through user metadata too, so rebuilds keep it.
+    assertThat(ExperimentOverviewPojo.fromProto(overview.toProto())).isEqualTo(overview);
+  }
+
+  @Test
+  public void testPagesAndLookupsMatchUserMetadata() throws IOException {
+    UserMetadataManager manager =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    for (int i = 0; i < SYNTHETIC_EXPERIMENT_COUNT; i++) {
+      ExperimentOverviewPojo overview = makeOverview("exp" + i, i, i % 10 == 0);
+      overview.setTitle("Experiment " + i);
+      overview.setImagePath("experiments/exp" + i + "/assets/cover.jpg");
+      overview.setTrialCount(i % 7);
+      overview.setSizeBytes(i * 1000L);
+      manager.addExperimentOverview(overview);
+    }
+    manager.saveImmediately();
+    File userMetadataFile = FileMetadataUtil.getInstance().getUserMetadataFile(getAppAccount());
+    List<ExperimentOverviewPojo> scanned = readUserMetadata(userMetadataFile).getOverviews(false);
+    Collections.sort(
+        scanned, (a, b) -> Long.compare(b.getLastUsedTimeMs(), a.getLastUsedTimeMs()));
+
+    // A fresh manager, as after an app restart, serving both from the index.
+    UserMetadataManager indexed =
+        new UserMetadataManager(getContext(), getAppAccount(), getFailureFailsListener());
+    List<ExperimentOverviewPojo> paged = new ArrayList<>();
+    List<ExperimentOverviewPojo> page;
+    do {
+      page = indexed.getExperimentOverviews(false, paged.size(), 50);
+      paged.addAll(page);
+    } while (page.size() == 50);
+    assertThat(paged).isEqualTo(scanned);
+
+    for (int i = 0; i < SYNTHETIC_EXPERIMENT_COUNT; i += 97) {
+      ExperimentOverviewPojo found = indexed.lookUpExperimentOverview("exp" + i);
+      assertThat(found.getSizeBytes()).isEqualTo(i * 1000L);
+    }
+  }
+
+  private UserMetadataPojo readUserMetadata(File file) throws IOException {
+    try (FileInputStream in = new FileInputStream(file)) {
+      return UserMetadataPojo.fromProto(GoosciUserMetadata.UserMetadata.parseFrom(in));
+    }
+  }
+
+  private static ExperimentOverviewPojo makeOverview(
+      String experimentId, long lastUsedTimeMs, boolean archived) {
+    ExperimentOverviewPojo overview = new ExperimentOverviewPojo();
+    overview.setExperimentId(experimentId);
+    overview.setLastUsedTimeMs(lastUsedTimeMs);
+    overview.setArchived(archived);
+    return overview;
+  }
+
+  private static List<String> ids(List<ExperimentOverviewPojo> overviews) {
+    List<String> ids = new ArrayList<>();
+    for (ExperimentOverviewPojo overview : overviews) {
+      ids.add(overview.getExperimentId());
+    }
+    return ids;
+  }
+
+  private Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+
+  private AppAccount getAppAccount() {
+    return NonSignedInAccount.getInstance(getContext());
+  }
+}
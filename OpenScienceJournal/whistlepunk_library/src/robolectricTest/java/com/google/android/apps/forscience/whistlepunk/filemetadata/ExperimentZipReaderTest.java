@@ -0,0 +1,344 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.android.apps.forscience.javalib.Consumer;
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
+import com.google.android.apps.forscience.whistlepunk.metadata.Version;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for ExperimentZipReader. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentZipReaderTest {
+  private static final String SENSOR_DATA_FILE = "sensorData.proto";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReadsProtoPicturesAndSensorData() throws IOException {
+    byte[] picture = new byte[5000];
+    new Random(1).nextBytes(picture);
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      addEntry(zos, FileMetadataUtil.EXPERIMENT_FILE, makeExperiment("trial1").toByteArray());
+      addEntry(zos, SENSOR_DATA_FILE, makeSensorData("trial1", 1000));
+      addEntry(zos, "assets/picture.jpg", picture);
+      addEntry(zos, FileMetadataUtil.COVER_IMAGE_FILE, picture);
+    }
+
+    File experimentDirectory = makeExperimentDirectory();
+    CountingController controller = new CountingController();
+    List<File> pictures = new ArrayList<>();
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            controller, folder.newFolder(), experimentDirectory, addTo(pictures));
+    reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+
+    assertThat(reader.getProto().getTitle()).isEqualTo("title");
+    assertThat(reader.containsExperimentImage()).isTrue();
+    assertThat(pictures).hasSize(2);
+    assertThat(new File(experimentDirectory, "assets/picture.jpg").length()).isEqualTo(5000);
+    String newTrialId = reader.getTrialIdMap().get("trial1");
+    assertThat(newTrialId).isNotEqualTo("trial1");
+    assertThat(controller.trialIds).containsExactly(newTrialId);
+    assertThat(controller.tier0Readings).isEqualTo(1000);
+  }
+
+  @Test
+  public void testSensorDataBeforeProtoIsSpilledAndImported() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      addEntry(zos, SENSOR_DATA_FILE, makeSensorData("trial1", 1000));
+      addEntry(zos, FileMetadataUtil.EXPERIMENT_FILE, makeExperiment("trial1").toByteArray());
+    }
+
+    File spillDirectory = folder.newFolder();
+    CountingController controller = new CountingController();
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            controller, spillDirectory, makeExperimentDirectory(), addTo(new ArrayList<>()));
+    reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+
+    assertThat(controller.trialIds).containsExactly(reader.getTrialIdMap().get("trial1"));
+    assertThat(controller.tier0Readings).isEqualTo(1000);
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void testFailureAfterSensorDataReportsTrialsToDelete() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      addEntry(zos, FileMetadataUtil.EXPERIMENT_FILE, makeExperiment("trial1").toByteArray());
+      addEntry(zos, SENSOR_DATA_FILE, makeSensorData("trial1", 1000));
+      // There is no such directory, so extracting this fails after the sensor data is stored.
+      addEntry(zos, "missing/picture.jpg", new byte[100]);
+    }
+
+    CountingController controller = new CountingController();
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            controller, folder.newFolder(), makeExperimentDirectory(), addTo(new ArrayList<>()));
+    try {
+      reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+      fail("Expected the picture to fail");
+    } catch (IOException expected) {
+      // The sensor data that made it in has to be deleted by the caller.
+    }
+    assertThat(controller.tier0Readings).isEqualTo(1000);
+    assertThat(reader.getNewTrialIds()).containsExactlyElementsIn(controller.trialIds);
+  }
+
+  @Test
+  public void testMissingProtoFails() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      addEntry(zos, SENSOR_DATA_FILE, makeSensorData("trial1", 10));
+    }
+
+    File spillDirectory = folder.newFolder();
+    CountingController controller = new CountingController();
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            controller, spillDirectory, makeExperimentDirectory(), addTo(new ArrayList<>()));
+    try {
+      reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+      fail("Expected a missing proto to fail");
+    } catch (ZipException expected) {
+      // Nothing was imported, and there is nothing to delete.
+    }
+    assertThat(controller.tier0Readings).isEqualTo(0);
+    assertThat(reader.getNewTrialIds()).isEmpty();
+    assertThat(spillDirectory.list()).isEmpty();
+  }
+
+  @Test
+  public void testFillsInStatsMissingFromOlderFiles() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      addEntry(zos, FileMetadataUtil.EXPERIMENT_FILE, makeExperiment("trial1").toByteArray());
+      addEntry(zos, SENSOR_DATA_FILE, makeSensorData("trial1", 1000));
+    }
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            new CountingController(),
+            folder.newFolder(),
+            makeExperimentDirectory(),
+            addTo(new ArrayList<>()));
+    reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+    String newTrialId = reader.getTrialIdMap().get("trial1");
+
+    // Stats saved by a version that only kept min, max and average.
+    TrialStats old = new TrialStats("sensor0");
+    old.putStat(StatType.AVERAGE, 0);
+    GoosciTrial.Trial saved =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId("trial1")
+            .addTrialStats(old.getSensorTrialStatsProto())
+            .build();
+    Trial trial = Trial.fromTrialWithNewId(saved, newTrialId);
+    reader.fillInMissingStats(trial);
+
+    TrialStats filledIn = trial.getStatsForSensor("sensor0");
+    assertThat(filledIn.hasDistribution()).isTrue();
+    assertThat(filledIn.getStatValue(StatType.NUM_DATA_POINTS, -1)).isEqualTo(250.0);
+    assertThat(filledIn.hasStat(StatType.MEDIAN)).isTrue();
+
+    // A cropped trial's stats are of the crop, so the imported readings don't replace them.
+    Trial cropped =
+        Trial.fromTrialWithNewId(
+            saved.toBuilder().setCropRange(Range.newBuilder().setStartMs(0).setEndMs(10)).build(),
+            newTrialId);
+    reader.fillInMissingStats(cropped);
+    assertThat(cropped.getStatsForSensor("sensor0").hasDistribution()).isFalse();
+  }
+
+  @Test
+  public void testExportAndImportLargeExperiment() throws IOException {
+    // An experiment with 200 photos and 1M sensor rows, split over four sensors.
+    int photoCount = 200;
+    int rowCount = 1_000_000;
+    File sourceDirectory = folder.newFolder("source");
+    File assets = new File(sourceDirectory, "assets");
+    assets.mkdir();
+    Random random = new Random(42);
+    for (int i = 0; i < photoCount; i++) {
+      byte[] photo = new byte[50_000 + random.nextInt(100_000)];
+      random.nextBytes(photo);
+      writeFile(new File(assets, "photo" + i + ".jpg"), photo);
+    }
+    writeFile(
+        new File(sourceDirectory, FileMetadataUtil.EXPERIMENT_FILE),
+        makeExperiment("trial1").toByteArray());
+    File sensorData = folder.newFile(SENSOR_DATA_FILE);
+    try (OutputStream out = new FileOutputStream(sensorData)) {
+      writeSensorData(out, "trial1", rowCount);
+    }
+
+    ExperimentZipWriter writer = new ExperimentZipWriter();
+    writer.addDirectory(sourceDirectory, "", ImmutableSet.of());
+    writer.addFile(sensorData, SENSOR_DATA_FILE);
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      writer.write(zos);
+    }
+
+    CountingController controller = new CountingController();
+    List<File> pictures = new ArrayList<>();
+    ExperimentZipReader reader =
+        new ExperimentZipReader(
+            controller, folder.newFolder(), makeExperimentDirectory(), addTo(pictures));
+    reader.read(new ByteArrayInputStream(zipBytes.toByteArray()));
+
+    assertThat(pictures).hasSize(photoCount);
+    assertThat(controller.tier0Readings).isEqualTo(rowCount);
+  }
+
+  private File makeExperimentDirectory() throws IOException {
+    File directory = folder.newFolder();
+    new File(directory, FileMetadataUtil.ASSETS_DIRECTORY).mkdir();
+    return directory;
+  }
+
+  private static GoosciExperiment.Experiment makeExperiment(String trialId) {
+    return GoosciExperiment.Experiment.newBuilder()
+        .setTitle("title")
+        .setFileVersion(Version.FileVersion.newBuilder().setVersion(1).setMinorVersion(2))
+        .addTrials(GoosciTrial.Trial.newBuilder().setTrialId(trialId))
+        .build();
+  }
+
+  private static byte[] makeSensorData(String trialId, int rowCount) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    writeSensorData(bytes, trialId, rowCount);
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes a ScalarSensorData proto with the rows spread over four sensors, one sensor at a time,
+   * so that a million rows never have to be built in memory at once.
+   */
+  private static void writeSensorData(OutputStream out, String trialId, int rowCount)
+      throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    int sensors = 4;
+    for (int sensor = 0; sensor < sensors; sensor++) {
+      ScalarSensorDataDump.Builder dump =
+          ScalarSensorDataDump.newBuilder().setTag("sensor" + sensor).setTrialId(trialId);
+      for (int i = sensor; i < rowCount; i += sensors) {
+        dump.addRows(
+            ScalarSensorDataRow.newBuilder().setTimestampMillis(i * 10L).setValue(Math.sin(i)));
+      }
+      output.writeMessage(
+          GoosciScalarSensorData.ScalarSensorData.SENSORS_FIELD_NUMBER, dump.build());
+    }
+    output.flush();
+  }
+
+  private static void addEntry(ZipOutputStream zos, String name, byte[] bytes)
+      throws IOException {
+    zos.putNextEntry(new ZipEntry(name));
+    zos.write(bytes);
+    zos.closeEntry();
+  }
+
+  private static void writeFile(File file, byte[] bytes) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+  }
+
+  private static Consumer<File> addTo(List<File> files) {
+    return new Consumer<File>() {
+      @Override
+      public void take(File file) {
+        files.add(file);
+      }
+    };
+  }
+
+  /** Counts the readings it is given instead of storing them. */
+  private static class CountingController implements RecordingDataController {
+    final Set<String> trialIds = new HashSet<>();
+    int tier0Readings = 0;
+
+    @Override
+    public void addScalarReading(
+        String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+      add(trialId, resolutionTier);
+    }
+
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      for (BatchInsertScalarReading reading : readings) {
+        add(reading.trialId, reading.resolutionTier);
+      }
+    }
+
+    private void add(String trialId, int resolutionTier) {
+      trialIds.add(trialId);
+      if (resolutionTier == 0) {
+        tier0Readings++;
+      }
+    }
+
+    @Override
+    public void addStatsBlock(StatsBlock block) {}
+
+    @Override
+    public void setSeriesHold(SeriesHold hold) {}
+
+    @Override
+    public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {}
+
+    @Override
+    public void clearDataErrorListenerForSensor(String sensorId) {}
+  }
+}
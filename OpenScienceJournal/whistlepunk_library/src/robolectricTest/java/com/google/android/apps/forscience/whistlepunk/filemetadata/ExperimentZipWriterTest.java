@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.filemetadata;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Tests for ExperimentZipWriter. */
+@RunWith(RobolectricTestRunner.class)
+public class ExperimentZipWriterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testShouldStore() {
+    assertThat(ExperimentZipWriter.shouldStore("assets/photo.jpg")).isTrue();
+    assertThat(ExperimentZipWriter.shouldStore("assets/PHOTO.JPEG")).isTrue();
+    assertThat(ExperimentZipWriter.shouldStore("assets/clip.mp4")).isTrue();
+    assertThat(ExperimentZipWriter.shouldStore("experiment.proto")).isFalse();
+    assertThat(ExperimentZipWriter.shouldStore("sensorData.proto")).isFalse();
+    assertThat(ExperimentZipWriter.shouldStore("noExtension")).isFalse();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    File experimentDirectory = folder.newFolder("experiment");
+    File assets = new File(experimentDirectory, "assets");
+    assets.mkdir();
+    Map<String, byte[]> expected = new HashMap<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 10; i++) {
+      expected.put(
+          "assets/picture" + i + ".jpg", writeRandomFile(assets, "picture" + i + ".jpg", random));
+    }
+    expected.put("assets/notes.txt", writeRandomFile(assets, "notes.txt", random));
+    expected.put(
+        "experiment.proto", writeRandomFile(experimentDirectory, "experiment.proto", random));
+    File sensorData = folder.newFile("sensorData.proto");
+    expected.put("sensorData.proto", writeBytes(sensorData, new byte[1000]));
+    // Excluded from the directory, as the cover image is added separately.
+    writeRandomFile(assets, "ExperimentCoverImage.jpg", random);
+
+    // Fewer threads than entries in flight, so that the writer waits on workers.
+    ExperimentZipWriter writer = new ExperimentZipWriter(2);
+    writer.addDirectory(
+        experimentDirectory, "", ImmutableSet.of(FileMetadataManager.COVER_IMAGE_FILE));
+    writer.addFile(sensorData, "sensorData.proto");
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zos = new ZipOutputStream(zipBytes)) {
+      writer.write(zos);
+    }
+
+    List<String> names = new ArrayList<>();
+    try (ZipInputStream zis =
+        new ZipInputStream(new ByteArrayInputStream(zipBytes.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = zis.getNextEntry()) != null) {
+        names.add(entry.getName());
+        assertThat(readEntry(zis)).isEqualTo(expected.get(entry.getName()));
+        int expectedMethod = entry.getName().endsWith(".jpg") ? ZipEntry.STORED : ZipEntry.DEFLATED;
+        assertThat(entry.getMethod()).isEqualTo(expectedMethod);
+      }
+    }
+
+    assertThat(names).containsExactlyElementsIn(expected.keySet());
+    assertThat(names.get(0)).isEqualTo("experiment.proto");
+    assertThat(names.get(1)).isEqualTo("sensorData.proto");
+  }
+
+  private static byte[] writeRandomFile(File directory, String name, Random random)
+      throws IOException {
+    byte[] bytes = new byte[1000 + random.nextInt(50000)];
+    random.nextBytes(bytes);
+    return writeBytes(new File(directory, name), bytes);
+  }
+
+  private static byte[] writeBytes(File file, byte[] bytes) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(bytes);
+    }
+    return bytes;
+  }
+
+  private static byte[] readEntry(ZipInputStream zis) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = zis.read(buffer)) > 0) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -20,30 +20,47 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import android.content.Context;
 import com.google.android.apps.forscience.javalib.Success;
+import com.google.android.apps.forscience.whistlepunk.BatchDataController;
 import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
 import com.google.android.apps.forscience.whistlepunk.ExperimentCreator;
+import com.google.android.apps.forscience.whistlepunk.StatsAccumulator;
 import com.google.android.apps.forscience.whistlepunk.TestConsumers;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout.SensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Experiment;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
 import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.Range;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StatsBlockRecorder;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MonotonicClock;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
 import com.google.android.apps.forscience.whistlepunk.sensordb.StoringConsumer;
 import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 
 /** Tests for {@link CropHelper} */
 @RunWith(RobolectricTestRunner.class)
 public class CropHelperTest {
+  private InMemorySensorDatabase db;
   private DataControllerImpl dataController;
   private MemoryMetadataManager metadataManager;
   private CropHelper.CropTrialListener cropTrialListener;
@@ -51,11 +68,13 @@ public class CropHelperTest {
   private boolean cropFailed = false;
   private GoosciSensorLayout.SensorLayout[] sensorLayouts;
   private final double DELTA = 0.01;
+  private static final String TEST_DATABASE_NAME = "crop.db";
 
   @Before
   public void setUp() {
     metadataManager = new MemoryMetadataManager();
-    dataController = new InMemorySensorDatabase().makeSimpleController(metadataManager);
+    db = new InMemorySensorDatabase();
+    dataController = db.makeSimpleController(metadataManager);
     sensorLayouts = new GoosciSensorLayout.SensorLayout[1];
     SensorLayout layout =
         GoosciSensorLayout.SensorLayout.newBuilder().setSensorId("sensor").build();
@@ -63,6 +82,11 @@ public class CropHelperTest {
     resetCropRunListener();
   }
 
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
   private void resetCropRunListener() {
     cropCompleted = false;
     cropFailed = false;
@@ -125,6 +149,37 @@ public class CropHelperTest {
     assertFalse(cropCompleted);
   }
 
+  @Test
+  public void testCropRun_archivedUsesFinestTier() {
+    StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+    dataController.createExperiment(cExperiment);
+    Experiment experiment = cExperiment.getValue();
+    Trial trial = makeCommonTrial();
+    experiment.addTrial(trial);
+    dataController.updateExperiment(
+        experiment.getExperimentId(), TestConsumers.<Success>expectingSuccess());
+    dataController.addScalarReading(trial.getTrialId(), "sensor", 1, 1, 1); // This gets cropped out
+    dataController.addScalarReading(trial.getTrialId(), "sensor", 1, 50, 50);
+    dataController.addScalarReading(trial.getTrialId(), "sensor", 1, 70, 70);
+    db.setFinestTier(trial.getTrialId(), 1);
+    setEmptyStats(experiment, trial.getTrialId());
+
+    CropHelper cropHelper = new CropHelper(MoreExecutors.directExecutor(), dataController);
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), 4, 1006, cropTrialListener);
+
+    // Only the finest tier is left, and the stats come from it.
+    assertTrue(cropCompleted);
+    assertEquals(4, trial.getFirstTimestamp());
+    TrialStats stats =
+        metadataManager
+            .getExperimentById(experiment.getExperimentId())
+            .getTrial(trial.getTrialId())
+            .getStatsForSensor("sensor");
+    assertTrue(stats.statsAreValid());
+    assertEquals(50.0, stats.getStatValue(StatType.MINIMUM, -1), DELTA);
+    assertEquals(70.0, stats.getStatValue(StatType.MAXIMUM, -1), DELTA);
+  }
+
   @Test
   public void testCropRun_alreadyCroppedRun() {
     StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
@@ -210,4 +265,315 @@ public class CropHelperTest {
             .getStatsForSensor("sensor")
             .statsAreValid());
   }
+
+  @Test
+  public void testCropRun_statsFromBlocksMatchFullScan() {
+    dataController = makeDatabaseController();
+    Experiment experiment = createExperiment();
+    long durationMillis = 120000;
+    Trial withBlocks = addTrial(experiment, "withBlocks", durationMillis);
+    Trial withoutBlocks = addTrial(experiment, "withoutBlocks", durationMillis);
+    List<Long> times = new ArrayList<>();
+    List<Double> values = new ArrayList<>();
+    Random random = new Random(42);
+    for (long t = random.nextInt(10); t <= durationMillis; t += 1 + random.nextInt(40)) {
+      if (t > 30000 && t < 37500) {
+        // A gap, as when a sensor disconnects.
+        continue;
+      }
+      times.add(t);
+      // Quarter values add up exactly, in any order.
+      values.add(random.nextInt(400) / 4.0 - 50);
+    }
+    record(withBlocks.getTrialId(), times, values, true);
+    record(withoutBlocks.getTrialId(), times, values, false);
+
+    CropHelper cropHelper = new CropHelper(MoreExecutors.directExecutor(), dataController);
+    for (int i = 0; i < 20; i++) {
+      long start = random.nextInt((int) durationMillis - 2000);
+      long end = start + 2000 + random.nextInt((int) (durationMillis - start - 2000));
+      for (Trial trial : Arrays.asList(withBlocks, withoutBlocks)) {
+        setEmptyStats(experiment, trial.getTrialId());
+        cropHelper.cropTrial(null, experiment, trial.getTrialId(), start, end, cropTrialListener);
+      }
+
+      StatsAccumulator expected = new StatsAccumulator("sensor");
+      for (int j = 0; j < times.size(); j++) {
+        if (times.get(j) >= start && times.get(j) <= end) {
+          expected.updateRecordingStreamStats(times.get(j), values.get(j));
+        }
+      }
+      TrialStats fromBlocks = getSavedStats(experiment, withBlocks.getTrialId());
+      TrialStats fromScan = getSavedStats(experiment, withoutBlocks.getTrialId());
+      if (!expected.isInitialized()) {
+        assertFalse(fromBlocks.statsAreValid());
+        assertFalse(fromScan.statsAreValid());
+        continue;
+      }
+      assertTrue(fromBlocks.statsAreValid());
+      assertSameStats(fromBlocks, expected.makeSaveableStats());
+      assertSameStats(fromBlocks, fromScan);
+      assertTrue(fromBlocks.hasDistribution());
+      assertMedianRank(times, values, start, end, fromBlocks.getStatValue(StatType.MEDIAN, -1));
+      assertTrue(fromScan.hasStat(StatType.MEDIAN));
+    }
+  }
+
+  @Test
+  public void testCropRun_keepsDistributionOfTrialWithBlocks() {
+    dataController = makeDatabaseController();
+    Experiment experiment = createExperiment();
+    long durationMillis = 20000;
+    Trial trial = addTrial(experiment, "withDistribution", durationMillis);
+    List<Long> times = new ArrayList<>();
+    List<Double> values = new ArrayList<>();
+    Random random = new Random(3);
+    StatsAccumulator recorded = new StatsAccumulator("sensor");
+    for (long t = 0; t <= durationMillis; t += 1 + random.nextInt(20)) {
+      times.add(t);
+      values.add(random.nextGaussian());
+      recorded.updateRecordingStreamStats(t, values.get(values.size() - 1));
+    }
+    record(trial.getTrialId(), times, values, true);
+    // Saved when recording stopped, with the distribution of the values.
+    trial.setStats(recorded.makeSaveableStats());
+    metadataManager.updateExperiment(experiment, true);
+
+    long start = 1234;
+    long end = 15678;
+    CropHelper cropHelper = new CropHelper(MoreExecutors.directExecutor(), dataController);
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), start, end, cropTrialListener);
+
+    StatsAccumulator expected = new StatsAccumulator("sensor");
+    for (int i = 0; i < times.size(); i++) {
+      if (times.get(i) >= start && times.get(i) <= end) {
+        expected.updateRecordingStreamStats(times.get(i), values.get(i));
+      }
+    }
+    TrialStats cropped = getSavedStats(experiment, trial.getTrialId());
+    assertTrue(cropped.statsAreValid());
+    assertSameStats(cropped, expected.makeSaveableStats());
+    // The median is estimated from the quantiles of the blocks, and only the edges are read.
+    assertTrue(cropped.hasDistribution());
+    assertMedianRank(times, values, start, end, cropped.getStatValue(StatType.MEDIAN, -1));
+    assertEquals(countEdgeReadings(times, start, end), cropHelper.getReadingsScanned());
+  }
+
+  @Test
+  public void testCropRun_wideningReadsOnlyTheAddedReadings() {
+    dataController = makeDatabaseController();
+    Experiment experiment = createExperiment();
+    long durationMillis = 20000;
+    Trial trial = addTrial(experiment, "widened", durationMillis);
+    List<Long> times = new ArrayList<>();
+    List<Double> values = new ArrayList<>();
+    Random random = new Random(5);
+    StatsAccumulator recorded = new StatsAccumulator("sensor");
+    for (long t = 0; t <= durationMillis; t += 1 + random.nextInt(20)) {
+      times.add(t);
+      // Quarter values add up exactly, in any order.
+      values.add(random.nextInt(400) / 4.0 - 50);
+      recorded.updateRecordingStreamStats(t, values.get(values.size() - 1));
+    }
+    record(trial.getTrialId(), times, values, true);
+    trial.setStats(recorded.makeSaveableStats());
+    metadataManager.updateExperiment(experiment, true);
+    CropHelper cropHelper = new CropHelper(MoreExecutors.directExecutor(), dataController);
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), 5000, 10000, cropTrialListener);
+    long narrowReadings = cropHelper.getReadingsScanned();
+
+    long start = 2345;
+    long end = 15678;
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), start, end, cropTrialListener);
+
+    StatsAccumulator expected = new StatsAccumulator("sensor");
+    for (int i = 0; i < times.size(); i++) {
+      if (times.get(i) >= start && times.get(i) <= end) {
+        expected.updateRecordingStreamStats(times.get(i), values.get(i));
+      }
+    }
+    TrialStats widened = getSavedStats(experiment, trial.getTrialId());
+    TrialStats expectedStats = expected.makeSaveableStats();
+    assertTrue(widened.statsAreValid());
+    for (StatType type :
+        Arrays.asList(
+            StatType.MINIMUM,
+            StatType.MAXIMUM,
+            StatType.NUM_DATA_POINTS,
+            StatType.TOTAL_DURATION)) {
+      assertEquals(
+          type.name(), expectedStats.getStatValue(type, -1), widened.getStatValue(type, -1), 0);
+    }
+    // The saved stats keep the average rather than the sum, which can be off in the last bit.
+    for (StatType type : Arrays.asList(StatType.AVERAGE, StatType.STANDARD_DEVIATION)) {
+      assertEquals(
+          type.name(), expectedStats.getStatValue(type, -1), widened.getStatValue(type, -1), 1e-9);
+    }
+    assertTrue(widened.hasDistribution());
+    // Within the rank error of the sketches, a few quarters here.
+    assertEquals(expected.getQuantile(0.5), widened.getStatValue(StatType.MEDIAN, -1), 1.0);
+    // The readings of the previous crop were summarized by its saved stats.
+    assertEquals(
+        countReadings(times, start, 4999) + countReadings(times, 10001, end),
+        cropHelper.getReadingsScanned() - narrowReadings);
+  }
+
+  @Test
+  public void testCropRun_blocksReadFewerReadingsOnLongTrial() {
+    dataController = makeDatabaseController();
+    Experiment experiment = createExperiment();
+    // An hour at 100 Hz.
+    long durationMillis = 60 * 60 * 1000;
+    Trial trial = addTrial(experiment, "long", durationMillis);
+    List<Long> times = new ArrayList<>();
+    List<Double> values = new ArrayList<>();
+    Random random = new Random(7);
+    for (long t = 0; t <= durationMillis; t += 10) {
+      times.add(t);
+      values.add(random.nextInt(4096) / 4.0);
+    }
+    record(trial.getTrialId(), times, values, false);
+    CropHelper cropHelper = new CropHelper(MoreExecutors.directExecutor(), dataController);
+    long start = 1234;
+    long end = durationMillis - 5678;
+
+    setEmptyStats(experiment, trial.getTrialId());
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), start, end, cropTrialListener);
+    long scanReadings = cropHelper.getReadingsScanned();
+    TrialStats fromScan = getSavedStats(experiment, trial.getTrialId());
+
+    // The same trial, as if its blocks had been written while recording.
+    StatsBlockRecorder recorder = new StatsBlockRecorder("sensor");
+    recorder.setTrialId(trial.getTrialId());
+    for (int i = 0; i < times.size(); i++) {
+      recorder.addData(times.get(i), values.get(i), dataController);
+    }
+    recorder.flush(dataController);
+    setEmptyStats(experiment, trial.getTrialId());
+    cropHelper.cropTrial(null, experiment, trial.getTrialId(), start, end, cropTrialListener);
+    long blocksReadings = cropHelper.getReadingsScanned() - scanReadings;
+    TrialStats fromBlocks = getSavedStats(experiment, trial.getTrialId());
+
+    assertTrue(fromBlocks.statsAreValid());
+    assertSameStats(fromBlocks, fromScan);
+    assertMedianRank(times, values, start, end, fromBlocks.getStatValue(StatType.MEDIAN, -1));
+    assertEquals(countReadings(times, start, end), scanReadings);
+    // Only the readings in the partial blocks at each edge are read.
+    assertEquals(countEdgeReadings(times, start, end), blocksReadings);
+  }
+
+  /** Counts the readings in the partial blocks at each edge of the range. */
+  private static long countEdgeReadings(List<Long> times, long start, long end) {
+    long firstBlockEnd = StatsBlock.getBlockStart(start) + StatsBlock.BLOCK_MILLIS - 1;
+    return countReadings(times, start, firstBlockEnd)
+        + countReadings(times, StatsBlock.getBlockStart(end), end);
+  }
+
+  /**
+   * Asserts that about half of the values in the range are below the median, as close as the
+   * quantiles kept in the blocks and the sketch allow, plus one reading for short ranges.
+   */
+  private static void assertMedianRank(
+      List<Long> times, List<Double> values, long start, long end, double median) {
+    int below = 0;
+    int inRange = 0;
+    for (int i = 0; i < times.size(); i++) {
+      if (times.get(i) >= start && times.get(i) <= end) {
+        inRange++;
+        if (values.get(i) < median) {
+          below++;
+        }
+      }
+    }
+    assertEquals(0.5, (double) below / inRange, 0.05 + 1.0 / inRange);
+  }
+
+  private static long countReadings(List<Long> times, long start, long end) {
+    long count = 0;
+    for (long time : times) {
+      if (time >= start && time <= end) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private DataControllerImpl makeDatabaseController() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    return new DataControllerImpl(
+        null, // context
+        StubAppAccount.getInstance(),
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME),
+        MoreExecutors.directExecutor(),
+        MoreExecutors.directExecutor(),
+        MoreExecutors.directExecutor(),
+        metadataManager,
+        new MonotonicClock(),
+        new HashMap<>(),
+        new ConnectableSensor.Connector(new HashMap<>()));
+  }
+
+  private Experiment createExperiment() {
+    StoringConsumer<Experiment> cExperiment = new StoringConsumer<>();
+    dataController.createExperiment(cExperiment);
+    return cExperiment.getValue();
+  }
+
+  private Trial addTrial(Experiment experiment, String trialId, long durationMillis) {
+    Trial trial =
+        Trial.fromTrial(
+            GoosciTrial.Trial.newBuilder()
+                .setTrialId(trialId)
+                .addAllSensorLayouts(Arrays.asList(sensorLayouts))
+                .setRecordingRange(Range.newBuilder().setStartMs(0).setEndMs(durationMillis))
+                .build());
+    experiment.addTrial(trial);
+    dataController.updateExperiment(
+        experiment.getExperimentId(), TestConsumers.<Success>expectingSuccess());
+    return trial;
+  }
+
+  /** Stores the readings as a recording would, with or without stats blocks. */
+  private void record(
+      String trialId, List<Long> times, List<Double> values, boolean writeStatsBlocks) {
+    BatchDataController batch = new BatchDataController(dataController);
+    StatsBlockRecorder recorder = new StatsBlockRecorder("sensor");
+    recorder.setTrialId(trialId);
+    for (int i = 0; i < times.size(); i++) {
+      batch.addScalarReading(trialId, "sensor", 0, times.get(i), values.get(i));
+      if (writeStatsBlocks) {
+        recorder.addData(times.get(i), values.get(i), batch);
+      }
+    }
+    recorder.flush(batch);
+    batch.flushScalarReadings();
+  }
+
+  private TrialStats getSavedStats(Experiment experiment, String trialId) {
+    return metadataManager
+        .getExperimentById(experiment.getExperimentId())
+        .getTrial(trialId)
+        .getStatsForSensor("sensor");
+  }
+
+  private static void assertSameStats(TrialStats actual, TrialStats expected) {
+    for (StatType type :
+        Arrays.asList(
+            StatType.MINIMUM,
+            StatType.MAXIMUM,
+            StatType.AVERAGE,
+            StatType.NUM_DATA_POINTS,
+            StatType.TOTAL_DURATION)) {
+      assertEquals(type.name(), expected.getStatValue(type, -1), actual.getStatValue(type, -1), 0);
+    }
+    assertEquals(
+        expected.getStatValue(StatType.STANDARD_DEVIATION, -1),
+        actual.getStatValue(StatType.STANDARD_DEVIATION, -1),
+        1e-9);
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
 }
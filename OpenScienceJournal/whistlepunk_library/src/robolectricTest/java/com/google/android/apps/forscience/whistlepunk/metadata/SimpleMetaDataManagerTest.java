@@ -24,7 +24,9 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import androidx.annotation.NonNull;
 import android.text.TextUtils;
 import com.google.android.apps.forscience.whistlepunk.AppSingleton;
@@ -60,12 +62,15 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciCaption.Cap
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel.Label.ValueType;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTextLabelValue.TextLabelValue;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import io.reactivex.Observable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -100,6 +105,10 @@ public class SimpleMetaDataManagerTest {
   @Before
   public void setUp() {
     metaDataManager = makeMetaDataManager();
+    resetSyncState();
+  }
+
+  private void resetSyncState() {
     LocalSyncManager lsm =
         AppSingleton.getInstance(getContext()).getLocalSyncManager(getAppAccount());
     lsm.setLocalSyncStatus(LocalSyncStatus.getDefaultInstance());
@@ -671,6 +680,149 @@ public class SimpleMetaDataManagerTest {
         50, metaDataManager.getExperimentById(experiment.getExperimentId()).getLabelCount());
   }
 
+  @Test
+  public void testInterruptedMigrationResumesToSameState() throws IOException {
+    Map<String, List<Label>> legacyExperiments = makeLegacyExperiments(500);
+
+    writeLegacyDatabase(legacyExperiments);
+    assertTrue(metaDataManager.migrateExperimentsToFiles(Integer.MAX_VALUE));
+    Map<String, GoosciExperiment.Experiment> expectedProtos = getMigratedProtos();
+    Map<String, ExperimentOverviewPojo> expectedOverviews = getMigratedOverviews();
+    assertEquals(500, expectedOverviews.size());
+
+    // Start again from the same legacy database, and stop partway through a batch.
+    metaDataManager.close();
+    deleteMigratedFiles();
+    writeLegacyDatabase(legacyExperiments);
+    int interruptAfter = SimpleMetaDataManager.MIGRATION_BATCH_SIZE * 10 + 3;
+    assertFalse(metaDataManager.migrateExperimentsToFiles(interruptAfter));
+    assertEquals(
+        500 - SimpleMetaDataManager.MIGRATION_BATCH_SIZE * 10,
+        metaDataManager.getDatabaseExperimentOverviews(true).size());
+
+    // A new manager, as after the app is restarted, carries on from the last committed batch.
+    metaDataManager = makeMetaDataManager();
+    assertTrue(metaDataManager.migrateExperimentsToFiles(Integer.MAX_VALUE));
+    assertEquals(0, metaDataManager.getDatabaseExperimentOverviews(true).size());
+    assertEquals(expectedOverviews, getMigratedOverviews());
+    assertEquals(expectedProtos, getMigratedProtos());
+
+    // The pictures were copied into the experiments.
+    String firstId = legacyExperiments.keySet().iterator().next();
+    String imagePath = expectedOverviews.get(firstId).getImagePath();
+    assertFalse(TextUtils.isEmpty(imagePath));
+    File picture =
+        new File(
+            FileMetadataUtil.getInstance().getExperimentDirectory(getAppAccount(), firstId),
+            imagePath);
+    assertEquals("picture 0", Files.asCharSource(picture, StandardCharsets.UTF_8).read());
+    deleteMigratedFiles();
+  }
+
+  /**
+   * Makes the labels of some legacy experiments by id, in order. Some have pictures that need to
+   * be copied, and some have pictures that have since been deleted.
+   */
+  private Map<String, List<Label>> makeLegacyExperiments(int count) throws IOException {
+    File pictureDir = new File(getContext().getCacheDir(), "legacy_pictures");
+    pictureDir.mkdirs();
+    Map<String, List<Label>> experiments = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      List<Label> labels = new ArrayList<>();
+      if (i % 3 == 0) {
+        File picture = new File(pictureDir, "picture" + i + ".jpg");
+        Files.asCharSink(picture, StandardCharsets.UTF_8).write("picture " + i);
+        labels.add(newPictureLabel(1000, picture.getAbsolutePath()));
+      }
+      if (i % 7 == 0) {
+        labels.add(newPictureLabel(2000, new File(pictureDir, "deleted.jpg").getAbsolutePath()));
+      }
+      TextLabelValue textValue =
+          GoosciTextLabelValue.TextLabelValue.newBuilder().setText("note " + i).build();
+      labels.add(Label.newLabelWithValue(3000, ValueType.TEXT, textValue, null));
+      experiments.put(String.format("legacy%04d", i), labels);
+    }
+    return experiments;
+  }
+
+  private static Label newPictureLabel(long timestamp, String path) {
+    GoosciPictureLabelValue.PictureLabelValue labelValue =
+        GoosciPictureLabelValue.PictureLabelValue.newBuilder().setFilePath(path).build();
+    return Label.newLabelWithValue(timestamp, ValueType.PICTURE, labelValue, null);
+  }
+
+  /** Fills a new database with the given experiments, as a version before files were used. */
+  private void writeLegacyDatabase(Map<String, List<Label>> experiments) {
+    getContext().getDatabasePath("test.main.db").delete();
+    metaDataManager = makeMetaDataManager();
+    resetSyncState();
+    // Creates the database.
+    assertEquals(0, metaDataManager.getDatabaseExperimentOverviews(true).size());
+
+    try (SQLiteDatabase db =
+        SQLiteDatabase.openDatabase(
+            getContext().getDatabasePath("test.main.db").getPath(),
+            null,
+            SQLiteDatabase.OPEN_READWRITE)) {
+      int index = 0;
+      for (String experimentId : experiments.keySet()) {
+        ContentValues values = new ContentValues();
+        values.put(SimpleMetaDataManager.ExperimentColumns.EXPERIMENT_ID, experimentId);
+        values.put(SimpleMetaDataManager.ExperimentColumns.PROJECT_ID, "project");
+        values.put(SimpleMetaDataManager.ExperimentColumns.TIMESTAMP, 10000 + index);
+        values.put(SimpleMetaDataManager.ExperimentColumns.TITLE, "Experiment " + index);
+        values.put(SimpleMetaDataManager.ExperimentColumns.ARCHIVED, index % 5 == 0);
+        values.put(SimpleMetaDataManager.ExperimentColumns.LAST_USED_TIME, 20000 + index);
+        db.insert(SimpleMetaDataManager.Tables.EXPERIMENTS, null, values);
+        index++;
+      }
+    }
+    for (Map.Entry<String, List<Label>> experiment : experiments.entrySet()) {
+      for (Label label : experiment.getValue()) {
+        LabelValue labelValue =
+            label.getType() == ValueType.PICTURE
+                ? PictureLabelValue.fromPicture(label.getPictureLabelValue().getFilePath(), "")
+                : com.google.android.apps.forscience.whistlepunk.filemetadata.TextLabelValue
+                    .fromText(label.getTextLabelValue().getText());
+        metaDataManager.addDatabaseLabel(
+            experiment.getKey(), RecorderController.NOT_RECORDING_RUN_ID, label, labelValue);
+      }
+    }
+  }
+
+  private Map<String, ExperimentOverviewPojo> getMigratedOverviews() {
+    Map<String, ExperimentOverviewPojo> overviews = new HashMap<>();
+    for (ExperimentOverviewPojo overview : metaDataManager.getExperimentOverviews(true)) {
+      overviews.put(overview.getExperimentId(), overview);
+    }
+    return overviews;
+  }
+
+  private Map<String, GoosciExperiment.Experiment> getMigratedProtos() {
+    Map<String, GoosciExperiment.Experiment> protos = new HashMap<>();
+    for (ExperimentOverviewPojo overview : metaDataManager.getExperimentOverviews(true)) {
+      String experimentId = overview.getExperimentId();
+      protos.put(
+          experimentId, metaDataManager.getExperimentById(experimentId).getExperimentProto());
+    }
+    return protos;
+  }
+
+  private void deleteMigratedFiles() {
+    deleteRecursive(FileMetadataUtil.getInstance().getExperimentsRootDirectory(getAppAccount()));
+    FileMetadataUtil.getInstance().getUserMetadataFile(getAppAccount()).delete();
+  }
+
+  private static void deleteRecursive(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursive(child);
+      }
+    }
+    file.delete();
+  }
+
   private static List<String> getIds(List<SensorLayoutPojo> layouts) {
     List<String> ids = new ArrayList<>();
     for (SensorLayoutPojo layout : layouts) {
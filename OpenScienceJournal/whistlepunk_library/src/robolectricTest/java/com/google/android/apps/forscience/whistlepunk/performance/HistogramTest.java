@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.performance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class HistogramTest {
+  // Each bucket spans 1/32 of a power of two.
+  private static final double MAX_RELATIVE_ERROR = 1.0 / Histogram.SUB_BUCKET_COUNT;
+
+  @Test
+  public void testEmpty() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMin());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(0.0, histogram.getMean(), 0.0);
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 20; i++) {
+      histogram.record(i);
+    }
+    assertEquals(20, histogram.getCount());
+    assertEquals(1, histogram.getMin());
+    assertEquals(20, histogram.getMax());
+    assertEquals(10, histogram.getValueAtPercentile(50));
+    assertEquals(18, histogram.getValueAtPercentile(90));
+    assertEquals(10.5, histogram.getMean(), 0.0);
+  }
+
+  @Test
+  public void testBucketsAreContiguous() {
+    for (int i = 1; i < 40 * Histogram.SUB_BUCKET_COUNT; i++) {
+      long lowerBound = Histogram.bucketLowerBound(i);
+      assertEquals(i, Histogram.bucketIndex(lowerBound));
+      assertEquals(i - 1, Histogram.bucketIndex(lowerBound - 1));
+    }
+    assertEquals(
+        Histogram.bucketIndex(Long.MAX_VALUE),
+        Histogram.bucketIndex(Histogram.bucketLowerBound(Histogram.bucketIndex(Long.MAX_VALUE))));
+  }
+
+  @Test
+  public void testPercentileAccuracy() {
+    Histogram histogram = new Histogram();
+    Random random = new Random(42);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      // Latencies from 1 microsecond to about 1 second, spread over many powers of two.
+      values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    for (double percentile : new double[] {1, 10, 50, 90, 99, 99.9}) {
+      long expected = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+      long actual = histogram.getValueAtPercentile(percentile);
+      double error = Math.abs(actual - expected) / (double) expected;
+      assertTrue(
+          "p" + percentile + ": expected " + expected + " but was " + actual,
+          error <= MAX_RELATIVE_ERROR);
+    }
+    assertEquals(values[0], histogram.getMin());
+    assertEquals(values[values.length - 1], histogram.getMax());
+    assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testNegativeValuesRecordedAsZero() {
+    Histogram histogram = new Histogram();
+    histogram.record(-5);
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void testRecordWithCount() {
+    Histogram once = new Histogram();
+    Histogram repeated = new Histogram();
+    once.record(1000, 5);
+    once.record(10, 0);
+    for (int i = 0; i < 5; i++) {
+      repeated.record(1000);
+    }
+    assertEquals(repeated.getCount(), once.getCount());
+    assertEquals(repeated.getMin(), once.getMin());
+    assertEquals(repeated.getMax(), once.getMax());
+    assertEquals(repeated.getMean(), once.getMean(), 0.0);
+    assertEquals(repeated.getValueAtPercentile(50), once.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testReset() {
+    Histogram histogram = new Histogram();
+    histogram.record(1000);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    histogram.record(7);
+    assertEquals(7, histogram.getMin());
+    assertEquals(7, histogram.getMax());
+    assertEquals(7, histogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    final Histogram histogram = new Histogram();
+    final int threadCount = 8;
+    final int valuesPerThread = 50000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t;
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int i = 0; i < valuesPerThread; i++) {
+                  histogram.record(offset * valuesPerThread + i + 1);
+                }
+              });
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long total = (long) threadCount * valuesPerThread;
+    assertEquals(total, histogram.getCount());
+    assertEquals(1, histogram.getMin());
+    assertEquals(total, histogram.getMax());
+    assertEquals((total + 1) / 2.0, histogram.getMean(), 0.0);
+    long median = histogram.getValueAtPercentile(50);
+    assertTrue("median was " + median, Math.abs(median - total / 2) <= total / 2 / 32);
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.performance;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.ManualSensor;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.RecordingSensorObserver;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.SensorRecorder;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SensorDatabaseImpl;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class PerfMetricsTest {
+  private static final String TEST_DATABASE_NAME = "perf.db";
+  // Generous upper bound for any single operation in these tests; only checks for garbage values.
+  private static final long SANE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private final PerfMetrics metrics = PerfMetrics.getInstance();
+
+  @Before
+  public void setUp() {
+    metrics.reset();
+  }
+
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
+  @Test
+  public void testRecordingSensorRecordsArrivalAndCommit() {
+    InMemorySensorDatabase db = new InMemorySensorDatabase();
+    RecordingDataController rdc = db.makeSimpleRecordingController(new MemoryMetadataManager());
+    ManualSensor sensor = new ManualSensor("test", Long.MAX_VALUE, 2);
+    SensorRecorder recorder = sensor.createRecorder(null, rdc, new RecordingSensorObserver());
+
+    recorder.startObserving();
+    recorder.startRecording("runId");
+    for (int i = 1; i <= 10; i++) {
+      sensor.pushValue(i, i);
+    }
+    recorder.stopRecording(null);
+    recorder.stopObserving();
+
+    assertThat(metrics.getCount(PerfMetrics.SENSOR_DATA_ARRIVALS)).isEqualTo(10);
+    assertSane(metrics.getHistogram(PerfMetrics.SENSOR_ADD_DATA), 10);
+
+    // Every reading written to any tier was timed from enqueue to commit.
+    int written = 0;
+    for (int tier = 0; tier < 10; tier++) {
+      written += db.getReadings(tier).size();
+    }
+    assertThat(written).isAtLeast(10);
+    assertSane(metrics.getHistogram(PerfMetrics.SCALAR_READING_COMMIT), written);
+    assertThat(metrics.getCount(PerfMetrics.SCALAR_READING_FAILURES)).isEqualTo(0);
+
+    // Readings of the bottom tier are written one at a time, and those of the tiers above it in
+    // batches, so there are fewer executions than readings. Direct executors never queue anything.
+    int bottomTier = db.getReadings(0).size();
+    assertThat(written).isGreaterThan(bottomTier);
+    Histogram depth = metrics.getHistogram("sensorDataThread" + PerfMetrics.QUEUE_DEPTH_SUFFIX);
+    assertThat(depth.getCount()).isAtLeast(bottomTier + 1L);
+    assertThat(depth.getCount()).isLessThan((long) written);
+    assertThat(depth.getMax()).isEqualTo(0);
+  }
+
+  @Test
+  public void testSensorDatabaseRecordsBatches() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    db.addScalarReadings(
+        Lists.newArrayList(
+            new BatchInsertScalarReading("id", "tag", 0, 1, 1.0),
+            new BatchInsertScalarReading("id", "tag", 0, 2, 2.0),
+            new BatchInsertScalarReading("id", "tag", 0, 3, 3.0)));
+    db.addScalarReadings(
+        Lists.newArrayList(new BatchInsertScalarReading("id", "tag", 0, 4, 4.0)));
+
+    assertSane(metrics.getHistogram(PerfMetrics.DATABASE_BATCH_INSERT), 2);
+    Histogram sizes = metrics.getHistogram(PerfMetrics.DATABASE_BATCH_SIZE);
+    assertThat(sizes.getMin()).isEqualTo(1);
+    assertThat(sizes.getMax()).isEqualTo(3);
+  }
+
+  @Test
+  public void testTrackerTimers() {
+    PerfMetrics local = new PerfMetrics();
+    HistogramPerfTrackerProvider tracker = new HistogramPerfTrackerProvider(local);
+
+    tracker.stopTimer(tracker.startTimer(), "local");
+    tracker.startGlobalTimer("global");
+    tracker.stopGlobalTimer("global", "renamed");
+    // Stopping a timer that was never started records nothing.
+    tracker.stopGlobalTimer("neverStarted");
+    tracker.stopTimer(null, "nullToken");
+
+    assertSane(local.getHistogram("timer.localNanos"), 1);
+    assertSane(local.getHistogram("timer.renamedNanos"), 1);
+    assertThat(local.getHistogram("timer.globalNanos").getCount()).isEqualTo(0);
+    assertThat(local.getHistogram("timer.neverStartedNanos").getCount()).isEqualTo(0);
+    assertThat(local.getHistogram("timer.nullTokenNanos").getCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void testDumpToFile() throws IOException {
+    PerfMetrics local = new PerfMetrics();
+    local.record("queue.depth", 3);
+    local.record("write" + PerfMetrics.NANOS_SUFFIX, TimeUnit.MILLISECONDS.toNanos(2));
+    local.increment("arrivals");
+    HistogramPerfTrackerProvider tracker = new HistogramPerfTrackerProvider(local);
+
+    assertThat(tracker.startPerfTrackerEventDebugActivity(getContext())).isTrue();
+
+    File file = new File(getContext().getFilesDir(), HistogramPerfTrackerProvider.DUMP_FILE);
+    String dump = Files.asCharSource(file, StandardCharsets.UTF_8).read();
+    assertThat(dump).isEqualTo(local.dump());
+    assertThat(dump).contains("arrivals: 1\n");
+    assertThat(dump).contains("queue.depth: count=1 mean=3.00");
+    assertThat(dump).contains("writeNanos (ms): count=1 mean=2.00");
+  }
+
+  private static void assertSane(Histogram histogram, long expectedCount) {
+    assertThat(histogram.getCount()).isEqualTo(expectedCount);
+    assertThat(histogram.getMin()).isAtLeast(0L);
+    assertThat(histogram.getMax()).isLessThan(SANE_NANOS);
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
@@ -122,6 +122,61 @@ public class ZoomPresenterTest {
     assertEquals(0.006, ZoomPresenter.computeIdealTier(20, stats, 20), 0.01);
   }
 
+  @Test
+  public void testStoredTierSizesMatchFixedRatio() {
+    TrialStats stats = new TrialStats("sensorId");
+    stats.putStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 99);
+    stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, 100);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_TIER_COUNT, 3);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, 5);
+    double[] expected = new double[4];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = ZoomPresenter.computeIdealTier(20, stats, 20 + 30 * i);
+    }
+
+    stats.setZoomTierPointCounts(new long[] {100, 20, 4});
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], ZoomPresenter.computeIdealTier(20, stats, 20 + 30 * i), 1e-9);
+    }
+  }
+
+  @Test
+  public void testStoredTierSizesOfFlatData() {
+    TrialStats stats = new TrialStats("sensorId");
+    stats.putStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 100000);
+    stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, 100000);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_TIER_COUNT, 3);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, 20);
+
+    // A fixed ratio would put tier 1 at 5000 data points, too many to show.
+    assertEquals(2, ZoomPresenter.computeTier(0, 500, stats, 100000));
+
+    // Flat data was reduced much further, so tier 1 has few enough.
+    stats.setZoomTierPointCounts(new long[] {100000, 500, 400});
+    assertEquals(1, ZoomPresenter.computeTier(0, 500, stats, 100000));
+  }
+
+  @Test
+  public void testNeverFinerThanFinestTier() {
+    TrialStats stats = new TrialStats("sensorId");
+    stats.putStat(GoosciTrial.SensorStat.StatType.TOTAL_DURATION, 99);
+    stats.putStat(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, 100);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_TIER_COUNT, 5);
+    stats.putStat(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_ZOOM_LEVEL_BETWEEN_TIERS, 5);
+
+    // Zoomed far in, tier 0 would be ideal, but the run has been archived down to tier 1.
+    ZoomPresenter zp = new ZoomPresenter(200);
+    zp.setRunStats(stats);
+    zp.setFinestTier(1);
+    assertEquals(1, zp.updateTier(5));
+    // Coarser tiers are still chosen when zoomed out.
+    assertEquals(2, ZoomPresenter.computeTier(-1, 4, stats, 100, 1));
+
+    // Without tier stats too.
+    zp.setRunStats(new TrialStats("sensorId"));
+    assertEquals(1, zp.updateTier(100));
+  }
+
   private SensorRecorder createRecorder(ManualSensor sensor) {
     return sensor.createRecorder(
         RuntimeEnvironment.application.getApplicationContext(),
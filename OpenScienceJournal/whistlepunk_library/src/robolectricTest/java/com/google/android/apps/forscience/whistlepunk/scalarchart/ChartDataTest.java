@@ -22,6 +22,7 @@ import static org.junit.Assert.assertTrue;
 
 import com.google.android.apps.forscience.whistlepunk.filemetadata.Label;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciLabel;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
 import java.util.ArrayList;
 import java.util.List;
 import org.junit.Test;
@@ -53,6 +54,32 @@ public class ChartDataTest {
     assertTrue(startRange <= result && result <= endRange);
   }
 
+  @Test
+  public void testAddHeldPoints() {
+    ChartData chartData = new ChartData();
+    chartData.addPoint(new ChartData.DataPoint(0, 5));
+    chartData.addPoint(new ChartData.DataPoint(300, 7));
+    chartData.addPoint(new ChartData.DataPoint(350, 8));
+    SeriesHold hold = new SeriesHold("trial", "tag", 100, 1000);
+
+    // Only the data loaded so far is held.
+    chartData.addHeldPoints(hold, 600);
+    List<ChartData.DataPoint> expected = new ArrayList<>();
+    expected.add(new ChartData.DataPoint(0, 5));
+    expected.add(new ChartData.DataPoint(200, 5));
+    expected.add(new ChartData.DataPoint(300, 7));
+    expected.add(new ChartData.DataPoint(350, 8));
+    expected.add(new ChartData.DataPoint(600, 8));
+    assertDataEquals(expected, chartData.getPoints());
+
+    // Adding them again only extends the last value.
+    chartData.addHeldPoints(hold, Long.MAX_VALUE);
+    expected.add(new ChartData.DataPoint(1000, 8));
+    assertDataEquals(expected, chartData.getPoints());
+    chartData.addHeldPoints(hold, Long.MAX_VALUE);
+    assertDataEquals(expected, chartData.getPoints());
+  }
+
   @Test
   public void testExactBinarySearch_sizeOne() {
     ChartData chartData = new ChartData();
@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.text.ParseException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DerivedExpressionTest {
+  @Test
+  public void testPrecedence() throws ParseException {
+    assertThat(evaluate("1 + 2 * 3")).isEqualTo(7.0);
+    assertThat(evaluate("(1 + 2) * 3")).isEqualTo(9.0);
+    assertThat(evaluate("10 - 4 - 3")).isEqualTo(3.0);
+    assertThat(evaluate("12 / 3 / 2")).isEqualTo(2.0);
+    assertThat(evaluate("-2^2")).isEqualTo(-4.0);
+    assertThat(evaluate("2^3^2")).isEqualTo(512.0);
+    assertThat(evaluate("2^-1")).isEqualTo(0.5);
+    assertThat(evaluate("3 - -1")).isEqualTo(4.0);
+    assertThat(evaluate("1.5e2 + .5")).isEqualTo(150.5);
+  }
+
+  @Test
+  public void testFunctions() throws ParseException {
+    assertThat(evaluate("mag(3, 4)")).isEqualTo(5.0);
+    assertThat(evaluate("mag(1, 2, 2)")).isEqualTo(3.0);
+    assertThat(evaluate("min(3, 4) + max(3, 4)")).isEqualTo(7.0);
+    assertThat(evaluate("abs(-2) * sqrt(16)")).isEqualTo(8.0);
+    assertThat(evaluate("exp(0) + log(1) + sin(0) + cos(0) + tan(0)")).isEqualTo(2.0);
+  }
+
+  @Test
+  public void testInputs() throws ParseException {
+    DerivedExpression expression =
+        DerivedExpression.parse("sqrt(AccX^2 + AccY^2) / `ble:12:34` + AccX");
+    assertThat(expression.getInputIds()).containsExactly("AccX", "AccY", "ble:12:34").inOrder();
+    assertThat(expression.newEvaluator().evaluate(0, new double[] {3, 4, 5})).isEqualTo(4.0);
+  }
+
+  @Test
+  public void testMovingAverage() throws ParseException {
+    DerivedExpression.Evaluator evaluator = DerivedExpression.parse("avg(x, 3)").newEvaluator();
+    assertThat(evaluator.evaluate(0, new double[] {3})).isEqualTo(3.0);
+    assertThat(evaluator.evaluate(1, new double[] {6})).isEqualTo(4.5);
+    assertThat(evaluator.evaluate(2, new double[] {9})).isEqualTo(6.0);
+    assertThat(evaluator.evaluate(3, new double[] {12})).isEqualTo(9.0);
+    assertThat(evaluator.evaluate(4, new double[] {0})).isEqualTo(7.0);
+
+    evaluator.reset();
+    assertThat(evaluator.evaluate(5, new double[] {1})).isEqualTo(1.0);
+  }
+
+  @Test
+  public void testDerivative() throws ParseException {
+    DerivedExpression.Evaluator evaluator = DerivedExpression.parse("deriv(2 * x)").newEvaluator();
+    assertThat(evaluator.evaluate(1000, new double[] {1})).isEqualTo(0.0);
+    assertThat(evaluator.evaluate(1500, new double[] {2})).isEqualTo(4.0);
+    // A repeated time keeps the last rate rather than dividing by zero.
+    assertThat(evaluator.evaluate(1500, new double[] {5})).isEqualTo(4.0);
+    assertThat(evaluator.evaluate(2500, new double[] {5})).isEqualTo(0.0);
+  }
+
+  @Test
+  public void testEvaluatorsHaveTheirOwnState() throws ParseException {
+    DerivedExpression expression = DerivedExpression.parse("avg(x, 2)");
+    DerivedExpression.Evaluator first = expression.newEvaluator();
+    DerivedExpression.Evaluator second = expression.newEvaluator();
+    first.evaluate(0, new double[] {10});
+    assertThat(second.evaluate(0, new double[] {2})).isEqualTo(2.0);
+    assertThat(first.evaluate(1, new double[] {0})).isEqualTo(5.0);
+  }
+
+  @Test
+  public void testErrors() {
+    assertError("", 0);
+    assertError("1 +", 3);
+    assertError("(1 + 2", 6);
+    assertError("1 2", 2);
+    assertError("foo(1)", 0);
+    assertError("avg(x, 0)", 7);
+    assertError("avg(x, 1.5)", 7);
+    assertError("min(1)", 5);
+    assertError("`AccX", 0);
+    assertError("AccX # 2", 5);
+  }
+
+  private static double evaluate(String text) throws ParseException {
+    return DerivedExpression.parse(text).newEvaluator().evaluate(0, new double[0]);
+  }
+
+  private static void assertError(String text, int offset) {
+    try {
+      DerivedExpression.parse(text);
+      fail("Parsed " + text);
+    } catch (ParseException e) {
+      assertThat(e.getErrorOffset()).isEqualTo(offset);
+    }
+  }
+}
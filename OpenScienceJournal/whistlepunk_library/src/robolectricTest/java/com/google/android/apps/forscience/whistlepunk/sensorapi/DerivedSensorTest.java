@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import com.google.android.apps.forscience.whistlepunk.RecordingStatusListener;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
+import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DerivedSensorTest {
+  // Each uses the three axes, first appearing in the same order.
+  private static final String[] EXPRESSIONS = {
+    "mag(AccX, AccY, AccZ)",
+    "sqrt(AccX^2 + AccY^2 + AccZ^2)",
+    "avg(mag(AccX, AccY, AccZ), 50)",
+    "deriv(AccX + AccY + AccZ)",
+    "deriv(avg(AccX, 10)) + AccY * AccZ",
+    "AccX - AccY - AccZ",
+    "max(AccX, AccY) * 9.81 + AccZ",
+    "abs(AccX) + min(AccY, AccZ)",
+    "AccX * AccY + AccZ / 2",
+    "avg(AccX, 1000) - AccY + AccZ"
+  };
+
+  private final InMemorySensorDatabase db = new InMemorySensorDatabase();
+
+  @Test
+  public void testRecordsDerivedValues() throws ParseException {
+    ManualSensor x = new ManualSensor("AccX", 100, 100);
+    ManualSensor y = new ManualSensor("AccY", 100, 100);
+    DerivedSensor sensor =
+        new DerivedSensor(
+            "magnitude",
+            DerivedExpression.parse("mag(AccX, AccY)"),
+            Lists.newArrayList(x, y),
+            DerivedSensor.Alignment.INTERPOLATE,
+            MoreExecutors.directExecutor());
+    RecordingSensorObserver observer = new RecordingSensorObserver();
+    RecordingStatusListener listener = new RecordingStatusListener();
+    SensorRecorder recorder =
+        sensor.createRecorder(
+            null,
+            StubAppAccount.getInstance(),
+            observer,
+            listener,
+            new MemorySensorEnvironment(db.makeSimpleRecordingController(), null, null, null));
+
+    recorder.startObserving();
+    assertThat(listener.mostRecentStatuses)
+        .containsEntry("magnitude", SensorStatusListener.STATUS_CONNECTED);
+    x.pushValue(0, 3);
+    y.pushValue(0, 4);
+    recorder.startRecording("runId");
+    x.pushValue(10, 6);
+    // AccY is interpolated to 8 at time 10.
+    y.pushValue(20, 12);
+    x.pushValue(20, 5);
+    recorder.stopRecording(null);
+    recorder.stopObserving();
+    assertThat(listener.mostRecentStatuses)
+        .containsEntry("magnitude", SensorStatusListener.STATUS_DISCONNECTED);
+    listener.assertNoErrors();
+
+    assertThat(observer.getReadings())
+        .containsExactly(
+            new ScalarReading(0, 5), new ScalarReading(10, 10), new ScalarReading(20, 13))
+        .inOrder();
+    assertThat(db.getReadings(0))
+        .containsExactly(
+            new InMemorySensorDatabase.Reading("runId", "magnitude", 10, 10),
+            new InMemorySensorDatabase.Reading("runId", "magnitude", 20, 13))
+        .inOrder();
+  }
+
+  @Test
+  public void testCostPerSampleAtOneKilohertz() throws ParseException {
+    // Ten seconds of three sensors at about 1 kHz, arriving in a jittered order.
+    int samplesPerInput = 10000;
+    Random random = new Random(1);
+    long[][] times = new long[3][samplesPerInput];
+    for (long[] inputTimes : times) {
+      for (int i = 1; i < samplesPerInput; i++) {
+        inputTimes[i] = inputTimes[i - 1] + 1 + (random.nextInt(10) == 0 ? 1 : 0);
+      }
+    }
+    // The samples taken at about the same time arrive in any order.
+    int[] arrivalInputs = new int[3 * samplesPerInput];
+    long[] arrivalTimes = new long[arrivalInputs.length];
+    List<Integer> order = Lists.newArrayList(0, 1, 2);
+    for (int i = 0; i < samplesPerInput; i++) {
+      Collections.shuffle(order, random);
+      for (int j = 0; j < 3; j++) {
+        arrivalInputs[3 * i + j] = order.get(j);
+        arrivalTimes[3 * i + j] = times[order.get(j)][i];
+      }
+    }
+
+    List<SampleAligner> channels = new ArrayList<>();
+    final int[] outputs = new int[1];
+    for (String text : EXPRESSIONS) {
+      DerivedExpression expression = DerivedExpression.parse(text);
+      assertThat(expression.getInputIds()).containsExactly("AccX", "AccY", "AccZ").inOrder();
+      DerivedExpression.Evaluator evaluator = expression.newEvaluator();
+      channels.add(
+          new SampleAligner(
+              3,
+              true,
+              DerivedSensor.MAX_WAIT_MILLIS,
+              (timestampMillis, values) -> {
+                if (!Double.isNaN(evaluator.evaluate(timestampMillis, values))) {
+                  outputs[0]++;
+                }
+              }));
+    }
+    // Once to warm up, and once to measure.
+    feed(channels, arrivalInputs, arrivalTimes);
+    outputs[0] = 0;
+    long startBytes = getAllocatedBytes();
+    long startNanos = System.nanoTime();
+    feed(channels, arrivalInputs, arrivalTimes);
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = getAllocatedBytes() - startBytes;
+
+    assertThat(outputs[0]).isAtLeast(EXPRESSIONS.length * samplesPerInput * 9 / 10);
+    String report =
+        String.format(
+            "%d derived samples in %d ns (%d ns each), %d bytes allocated",
+            outputs[0], nanos, nanos / outputs[0], bytes);
+    // At 1 kHz, ten channels have 100 microseconds per sample between them.
+    assertWithMessage(report).that(nanos / outputs[0]).isLessThan(10000L);
+    assertWithMessage(report).that(bytes).isLessThan((long) outputs[0]);
+  }
+
+  /** Passes each sample to each channel, restarting them first. */
+  private static void feed(List<SampleAligner> channels, int[] inputs, long[] times) {
+    for (SampleAligner channel : channels) {
+      channel.clear();
+    }
+    for (int i = 0; i < inputs.length; i++) {
+      for (int c = 0; c < channels.size(); c++) {
+        channels.get(c).addSample(inputs[i], times[i], Math.sin(times[i] * (inputs[i] + 1)));
+      }
+    }
+  }
+
+  /** Returns the bytes allocated so far by this thread, or 0 where the JVM can't tell. */
+  private static long getAllocatedBytes() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.isThreadAllocatedMemorySupported()
+        ? bean.getThreadAllocatedBytes(Thread.currentThread().getId())
+        : 0;
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeviceClockAlignerTest {
+  private static final long PERIOD_MILLIS = 10;
+  private static final long MIN_DELAY_MILLIS = 5;
+  private static final long HOST_START = 5_000_000;
+  private static final long DEVICE_START = 123_456;
+
+  private long maxError;
+  private long maxArrivalError;
+
+  @Before
+  public void setUp() {
+    PerfMetrics.getInstance().reset();
+  }
+
+  @Test
+  public void testFastDeviceClock() {
+    checkStream(-300e-6);
+  }
+
+  @Test
+  public void testSlowDeviceClock() {
+    checkStream(300e-6);
+  }
+
+  @Test
+  public void testFirstSampleTakesArrivalTime() {
+    DeviceClockAligner aligner = new DeviceClockAligner();
+    assertThat(aligner.align(0, 2500)).isEqualTo(2500);
+    assertThat(aligner.align(10, 2515)).isEqualTo(2510);
+    // Arrived earlier than the estimate, so the estimate moves.
+    assertThat(aligner.align(20, 2517)).isEqualTo(2517);
+  }
+
+  @Test
+  public void testDeviceRestartStartsAgain() {
+    DeviceClockAligner aligner = new DeviceClockAligner();
+    for (long t = 0; t < 30_000; t += PERIOD_MILLIS) {
+      aligner.align(1_000_000 + t, 1000 + t);
+    }
+    // The device restarts, counting from 0 again.
+    assertThat(aligner.align(0, 40_000)).isEqualTo(40_000);
+    assertThat(aligner.align(10, 40_012)).isEqualTo(40_010);
+  }
+
+  @Test
+  public void testPerSampleCost() {
+    DeviceClockAligner aligner = new DeviceClockAligner();
+    Random random = new Random(7);
+    int samples = 200_000;
+    long start = System.nanoTime();
+    for (int i = 0; i < samples; i++) {
+      long deviceTime = i * PERIOD_MILLIS;
+      aligner.align(deviceTime, deviceTime + MIN_DELAY_MILLIS + random.nextInt(10));
+    }
+    long nanosPerSample = (System.nanoTime() - start) / samples;
+    // A generous bound, which only something far slower than constant time would miss.
+    assertThat(nanosPerSample).isLessThan(20_000L);
+    assertThat(aligner.getResiduals().getCount()).isEqualTo(samples);
+  }
+
+  /**
+   * Sends a minute of samples every 10ms from a device whose clock drifts by {@code drift}, with
+   * random delays on the way, the first 300ms of every 2s held back and delivered at once, and a
+   * 5s dropout, and checks the timestamps the aligner gives them.
+   */
+  private void checkStream(double drift) {
+    DeviceClockAligner aligner = new DeviceClockAligner();
+    Random random = new Random(42);
+    maxError = 0;
+    maxArrivalError = 0;
+    long lastArrival = 0;
+    long lastAligned = Long.MIN_VALUE;
+    for (long t = 0; t < 60_000; t += PERIOD_MILLIS) {
+      if (t >= 20_000 && t < 25_000) {
+        continue;
+      }
+      double hostTime = HOST_START + t * (1 + drift);
+      double arrival = hostTime + MIN_DELAY_MILLIS + random.nextDouble() * 10;
+      if (t % 2000 < 300) {
+        double burstEnd = HOST_START + (t / 2000 * 2000 + 300) * (1 + drift);
+        arrival = Math.max(arrival, burstEnd + MIN_DELAY_MILLIS);
+      }
+      // Samples arrive in the order they were sent.
+      long arrivalTime = Math.max((long) Math.floor(arrival), lastArrival);
+      lastArrival = arrivalTime;
+
+      long aligned = aligner.align(DEVICE_START + t, arrivalTime);
+      assertThat(aligned).isGreaterThan(lastAligned);
+      assertThat(aligned).isAtMost(arrivalTime);
+      lastAligned = aligned;
+      if (t >= 5000) {
+        // The smallest delay can't be seen from this end, so counts as part of the true time.
+        double expected = hostTime + MIN_DELAY_MILLIS;
+        maxError = Math.max(maxError, Math.round(Math.abs(aligned - expected)));
+        maxArrivalError = Math.max(maxArrivalError, Math.round(Math.abs(arrivalTime - expected)));
+      }
+    }
+
+    assertThat(maxArrivalError).isAtLeast(250L);
+    assertThat(maxError).isAtMost(4L);
+    assertThat(aligner.getDrift()).isWithin(100e-6).of(drift);
+    assertThat(aligner.getResiduals().getCount()).isEqualTo(5500);
+    assertThat(
+            PerfMetrics.getInstance()
+                .getHistogram(PerfMetrics.CLOCK_ALIGNMENT_RESIDUAL_MILLIS)
+                .getCount())
+        .isEqualTo(5500);
+  }
+}
@@ -18,6 +18,9 @@ package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -154,4 +157,129 @@ public class FrequencyBufferTest {
     buffer.changeWindow(200);
     // Just don't crash
   }
+
+  @Test
+  public void testOneKilohertzInput() {
+    // 10 seconds of a 7 Hz signal sampled at 1 kHz.
+    final FrequencyBuffer buffer = new FrequencyBuffer(2000, 1000.0, 0.0);
+    for (long t = 0; t < 10000; t++) {
+      buffer.filterValue(t, Math.sin(2 * Math.PI * 7 * t / 1000.0));
+    }
+    assertEquals(7.0, buffer.getLatestFrequency(), 0.1);
+  }
+
+  @Test
+  public void testTenKilohertzInput() {
+    // Ten readings per millisecond, as delivered by a batched high rate sensor.
+    final FrequencyBuffer buffer = new FrequencyBuffer(1000, 1000.0, 0.0);
+    for (long i = 0; i < 50000; i++) {
+      long t = i / 10;
+      buffer.filterValue(t, Math.sin(2 * Math.PI * 50 * i / 10000.0));
+    }
+    assertEquals(50.0, buffer.getLatestFrequency(), 1.0);
+  }
+
+  @Test
+  public void testMatchesListImplementation() {
+    Random random = new Random(1234);
+    for (int trace = 0; trace < 20; trace++) {
+      long window = 50 + random.nextInt(2000);
+      double filter = random.nextDouble() * 0.2;
+      double frequency = 0.5 + random.nextDouble() * 40;
+      FrequencyBuffer buffer = new FrequencyBuffer(window, 1000.0, filter);
+      ListFrequencyBuffer expected = new ListFrequencyBuffer(window, 1000.0, filter);
+
+      long t = 0;
+      for (int i = 0; i < 5000; i++) {
+        // Jittered sample times, with occasional gaps.
+        t += random.nextInt(10) == 0 ? random.nextInt(500) : random.nextInt(20);
+        double value =
+            Math.sin(2 * Math.PI * frequency * t / 1000.0) + random.nextGaussian() * 0.1;
+        assertEquals(
+            "trace " + trace + " reading " + i,
+            expected.filterValue(t, value),
+            buffer.filterValue(t, value),
+            1e-9);
+        if (i % 1000 == 999) {
+          window = 50 + random.nextInt(2000);
+          buffer.changeWindow(window);
+          expected.changeWindow(window);
+          assertEquals(expected.getLatestFrequency(), buffer.getLatestFrequency(), 1e-9);
+        }
+      }
+    }
+  }
+
+  /** The original LinkedList-based implementation, to check the ring buffer against. */
+  private static class ListFrequencyBuffer {
+    private final List<Long> timestamps = new LinkedList<>();
+    private final List<Double> values = new LinkedList<>();
+    private long window;
+    private final double denominatorInMillis;
+    private final double filter;
+
+    ListFrequencyBuffer(long windowMillis, double denominatorInMillis, double filter) {
+      window = windowMillis;
+      this.denominatorInMillis = denominatorInMillis;
+      this.filter = filter;
+    }
+
+    void changeWindow(long newWindowMillis) {
+      window = newWindowMillis;
+      if (!timestamps.isEmpty()) {
+        prune(timestamps.get(timestamps.size() - 1));
+      }
+    }
+
+    double filterValue(long timestamp, double value) {
+      timestamps.add(timestamp);
+      values.add(value);
+      prune(timestamp);
+      return getLatestFrequency();
+    }
+
+    private void prune(long timestamp) {
+      long oldestRemaining = timestamp - window;
+      while (timestamps.get(0) < oldestRemaining) {
+        timestamps.remove(0);
+        values.remove(0);
+      }
+    }
+
+    double getLatestFrequency() {
+      if (values.size() < 2) {
+        return 0.0;
+      }
+      double total = 0;
+      for (double value : values) {
+        total += value;
+      }
+      double average = total / values.size() + filter;
+      int crossings = 0;
+      long firstCrossingTime = -1;
+      long lastCrossingTime = -1;
+      boolean higherThanAverage = values.get(0) > average;
+      for (int i = 1; i < values.size(); i++) {
+        boolean thisReadingHigher = values.get(i) > average;
+        if (higherThanAverage != thisReadingHigher) {
+          higherThanAverage = thisReadingHigher;
+          crossings++;
+          if (firstCrossingTime == -1) {
+            firstCrossingTime = timestamps.get(i);
+          } else {
+            lastCrossingTime = timestamps.get(i);
+          }
+        }
+      }
+      crossings--;
+      if (firstCrossingTime == -1 || lastCrossingTime == -1) {
+        return 0.0;
+      }
+      long adjustedWindowMillis = lastCrossingTime - firstCrossingTime;
+      if (adjustedWindowMillis < window / 4) {
+        return 0.0;
+      }
+      return (crossings / 2.0f) / (adjustedWindowMillis / denominatorInMillis);
+    }
+  }
 }
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SampleAlignerTest {
+  private static final long MAX_WAIT = 250;
+
+  private final List<Long> alignedTimes = new ArrayList<>();
+  private final List<double[]> alignedValues = new ArrayList<>();
+
+  @Test
+  public void testInterpolatesJitteredInputs() {
+    // Straight lines, so that interpolation between any two samples is exact.
+    double[] slopes = {0.5, -2, 3};
+    double[] offsets = {1, 100, -7};
+    List<long[]> samples = jitteredSamples(new Random(1), slopes.length, 2000);
+    SampleAligner aligner = newAligner(slopes.length, true);
+    deliverWithDelays(new Random(2), aligner, samples, slopes, offsets);
+
+    long lastCommonTime = Long.MAX_VALUE;
+    for (int input = 1; input < slopes.length; input++) {
+      long[] times = samples.get(input);
+      lastCommonTime = Math.min(lastCommonTime, times[times.length - 1]);
+    }
+    List<Long> expectedTimes = new ArrayList<>();
+    for (long time : samples.get(0)) {
+      if (time <= lastCommonTime) {
+        expectedTimes.add(time);
+      }
+    }
+    // Every sample of the first input is passed on once, in order, as soon as it can be. Those
+    // after the end of another input are passed on later, once they have waited long enough.
+    assertThat(alignedTimes.subList(0, expectedTimes.size())).isEqualTo(expectedTimes);
+    for (int i = 0; i < expectedTimes.size(); i++) {
+      for (int input = 0; input < slopes.length; input++) {
+        assertThat(alignedValues.get(i)[input])
+            .isWithin(1e-9)
+            .of(slopes[input] * alignedTimes.get(i) + offsets[input]);
+      }
+    }
+  }
+
+  @Test
+  public void testNearestOfJitteredInputs() {
+    double[] slopes = {1, 1};
+    double[] offsets = {0, 0};
+    List<long[]> samples = jitteredSamples(new Random(3), slopes.length, 2000);
+    SampleAligner aligner = newAligner(slopes.length, false);
+    deliverWithDelays(new Random(4), aligner, samples, slopes, offsets);
+
+    assertThat(alignedTimes).isNotEmpty();
+    long[] others = samples.get(1);
+    for (int i = 0; i < alignedTimes.size(); i++) {
+      long time = alignedTimes.get(i);
+      // The value of each sample is its time, so the value says which sample was chosen.
+      long chosen = (long) alignedValues.get(i)[1];
+      assertThat(Arrays.binarySearch(others, chosen)).isAtLeast(0);
+      for (long other : others) {
+        assertThat(Math.abs(chosen - time)).isAtMost(Math.abs(other - time));
+      }
+    }
+  }
+
+  @Test
+  public void testWaitsForLaterSample() {
+    SampleAligner aligner = newAligner(2, true);
+    aligner.addSample(1, 0, 0);
+    aligner.addSample(0, 10, 1);
+    assertThat(alignedTimes).isEmpty();
+
+    aligner.addSample(1, 20, 10);
+    assertThat(alignedTimes).containsExactly(10L);
+    assertThat(alignedValues.get(0)).isEqualTo(new double[] {1, 5});
+  }
+
+  @Test
+  public void testStopsWaitingForStalledInput() {
+    SampleAligner aligner = newAligner(2, true);
+    aligner.addSample(1, 0, 7);
+    aligner.addSample(0, 10, 1);
+    aligner.addSample(0, 10 + MAX_WAIT, 2);
+    assertThat(alignedTimes).isEmpty();
+
+    // Once the first sample is too old, the stalled input's last value is used as it is.
+    aligner.addSample(0, 11 + MAX_WAIT, 3);
+    assertThat(alignedTimes).containsExactly(10L);
+    assertThat(alignedValues.get(0)).isEqualTo(new double[] {1, 7});
+  }
+
+  @Test
+  public void testDropsSamplesWithoutOtherInputs() {
+    SampleAligner aligner = newAligner(2, true);
+    aligner.addSample(0, 0, 1);
+    aligner.addSample(0, MAX_WAIT + 1, 2);
+    aligner.addSample(1, MAX_WAIT + 1, 3);
+    assertThat(alignedTimes).containsExactly(MAX_WAIT + 1);
+  }
+
+  @Test
+  public void testIgnoresOutOfOrderSamples() {
+    SampleAligner aligner = newAligner(2, true);
+    aligner.addSample(1, 0, 0);
+    aligner.addSample(1, 10, 10);
+    aligner.addSample(1, 5, 100);
+    aligner.addSample(0, 5, 1);
+    aligner.addSample(0, 4, 1);
+    assertThat(alignedTimes).containsExactly(5L);
+    assertThat(alignedValues.get(0)[1]).isEqualTo(5.0);
+  }
+
+  @Test
+  public void testClear() {
+    SampleAligner aligner = newAligner(2, true);
+    aligner.addSample(1, 100, 0);
+    aligner.clear();
+    aligner.addSample(0, 10, 1);
+    aligner.addSample(1, 20, 2);
+    assertThat(alignedTimes).containsExactly(10L);
+  }
+
+  private SampleAligner newAligner(int inputCount, boolean interpolate) {
+    return new SampleAligner(
+        inputCount,
+        interpolate,
+        MAX_WAIT,
+        (timestampMillis, values) -> {
+          alignedTimes.add(timestampMillis);
+          alignedValues.add(values.clone());
+        });
+  }
+
+  /**
+   * Returns the times of samples of each input, from 0, with gaps of 5 to 15 milliseconds between
+   * them.
+   */
+  static List<long[]> jitteredSamples(Random random, int inputCount, int samplesPerInput) {
+    List<long[]> samples = new ArrayList<>();
+    for (int input = 0; input < inputCount; input++) {
+      long[] times = new long[samplesPerInput];
+      for (int i = 1; i < samplesPerInput; i++) {
+        times[i] = times[i - 1] + 5 + random.nextInt(11);
+      }
+      samples.add(times);
+    }
+    return samples;
+  }
+
+  /**
+   * Adds the samples to the aligner in the order in which they would arrive, if each took up to 40
+   * milliseconds to do so. The value of each is a straight line in time.
+   */
+  private static void deliverWithDelays(
+      Random random,
+      SampleAligner aligner,
+      List<long[]> samples,
+      double[] slopes,
+      double[] offsets) {
+    List<long[]> arrivals = new ArrayList<>();
+    for (int input = 0; input < samples.size(); input++) {
+      long lastArrival = 0;
+      for (long time : samples.get(input)) {
+        // Samples of one sensor arrive in the order they were taken.
+        lastArrival = Math.max(lastArrival, time + random.nextInt(41));
+        arrivals.add(new long[] {lastArrival, input, time});
+      }
+    }
+    Collections.sort(arrivals, (a, b) -> Long.compare(a[0], b[0]));
+    for (long[] arrival : arrivals) {
+      int input = (int) arrival[1];
+      long time = arrival[2];
+      aligner.addSample(input, time, slopes[input] * time + offsets[input]);
+    }
+  }
+}
@@ -17,18 +17,28 @@
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import com.google.android.apps.forscience.whistlepunk.BatchDataController;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.TrialStats;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial.SensorStat.StatType;
+import com.google.android.apps.forscience.whistlepunk.scalarchart.ChartData;
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReadingList;
 import com.google.android.apps.forscience.whistlepunk.sensordb.TimeRange;
 import com.google.common.collect.Range;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -137,6 +147,117 @@ public class ScalarSensorDumpReaderTest {
     assertEquals(0, readings.size());
   }
 
+  @Test
+  public void testDataSuccessfullyWrittenFromStream() throws IOException {
+    GoosciScalarSensorData.ScalarSensorData scalarSensorData =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("foo")
+                    .setTrialId("oldId")
+                    .addAllRows(populateRowList()))
+            .build();
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("oldId", "newId");
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+    reader.readData(new ByteArrayInputStream(scalarSensorData.toByteArray()), idMap);
+
+    ScalarReadingList readings =
+        db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(10000, readings.size());
+    List<ChartData.DataPoint> points = readings.asDataPoints();
+    assertEquals(1, points.get(0).getX());
+    assertEquals(100.0, points.get(0).getY(), 0.0);
+    assertEquals(10000, points.get(9999).getX());
+    assertEquals(1000000.0, points.get(9999).getY(), 0.0);
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 1, 0);
+    assertEquals(500, readings.size());
+
+    readings = db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 2, 0);
+    assertEquals(26, readings.size());
+  }
+
+  @Test
+  public void testStatsAreMergedOverDumps() throws IOException {
+    ArrayList<ScalarSensorDataRow> rows = populateRowList();
+    GoosciScalarSensorData.ScalarSensorData scalarSensorData =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("foo")
+                    .setTrialId("oldId")
+                    .addAllRows(rows.subList(0, 4000)))
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("foo")
+                    .setTrialId("oldId")
+                    .addAllRows(rows.subList(4000, 10000)))
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("archived")
+                    .setTrialId("oldId")
+                    .setResolutionTier(1)
+                    .addAllRows(rows))
+            .build();
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("oldId", "newId");
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(recordingController);
+    reader.readData(new ByteArrayInputStream(scalarSensorData.toByteArray()), idMap);
+
+    TrialStats stats = reader.getImportedStats("newId", "foo").makeSaveableStats();
+    assertEquals(10000, stats.getStatValue(StatType.NUM_DATA_POINTS, -1), 0.0);
+    assertEquals(100, stats.getStatValue(StatType.MINIMUM, -1), 0.0);
+    assertEquals(1000000, stats.getStatValue(StatType.MAXIMUM, -1), 0.0);
+    assertEquals(500050, stats.getStatValue(StatType.AVERAGE, -1), 1e-6);
+    assertEquals(9999, stats.getStatValue(StatType.TOTAL_DURATION, -1), 0.0);
+    // The sketch's rank error is about half a percent, 50 readings here; allow twice that.
+    assertEquals(500000, stats.getStatValue(StatType.MEDIAN, -1), 100 * 100);
+    // Only a coarser tier of this sensor was exported.
+    assertNull(reader.getImportedStats("newId", "archived"));
+    assertNull(reader.getImportedStats("oldId", "foo"));
+  }
+
+  @Test
+  public void testStreamIsWrittenInBatches() throws IOException {
+    ArrayList<ScalarSensorDataRow> rows = new ArrayList<>();
+    for (int x = 1; x <= 30000; x++) {
+      rows.add(ScalarSensorDataRow.newBuilder().setTimestampMillis(x).setValue(x).build());
+    }
+    GoosciScalarSensorData.ScalarSensorData scalarSensorData =
+        GoosciScalarSensorData.ScalarSensorData.newBuilder()
+            .addSensors(
+                ScalarSensorDataDump.newBuilder()
+                    .setTag("foo")
+                    .setTrialId("oldId")
+                    .addAllRows(rows))
+            .build();
+    HashMap<String, String> idMap = new HashMap<>();
+    idMap.put("oldId", "newId");
+    List<Integer> batchSizes = new ArrayList<>();
+    BatchDataController sizeRecorder =
+        new BatchDataController(recordingController) {
+          @Override
+          public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+            batchSizes.add(readings.size());
+            super.addScalarReadings(readings);
+          }
+        };
+
+    ScalarSensorDumpReader reader = new ScalarSensorDumpReader(sizeRecorder);
+    reader.readData(new ByteArrayInputStream(scalarSensorData.toByteArray()), idMap);
+
+    assertTrue(batchSizes.size() > 1);
+    for (int size : batchSizes) {
+      assertTrue(size <= 10001);
+    }
+    ScalarReadingList readings =
+        db.getScalarReadings("newId", "foo", TimeRange.oldest(Range.all()), 0, 0);
+    assertEquals(30000, readings.size());
+  }
+
   private ArrayList<ScalarSensorDataRow> populateRowList() {
     ArrayList<ScalarSensorDataRow> rowList = new ArrayList<>();
     for (int x = 1; x <= 10000; x++) {
@@ -17,9 +17,11 @@
 package com.google.android.apps.forscience.whistlepunk.sensorapi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
 import com.google.android.apps.forscience.whistlepunk.DataController;
+import com.google.android.apps.forscience.whistlepunk.DevOptionsFragment;
 import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
 import com.google.android.apps.forscience.whistlepunk.TestData;
 import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ExplicitExecutor;
@@ -36,14 +38,18 @@ import com.google.android.apps.forscience.whistlepunk.scalarchart.ScalarDisplayO
 import com.google.android.apps.forscience.whistlepunk.sensordb.InMemorySensorDatabase;
 import com.google.android.apps.forscience.whistlepunk.sensordb.MemoryMetadataManager;
 import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
 import com.google.android.apps.forscience.whistlepunk.sensors.BluetoothSensor;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 
 @RunWith(RobolectricTestRunner.class)
 public class ScalarSensorTest {
@@ -99,6 +105,51 @@ public class ScalarSensorTest {
     assertEquals(expectedObserved, observer.getReadings());
   }
 
+  @Test
+  public void testHeldValuesAreShownButNotRecorded() {
+    ManualSensor sensor = new ManualSensor("test", Long.MAX_VALUE, 2);
+    RecordingSensorObserver observer = new RecordingSensorObserver();
+    SensorRecorder recorder = sensor.createRecorder(getContext(), recordingController, observer);
+
+    recorder.startRecording("runId");
+    for (int time = 0; time <= 1000; time += 100) {
+      if (time == 0) {
+        sensor.pushValue(time, 5);
+      } else if (time == 300) {
+        sensor.pushValue(time, 7);
+      } else {
+        sensor.holdValue(time, 100);
+      }
+    }
+    recorder.stopRecording(null);
+
+    // Every refresh is shown...
+    List<ScalarReading> observed = observer.getReadings();
+    assertEquals(11, observed.size());
+    assertEquals(new ScalarReading(1000, 7), observed.get(10));
+
+    // ...but only the changes are stored, with how they held.
+    ArrayList<InMemorySensorDatabase.Reading> expectedRecorded =
+        Lists.newArrayList(
+            new InMemorySensorDatabase.Reading("runId", "test", 0, 5),
+            new InMemorySensorDatabase.Reading("runId", "test", 300, 7));
+    assertEquals(expectedRecorded, db.getReadings(0));
+    assertEquals(new SeriesHold("runId", "test", 100, 1000), db.getSeriesHold("runId", "test"));
+  }
+
+  @Test
+  public void testNoHoldStoredWithoutHeldValues() {
+    ManualSensor sensor = new ManualSensor("test", Long.MAX_VALUE, 2);
+    SensorRecorder recorder = createRecorder(sensor);
+    recorder.startRecording("runId");
+    sensor.pushValue(0, 5);
+    sensor.pushValue(100, 5);
+    recorder.stopRecording(null);
+
+    assertEquals(2, db.getReadings(0).size());
+    assertEquals(null, db.getSeriesHold("runId", "test"));
+  }
+
   private Context getContext() {
     return null;
   }
@@ -356,9 +407,9 @@ public class ScalarSensorTest {
             new InMemorySensorDatabase.Reading(trial.getTrialId(), "test", 49, 49),
             new InMemorySensorDatabase.Reading(trial.getTrialId(), "test", 50, 50),
             new InMemorySensorDatabase.Reading(trial.getTrialId(), "test", 99, 99));
-    assertEquals(expected, db.getReadings(2));
-
+    // Tiers are stored in batches, the last when recording stops.
     recorder.stopRecording(trial);
+    assertEquals(expected, db.getReadings(2));
     TrialStats stats = trial.getStatsForSensor("test");
     assertEquals(
         100.0, stats.getStatValue(GoosciTrial.SensorStat.StatType.NUM_DATA_POINTS, -1), 0.001);
@@ -366,6 +417,7 @@ public class ScalarSensorTest {
         3.0,
         stats.getStatValue(GoosciTrial.SensorStat.StatType.ZOOM_PRESENTER_TIER_COUNT, -1),
         0.001);
+    assertEquals(Lists.newArrayList(100L, 20L, 4L), stats.getZoomTierPointCounts());
 
     Trial trial2 =
         Trial.newTrial(
@@ -386,6 +438,63 @@ public class ScalarSensorTest {
         0.001);
   }
 
+  @Test
+  public void testTierReducerIsChosenInDevOptions() {
+    // Relies on DevOptions, which are bypassed in release builds.
+    Assume.assumeTrue(DevOptionsFragment.isDebugVersion());
+    Context context = RuntimeEnvironment.application.getApplicationContext();
+    ManualSensor sensor = new ManualSensor("test", 1000, 5);
+
+    assertTrue(sensor.getTierReducerFactory(context).create() instanceof MinMaxTierReducer);
+    setZoomTierReducer(context, DevOptionsFragment.ZOOM_TIER_REDUCER_LTTB);
+    assertTrue(sensor.getTierReducerFactory(context).create() instanceof LttbTierReducer);
+    setZoomTierReducer(context, DevOptionsFragment.ZOOM_TIER_REDUCER_ADAPTIVE_LTTB);
+    assertTrue(sensor.getTierReducerFactory(context).create() instanceof LttbTierReducer);
+    setZoomTierReducer(context, "unknown");
+    assertTrue(sensor.getTierReducerFactory(context).create() instanceof MinMaxTierReducer);
+    assertTrue(sensor.getTierReducerFactory(null).create() instanceof MinMaxTierReducer);
+  }
+
+  @Test
+  public void testRecorderUsesChosenTierReducer() {
+    Assume.assumeTrue(DevOptionsFragment.isDebugVersion());
+    Context context = RuntimeEnvironment.application.getApplicationContext();
+
+    int lttbCount =
+        countTierOneReadingsOfPlateau(context, DevOptionsFragment.ZOOM_TIER_REDUCER_LTTB);
+    int adaptiveCount =
+        countTierOneReadingsOfPlateau(context, DevOptionsFragment.ZOOM_TIER_REDUCER_ADAPTIVE_LTTB);
+
+    // Plain LTTB keeps a reading of every bucket; the adaptive variant only the plateau's end.
+    assertTrue(adaptiveCount > 0);
+    assertTrue(adaptiveCount < lttbCount);
+  }
+
+  /** Records a flat signal with the given tier reducer, and counts the readings of tier 1. */
+  private static int countTierOneReadingsOfPlateau(Context context, String reducer) {
+    setZoomTierReducer(context, reducer);
+    InMemorySensorDatabase tierDb = new InMemorySensorDatabase();
+    ManualSensor sensor = new ManualSensor("test", 1000, 5);
+    SensorRecorder recorder =
+        sensor.createRecorder(
+            context,
+            tierDb.makeSimpleRecordingController(new MemoryMetadataManager()),
+            new RecordingSensorObserver());
+    recorder.startRecording("runId");
+    for (int i = 0; i < 100; i++) {
+      sensor.pushValue(i, 3);
+    }
+    recorder.stopRecording(null);
+    return tierDb.getReadings(1).size();
+  }
+
+  private static void setZoomTierReducer(Context context, String reducer) {
+    DevOptionsFragment.getPrefs(context)
+        .edit()
+        .putString(DevOptionsFragment.KEY_ZOOM_TIER_REDUCER, reducer)
+        .apply();
+  }
+
   @Test
   public void dontReuseBundle() {
     ExplicitExecutor executor = new ExplicitExecutor();
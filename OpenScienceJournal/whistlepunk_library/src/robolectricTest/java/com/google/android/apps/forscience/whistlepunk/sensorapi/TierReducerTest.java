@@ -0,0 +1,257 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Compares the ways of reducing zoom tiers by how many readings they store, and by how far a chart
+ * of the reduced tier strays from a chart of every reading.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class TierReducerTest {
+  private static final int ZOOM_LEVEL = ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS;
+  // An hour of readings, ten a second.
+  private static final int READINGS_PER_HOUR = 36000;
+  private static final long PERIOD_MILLIS = 100;
+  private static final int PIXEL_WIDTH = 500;
+
+  @Test
+  public void testMinMaxKeepsExtremesInOrderOfTime() {
+    List<ScalarReading> readings = new ArrayList<>();
+    double[] values = {5, 1, 9, 3, 8, 9, 2, 4, 6, 6, 6, 6};
+    for (int i = 0; i < values.length; i++) {
+      readings.add(new ScalarReading(i, values[i]));
+    }
+    assertThat(reduce(new MinMaxTierReducer(4), readings))
+        .containsExactly(
+            new ScalarReading(1, 1),
+            new ScalarReading(2, 9),
+            new ScalarReading(5, 9),
+            new ScalarReading(6, 2),
+            // A run of equal readings is only stored once.
+            new ScalarReading(8, 6))
+        .inOrder();
+  }
+
+  @Test
+  public void testLttbKeepsOneReadingPerBucket() {
+    List<ScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      readings.add(new ScalarReading(i, i == 37 ? 10 : 0));
+    }
+    List<ScalarReading> reduced = reduce(new LttbTierReducer(10), readings);
+    // The first and last readings, and one from each of the buckets between them.
+    assertThat(reduced).hasSize(11);
+    assertThat(reduced.get(0)).isEqualTo(new ScalarReading(0, 0));
+    assertThat(reduced).contains(new ScalarReading(37, 10));
+    assertThat(reduced.get(10)).isEqualTo(new ScalarReading(99, 0));
+  }
+
+  @Test
+  public void testAdaptiveKeepsOnlyPlateauEnds() {
+    List<ScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      readings.add(new ScalarReading(i, i < 500 ? 0 : 1));
+    }
+    assertThat(reduce(new LttbTierReducer(10, LttbTierReducer.DEFAULT_FLATNESS), readings))
+        .containsExactly(
+            new ScalarReading(0, 0),
+            // The lowest and highest readings of the bucket with the step.
+            new ScalarReading(491, 0),
+            new ScalarReading(500, 1),
+            new ScalarReading(999, 1))
+        .inOrder();
+  }
+
+  @Test
+  public void testFlatTrace() {
+    List<ScalarReading> trace = makeTrace(i -> 21.0 + 0.5 * ((i / 6000) % 2));
+    Result minMax = measure(MinMaxTierReducer.factory(ZOOM_LEVEL * 2), trace);
+    Result adaptive = measure(adaptiveFactory(), trace);
+
+    assertThat(adaptive.rowsPerHour).isLessThan(minMax.rowsPerHour / 10);
+    assertThat(adaptive.maxDeviation).isAtMost(minMax.maxDeviation);
+  }
+
+  @Test
+  public void testSmoothTrace() {
+    List<ScalarReading> trace =
+        makeTrace(i -> Math.sin(2 * Math.PI * i * PERIOD_MILLIS / 600_000.0));
+    Result minMax = measure(MinMaxTierReducer.factory(ZOOM_LEVEL * 2), trace);
+    Result lttb = measure(LttbTierReducer.factory(ZOOM_LEVEL), trace);
+    Result adaptive = measure(adaptiveFactory(), trace);
+
+    assertThat(lttb.maxDeviation).isAtMost(minMax.maxDeviation);
+    assertThat(adaptive.rowsPerHour).isLessThan(minMax.rowsPerHour);
+    // Within the flatness threshold, on either side of the line.
+    assertThat(adaptive.maxDeviation).isAtMost(2 * LttbTierReducer.DEFAULT_FLATNESS);
+  }
+
+  @Test
+  public void testBusyTrace() {
+    Random random = new Random(7);
+    List<ScalarReading> trace =
+        makeTrace(
+            i ->
+                Math.sin(2 * Math.PI * i * PERIOD_MILLIS / 600_000.0)
+                    + random.nextGaussian() * 0.2
+                    + (random.nextDouble() < 0.001 ? 3 : 0));
+    Result minMax = measure(MinMaxTierReducer.factory(ZOOM_LEVEL * 2), trace);
+    Result adaptive = measure(adaptiveFactory(), trace);
+
+    // Busy signals get more readings, to follow them more closely.
+    assertThat(adaptive.rowsPerHour).isGreaterThan(minMax.rowsPerHour);
+    assertThat(adaptive.maxDeviation).isAtMost(minMax.maxDeviation);
+  }
+
+  @Test
+  public void testRandomWalkTrace() {
+    Random random = new Random(7);
+    double[] walk = {0};
+    List<ScalarReading> trace = makeTrace(i -> walk[0] += random.nextGaussian());
+    Result minMax = measure(MinMaxTierReducer.factory(ZOOM_LEVEL * 2), trace);
+    Result lttb = measure(LttbTierReducer.factory(ZOOM_LEVEL), trace);
+    Result adaptive = measure(adaptiveFactory(), trace);
+
+    // As many readings as the minimum and maximum, and nearly as close.
+    assertThat(lttb.rowsPerHour).isAtMost(minMax.rowsPerHour + 1);
+    assertThat(lttb.maxDeviation).isAtMost(minMax.maxDeviation * 1.25);
+    assertThat(adaptive.maxDeviation).isAtMost(minMax.maxDeviation);
+  }
+
+  private static TierReducer.Factory adaptiveFactory() {
+    return LttbTierReducer.adaptiveFactory(ZOOM_LEVEL, LttbTierReducer.DEFAULT_FLATNESS);
+  }
+
+  private interface Signal {
+    double valueAt(int index);
+  }
+
+  private static List<ScalarReading> makeTrace(Signal signal) {
+    List<ScalarReading> trace = new ArrayList<>();
+    for (int i = 0; i < READINGS_PER_HOUR; i++) {
+      trace.add(new ScalarReading(i * PERIOD_MILLIS, signal.valueAt(i)));
+    }
+    return trace;
+  }
+
+  private static List<ScalarReading> reduce(TierReducer reducer, List<ScalarReading> readings) {
+    List<ScalarReading> reduced = new ArrayList<>();
+    TierReducer.Output output =
+        (timestampMillis, value) -> reduced.add(new ScalarReading(timestampMillis, value));
+    for (ScalarReading reading : readings) {
+      reducer.addReading(reading.getCollectedTimeMillis(), reading.getValue(), output);
+    }
+    reducer.flush(output);
+    return reduced;
+  }
+
+  private static class Result {
+    final int rowsPerHour;
+    // As a fraction of the range of values.
+    final double maxDeviation;
+
+    Result(int rowsPerHour, double maxDeviation) {
+      this.rowsPerHour = rowsPerHour;
+      this.maxDeviation = maxDeviation;
+    }
+  }
+
+  /** Reduces an hour-long trace to tier 1, which is where a chart of the whole hour reads from. */
+  private static Result measure(TierReducer.Factory factory, List<ScalarReading> trace) {
+    List<ScalarReading> reduced = reduce(factory.create(), trace);
+    return new Result(reduced.size(), maxDeviation(trace, reduced));
+  }
+
+  /**
+   * Returns how far the lowest or highest point drawn in any pixel column of a chart of the
+   * reduced readings is from that of a chart of every reading, as a fraction of the range.
+   */
+  private static double maxDeviation(List<ScalarReading> trace, List<ScalarReading> reduced) {
+    double min = Double.MAX_VALUE;
+    double max = -Double.MAX_VALUE;
+    for (ScalarReading reading : trace) {
+      min = Math.min(min, reading.getValue());
+      max = Math.max(max, reading.getValue());
+    }
+    long start = trace.get(0).getCollectedTimeMillis();
+    double columnMillis =
+        (trace.get(trace.size() - 1).getCollectedTimeMillis() - start) / (double) PIXEL_WIDTH;
+    double deviation = 0;
+    for (int column = 0; column < PIXEL_WIDTH; column++) {
+      double left = start + column * columnMillis;
+      double right = left + columnMillis;
+      double[] expected = drawnRange(trace, left, right);
+      double[] actual = drawnRange(reduced, left, right);
+      deviation = Math.max(deviation, Math.abs(expected[0] - actual[0]));
+      deviation = Math.max(deviation, Math.abs(expected[1] - actual[1]));
+    }
+    return deviation / (max - min);
+  }
+
+  /** Returns the lowest and highest values of the line through the readings between two times. */
+  private static double[] drawnRange(List<ScalarReading> readings, double left, double right) {
+    double atLeft = valueAt(readings, left);
+    double atRight = valueAt(readings, right);
+    double[] range = {Math.min(atLeft, atRight), Math.max(atLeft, atRight)};
+    for (int i = firstAtOrAfter(readings, left);
+        i < readings.size() && readings.get(i).getCollectedTimeMillis() < right;
+        i++) {
+      range[0] = Math.min(range[0], readings.get(i).getValue());
+      range[1] = Math.max(range[1], readings.get(i).getValue());
+    }
+    return range;
+  }
+
+  private static double valueAt(List<ScalarReading> readings, double time) {
+    int after = firstAtOrAfter(readings, time);
+    if (after == 0) {
+      return readings.get(0).getValue();
+    }
+    if (after == readings.size()) {
+      return readings.get(after - 1).getValue();
+    }
+    ScalarReading before = readings.get(after - 1);
+    ScalarReading next = readings.get(after);
+    double fraction =
+        (time - before.getCollectedTimeMillis())
+            / (next.getCollectedTimeMillis() - before.getCollectedTimeMillis());
+    return before.getValue() + fraction * (next.getValue() - before.getValue());
+  }
+
+  private static int firstAtOrAfter(List<ScalarReading> readings, double time) {
+    int low = 0;
+    int high = readings.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (readings.get(mid).getCollectedTimeMillis() < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.android.apps.forscience.whistlepunk.sensorapi;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.apps.forscience.javalib.FailureListener;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.RecordingDataController;
+import com.google.android.apps.forscience.whistlepunk.sensordb.ScalarReading;
+import com.google.android.apps.forscience.whistlepunk.sensordb.SeriesHold;
+import com.google.android.apps.forscience.whistlepunk.sensordb.StatsBlock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class ZoomRecorderTest {
+  private static final int ZOOM_BUFFER_SIZE = ScalarSensor.DEFAULT_ZOOM_LEVEL_BETWEEN_TIERS * 2;
+  // 200 Hz.
+  private static final long PERIOD_MILLIS = 5;
+
+  @Test
+  public void testSameTiersAsStoringEachReading() {
+    Random random = new Random(42);
+    for (int trial = 0; trial < 20; trial++) {
+      int stopAfter = 1 + random.nextInt(50000);
+      long seed = random.nextLong();
+      RecordingController batched = record(makeRecorder(), stopAfter, seed);
+      RecordingController unbatched = record(makeUnbatchedRecorder(), stopAfter, seed);
+
+      assertThat(batched.tiers).isEqualTo(unbatched.tiers);
+      assertThat(batched.singleReadingCalls).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void testCheckpointsStoreTiersWhileRecording() {
+    ZoomRecorder recorder = makeRecorder();
+    RecordingController dc = new RecordingController();
+    Random random = new Random(42);
+    long timestamp = 0;
+    for (; timestamp < 10 * ZoomRecorder.CHECKPOINT_MILLIS; timestamp += PERIOD_MILLIS) {
+      recorder.addData(timestamp, random.nextGaussian(), dc);
+    }
+
+    // One batch at each checkpoint, holding what the tiers made since the last.
+    assertThat(dc.batchCalls).isEqualTo(9);
+    long lastCheckpoint = timestamp - ZoomRecorder.CHECKPOINT_MILLIS;
+    for (List<ScalarReading> tier : dc.tiers) {
+      for (ScalarReading reading : tier) {
+        assertThat(reading.getCollectedTimeMillis()).isAtMost(lastCheckpoint);
+      }
+    }
+  }
+
+  @Test
+  public void testFewerCallsAt200HzWithFiveSensors() {
+    int sensorCount = 5;
+    int seconds = 60;
+    RecordingController batched = new RecordingController();
+    RecordingController unbatched = new RecordingController();
+    List<ZoomRecorder> batchedRecorders = new ArrayList<>();
+    List<ZoomRecorder> unbatchedRecorders = new ArrayList<>();
+    for (int i = 0; i < sensorCount; i++) {
+      batchedRecorders.add(makeRecorder());
+      unbatchedRecorders.add(makeUnbatchedRecorder());
+    }
+
+    Random random = new Random(42);
+    for (long timestamp = 0; timestamp < seconds * 1000; timestamp += PERIOD_MILLIS) {
+      for (int i = 0; i < sensorCount; i++) {
+        double value = random.nextGaussian();
+        batchedRecorders.get(i).addData(timestamp, value, batched);
+        unbatchedRecorders.get(i).addData(timestamp, value, unbatched);
+      }
+    }
+    for (int i = 0; i < sensorCount; i++) {
+      batchedRecorders.get(i).flushAllTiers(batched);
+      unbatchedRecorders.get(i).flushAllTiers(unbatched);
+    }
+
+    // Each call is one task on the data thread, and one transaction in the database.
+    assertThat(batched.batchCalls / seconds).isAtMost(sensorCount);
+    assertThat(unbatched.batchCalls / seconds).isAtLeast(10 * sensorCount);
+  }
+
+  private static ZoomRecorder makeRecorder() {
+    ZoomRecorder recorder = new ZoomRecorder("sensor", ZOOM_BUFFER_SIZE, 1);
+    recorder.setTrialId("trial");
+    return recorder;
+  }
+
+  /** Stores each reading as soon as it is made, as every tier once was. */
+  private static ZoomRecorder makeUnbatchedRecorder() {
+    ZoomRecorder recorder =
+        new ZoomRecorder("sensor", MinMaxTierReducer.factory(ZOOM_BUFFER_SIZE), 1, 1);
+    recorder.setTrialId("trial");
+    return recorder;
+  }
+
+  private static RecordingController record(ZoomRecorder recorder, int readingCount, long seed) {
+    RecordingController dc = new RecordingController();
+    Random random = new Random(seed);
+    for (int i = 0; i < readingCount; i++) {
+      recorder.addData(i * PERIOD_MILLIS, random.nextGaussian(), dc);
+    }
+    recorder.flushAllTiers(dc);
+    return dc;
+  }
+
+  /** Keeps the readings of each tier, and counts the calls that stored them. */
+  private static class RecordingController implements RecordingDataController {
+    final List<List<ScalarReading>> tiers = new ArrayList<>();
+    int singleReadingCalls = 0;
+    int batchCalls = 0;
+
+    @Override
+    public void addScalarReading(
+        String trialId, String sensorId, int resolutionTier, long timestampMillis, double value) {
+      singleReadingCalls++;
+      add(resolutionTier, timestampMillis, value);
+    }
+
+    @Override
+    public void addScalarReadings(List<BatchInsertScalarReading> readings) {
+      batchCalls++;
+      for (BatchInsertScalarReading reading : readings) {
+        add(reading.resolutionTier, reading.timestampMillis, reading.value);
+      }
+    }
+
+    private void add(int tier, long timestampMillis, double value) {
+      while (tiers.size() <= tier) {
+        tiers.add(new ArrayList<>());
+      }
+      tiers.get(tier).add(new ScalarReading(timestampMillis, value));
+    }
+
+    @Override
+    public void addStatsBlock(StatsBlock block) {}
+
+    @Override
+    public void setSeriesHold(SeriesHold hold) {}
+
+    @Override
+    public void setDataErrorListenerForSensor(String sensorId, FailureListener listener) {}
+
+    @Override
+    public void clearDataErrorListenerForSensor(String sensorId) {}
+  }
+}
@@ -0,0 +1,338 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.StreamConsumer;
+import com.google.android.apps.forscience.whistlepunk.sensordb.AggregateQuery.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class AggregateQueryTest {
+  private static final String TEST_DATABASE_NAME = "aggregate.db";
+  private static final String[] TRIALS = {"trial1", "trial2", "trial3"};
+  private static final String[] TAGS = {"light", "sound"};
+  private static final EnumSet<Function> ALL = EnumSet.allOf(Function.class);
+  // Everything but the values of the first and last readings.
+  private static final EnumSet<Function> TOTALS =
+      EnumSet.of(Function.MIN, Function.MAX, Function.SUM, Function.COUNT, Function.MEAN);
+  private static final double TOLERANCE = 1e-6;
+
+  private final List<BatchInsertScalarReading> readings = new ArrayList<>();
+  private SensorDatabaseImpl db;
+
+  @Before
+  public void setUp() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    db =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    Random random = new Random(42);
+    for (String trial : TRIALS) {
+      for (String tag : TAGS) {
+        // Irregular sampling, as from a real sensor.
+        long timestamp = random.nextInt(50);
+        for (int i = 0; i < 2000; i++) {
+          double value = random.nextGaussian() * 10;
+          readings.add(new BatchInsertScalarReading(trial, tag, 0, timestamp, value));
+          // Summary points must not count towards the results.
+          if (i % 10 == 0) {
+            readings.add(new BatchInsertScalarReading(trial, tag, 1, timestamp, value + 1000));
+          }
+          timestamp += 1 + random.nextInt(20);
+        }
+      }
+    }
+    db.addScalarReadings(readings);
+  }
+
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
+  @Test
+  public void testPerTrialMatchesBruteForce() {
+    List<AggregateQuery.Series> series = new ArrayList<>();
+    for (String trial : TRIALS) {
+      series.add(new AggregateQuery.Series(trial, "light", Range.<Long>all()));
+      series.add(new AggregateQuery.Series(trial, "sound", Range.closed(1000L, 9000L)));
+    }
+    AggregateQuery query = new AggregateQuery(series, ALL);
+
+    List<ScalarAggregate> results = db.getAggregates(query);
+
+    assertThat(results).hasSize(series.size());
+    for (int i = 0; i < series.size(); i++) {
+      assertMatches(results.get(i), bruteForce(query, series.get(i)).firstEntry().getValue());
+    }
+  }
+
+  @Test
+  public void testBucketedMatchesBruteForce() {
+    AggregateQuery.Series series =
+        new AggregateQuery.Series("trial2", "sound", Range.closedOpen(555L, 20000L));
+    AggregateQuery query = new AggregateQuery(Lists.newArrayList(series), ALL, 1000);
+
+    List<ScalarAggregate> results = db.getAggregates(query);
+
+    TreeMap<Long, List<BatchInsertScalarReading>> expected = bruteForce(query, series);
+    assertThat(results).hasSize(expected.size());
+    int i = 0;
+    for (List<BatchInsertScalarReading> bucket : expected.values()) {
+      ScalarAggregate result = results.get(i++);
+      assertThat(result.getBucketStartMillis() % 1000).isEqualTo(555);
+      assertThat(query.getBucketStart(series, bucket.get(0).timestampMillis))
+          .isEqualTo(result.getBucketStartMillis());
+      assertMatches(result, bucket);
+    }
+  }
+
+  @Test
+  public void testMatchesPerTrialReadLoop() {
+    List<AggregateQuery.Series> series = new ArrayList<>();
+    for (String trial : TRIALS) {
+      series.add(new AggregateQuery.Series(trial, "light", Range.<Long>all()));
+    }
+    List<ScalarAggregate> results =
+        db.getAggregates(new AggregateQuery(series, EnumSet.of(Function.MEAN, Function.COUNT)));
+
+    // What callers had to do before: read every point of every trial into memory.
+    for (int i = 0; i < TRIALS.length; i++) {
+      final double[] sumAndCount = new double[2];
+      db.getScalarReadings(TRIALS[i], "light", TimeRange.oldest(Range.<Long>all()), 0, 0)
+          .deliver(
+              new StreamConsumer() {
+                @Override
+                public boolean addData(long timestampMillis, double value) {
+                  sumAndCount[0] += value;
+                  sumAndCount[1]++;
+                  return true;
+                }
+              });
+      assertThat(results.get(i).get(Function.COUNT)).isEqualTo(sumAndCount[1]);
+      assertThat(results.get(i).get(Function.MEAN))
+          .isWithin(TOLERANCE)
+          .of(sumAndCount[0] / sumAndCount[1]);
+    }
+  }
+
+  @Test
+  public void testOneRowPerSeries() {
+    List<AggregateQuery.Series> series = new ArrayList<>();
+    for (String trial : TRIALS) {
+      for (String tag : TAGS) {
+        series.add(new AggregateQuery.Series(trial, tag, Range.<Long>all()));
+      }
+    }
+    AggregateQuery query = new AggregateQuery(series, EnumSet.of(Function.MEAN, Function.COUNT));
+
+    // The read loop pulls every tier 0 point into Java; the query returns one row per series.
+    assertThat(db.getAggregates(query)).hasSize(series.size());
+  }
+
+  @Test
+  public void testWholeStatsBlocksMatchBruteForce() {
+    addStatsBlocks("trial2", "sound");
+    AggregateQuery.Series series =
+        new AggregateQuery.Series("trial2", "sound", Range.closedOpen(555L, 20000L));
+    AggregateQuery query = new AggregateQuery(Lists.newArrayList(series), TOTALS, 5000);
+
+    List<ScalarAggregate> results = db.getAggregates(query);
+
+    TreeMap<Long, List<BatchInsertScalarReading>> expected = bruteForce(query, series);
+    assertThat(results).hasSize(expected.size());
+    int i = 0;
+    for (List<BatchInsertScalarReading> bucket : expected.values()) {
+      assertTotalsMatch(results.get(i++), bucket);
+    }
+  }
+
+  @Test
+  public void testStatsBlocksStandInForReadings() {
+    addStatsBlocks("trial1", "light");
+    // A block with no readings under it, as an archived trial has.
+    db.addStatsBlock(
+        new StatsBlock("trial1", "light", 100000, 100000, 100999, 5, -1000, 1000, 10, 0, null));
+    AggregateQuery.Series series =
+        new AggregateQuery.Series("trial1", "light", Range.closedOpen(100000L, 101000L));
+
+    ScalarAggregate result =
+        db.getAggregates(new AggregateQuery(Lists.newArrayList(series), TOTALS)).get(0);
+
+    assertThat(result.get(Function.COUNT)).isEqualTo(5.0);
+    assertThat(result.get(Function.MIN)).isEqualTo(-1000.0);
+    assertThat(result.get(Function.MAX)).isEqualTo(1000.0);
+    assertThat(result.get(Function.MEAN)).isWithin(TOLERANCE).of(2.0);
+  }
+
+  @Test
+  public void testEmptySeries() {
+    AggregateQuery.Series series =
+        new AggregateQuery.Series("trial1", "light", Range.closed(-100L, -1L));
+
+    ScalarAggregate result =
+        db.getAggregates(new AggregateQuery(Lists.newArrayList(series), ALL)).get(0);
+
+    assertThat(result.get(Function.COUNT)).isEqualTo(0.0);
+    assertThat(result.get(Function.SUM)).isEqualTo(0.0);
+    assertThat(result.get(Function.MEAN)).isNaN();
+    assertThat(result.get(Function.FIRST)).isNaN();
+    assertThat(
+            db.getAggregates(new AggregateQuery(Lists.newArrayList(series), ALL, 10)).isEmpty())
+        .isTrue();
+  }
+
+  @Test
+  public void testDeletedTrialsAreExcluded() {
+    db.deleteTrials(Lists.newArrayList("trial1"));
+    AggregateQuery.Series series = new AggregateQuery.Series("trial1", "light", Range.<Long>all());
+
+    ScalarAggregate result =
+        db.getAggregates(new AggregateQuery(Lists.newArrayList(series), ALL)).get(0);
+
+    assertThat(result.get(Function.COUNT)).isEqualTo(0.0);
+  }
+
+  @Test
+  public void testInMemoryDatabaseAgrees() {
+    InMemorySensorDatabase memoryDb = new InMemorySensorDatabase();
+    memoryDb.addScalarReadings(readings);
+    AggregateQuery.Series series =
+        new AggregateQuery.Series("trial3", "light", Range.closed(300L, 12345L));
+    AggregateQuery query = new AggregateQuery(Lists.newArrayList(series), ALL, 500);
+
+    List<ScalarAggregate> expected = db.getAggregates(query);
+    List<ScalarAggregate> actual = memoryDb.getAggregates(query);
+
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(actual.get(i).getBucketStartMillis())
+          .isEqualTo(expected.get(i).getBucketStartMillis());
+      for (Function function : ALL) {
+        assertThat(actual.get(i).get(function))
+            .isWithin(TOLERANCE)
+            .of(expected.get(i).get(function));
+      }
+    }
+  }
+
+  /** Tier 0 readings of the series, grouped by bucket start. */
+  private TreeMap<Long, List<BatchInsertScalarReading>> bruteForce(
+      AggregateQuery query, AggregateQuery.Series series) {
+    TreeMap<Long, List<BatchInsertScalarReading>> buckets = new TreeMap<>();
+    for (BatchInsertScalarReading reading : readings) {
+      if (reading.resolutionTier == 0
+          && reading.trialId.equals(series.getTrialId())
+          && reading.sensorId.equals(series.getSensorTag())
+          && series.getTimes().contains(reading.timestampMillis)) {
+        long start =
+            query.isBucketed() ? query.getBucketStart(series, reading.timestampMillis) : 0;
+        if (!buckets.containsKey(start)) {
+          buckets.put(start, new ArrayList<>());
+        }
+        buckets.get(start).add(reading);
+      }
+    }
+    return buckets;
+  }
+
+  /** Stores a stats block for each second of the tier 0 readings of a series. */
+  private void addStatsBlocks(String trialId, String tag) {
+    TreeMap<Long, List<BatchInsertScalarReading>> blocks = new TreeMap<>();
+    for (BatchInsertScalarReading reading : readings) {
+      if (reading.resolutionTier == 0
+          && reading.trialId.equals(trialId)
+          && reading.sensorId.equals(tag)) {
+        long start = StatsBlock.getBlockStart(reading.timestampMillis);
+        if (!blocks.containsKey(start)) {
+          blocks.put(start, new ArrayList<>());
+        }
+        blocks.get(start).add(reading);
+      }
+    }
+    for (Map.Entry<Long, List<BatchInsertScalarReading>> entry : blocks.entrySet()) {
+      List<BatchInsertScalarReading> block = entry.getValue();
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      double sum = 0;
+      for (BatchInsertScalarReading reading : block) {
+        min = Math.min(min, reading.value);
+        max = Math.max(max, reading.value);
+        sum += reading.value;
+      }
+      db.addStatsBlock(
+          new StatsBlock(
+              trialId,
+              tag,
+              entry.getKey(),
+              block.get(0).timestampMillis,
+              block.get(block.size() - 1).timestampMillis,
+              block.size(),
+              min,
+              max,
+              sum,
+              0,
+              null));
+    }
+  }
+
+  /** Checks the result against readings, which are in order of time. */
+  private static void assertMatches(ScalarAggregate result, List<BatchInsertScalarReading> bucket) {
+    assertTotalsMatch(result, bucket);
+    assertThat(result.get(Function.FIRST)).isEqualTo(bucket.get(0).value);
+    assertThat(result.get(Function.LAST)).isEqualTo(bucket.get(bucket.size() - 1).value);
+  }
+
+  private static void assertTotalsMatch(
+      ScalarAggregate result, List<BatchInsertScalarReading> bucket) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0;
+    for (BatchInsertScalarReading reading : bucket) {
+      min = Math.min(min, reading.value);
+      max = Math.max(max, reading.value);
+      sum += reading.value;
+    }
+    assertThat(result.get(Function.COUNT)).isEqualTo((double) bucket.size());
+    assertThat(result.get(Function.MIN)).isEqualTo(min);
+    assertThat(result.get(Function.MAX)).isEqualTo(max);
+    assertThat(result.get(Function.SUM)).isWithin(TOLERANCE).of(sum);
+    assertThat(result.get(Function.MEAN)).isWithin(TOLERANCE).of(sum / bucket.size());
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
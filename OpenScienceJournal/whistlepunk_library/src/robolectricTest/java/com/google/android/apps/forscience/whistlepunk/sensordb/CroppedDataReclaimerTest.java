@@ -0,0 +1,298 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.DataControllerImpl;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.accounts.StubAppAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.devicemanager.ConnectableSensor;
+import com.google.android.apps.forscience.whistlepunk.filemetadata.Trial;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class CroppedDataReclaimerTest {
+  private static final String TEST_DATABASE_NAME = "reclaim.db";
+  private static final String TRIAL_ID = "trialId";
+  private static final String TAG = "tag";
+  private static final int READING_COUNT = 20000;
+  private static final Range<Long> CROP = Range.closed(9005L, 10995L);
+
+  private SensorDatabaseImpl db;
+  private Long bytesReclaimed;
+
+  @Before
+  public void setUp() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    db =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < READING_COUNT; i++) {
+      readings.add(new BatchInsertScalarReading(TRIAL_ID, TAG, 0, i, Math.sin(i / 100.0)));
+      // A coarse tier, with summary points that don't line up with the crop edges.
+      if (i % 10 == 0) {
+        readings.add(new BatchInsertScalarReading(TRIAL_ID, TAG, 1, i, Math.sin(i / 100.0)));
+      }
+    }
+    db.addScalarReadings(readings);
+    // Another trial's data in the same time range must be left alone.
+    db.addScalarReading("otherTrial", TAG, 0, 5, 5);
+  }
+
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
+  @Test
+  public void testDatabaseShrinks() {
+    File file = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    long sizeBefore = file.length();
+
+    reclaimer(MoreExecutors.directExecutor()).start();
+
+    assertThat(bytesReclaimed).isGreaterThan(0L);
+    // Nine tenths of the data was deleted.
+    assertThat(file.length()).isLessThan(sizeBefore / 2);
+  }
+
+  @Test
+  public void testCropWindowReadsUnchanged() {
+    TimeRange window = TimeRange.oldest(CROP);
+    List<ScalarReading> tier0Before =
+        ScalarReading.slurp(db.getScalarReadings(TRIAL_ID, TAG, window, 0, 0));
+    List<ScalarReading> tier1Before =
+        ScalarReading.slurp(db.getScalarReadings(TRIAL_ID, TAG, window, 1, 0));
+
+    reclaimer(MoreExecutors.directExecutor()).start();
+
+    assertThat(ScalarReading.slurp(db.getScalarReadings(TRIAL_ID, TAG, window, 0, 0)))
+        .isEqualTo(tier0Before);
+    assertThat(readAll(0)).isEqualTo(tier0Before);
+
+    // The coarse tier now starts and ends exactly at the edges of the crop.
+    List<ScalarReading> tier1After = readAll(1);
+    assertThat(tier1After).containsAllIn(tier1Before);
+    assertThat(tier1After.get(0)).isEqualTo(tier0Before.get(0));
+    assertThat(tier1After.get(tier1After.size() - 1))
+        .isEqualTo(tier0Before.get(tier0Before.size() - 1));
+    assertThat(tier1After).hasSize(tier1Before.size() + 2);
+
+    assertThat(
+            ScalarReading.slurp(
+                db.getScalarReadings(
+                    "otherTrial", TAG, TimeRange.oldest(Range.closed(0L, 10L)), 0, 0)))
+        .hasSize(1);
+  }
+
+  @Test
+  public void testRecordingIsNotHeldUp() {
+    StepExecutor executor = new StepExecutor();
+    CroppedDataReclaimer reclaimer = reclaimer(executor);
+    reclaimer.start();
+
+    // A reading arrives from a recording while the reclaimer is queued.
+    executor.execute(() -> db.addScalarReading("recording", TAG, 0, 42, 42));
+    executor.runNext();
+    assertThat(readRecording()).isEmpty();
+
+    // The reading is written after a single step of reclaiming, well before it finishes.
+    executor.runNext();
+    assertThat(readRecording()).hasSize(1);
+    assertThat(reclaimer.isDone()).isFalse();
+
+    int steps = 0;
+    while (executor.runNext()) {
+      steps++;
+    }
+    assertThat(reclaimer.isDone()).isTrue();
+    // Each step is bounded, so deleting nine tenths of the data took many of them.
+    assertThat(steps).isAtLeast(READING_COUNT * 9 / 10 / CroppedDataReclaimer.RECORDS_PER_STEP);
+  }
+
+  @Test
+  public void testNewDatabaseCanCompact() {
+    assertThat(db.isCompactionEnabled()).isTrue();
+  }
+
+  @Test
+  public void testOlderDatabaseIsNeverRewrittenDuringReclaim() {
+    makeOlderDatabase();
+    assertThat(db.isCompactionEnabled()).isFalse();
+    StepExecutor executor = new StepExecutor();
+    CroppedDataReclaimer reclaimer = reclaimer(executor);
+    reclaimer.start();
+
+    // Each step is bounded, whatever state the database is in: a reading that arrives from a
+    // recording is written after at most one step, every time.
+    int readingsWritten = 0;
+    while (!reclaimer.isDone()) {
+      long timestamp = 100000 + readingsWritten;
+      executor.execute(() -> db.addScalarReading("recording", TAG, 0, timestamp, 0));
+      executor.runNext();
+      executor.runNext();
+      readingsWritten++;
+      assertThat(readRecording(Range.atLeast(100000L))).hasSize(readingsWritten);
+    }
+    while (executor.runNext()) {}
+
+    // The reclaim never converted the database, which would have meant rewriting all of it in one
+    // step. The deleted pages are left free for new readings instead.
+    assertThat(db.isCompactionEnabled()).isFalse();
+    assertThat(bytesReclaimed).isEqualTo(0L);
+
+    File file = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    long sizeBefore = file.length();
+    db.enableCompaction();
+    assertThat(db.isCompactionEnabled()).isTrue();
+    assertThat(file.length()).isLessThan(sizeBefore / 2);
+  }
+
+  @Test
+  public void testControllerConvertsOlderDatabaseOnlyWhileNoSensorIsObserved() {
+    makeOlderDatabase();
+    DataControllerImpl controller =
+        new DataControllerImpl(
+            null, // context
+            StubAppAccount.getInstance(),
+            db,
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            MoreExecutors.directExecutor(),
+            new MemoryMetadataManager(),
+            new MonotonicClock(),
+            new HashMap<>(),
+            new ConnectableSensor.Connector(new HashMap<>()));
+    Trial trial =
+        Trial.fromProto(
+            GoosciTrial.Trial.newBuilder()
+                .setTrialId(TRIAL_ID)
+                .setCropRange(
+                    GoosciTrial.Range.newBuilder()
+                        .setStartMs(CROP.lowerEndpoint())
+                        .setEndMs(CROP.upperEndpoint()))
+                .addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId(TAG))
+                .build());
+    File file = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    long sizeBefore = file.length();
+
+    // While a sensor is observed, a recording may start at any moment.
+    controller.setDataErrorListenerForSensor(TAG, new StoringFailureListener());
+    controller.reclaimCroppedTrialData(trial, storeBytesReclaimed());
+    assertThat(db.isCompactionEnabled()).isFalse();
+
+    controller.clearDataErrorListenerForSensor(TAG);
+    assertThat(db.isCompactionEnabled()).isTrue();
+    assertThat(file.length()).isLessThan(sizeBefore / 2);
+  }
+
+  /** Turns off incremental vacuum, as in databases created by older versions of the app. */
+  private void makeOlderDatabase() {
+    SQLiteDatabase raw =
+        SQLiteDatabase.openDatabase(
+            getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(),
+            null,
+            SQLiteDatabase.OPEN_READWRITE);
+    raw.execSQL("PRAGMA auto_vacuum = 0");
+    raw.execSQL("VACUUM");
+    raw.close();
+  }
+
+  private CroppedDataReclaimer reclaimer(Executor executor) {
+    return new CroppedDataReclaimer(
+        db,
+        executor,
+        TRIAL_ID,
+        Lists.newArrayList(TAG),
+        CROP,
+        storeBytesReclaimed());
+  }
+
+  private MaybeConsumer<Long> storeBytesReclaimed() {
+    return new MaybeConsumer<Long>() {
+      @Override
+      public void success(Long value) {
+        bytesReclaimed = value;
+      }
+
+      @Override
+      public void fail(Exception e) {
+        throw new AssertionError(e);
+      }
+    };
+  }
+
+  private List<ScalarReading> readAll(int tier) {
+    return ScalarReading.slurp(
+        db.getScalarReadings(TRIAL_ID, TAG, TimeRange.oldest(Range.<Long>all()), tier, 0));
+  }
+
+  private List<ScalarReading> readRecording() {
+    return readRecording(Range.singleton(42L));
+  }
+
+  private List<ScalarReading> readRecording(Range<Long> times) {
+    return ScalarReading.slurp(
+        db.getScalarReadings("recording", TAG, TimeRange.oldest(times), 0, 0));
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+
+  /** Runs queued tasks one at a time, in order. */
+  private static class StepExecutor implements Executor {
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable command) {
+      queue.add(command);
+    }
+
+    boolean runNext() {
+      Runnable next = queue.poll();
+      if (next == null) {
+        return false;
+      }
+      next.run();
+      return true;
+    }
+  }
+}
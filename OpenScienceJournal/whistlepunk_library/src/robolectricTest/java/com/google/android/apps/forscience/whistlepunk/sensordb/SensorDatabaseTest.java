@@ -17,10 +17,13 @@
 package com.google.android.apps.forscience.whistlepunk.sensordb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.content.Context;
 import com.google.android.apps.forscience.whistlepunk.Arbitrary;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
 import com.google.android.apps.forscience.whistlepunk.accounts.AppAccount;
 import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
 import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
@@ -31,11 +34,14 @@ import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSenso
 import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.reactivex.Observable;
 import io.reactivex.observers.TestObserver;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -216,6 +222,135 @@ public class SensorDatabaseTest {
         1, db.getScalarReadings("id", "tag2", TimeRange.oldest(Range.closed(0L, 1L)), 0, 0).size());
   }
 
+  @Test
+  public void testDeleteTrialsHidesReadingsImmediately() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    for (int i = 0; i < 10; i++) {
+      db.addScalarReading("deleted", "tagA", 0, i, i);
+      db.addScalarReading("kept", "tagB", 0, 100 + i, i);
+    }
+    assertEquals("tagA", db.getFirstDatabaseTagAfter(-1));
+
+    db.deleteTrials(Lists.newArrayList("deleted"));
+
+    assertEquals(0, countReadings(db, "deleted", "tagA"));
+    assertEquals(10, countReadings(db, "kept", "tagB"));
+    assertEquals("tagB", db.getFirstDatabaseTagAfter(-1));
+  }
+
+  @Test
+  public void testPurgeDeletedTrialsInBoundedSteps() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      readings.add(new BatchInsertScalarReading("deleted", "tag", 0, i, i));
+      readings.add(new BatchInsertScalarReading("kept", "tag", 0, i, i));
+    }
+    db.addScalarReadings(readings);
+    db.deleteTrials(Lists.newArrayList("deleted"));
+
+    // Each step looks at 100 of the 1000 rows.
+    int steps = 1;
+    while (db.purgeDeletedTrials(100)) {
+      steps++;
+    }
+    assertEquals(10, steps);
+
+    // The tombstone is gone, so this shows the readings themselves are gone.
+    assertFalse(db.purgeDeletedTrials(100));
+    assertEquals(0, countReadings(db, "deleted", "tag"));
+    assertEquals(500, countReadings(db, "kept", "tag"));
+  }
+
+  @Test
+  public void testPurgeDeletedTrialsDeletedDuringPurge() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      readings.add(new BatchInsertScalarReading("first", "tag", 0, i, i));
+      readings.add(new BatchInsertScalarReading("second", "tag", 0, i, i));
+      readings.add(new BatchInsertScalarReading("kept", "tag", 0, i, i));
+    }
+    db.addScalarReadings(readings);
+
+    db.deleteTrials(Lists.newArrayList("first"));
+    assertTrue(db.purgeDeletedTrials(100));
+    db.deleteTrials(Lists.newArrayList("second"));
+    // A recording writes in between steps.
+    db.addScalarReading("kept", "tag", 0, 1000, 0);
+    while (db.purgeDeletedTrials(100)) {}
+
+    assertEquals(0, countReadings(db, "first", "tag"));
+    assertEquals(0, countReadings(db, "second", "tag"));
+    assertEquals(301, countReadings(db, "kept", "tag"));
+  }
+
+  @Test
+  public void testReadingsWrittenAfterDeleteAreKept() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int i = 0; i < 300; i++) {
+      readings.add(new BatchInsertScalarReading("moved", "tag", 0, i, i));
+      readings.add(new BatchInsertScalarReading("kept", "tag", 0, i, i));
+    }
+    db.addScalarReadings(readings);
+    db.deleteTrials(Lists.newArrayList("moved"));
+    assertTrue(db.purgeDeletedTrials(100));
+
+    // The experiment is moved back from another account while the purge is under way.
+    List<BatchInsertScalarReading> movedBack = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      movedBack.add(new BatchInsertScalarReading("moved", "tag", 0, 1000 + i, i));
+    }
+    db.addScalarReadings(movedBack);
+    assertEquals(50, countReadings(db, "moved", "tag"));
+    assertEquals(1000, db.getSeriesSummaries("moved").get(0).getFirstTimestampMillis());
+
+    while (db.purgeDeletedTrials(100)) {}
+    assertEquals(50, countReadings(db, "moved", "tag"));
+    assertEquals(50, db.getSeriesSummaries("moved").get(0).getCount());
+    assertEquals(300, countReadings(db, "kept", "tag"));
+  }
+
+  @Test
+  public void testSeriesHolds() {
+    SensorDatabaseImpl db =
+        new SensorDatabaseImpl(getContext(), getAppAccount(), TEST_DATABASE_NAME);
+    db.addScalarReading("id", "light", 0, 0, 5.0);
+    db.addScalarReading("id", "light", 0, 1000, 7.0);
+    db.addScalarReading("other", "light", 0, 0, 5.0);
+    SeriesHold hold = new SeriesHold("id", "light", 100, 5000);
+    db.setSeriesHold(hold);
+    db.setSeriesHold(new SeriesHold("other", "light", 100, 200));
+    assertEquals(hold, db.getSeriesHold("id", "light"));
+    assertEquals(null, db.getSeriesHold("id", "temp"));
+
+    // A later hold replaces the earlier one.
+    SeriesHold longer = new SeriesHold("id", "light", 100, 6000);
+    db.setSeriesHold(longer);
+    assertEquals(longer, db.getSeriesHold("id", "light"));
+
+    // Deleting readings before the end of the hold keeps it...
+    db.deleteScalarReadings("id", "light", TimeRange.oldest(Range.closed(0L, 0L)));
+    assertEquals(longer, db.getSeriesHold("id", "light"));
+    // ...but not deleting the reading it holds.
+    db.deleteScalarReadings("id", "light", TimeRange.oldest(Range.atLeast(500L)));
+    assertEquals(null, db.getSeriesHold("id", "light"));
+
+    db.deleteTrials(Lists.newArrayList("other"));
+    assertEquals(null, db.getSeriesHold("other", "light"));
+    while (db.purgeDeletedTrials(100)) {}
+    assertEquals(null, db.getSeriesHold("other", "light"));
+  }
+
+  private static int countReadings(SensorDatabase db, String trialId, String tag) {
+    return db.getScalarReadings(trialId, tag, TimeRange.oldest(Range.<Long>all()), 0, 0).size();
+  }
+
   @Test
   public void testObservable_oneSensor() {
     SensorDatabaseImpl db =
@@ -230,7 +365,11 @@ public class SensorDatabaseTest {
     TestObserver<ScalarReading> testObserver = new TestObserver<>();
     Observable<ScalarReading> obs =
         db.createScalarObservable(
-            "id", new String[] {"tag"}, TimeRange.oldest(Range.closed(0L, 1L)), 0);
+            "id",
+            new String[] {"tag"},
+            TimeRange.oldest(Range.closed(0L, 1L)),
+            0,
+            MoreExecutors.directExecutor());
     obs.subscribe(testObserver);
     testObserver.assertNoErrors();
     testObserver.assertValues(new ScalarReading(0, 0.0, "tag"), new ScalarReading(1, 1.5, "tag"));
@@ -251,7 +390,11 @@ public class SensorDatabaseTest {
     TestObserver<ScalarReading> testObserver = new TestObserver<>();
     Observable<ScalarReading> obs =
         db.createScalarObservable(
-            "id", new String[] {"tag", "tag2"}, TimeRange.oldest(Range.closed(0L, 3L)), 0);
+            "id",
+            new String[] {"tag", "tag2"},
+            TimeRange.oldest(Range.closed(0L, 3L)),
+            0,
+            MoreExecutors.directExecutor());
     obs.subscribe(testObserver);
     testObserver.assertNoErrors();
     testObserver.assertValues(
@@ -278,7 +421,11 @@ public class SensorDatabaseTest {
     TestObserver<ScalarReading> testObserver = new TestObserver<>();
     Observable<ScalarReading> obs =
         db.createScalarObservable(
-            "id", new String[] {"tag"}, TimeRange.oldest(Range.closed(0L, 3L)), 0);
+            "id",
+            new String[] {"tag"},
+            TimeRange.oldest(Range.closed(0L, 3L)),
+            0,
+            MoreExecutors.directExecutor());
     obs.subscribe(testObserver);
     testObserver.assertNoErrors();
     testObserver.assertValues(
@@ -302,16 +449,23 @@ public class SensorDatabaseTest {
     }
 
     TestObserver<ScalarReading> testObserver = new TestObserver<>();
+    AtomicInteger queries = new AtomicInteger();
     Observable<ScalarReading> obs =
         db.createScalarObservable(
             "id",
             new String[] {"tag"},
             TimeRange.oldest(Range.closed(0L, (long) total)),
             0,
-            pageSize);
+            pageSize,
+            command -> {
+              queries.incrementAndGet();
+              command.run();
+            });
     obs.subscribe(testObserver);
     testObserver.assertNoErrors();
     testObserver.assertValueSequence(expected);
+    // Each page is a separate task on the executor, and one more finds that there are no more.
+    assertEquals(total / pageSize + 1, queries.get());
   }
 
   @Test
@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class SeriesHoldTest {
+  @Test
+  public void expandRepeatsEachReadingUntilTheNext() {
+    SeriesHold hold = new SeriesHold("trial", "light", 100, 600);
+    List<ScalarReading> readings =
+        Lists.newArrayList(
+            new ScalarReading(0, 5, "light"),
+            new ScalarReading(300, 7, "light"),
+            new ScalarReading(350, 8, "light"));
+
+    assertThat(hold.expand(readings))
+        .containsExactly(
+            new ScalarReading(0, 5, "light"),
+            new ScalarReading(100, 5, "light"),
+            new ScalarReading(200, 5, "light"),
+            new ScalarReading(300, 7, "light"),
+            new ScalarReading(350, 8, "light"),
+            new ScalarReading(450, 8, "light"),
+            new ScalarReading(550, 8, "light"))
+        .inOrder();
+  }
+
+  @Test
+  public void expandMatchesTheReadingsShownWhileRecording() {
+    // What a sensor refreshed every 100ms showed, as the recording used to store it.
+    List<ScalarReading> shown = new ArrayList<>();
+    List<ScalarReading> changes = new ArrayList<>();
+    double value = 0;
+    for (long time = 0; time <= 60000; time += 100) {
+      if (time % 7000 == 0) {
+        value = time / 7000;
+        changes.add(new ScalarReading(time, value, "light"));
+      }
+      shown.add(new ScalarReading(time, value, "light"));
+    }
+
+    assertThat(changes.size()).isLessThan(shown.size() / 50);
+    assertThat(new SeriesHold("trial", "light", 100, 60000).expand(changes))
+        .containsExactlyElementsIn(shown)
+        .inOrder();
+  }
+
+  @Test
+  public void expandWithoutIntervalLeavesReadings() {
+    List<ScalarReading> readings = Lists.newArrayList(new ScalarReading(0, 5, "light"));
+    assertThat(new SeriesHold("trial", "light", 0, 1000).expand(readings))
+        .containsExactlyElementsIn(readings);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.android.apps.forscience.whistlepunk.performance.Histogram;
+import com.google.android.apps.forscience.whistlepunk.performance.PerfMetrics;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class SeriesSnapshotTest {
+  private static final String TEST_DATABASE_NAME = "snapshot.db";
+  private static final String TRIAL_ID = "trial";
+  private static final String[] TAGS = {"light", "sound"};
+  private static final int TIERS = 2;
+  private static final int READING_COUNT = 2000;
+
+  private SensorDatabaseImpl db;
+
+  @Before
+  public void setUp() {
+    deleteDatabase();
+    db = openDatabase();
+  }
+
+  @After
+  public void tearDown() {
+    deleteDatabase();
+  }
+
+  @Test
+  public void testReadsMatchDatabase() {
+    addReadings(new Random(1));
+    Random random = new Random(2);
+    List<TimeRange> ranges = new ArrayList<>();
+    List<Integer> maxRecords = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      ranges.add(randomRange(random));
+      maxRecords.add(random.nextInt(4) == 0 ? 0 : random.nextInt(300) + 1);
+    }
+    List<List<ScalarReading>> expected = readRanges(ranges, maxRecords);
+
+    db.finalizeTrial(TRIAL_ID);
+    assertThat(readRanges(ranges, maxRecords)).isEqualTo(expected);
+    // A database opened later finds the same snapshots.
+    db = openDatabase();
+    assertThat(readRanges(ranges, maxRecords)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testObservableMatchesDatabase() {
+    addReadings(new Random(3));
+    Random random = new Random(4);
+    List<TimeRange> ranges = new ArrayList<>();
+    List<List<ScalarReading>> expected = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      TimeRange range = TimeRange.oldest(randomRange(random).getTimes());
+      ranges.add(range);
+      expected.add(observe(range, i % TIERS));
+    }
+
+    db.finalizeTrial(TRIAL_ID);
+    for (int i = 0; i < ranges.size(); i++) {
+      assertThat(observe(ranges.get(i), i % TIERS)).isEqualTo(expected.get(i));
+    }
+  }
+
+  @Test
+  public void testExportMatchesDatabase() {
+    addReadings(new Random(5));
+    GoosciExperiment.Experiment experiment = experimentWithTrial();
+    GoosciScalarSensorData.ScalarSensorData expected = db.getScalarReadingProtos(experiment);
+
+    db.finalizeTrial(TRIAL_ID);
+    assertThat(db.getScalarReadingProtos(experiment)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testWritesDropSnapshots() {
+    addReadings(new Random(6));
+    db.finalizeTrial(TRIAL_ID);
+
+    db.addScalarReading(TRIAL_ID, TAGS[0], 0, Long.MAX_VALUE / 2, 42);
+    List<ScalarReading> all = readAll(TAGS[0], 0);
+    assertThat(all.get(all.size() - 1)).isEqualTo(new ScalarReading(Long.MAX_VALUE / 2, 42));
+
+    db.finalizeTrial(TRIAL_ID);
+    assertThat(readAll(TAGS[0], 0)).isEqualTo(all);
+    db.deleteScalarReadings(
+        TRIAL_ID, TAGS[0], TimeRange.oldest(Range.atLeast(Long.MAX_VALUE / 2)));
+    assertThat(readAll(TAGS[0], 0)).isEqualTo(all.subList(0, all.size() - 1));
+
+    db.finalizeTrial(TRIAL_ID);
+    List<String> trialIds = new ArrayList<>();
+    trialIds.add(TRIAL_ID);
+    db.deleteTrials(trialIds);
+    assertThat(getSnapshotDir().listFiles()).isEmpty();
+  }
+
+  @Test
+  public void testUnreadableSnapshotFallsBack() throws IOException {
+    addReadings(new Random(7));
+    List<ScalarReading> expected = readAll(TAGS[1], 1);
+    db.finalizeTrial(TRIAL_ID);
+
+    File[] files = getSnapshotDir().listFiles();
+    assertThat(files).hasLength(TAGS.length * TIERS);
+    for (File file : files) {
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        out.write(new byte[] {1, 2, 3});
+      }
+    }
+    db = openDatabase();
+    assertThat(readAll(TAGS[1], 1)).isEqualTo(expected);
+  }
+
+  @Test
+  public void testFinalizeInSteps() {
+    addReadings(new Random(8));
+    List<ScalarReading> expected = readAll(TAGS[1], 1);
+
+    int steps = 0;
+    while (!db.finalizeTrialStep(TRIAL_ID, 100)) {
+      steps++;
+      // Nothing is served from the snapshots until they are all written.
+      assertThat(db.getSnapshotSizeBytes(TRIAL_ID)).isEqualTo(0L);
+    }
+
+    // At least a step for each page of tier 0 readings.
+    assertThat(steps).isAtLeast(READING_COUNT * TAGS.length / 100);
+    assertThat(readAll(TAGS[1], 1)).isEqualTo(expected);
+    long bytes = 0;
+    for (File file : getSnapshotDir().listFiles()) {
+      bytes += file.length();
+    }
+    assertThat(db.getSnapshotSizeBytes(TRIAL_ID)).isEqualTo(bytes);
+  }
+
+  @Test
+  public void testWriteWhileFinalizingStartsOver() {
+    addReadings(new Random(9));
+    db.finalizeTrialStep(TRIAL_ID, 100);
+    db.finalizeTrialStep(TRIAL_ID, 100);
+
+    db.addScalarReading(TRIAL_ID, TAGS[0], 0, Long.MAX_VALUE / 2, 42);
+    // What was written so far is thrown away.
+    assertThat(getSnapshotDir().listFiles()).isEmpty();
+    db.finalizeTrial(TRIAL_ID);
+
+    List<ScalarReading> all = readAll(TAGS[0], 0);
+    assertThat(all.get(all.size() - 1)).isEqualTo(new ScalarReading(Long.MAX_VALUE / 2, 42));
+    assertThat(getSnapshotDir().listFiles()).hasLength(TAGS.length * TIERS);
+  }
+
+  @Test
+  public void testPanAndZoomServedFromSnapshots() {
+    // A long trial of a single sensor, and a tier above it, as ZoomRecorder would write it.
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    int count = 50000;
+    for (int i = 0; i < count; i++) {
+      readings.add(new BatchInsertScalarReading(TRIAL_ID, TAGS[0], 0, i * 10L, Math.sin(i)));
+      if (i % 20 == 0) {
+        readings.add(new BatchInsertScalarReading(TRIAL_ID, TAGS[0], 1, i * 10L, Math.sin(i)));
+      }
+    }
+    db.addScalarReadings(readings);
+
+    // Pan across the trial at one zoom level, then zoom out from its middle.
+    List<Range<Long>> windows = new ArrayList<>();
+    for (long start = 0; start < count * 10L; start += 10000) {
+      windows.add(Range.closed(start, start + 20000));
+    }
+    for (long width = 1000; width < count * 10L; width *= 2) {
+      long middle = count * 5L;
+      windows.add(Range.closed(middle - width / 2, middle + width / 2));
+    }
+
+    List<List<ScalarReading>> expected = readWindows(windows);
+    Histogram databaseReads = PerfMetrics.getInstance().getHistogram(PerfMetrics.DATABASE_READ);
+    Histogram snapshotReads = PerfMetrics.getInstance().getHistogram(PerfMetrics.SNAPSHOT_READ);
+    databaseReads.reset();
+    snapshotReads.reset();
+    readWindows(windows);
+    assertThat(databaseReads.getCount()).isEqualTo((long) windows.size());
+    assertThat(snapshotReads.getCount()).isEqualTo(0);
+
+    db.finalizeTrial(TRIAL_ID);
+    databaseReads.reset();
+    snapshotReads.reset();
+    assertThat(readWindows(windows)).isEqualTo(expected);
+    // Every window is served from the snapshot, with no query of SQLite.
+    assertThat(snapshotReads.getCount()).isEqualTo((long) windows.size());
+    assertThat(databaseReads.getCount()).isEqualTo(0);
+  }
+
+  /** Adds readings of every tag and tier, with gaps of up to a few hundred milliseconds. */
+  private void addReadings(Random random) {
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    for (int tier = 0; tier < TIERS; tier++) {
+      for (int tag = 0; tag < TAGS.length; tag++) {
+        // Odd and even timestamps, so that readings of different tags never tie.
+        long timestamp = tag;
+        for (int i = 0; i < READING_COUNT >> tier; i++) {
+          timestamp += 2 * (random.nextInt(random.nextInt(10) == 0 ? 300 : 10) + 1);
+          readings.add(
+              new BatchInsertScalarReading(
+                  TRIAL_ID, TAGS[tag], tier, timestamp, random.nextGaussian()));
+        }
+      }
+    }
+    db.addScalarReadings(readings);
+  }
+
+  private static TimeRange randomRange(Random random) {
+    long lower = random.nextInt(READING_COUNT * 200) - 1000;
+    long upper = lower + random.nextInt(READING_COUNT * 50);
+    Range<Long> times;
+    switch (random.nextInt(7)) {
+      case 0:
+        times = Range.closed(lower, upper);
+        break;
+      case 1:
+        times = Range.open(lower, upper + 1);
+        break;
+      case 2:
+        times = Range.closedOpen(lower, upper);
+        break;
+      case 3:
+        times = Range.openClosed(lower, upper);
+        break;
+      case 4:
+        times = Range.atLeast(lower);
+        break;
+      case 5:
+        times = Range.atMost(upper);
+        break;
+      default:
+        times = Range.all();
+        break;
+    }
+    return random.nextBoolean() ? TimeRange.oldest(times) : TimeRange.newest(times);
+  }
+
+  private List<List<ScalarReading>> readRanges(List<TimeRange> ranges, List<Integer> maxRecords) {
+    List<List<ScalarReading>> result = new ArrayList<>();
+    for (int i = 0; i < ranges.size(); i++) {
+      result.add(
+          ScalarReading.slurp(
+              db.getScalarReadings(
+                  TRIAL_ID,
+                  TAGS[i % TAGS.length],
+                  ranges.get(i),
+                  i / TAGS.length % TIERS,
+                  maxRecords.get(i))));
+    }
+    return result;
+  }
+
+  /** Reads each window as a chart would, at the tier that fits its width. */
+  private List<List<ScalarReading>> readWindows(List<Range<Long>> windows) {
+    List<List<ScalarReading>> result = new ArrayList<>();
+    for (Range<Long> window : windows) {
+      int tier = window.upperEndpoint() - window.lowerEndpoint() > 50000 ? 1 : 0;
+      result.add(
+          ScalarReading.slurp(
+              db.getScalarReadings(TRIAL_ID, TAGS[0], TimeRange.oldest(window), tier, 0)));
+    }
+    return result;
+  }
+
+  private List<ScalarReading> observe(TimeRange range, int tier) {
+    return db.createScalarObservable(TRIAL_ID, TAGS, range, tier, MoreExecutors.directExecutor())
+        .toList()
+        .blockingGet();
+  }
+
+  private List<ScalarReading> readAll(String tag, int tier) {
+    return ScalarReading.slurp(
+        db.getScalarReadings(TRIAL_ID, tag, TimeRange.oldest(Range.<Long>all()), tier, 0));
+  }
+
+  private static GoosciExperiment.Experiment experimentWithTrial() {
+    GoosciTrial.Trial.Builder trial =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId(TRIAL_ID)
+            .setRecordingRange(
+                GoosciTrial.Range.newBuilder().setStartMs(0).setEndMs(Long.MAX_VALUE / 2));
+    for (String tag : TAGS) {
+      trial.addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId(tag));
+    }
+    return GoosciExperiment.Experiment.newBuilder().addTrials(trial).build();
+  }
+
+  private SensorDatabaseImpl openDatabase() {
+    return new SensorDatabaseImpl(
+        getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+  }
+
+  private void deleteDatabase() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    File[] files = getSnapshotDir().listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+  }
+
+  private static File getSnapshotDir() {
+    return new File(getContext().getDatabasePath(TEST_DATABASE_NAME).getPath() + "-snapshots");
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
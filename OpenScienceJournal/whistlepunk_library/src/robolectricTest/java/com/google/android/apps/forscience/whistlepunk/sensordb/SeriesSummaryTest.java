@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class SeriesSummaryTest {
+  private static final String TEST_DATABASE_NAME = "series.db";
+  private static final String[] TRIALS = {"trial1", "trial2", "trial3"};
+  private static final String[] TAGS = {"light", "sound", "pressure"};
+  private static final int TIERS = 2;
+
+  private SensorDatabaseImpl db;
+
+  @Before
+  public void setUp() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    db =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+  }
+
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+  }
+
+  @Test
+  public void testSummariesAfterInserts() {
+    InMemorySensorDatabase memoryDb = new InMemorySensorDatabase();
+    addRandomReadings(new Random(1), db);
+    addRandomReadings(new Random(1), memoryDb);
+    // Single readings, before and after the existing ones.
+    db.addScalarReading("trial1", "light", 0, -50, 1);
+    db.addScalarReading("trial1", "light", 0, 1000000, 1);
+    db.addScalarReading("trial2", "newTag", 1, 7, 1);
+    memoryDb.addScalarReading("trial1", "light", 0, -50, 1);
+    memoryDb.addScalarReading("trial1", "light", 0, 1000000, 1);
+    memoryDb.addScalarReading("trial2", "newTag", 1, 7, 1);
+
+    for (String trial : TRIALS) {
+      assertMatchesReadings(trial);
+      assertThat(memoryDb.getSeriesSummaries(trial)).isEqualTo(db.getSeriesSummaries(trial));
+    }
+    long count = countReadings("trial1", "light", 0);
+    assertThat(db.getSeriesSummaries("trial1").get(0))
+        .isEqualTo(new SeriesSummary("trial1", "light", 0, -50, 1000000, count));
+  }
+
+  @Test
+  public void testSummariesAfterDeletes() {
+    addRandomReadings(new Random(2), db);
+
+    db.deleteScalarReadings("trial1", "light", TimeRange.oldest(Range.closed(2000L, 4000L)));
+    // Everything, so the series go away.
+    db.deleteScalarReadings("trial1", "sound", TimeRange.oldest(Range.<Long>all()));
+    // Both ends.
+    db.deleteScalarReadings("trial2", "light", TimeRange.oldest(Range.lessThan(1500L)));
+    db.deleteScalarReadings("trial2", "light", TimeRange.oldest(Range.atLeast(8000L)));
+    // In bounded steps, as when reclaiming cropped data.
+    while (db.deleteScalarReadings(
+            "trial3", "pressure", TimeRange.oldest(Range.greaterThan(5000L)), 7)
+        == 7) {}
+
+    for (String trial : TRIALS) {
+      assertMatchesReadings(trial);
+    }
+    for (SeriesSummary series : db.getSeriesSummaries("trial1")) {
+      assertThat(series.getSensorTag()).isNotEqualTo("sound");
+    }
+  }
+
+  @Test
+  public void testSummariesAfterCropReclaim() {
+    addRandomReadings(new Random(3), db);
+    Long[] reclaimed = new Long[1];
+
+    new CroppedDataReclaimer(
+            db,
+            MoreExecutors.directExecutor(),
+            "trial2",
+            Lists.newArrayList(TAGS),
+            Range.closed(3005L, 6995L),
+            new MaybeConsumer<Long>() {
+              @Override
+              public void success(Long bytes) {
+                reclaimed[0] = bytes;
+              }
+
+              @Override
+              public void fail(Exception e) {
+                throw new RuntimeException(e);
+              }
+            })
+        .start();
+
+    assertThat(reclaimed[0]).isNotNull();
+    for (String trial : TRIALS) {
+      assertMatchesReadings(trial);
+    }
+    for (SeriesSummary series : db.getSeriesSummaries("trial2")) {
+      assertThat(Range.closed(3005L, 6995L).encloses(series.getTimes())).isTrue();
+    }
+  }
+
+  @Test
+  public void testDeletedAndPurgedTrials() {
+    addRandomReadings(new Random(4), db);
+
+    db.deleteTrials(Lists.newArrayList("trial1"));
+    assertThat(db.getSeriesSummaries("trial1")).isEmpty();
+
+    while (db.purgeDeletedTrials(100)) {}
+    assertThat(db.getSeriesSummaries("trial1")).isEmpty();
+    assertThat(countReadings("trial1", "light", 0)).isEqualTo(0L);
+    for (String trial : new String[] {"trial2", "trial3"}) {
+      assertMatchesReadings(trial);
+    }
+  }
+
+  @Test
+  public void testFirstTagAfterMatchesOldQuery() {
+    addRandomReadings(new Random(5), db);
+    db.deleteTrials(Lists.newArrayList("trial3"));
+    Random random = new Random(6);
+    try (SQLiteDatabase rawDb = openRawDatabase()) {
+      for (int i = 0; i < 200; i++) {
+        long timestamp = random.nextInt(11000) - 500;
+        assertThat(db.getFirstDatabaseTagAfter(timestamp))
+            .isEqualTo(oldFirstTagAfter(rawDb, timestamp));
+      }
+    }
+  }
+
+  @Test
+  public void testLatencyWithThousandSeries() {
+    // A trial after another, each with ten sensors recording at once: a thousand series.
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    List<String> trialIds = new ArrayList<>();
+    for (int trial = 0; trial < 100; trial++) {
+      String trialId = "trial" + trial;
+      trialIds.add(trialId);
+      for (int reading = 0; reading < 50; reading++) {
+        for (int tag = 0; tag < 10; tag++) {
+          long timestamp = trial * 10000L + reading * 100L + tag;
+          readings.add(new BatchInsertScalarReading(trialId, "tag" + tag, 0, timestamp, tag));
+        }
+      }
+    }
+    db.addScalarReadings(readings);
+    // Readings of deleted trials that haven't been purged yet lie in the way of the old query.
+    db.deleteTrials(trialIds.subList(0, 90));
+
+    try (SQLiteDatabase rawDb = openRawDatabase()) {
+      long oldNanos = 0;
+      long catalogNanos = 0;
+      for (int i = 0; i < 20; i++) {
+        long start = System.nanoTime();
+        String expected = oldFirstTagAfter(rawDb, -1);
+        oldNanos += System.nanoTime() - start;
+        start = System.nanoTime();
+        String actual = db.getFirstDatabaseTagAfter(-1);
+        catalogNanos += System.nanoTime() - start;
+        assertThat(actual).isEqualTo(expected);
+      }
+      assertThat(catalogNanos).isLessThan(oldNanos);
+
+      oldNanos = 0;
+      catalogNanos = 0;
+      for (int trial = 90; trial < 100; trial++) {
+        String trialId = trialIds.get(trial);
+        long start = System.nanoTime();
+        List<String> expected = oldTagsInTrial(rawDb, trialId);
+        oldNanos += System.nanoTime() - start;
+        start = System.nanoTime();
+        List<String> actual = new ArrayList<>();
+        for (SeriesSummary series : db.getSeriesSummaries(trialId)) {
+          actual.add(series.getSensorTag());
+        }
+        catalogNanos += System.nanoTime() - start;
+        assertThat(actual).isEqualTo(expected);
+      }
+      assertThat(catalogNanos).isLessThan(oldNanos);
+    }
+  }
+
+  /** Adds readings at unique times, so that the first reading after any time is unambiguous. */
+  private static void addRandomReadings(Random random, SensorDatabase database) {
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    long timestamp = 0;
+    while (timestamp < 10000) {
+      String trial = TRIALS[random.nextInt(TRIALS.length)];
+      String tag = TAGS[random.nextInt(TAGS.length)];
+      readings.add(new BatchInsertScalarReading(trial, tag, 0, timestamp, random.nextDouble()));
+      if (random.nextInt(5) == 0) {
+        readings.add(new BatchInsertScalarReading(trial, tag, 1, timestamp, random.nextDouble()));
+      }
+      timestamp += 1 + random.nextInt(5);
+    }
+    database.addScalarReadings(readings);
+  }
+
+  /** Checks the summaries of the trial against its readings. */
+  private void assertMatchesReadings(String trialId) {
+    List<SeriesSummary> expected = new ArrayList<>();
+    List<String> tags = Lists.newArrayList(TAGS);
+    tags.add("newTag");
+    Collections.sort(tags);
+    for (String tag : tags) {
+      for (int tier = 0; tier < TIERS; tier++) {
+        List<ScalarReading> readings =
+            ScalarReading.slurp(
+                db.getScalarReadings(trialId, tag, TimeRange.oldest(Range.<Long>all()), tier, 0));
+        if (!readings.isEmpty()) {
+          expected.add(
+              new SeriesSummary(
+                  trialId,
+                  tag,
+                  tier,
+                  readings.get(0).getCollectedTimeMillis(),
+                  readings.get(readings.size() - 1).getCollectedTimeMillis(),
+                  readings.size()));
+        }
+      }
+    }
+    assertThat(db.getSeriesSummaries(trialId)).isEqualTo(expected);
+  }
+
+  /** Counts readings stored under exactly this trial id, without falling back to legacy ones. */
+  private static long countReadings(String trialId, String tag, int tier) {
+    try (SQLiteDatabase rawDb = openRawDatabase();
+        Cursor cursor =
+            rawDb.rawQuery(
+                "SELECT COUNT(*) FROM scalar_sensors WHERE trialId = ? AND tag = ?"
+                    + " AND resolutionTier = ?",
+                new String[] {trialId, tag, String.valueOf(tier)})) {
+      cursor.moveToNext();
+      return cursor.getLong(0);
+    }
+  }
+
+  /** The query that getFirstDatabaseTagAfter used to run over every reading. */
+  private static String oldFirstTagAfter(SQLiteDatabase rawDb, long timestamp) {
+    try (Cursor cursor =
+        rawDb.rawQuery(
+            "SELECT tag FROM scalar_sensors WHERE timestampMillis > ? AND trialId NOT IN"
+                + " (SELECT trialId FROM deleted_trials) ORDER BY timestampMillis ASC LIMIT 1",
+            new String[] {String.valueOf(timestamp)})) {
+      return cursor.moveToNext() ? cursor.getString(0) : null;
+    }
+  }
+
+  /** Finding which sensors have data in a trial, without the series table. */
+  private static List<String> oldTagsInTrial(SQLiteDatabase rawDb, String trialId) {
+    List<String> tags = new ArrayList<>();
+    try (Cursor cursor =
+        rawDb.rawQuery(
+            "SELECT DISTINCT tag FROM scalar_sensors WHERE trialId = ? ORDER BY tag",
+            new String[] {trialId})) {
+      while (cursor.moveToNext()) {
+        tags.add(cursor.getString(0));
+      }
+    }
+    return tags;
+  }
+
+  private static SQLiteDatabase openRawDatabase() {
+    return SQLiteDatabase.openDatabase(
+        getContext().getDatabasePath(TEST_DATABASE_NAME).getPath(),
+        null,
+        SQLiteDatabase.OPEN_READONLY);
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
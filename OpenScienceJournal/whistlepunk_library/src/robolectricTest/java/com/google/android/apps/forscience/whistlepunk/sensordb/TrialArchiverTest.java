@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensordb;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import com.google.android.apps.forscience.javalib.MaybeConsumer;
+import com.google.android.apps.forscience.whistlepunk.BatchInsertScalarReading;
+import com.google.android.apps.forscience.whistlepunk.accounts.NonSignedInAccount;
+import com.google.android.apps.forscience.whistlepunk.data.GoosciSensorLayout;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciExperiment;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataDump;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciScalarSensorData.ScalarSensorDataRow;
+import com.google.android.apps.forscience.whistlepunk.metadata.GoosciTrial;
+import com.google.common.collect.Range;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+@RunWith(RobolectricTestRunner.class)
+public class TrialArchiverTest {
+  private static final String TEST_DATABASE_NAME = "archive.db";
+  private static final String TAG = "tag";
+  // Recorded with a tier 1, as ZoomRecorder does.
+  private static final String OLD_TRIAL = "oldTrial";
+  // Recorded before there were tiers, so tier 1 must be built.
+  private static final String LEGACY_TRIAL = "legacyTrial";
+  private static final String RECENT_TRIAL = "recentTrial";
+  private static final int READING_COUNT = 20000;
+  private static final ArchivePolicy POLICY = new ArchivePolicy(TimeUnit.DAYS.toMillis(30), 1, 20);
+  private static final long NOW = TimeUnit.DAYS.toMillis(100);
+  // Readings of tier 0 summarized by each minimum and maximum pair of tier 1.
+  private static final int RUN_LENGTH = 40;
+
+  private SensorDatabaseImpl db;
+  private Long bytesReclaimed;
+
+  @Before
+  public void setUp() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    db =
+        new SensorDatabaseImpl(
+            getContext(), NonSignedInAccount.getInstance(getContext()), TEST_DATABASE_NAME);
+    List<BatchInsertScalarReading> readings = new ArrayList<>();
+    addReadings(readings, OLD_TRIAL, 0, true);
+    addReadings(readings, LEGACY_TRIAL, READING_COUNT, false);
+    addReadings(readings, RECENT_TRIAL, NOW - TimeUnit.DAYS.toMillis(1), true);
+    db.addScalarReadings(readings);
+  }
+
+  @After
+  public void tearDown() {
+    getContext().getDatabasePath(TEST_DATABASE_NAME).delete();
+    File[] snapshots =
+        new File(getContext().getDatabasePath(TEST_DATABASE_NAME).getPath() + "-snapshots")
+            .listFiles();
+    if (snapshots != null) {
+      for (File file : snapshots) {
+        file.delete();
+      }
+    }
+  }
+
+  @Test
+  public void testPeaksPreserved() {
+    List<ScalarReading> oldBefore = readAll(OLD_TRIAL, 0);
+    List<ScalarReading> legacyBefore = readAll(LEGACY_TRIAL, 0);
+
+    archiver().start();
+
+    assertThat(bytesReclaimed).isNotNull();
+    assertThat(db.getFinestTier(OLD_TRIAL)).isEqualTo(1);
+    assertThat(db.getFinestTier(LEGACY_TRIAL)).isEqualTo(1);
+    // Charts asking for tier 0 get tier 1, whose every run has the extremes of the original.
+    assertSameExtremes(oldBefore, readAll(OLD_TRIAL, 0));
+    assertSameExtremes(legacyBefore, readAll(LEGACY_TRIAL, 0));
+    assertThat(readAll(OLD_TRIAL, 0)).isEqualTo(readAll(OLD_TRIAL, 1));
+    assertThat(readAll(LEGACY_TRIAL, 0)).hasSize(READING_COUNT * 2 / RUN_LENGTH);
+  }
+
+  @Test
+  public void testDatabaseShrinks() {
+    File file = getContext().getDatabasePath(TEST_DATABASE_NAME);
+    long sizeBefore = file.length();
+
+    archiver().start();
+
+    assertThat(bytesReclaimed).isGreaterThan(0L);
+    // Two of the three trials lost nearly all of their readings.
+    assertThat(file.length()).isLessThan(sizeBefore / 2);
+    for (SeriesSummary series : db.getSeriesSummaries(OLD_TRIAL)) {
+      assertThat(series.getResolutionTier()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  public void testSnapshotsCounted() {
+    db.finalizeTrial(OLD_TRIAL);
+    long snapshotBytesBefore = db.getSnapshotSizeBytes(OLD_TRIAL);
+
+    archiver().start();
+
+    // The trial's snapshots are written again from the finest tier, so they shrink too.
+    long snapshotBytesAfter = db.getSnapshotSizeBytes(OLD_TRIAL);
+    assertThat(snapshotBytesAfter).isGreaterThan(0L);
+    assertThat(snapshotBytesAfter).isLessThan(snapshotBytesBefore / 2);
+    assertThat(bytesReclaimed).isAtLeast(snapshotBytesBefore - snapshotBytesAfter);
+    assertThat(readAll(OLD_TRIAL, 0)).isEqualTo(readAll(OLD_TRIAL, 1));
+  }
+
+  @Test
+  public void testRecentTrialUntouched() {
+    List<ScalarReading> tier0Before = readAll(RECENT_TRIAL, 0);
+
+    archiver().start();
+
+    assertThat(db.getFinestTier(RECENT_TRIAL)).isEqualTo(0);
+    assertThat(readAll(RECENT_TRIAL, 0)).isEqualTo(tier0Before);
+    // Only the recent trial is left to archive, once it has been idle for long enough.
+    assertThat(db.getIdleTrialIds(NOW - POLICY.getIdleMillis(), 1)).isEmpty();
+    assertThat(db.getIdleTrialIds(Long.MAX_VALUE, 1)).containsExactly(RECENT_TRIAL);
+  }
+
+  @Test
+  public void testExportHoldsFinestTier() {
+    GoosciExperiment.Experiment experiment = experimentWithTrial(OLD_TRIAL, 0);
+    ScalarSensorDataDump before = db.getScalarReadingProtos(experiment).getSensors(0);
+    assertThat(before.hasResolutionTier()).isFalse();
+    assertThat(before.getRowsCount()).isEqualTo(READING_COUNT);
+
+    archiver().start();
+
+    ScalarSensorDataDump after = db.getScalarReadingProtos(experiment).getSensors(0);
+    assertThat(after.getResolutionTier()).isEqualTo(1);
+    assertThat(after.getTrialId()).isEqualTo(OLD_TRIAL);
+    List<ScalarReading> rows = new ArrayList<>();
+    for (ScalarSensorDataRow row : after.getRowsList()) {
+      rows.add(new ScalarReading(row.getTimestampMillis(), row.getValue()));
+    }
+    assertThat(rows).isEqualTo(readAll(OLD_TRIAL, 1));
+  }
+
+  @Test
+  public void testNothingToArchive() {
+    archiver().start();
+    bytesReclaimed = null;
+
+    // A second run finds nothing left, and skips compaction.
+    archiver().start();
+    assertThat(bytesReclaimed).isEqualTo(0L);
+  }
+
+  /** Adds readings with spikes in between that only tier 0 would otherwise keep. */
+  private static void addReadings(
+      List<BatchInsertScalarReading> readings, String trialId, long start, boolean withTier1) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    long minTime = 0;
+    long maxTime = 0;
+    for (int i = 0; i < READING_COUNT; i++) {
+      double value = Math.sin(i / 100.0);
+      if (i % 997 == 0) {
+        value = 100;
+      } else if (i % 991 == 0) {
+        value = -100;
+      }
+      readings.add(new BatchInsertScalarReading(trialId, TAG, 0, start + i, value));
+      if (value < min) {
+        min = value;
+        minTime = start + i;
+      }
+      if (value > max) {
+        max = value;
+        maxTime = start + i;
+      }
+      if (withTier1 && i % RUN_LENGTH == RUN_LENGTH - 1) {
+        readings.add(new BatchInsertScalarReading(trialId, TAG, 1, minTime, min));
+        readings.add(new BatchInsertScalarReading(trialId, TAG, 1, maxTime, max));
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+      }
+    }
+  }
+
+  /** Checks that each run of the original readings has the same extremes as the archived ones. */
+  private static void assertSameExtremes(
+      List<ScalarReading> original, List<ScalarReading> archived) {
+    assertThat(archived.size()).isLessThan(original.size());
+    for (int start = 0; start < original.size(); start += RUN_LENGTH) {
+      Range<Long> run =
+          Range.closed(
+              original.get(start).getCollectedTimeMillis(),
+              original.get(start + RUN_LENGTH - 1).getCollectedTimeMillis());
+      assertThat(extremes(archived, run)).isEqualTo(extremes(original, run));
+    }
+  }
+
+  private static Range<Double> extremes(List<ScalarReading> readings, Range<Long> times) {
+    Range<Double> result = null;
+    for (ScalarReading reading : readings) {
+      if (times.contains(reading.getCollectedTimeMillis())) {
+        Range<Double> value = Range.singleton(reading.getValue());
+        result = result == null ? value : result.span(value);
+      }
+    }
+    return result;
+  }
+
+  private static GoosciExperiment.Experiment experimentWithTrial(String trialId, long start) {
+    GoosciTrial.Trial trial =
+        GoosciTrial.Trial.newBuilder()
+            .setTrialId(trialId)
+            .setRecordingRange(
+                GoosciTrial.Range.newBuilder()
+                    .setStartMs(start)
+                    .setEndMs(start + READING_COUNT - 1))
+            .addSensorLayouts(GoosciSensorLayout.SensorLayout.newBuilder().setSensorId(TAG))
+            .build();
+    return GoosciExperiment.Experiment.newBuilder().addTrials(trial).build();
+  }
+
+  private TrialArchiver archiver() {
+    return new TrialArchiver(
+        db,
+        MoreExecutors.directExecutor(),
+        POLICY,
+        NOW,
+        new MaybeConsumer<Long>() {
+          @Override
+          public void success(Long value) {
+            bytesReclaimed = value;
+          }
+
+          @Override
+          public void fail(Exception e) {
+            throw new AssertionError(e);
+          }
+        });
+  }
+
+  private List<ScalarReading> readAll(String trialId, int tier) {
+    return ScalarReading.slurp(
+        db.getScalarReadings(trialId, TAG, TimeRange.oldest(Range.<Long>all()), tier, 0));
+  }
+
+  private static Context getContext() {
+    return RuntimeEnvironment.application.getApplicationContext();
+  }
+}
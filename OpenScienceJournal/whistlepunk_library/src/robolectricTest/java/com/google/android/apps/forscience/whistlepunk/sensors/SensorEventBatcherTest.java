@@ -0,0 +1,229 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.whistlepunk.sensors;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.hardware.SensorEvent;
+import com.google.android.apps.forscience.whistlepunk.sensorapi.BatchStreamConsumer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.util.ReflectionHelpers;
+import org.robolectric.util.ReflectionHelpers.ClassParameter;
+
+@RunWith(RobolectricTestRunner.class)
+public class SensorEventBatcherTest {
+  // 400 Hz, in nanoseconds.
+  private static final long PERIOD_NANOS = 2500000;
+  private static final long CLOCK_OFFSET_NANOS = 1500000000000L * 1000000;
+  // Elapsed realtime of the first event.
+  private static final long START_NANOS = 5000000000L;
+  private static final long MAX_SKEW_NANOS = 1000000000;
+
+  private final ArrayDeque<Runnable> pendingFlushes = new ArrayDeque<>();
+  private final RecordingBatchConsumer consumer = new RecordingBatchConsumer();
+  private final SensorEvent event = newSensorEvent();
+  private long nowMillis = (START_NANOS + CLOCK_OFFSET_NANOS) / 1000000;
+
+  @Test
+  public void testPassesOnDeliveredEventsTogether() {
+    SensorEventBatcher.BatchingListener listener = newListener();
+    deliver(listener, 0, 100);
+    assertThat(consumer.batchSizes).isEmpty();
+
+    runPendingFlushes();
+    assertThat(consumer.batchSizes).containsExactly(100);
+    deliver(listener, 100, 10);
+    runPendingFlushes();
+    assertThat(consumer.batchSizes).containsExactly(100, 10).inOrder();
+    assertInOrderFrom(0, 110);
+  }
+
+  @Test
+  public void testPassesOnFullBatches() {
+    SensorEventBatcher.BatchingListener listener = newListener();
+    deliver(listener, 0, 2 * SensorEventBatcher.MAX_BATCH_SIZE + 10);
+    assertThat(consumer.batchSizes)
+        .containsExactly(SensorEventBatcher.MAX_BATCH_SIZE, SensorEventBatcher.MAX_BATCH_SIZE);
+
+    runPendingFlushes();
+    assertThat(consumer.batchSizes).hasSize(3);
+    assertThat(consumer.batchSizes.get(2)).isEqualTo(10);
+    assertInOrderFrom(0, 2 * SensorEventBatcher.MAX_BATCH_SIZE + 10);
+  }
+
+  @Test
+  public void testConvertsEventTimestamps() {
+    SensorEventBatcher.BatchingListener listener = newListener();
+    // Events held in the FIFO arrive well after they were sampled.
+    nowMillis += 200;
+    deliver(listener, 0, 3);
+    runPendingFlushes();
+    long startMillis = (START_NANOS + CLOCK_OFFSET_NANOS) / 1000000;
+    assertThat(consumer.timestamps)
+        .containsExactly(startMillis, startMillis + 2, startMillis + 5)
+        .inOrder();
+  }
+
+  @Test
+  public void testTimesEventsFromClockInOtherTimeBase() {
+    // An hour off.
+    SensorEventBatcher.BatchingListener listener =
+        newListener(CLOCK_OFFSET_NANOS - 3600000000000L, e -> e.values[0]);
+    deliver(listener, 0, 3);
+    runPendingFlushes();
+    assertThat(consumer.timestamps)
+        .containsExactly(nowMillis, nowMillis + 2, nowMillis + 5)
+        .inOrder();
+  }
+
+  @Test
+  public void testSkipsEventsWithoutValue() {
+    SensorEventBatcher.BatchingListener listener =
+        newListener(CLOCK_OFFSET_NANOS, e -> e.values[0] % 2 == 0 ? e.values[0] : Double.NaN);
+    deliver(listener, 0, 10);
+    runPendingFlushes();
+    assertThat(consumer.values).containsExactly(0.0, 2.0, 4.0, 6.0, 8.0).inOrder();
+  }
+
+  @Test
+  public void testPerEventOverheadAt400Hz() {
+    SensorEventBatcher.BatchingListener listener = newListener();
+    // Five minutes of samples, delivered from the FIFO every 250 milliseconds.
+    int eventsPerDelivery = 100;
+    int deliveries = 1200;
+    consumer.keepReadings = false;
+    // Once to warm up, and once to measure.
+    deliverAll(listener, 0, eventsPerDelivery, deliveries / 10);
+    consumer.count = 0;
+    long startBytes = getAllocatedBytes();
+    long startNanos = System.nanoTime();
+    deliverAll(listener, deliveries / 10, eventsPerDelivery, deliveries);
+    long nanos = System.nanoTime() - startNanos;
+    long bytes = getAllocatedBytes() - startBytes;
+
+    int events = eventsPerDelivery * deliveries;
+    assertThat(consumer.count).isEqualTo(events);
+    assertThat(consumer.batchSizes).hasSize(deliveries / 10 + deliveries);
+    String report =
+        String.format(
+            "%d events in %d ns (%d ns each), %d bytes allocated",
+            events, nanos, nanos / events, bytes);
+    // At 400 Hz, a sample comes every 2.5 milliseconds.
+    assertWithMessage(report).that(nanos / events).isLessThan(5000L);
+    assertWithMessage(report).that(bytes).isLessThan((long) events);
+  }
+
+  private SensorEventBatcher.BatchingListener newListener() {
+    return newListener(CLOCK_OFFSET_NANOS, e -> e.values[0]);
+  }
+
+  private SensorEventBatcher.BatchingListener newListener(
+      long clockOffsetNanos, SensorEventBatcher.EventValue eventValue) {
+    return new SensorEventBatcher.BatchingListener(
+        () -> nowMillis,
+        clockOffsetNanos,
+        MAX_SKEW_NANOS,
+        consumer,
+        eventValue,
+        pendingFlushes::add);
+  }
+
+  /** Delivers events in turn, as the sensor thread does, the value of each being its index. */
+  private void deliver(SensorEventBatcher.BatchingListener listener, int first, int count) {
+    for (int i = first; i < first + count; i++) {
+      event.timestamp = START_NANOS + i * PERIOD_NANOS;
+      event.values[0] = i;
+      listener.onSensorChanged(event);
+    }
+  }
+
+  private void deliverAll(
+      SensorEventBatcher.BatchingListener listener,
+      int firstDelivery,
+      int eventsPerDelivery,
+      int deliveries) {
+    for (int d = firstDelivery; d < firstDelivery + deliveries; d++) {
+      deliver(listener, d * eventsPerDelivery, eventsPerDelivery);
+      runPendingFlushes();
+    }
+  }
+
+  private void runPendingFlushes() {
+    while (!pendingFlushes.isEmpty()) {
+      pendingFlushes.poll().run();
+    }
+  }
+
+  private void assertInOrderFrom(int first, int count) {
+    assertThat(consumer.values).hasSize(count);
+    for (int i = 0; i < count; i++) {
+      assertThat(consumer.values.get(i)).isEqualTo((double) (first + i));
+      long sampledNanos = START_NANOS + (first + i) * PERIOD_NANOS + CLOCK_OFFSET_NANOS;
+      assertThat(consumer.timestamps.get(i)).isEqualTo(sampledNanos / 1000000);
+    }
+  }
+
+  private static SensorEvent newSensorEvent() {
+    return ReflectionHelpers.callConstructor(
+        SensorEvent.class, ClassParameter.from(int.class, 3));
+  }
+
+  /** Returns the bytes allocated so far by this thread, or 0 where the JVM can't tell. */
+  private static long getAllocatedBytes() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.isThreadAllocatedMemorySupported()
+        ? bean.getThreadAllocatedBytes(Thread.currentThread().getId())
+        : 0;
+  }
+
+  private static class RecordingBatchConsumer implements BatchStreamConsumer {
+    final List<Integer> batchSizes = new ArrayList<>();
+    final List<Long> timestamps = new ArrayList<>();
+    final List<Double> values = new ArrayList<>();
+    boolean keepReadings = true;
+    int count = 0;
+
+    @Override
+    public int addBatch(long[] timestampsMillis, double[] batchValues, int size) {
+      batchSizes.add(size);
+      count += size;
+      if (keepReadings) {
+        for (int i = 0; i < size; i++) {
+          timestamps.add(timestampsMillis[i]);
+          values.add(batchValues[i]);
+        }
+      }
+      return size;
+    }
+
+    @Override
+    public boolean addData(long timestampMillis, double value) {
+      throw new AssertionError("Should be passed on in batches");
+    }
+  }
+}
@@ -178,6 +178,15 @@ public class ManualSensor extends ScalarSensor {
     }
   }
 
+  /** Tells the sensor that the last value pushed still holds, as a DataRefresher does. */
+  public void holdValue(long timestampMillis, long intervalMillis) {
+    if (consumer != null) {
+      if (!((HoldingStreamConsumer) consumer).holdData(timestampMillis, intervalMillis)) {
+        fail("Did not hold data: " + timestampMillis);
+      }
+    }
+  }
+
   private SensorPresenter createPresenter() {
     StatsListener statsListener = new StubStatsListener();
     return createPresenter(
@@ -16,13 +16,89 @@
 package com.google.android.apps.forscience.synthetic;
 
 import android.os.Bundle;
+import android.view.View;
+import android.widget.EditText;
+import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
 
+/** Edits the settings of the synthetic sensors advertised by {@link SyntheticSensorService}. */
 public class MainActivity extends AppCompatActivity {
+  private SyntheticSettings settings;
+  private EditText deviceCount;
+  private EditText rateHz;
+  private EditText frequencyHz;
+  private EditText jitterMicros;
+  private EditText dropoutPeriod;
+  private EditText dropoutLength;
+  private EditText dropoutProbability;
+  private EditText seed;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     setContentView(R.layout.activity_main);
+    settings = new SyntheticSettings(this);
+    deviceCount = (EditText) findViewById(R.id.device_count);
+    rateHz = (EditText) findViewById(R.id.rate_hz);
+    frequencyHz = (EditText) findViewById(R.id.frequency_hz);
+    jitterMicros = (EditText) findViewById(R.id.jitter_micros);
+    dropoutPeriod = (EditText) findViewById(R.id.dropout_period);
+    dropoutLength = (EditText) findViewById(R.id.dropout_length);
+    dropoutProbability = (EditText) findViewById(R.id.dropout_probability);
+    seed = (EditText) findViewById(R.id.seed);
+
+    SyntheticSensorConfig config = settings.getBaseConfig();
+    deviceCount.setText(String.valueOf(settings.getDeviceCount()));
+    rateHz.setText(String.valueOf(config.rateHz));
+    frequencyHz.setText(String.valueOf(config.frequencyHz));
+    jitterMicros.setText(String.valueOf(config.jitterMicros));
+    dropoutPeriod.setText(String.valueOf(config.dropoutPeriod));
+    dropoutLength.setText(String.valueOf(config.dropoutLength));
+    dropoutProbability.setText(String.valueOf(config.dropoutProbability));
+    seed.setText(String.valueOf(config.seed));
+
+    findViewById(R.id.save)
+        .setOnClickListener(
+            new View.OnClickListener() {
+              @Override
+              public void onClick(View v) {
+                save();
+              }
+            });
+  }
+
+  private void save() {
+    try {
+      int devices = Integer.parseInt(deviceCount.getText().toString());
+      SyntheticSensorConfig config = new SyntheticSensorConfig();
+      config.rateHz = Double.parseDouble(rateHz.getText().toString());
+      config.frequencyHz = Double.parseDouble(frequencyHz.getText().toString());
+      config.jitterMicros = Long.parseLong(jitterMicros.getText().toString());
+      config.dropoutPeriod = Integer.parseInt(dropoutPeriod.getText().toString());
+      config.dropoutLength = Integer.parseInt(dropoutLength.getText().toString());
+      config.dropoutProbability = Double.parseDouble(dropoutProbability.getText().toString());
+      config.seed = Long.parseLong(seed.getText().toString());
+      if (!isValid(devices, config)) {
+        Toast.makeText(this, R.string.invalid_settings, Toast.LENGTH_SHORT).show();
+        return;
+      }
+      settings.save(devices, config);
+      Toast.makeText(this, R.string.saved, Toast.LENGTH_SHORT).show();
+    } catch (NumberFormatException e) {
+      Toast.makeText(this, R.string.invalid_settings, Toast.LENGTH_SHORT).show();
+    }
+  }
+
+  private static boolean isValid(int devices, SyntheticSensorConfig config) {
+    return devices >= 0
+        && devices <= SyntheticSettings.MAX_DEVICE_COUNT
+        && config.rateHz > 0
+        && config.rateHz <= SyntheticSensorConfig.MAX_RATE_HZ
+        && config.jitterMicros >= 0
+        && config.dropoutPeriod >= 0
+        && config.dropoutLength >= 0
+        && config.dropoutLength <= config.dropoutPeriod
+        && config.dropoutProbability >= 0
+        && config.dropoutProbability <= 1;
   }
 }
@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+import androidx.annotation.NonNull;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.AdvertisedDevice;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.AdvertisedSensor;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.ScalarSensorService;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.SensorAppearanceResources;
+import com.google.android.apps.forscience.whistlepunk.api.scalarinput.SensorBehavior;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Advertises synthetic devices, each with one sensor of every {@link SignalShape}, for load and
+ * soak testing of Science Journal without real hardware. The number of devices and how their
+ * sensors sample are set in {@link MainActivity}.
+ */
+public class SyntheticSensorService extends ScalarSensorService {
+  // How often a streaming sensor wakes up to send the samples that have come due.
+  private static final long TICK_MILLIS = 10;
+
+  @Override
+  protected boolean shouldCheckBinderSignature() {
+    // The data is made up, so any build of Science Journal may connect, including local ones.
+    return false;
+  }
+
+  @NonNull
+  @Override
+  protected String getDiscovererName() {
+    return "Synthetic";
+  }
+
+  @Override
+  protected List<? extends AdvertisedDevice> getDevices() {
+    final SyntheticSettings settings = new SyntheticSettings(this);
+    List<AdvertisedDevice> devices = new ArrayList<>();
+    for (int i = 0; i < settings.getDeviceCount(); i++) {
+      final int deviceIndex = i;
+      final String deviceId = "synthetic" + i;
+      devices.add(
+          new AdvertisedDevice(deviceId, "Synthetic device " + (i + 1)) {
+            @Override
+            public List<? extends AdvertisedSensor> getSensors() {
+              List<AdvertisedSensor> sensors = new ArrayList<>();
+              for (SignalShape shape : SignalShape.values()) {
+                sensors.add(
+                    new SyntheticSensor(
+                        deviceId + "/" + shape.name(), settings.getConfig(deviceIndex, shape)));
+              }
+              return sensors;
+            }
+          });
+    }
+    return devices;
+  }
+
+  /** Sends the samples of a {@link SyntheticSignal} as they come due. */
+  private static class SyntheticSensor extends AdvertisedSensor {
+    private final SyntheticSensorConfig config;
+    private Thread streamer;
+
+    SyntheticSensor(String address, SyntheticSensorConfig config) {
+      super(address, describe(config));
+      this.config = config;
+    }
+
+    private static String describe(SyntheticSensorConfig config) {
+      String shape = config.shape.name().toLowerCase(Locale.US);
+      return String.format(Locale.US, "%s %.0f Hz", shape, config.rateHz);
+    }
+
+    @Override
+    protected SensorAppearanceResources getAppearance() {
+      SensorAppearanceResources appearance = new SensorAppearanceResources();
+      appearance.iconId = android.R.drawable.ic_menu_compass;
+      appearance.shortDescription = "Synthetic " + config.shape.name().toLowerCase(Locale.US);
+      return appearance;
+    }
+
+    @Override
+    protected SensorBehavior getBehavior() {
+      SensorBehavior behavior = new SensorBehavior();
+      behavior.loggingId = "synthetic";
+      behavior.expectedSamplesPerSecond = (float) config.rateHz;
+      return behavior;
+    }
+
+    @Override
+    protected void streamData(final DataConsumer c) {
+      stopStreaming();
+      streamer =
+          new Thread("SyntheticSensor") {
+            @Override
+            public void run() {
+              SyntheticSignal signal = new SyntheticSignal(config, System.currentTimeMillis());
+              SyntheticSignal.Sink sink =
+                  new SyntheticSignal.Sink() {
+                    @Override
+                    public void onSample(long timestampMillis, double value) {
+                      c.onNewData(timestampMillis, value);
+                    }
+                  };
+              while (c.isReceiving() && !isInterrupted()) {
+                signal.generateUntil(System.currentTimeMillis(), sink);
+                try {
+                  Thread.sleep(TICK_MILLIS);
+                } catch (InterruptedException e) {
+                  return;
+                }
+              }
+            }
+          };
+      streamer.start();
+    }
+
+    @Override
+    protected void disconnect() {
+      stopStreaming();
+    }
+
+    private void stopStreaming() {
+      if (streamer != null) {
+        streamer.interrupt();
+        streamer = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The settings shared by every synthetic sensor, kept in shared preferences. Each advertised
+ * sensor gets its own seed from the base seed, so that no two produce the same samples.
+ */
+class SyntheticSettings {
+  private static final String PREFS_NAME = "synthetic_sensors";
+  static final String KEY_DEVICE_COUNT = "device_count";
+  static final String KEY_RATE_HZ = "rate_hz";
+  static final String KEY_FREQUENCY_HZ = "frequency_hz";
+  static final String KEY_JITTER_MICROS = "jitter_micros";
+  static final String KEY_DROPOUT_PERIOD = "dropout_period";
+  static final String KEY_DROPOUT_LENGTH = "dropout_length";
+  static final String KEY_DROPOUT_PROBABILITY = "dropout_probability";
+  static final String KEY_SEED = "seed";
+
+  static final int DEFAULT_DEVICE_COUNT = 1;
+  static final int MAX_DEVICE_COUNT = 20;
+
+  private final SharedPreferences prefs;
+
+  SyntheticSettings(Context context) {
+    prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+  }
+
+  int getDeviceCount() {
+    return prefs.getInt(KEY_DEVICE_COUNT, DEFAULT_DEVICE_COUNT);
+  }
+
+  /** Returns the configuration of the sensor with the given shape on the given device. */
+  SyntheticSensorConfig getConfig(int deviceIndex, SignalShape shape) {
+    SyntheticSensorConfig config = getBaseConfig();
+    config.shape = shape;
+    config.seed = config.seed * 31 * 31 + deviceIndex * 31 + shape.ordinal();
+    return config;
+  }
+
+  /** Returns the configuration the sensors share, before each is given its shape and seed. */
+  SyntheticSensorConfig getBaseConfig() {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.rateHz = prefs.getFloat(KEY_RATE_HZ, (float) config.rateHz);
+    config.frequencyHz = prefs.getFloat(KEY_FREQUENCY_HZ, (float) config.frequencyHz);
+    config.jitterMicros = prefs.getLong(KEY_JITTER_MICROS, config.jitterMicros);
+    config.dropoutPeriod = prefs.getInt(KEY_DROPOUT_PERIOD, config.dropoutPeriod);
+    config.dropoutLength = prefs.getInt(KEY_DROPOUT_LENGTH, config.dropoutLength);
+    config.dropoutProbability =
+        prefs.getFloat(KEY_DROPOUT_PROBABILITY, (float) config.dropoutProbability);
+    config.seed = prefs.getLong(KEY_SEED, config.seed);
+    return config;
+  }
+
+  void save(int deviceCount, SyntheticSensorConfig config) {
+    prefs
+        .edit()
+        .putInt(KEY_DEVICE_COUNT, deviceCount)
+        .putFloat(KEY_RATE_HZ, (float) config.rateHz)
+        .putFloat(KEY_FREQUENCY_HZ, (float) config.frequencyHz)
+        .putLong(KEY_JITTER_MICROS, config.jitterMicros)
+        .putInt(KEY_DROPOUT_PERIOD, config.dropoutPeriod)
+        .putInt(KEY_DROPOUT_LENGTH, config.dropoutLength)
+        .putFloat(KEY_DROPOUT_PROBABILITY, (float) config.dropoutProbability)
+        .putLong(KEY_SEED, config.seed)
+        .apply();
+  }
+}
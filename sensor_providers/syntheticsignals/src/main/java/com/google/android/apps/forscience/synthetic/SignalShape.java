@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+/** The shapes of signal that a synthetic sensor can produce. */
+public enum SignalShape {
+  /** A sine wave. */
+  SINE,
+  /** Alternates between the top and bottom of its range, spending half of each cycle at each. */
+  SQUARE,
+  /** Normally distributed noise around the offset. */
+  NOISE,
+  /** A staircase, rising by the amplitude once per cycle. */
+  STEP,
+  /** A sine wave whose frequency rises from zero to the configured one, over and over. */
+  CHIRP,
+  /** Flat at the offset, with bursts of noise at random times, about once per cycle. */
+  BURSTY
+}
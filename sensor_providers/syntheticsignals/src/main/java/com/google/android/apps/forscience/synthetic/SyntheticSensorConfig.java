@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+/** How the samples of a synthetic sensor are generated. Every field has a usable default. */
+public class SyntheticSensorConfig {
+  /** The highest supported sampling rate. */
+  public static final double MAX_RATE_HZ = 5000;
+
+  public SignalShape shape = SignalShape.SINE;
+
+  /** Samples per second, up to {@link #MAX_RATE_HZ}. */
+  public double rateHz = 100;
+
+  /** Cycles per second of the shape. For a chirp, the frequency at the end of each sweep. */
+  public double frequencyHz = 1;
+
+  public double amplitude = 1;
+
+  public double offset = 0;
+
+  /** Each sample is taken up to this many microseconds before or after it is due. */
+  public long jitterMicros = 0;
+
+  /** With {@link #dropoutLength}, of every this many samples, the last few are never sent. */
+  public int dropoutPeriod = 0;
+
+  public int dropoutLength = 0;
+
+  /** The chance that any other sample is never sent. */
+  public double dropoutProbability = 0;
+
+  /** Decides the jitter, dropouts and noise, so that a run can be repeated exactly. */
+  public long seed = 0;
+
+  public SyntheticSensorConfig copy() {
+    SyntheticSensorConfig copy = new SyntheticSensorConfig();
+    copy.shape = shape;
+    copy.rateHz = rateHz;
+    copy.frequencyHz = frequencyHz;
+    copy.amplitude = amplitude;
+    copy.offset = offset;
+    copy.jitterMicros = jitterMicros;
+    copy.dropoutPeriod = dropoutPeriod;
+    copy.dropoutLength = dropoutLength;
+    copy.dropoutProbability = dropoutProbability;
+    copy.seed = seed;
+    return copy;
+  }
+}
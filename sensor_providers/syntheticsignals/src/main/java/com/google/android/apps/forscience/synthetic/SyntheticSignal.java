@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+import java.util.Random;
+
+/**
+ * Generates the samples of a synthetic sensor. Which samples are sent, when each was taken and
+ * what its value is depend only on the configuration, including its seed, and the start time, so a
+ * run can be repeated exactly.
+ *
+ * <p>This has no Android dependencies, so that whistlepunk_library's tests can pass the same
+ * samples straight to Science Journal's sensor code.
+ */
+public class SyntheticSignal {
+  /** Receives the samples that are sent. */
+  public interface Sink {
+    void onSample(long timestampMillis, double value);
+  }
+
+  private static final double MICROS_PER_SECOND = 1e6;
+  private static final double CHIRP_SWEEP_SECONDS = 10;
+  private static final double BURST_SECONDS = 0.05;
+  // So that the noise doesn't depend on the timing, or the timing on the shape.
+  private static final long VALUE_SEED_MASK = 0x5DEECE66DL;
+
+  private final SyntheticSensorConfig config;
+  private final long startMicros;
+  private final double periodMicros;
+  private final Random timing;
+  private final Random values;
+  private long generatedCount = 0;
+  private long sentCount = 0;
+  private long lastMicros = Long.MIN_VALUE;
+  private long burstEndMicros = Long.MIN_VALUE;
+
+  public SyntheticSignal(SyntheticSensorConfig config, long startMillis) {
+    if (!(config.rateHz > 0 && config.rateHz <= SyntheticSensorConfig.MAX_RATE_HZ)) {
+      throw new IllegalArgumentException("Unsupported rate: " + config.rateHz);
+    }
+    this.config = config.copy();
+    startMicros = startMillis * 1000;
+    periodMicros = MICROS_PER_SECOND / config.rateHz;
+    timing = new Random(config.seed);
+    values = new Random(config.seed ^ VALUE_SEED_MASK);
+  }
+
+  /**
+   * Generates every sample due before {@code endMillis} that hasn't been generated yet, and sends
+   * those that aren't dropped to {@code sink}, in order.
+   *
+   * @return the number of samples sent
+   */
+  public int generateUntil(long endMillis, Sink sink) {
+    long endMicros = endMillis * 1000;
+    int sent = 0;
+    while (getDueMicros(generatedCount) < endMicros) {
+      long micros = getDueMicros(generatedCount);
+      if (config.jitterMicros > 0) {
+        micros += Math.round((timing.nextDouble() * 2 - 1) * config.jitterMicros);
+      }
+      // Jitter moves samples, but never past each other.
+      micros = Math.max(micros, lastMicros);
+      lastMicros = micros;
+      boolean dropped = isDropped(generatedCount);
+      double value = getValue(micros);
+      generatedCount++;
+      if (!dropped) {
+        sink.onSample(micros / 1000, value);
+        sent++;
+      }
+    }
+    sentCount += sent;
+    return sent;
+  }
+
+  /** Returns the number of samples generated so far, whether or not they were sent. */
+  public long getGeneratedCount() {
+    return generatedCount;
+  }
+
+  /** Returns the number of samples sent so far. */
+  public long getSentCount() {
+    return sentCount;
+  }
+
+  private long getDueMicros(long index) {
+    return startMicros + Math.round(index * periodMicros);
+  }
+
+  private boolean isDropped(long index) {
+    // Always draw, so the timing of later samples doesn't depend on the dropouts.
+    boolean randomlyDropped = timing.nextDouble() < config.dropoutProbability;
+    if (config.dropoutPeriod > 0
+        && index % config.dropoutPeriod >= config.dropoutPeriod - config.dropoutLength) {
+      return true;
+    }
+    return randomlyDropped;
+  }
+
+  private double getValue(long micros) {
+    double seconds = (micros - startMicros) / MICROS_PER_SECOND;
+    double cycles = seconds * config.frequencyHz;
+    switch (config.shape) {
+      case SQUARE:
+        double fraction = cycles - Math.floor(cycles);
+        return config.offset + (fraction < 0.5 ? config.amplitude : -config.amplitude);
+      case NOISE:
+        return config.offset + config.amplitude * values.nextGaussian();
+      case STEP:
+        return config.offset + config.amplitude * Math.floor(cycles);
+      case CHIRP:
+        // The frequency rises linearly through each sweep, so the phase rises with its square.
+        double sweepSeconds = seconds % CHIRP_SWEEP_SECONDS;
+        double phase =
+            Math.PI * config.frequencyHz * sweepSeconds * sweepSeconds / CHIRP_SWEEP_SECONDS;
+        return config.offset + config.amplitude * Math.sin(phase);
+      case BURSTY:
+        if (micros >= burstEndMicros
+            && values.nextDouble() < config.frequencyHz * periodMicros / MICROS_PER_SECOND) {
+          burstEndMicros = micros + Math.round(BURST_SECONDS * MICROS_PER_SECOND);
+        }
+        if (micros < burstEndMicros) {
+          return config.offset + config.amplitude * values.nextGaussian();
+        }
+        return config.offset;
+      case SINE:
+      default:
+        return config.offset + config.amplitude * Math.sin(2 * Math.PI * cycles);
+    }
+  }
+}
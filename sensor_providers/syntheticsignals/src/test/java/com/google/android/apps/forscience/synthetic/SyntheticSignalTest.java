@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2019 Google Inc. All Rights Reserved.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.google.android.apps.forscience.synthetic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class SyntheticSignalTest {
+  @Test
+  public void testSameSeedSameSamples() {
+    for (SignalShape shape : SignalShape.values()) {
+      SyntheticSensorConfig config = jitteryConfig(shape);
+      RecordingSink first = generate(config, 0, 2000);
+      RecordingSink second = generate(config, 0, 2000);
+      assertEquals(shape.name(), first.timestamps, second.timestamps);
+      assertEquals(shape.name(), first.values, second.values);
+    }
+  }
+
+  @Test
+  public void testSameSamplesWhicheverWayGenerated() {
+    SyntheticSensorConfig config = jitteryConfig(SignalShape.NOISE);
+    SyntheticSignal signal = new SyntheticSignal(config, 0);
+    RecordingSink sink = new RecordingSink();
+    for (long end = 7; end < 2000; end += 7) {
+      signal.generateUntil(end, sink);
+    }
+    signal.generateUntil(2000, sink);
+    RecordingSink expected = generate(config, 0, 2000);
+    assertEquals(expected.timestamps, sink.timestamps);
+    assertEquals(expected.values, sink.values);
+  }
+
+  @Test
+  public void testDifferentSeedDifferentSamples() {
+    SyntheticSensorConfig config = jitteryConfig(SignalShape.NOISE);
+    SyntheticSensorConfig other = config.copy();
+    other.seed++;
+    assertFalse(generate(config, 0, 100).values.equals(generate(other, 0, 100).values));
+  }
+
+  @Test
+  public void testRateAndOrder() {
+    SyntheticSensorConfig config = jitteryConfig(SignalShape.SINE);
+    config.rateHz = SyntheticSensorConfig.MAX_RATE_HZ;
+    config.dropoutProbability = 0;
+    SyntheticSignal signal = new SyntheticSignal(config, 1000);
+    RecordingSink sink = new RecordingSink();
+    assertEquals(10000, signal.generateUntil(3000, sink));
+    assertEquals(10000, signal.getGeneratedCount());
+    long last = Long.MIN_VALUE;
+    for (long timestamp : sink.timestamps) {
+      assertTrue(timestamp >= last);
+      last = timestamp;
+    }
+    assertTrue(sink.timestamps.get(0) >= 999);
+    assertTrue(last < 3001);
+  }
+
+  @Test
+  public void testDropoutPattern() {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.rateHz = 1000;
+    config.dropoutPeriod = 10;
+    config.dropoutLength = 3;
+    SyntheticSignal signal = new SyntheticSignal(config, 0);
+    RecordingSink sink = new RecordingSink();
+    signal.generateUntil(100, sink);
+    assertEquals(100, signal.getGeneratedCount());
+    assertEquals(70, signal.getSentCount());
+    for (long timestamp : sink.timestamps) {
+      // One sample per millisecond, so the timestamp is the index.
+      assertTrue(timestamp % 10 < 7);
+    }
+  }
+
+  @Test
+  public void testRandomDropouts() {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.rateHz = 1000;
+    config.dropoutProbability = 0.1;
+    SyntheticSignal signal = new SyntheticSignal(config, 0);
+    signal.generateUntil(10000, new RecordingSink());
+    assertEquals(10000, signal.getGeneratedCount());
+    assertEquals(9000, signal.getSentCount(), 300);
+  }
+
+  @Test
+  public void testShapes() {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.rateHz = 4;
+    config.amplitude = 2;
+    config.offset = 1;
+
+    config.shape = SignalShape.SINE;
+    assertValues(config, 1, 3, 1, -1);
+    config.shape = SignalShape.SQUARE;
+    assertValues(config, 3, 3, -1, -1);
+    config.shape = SignalShape.STEP;
+    assertValues(config, 1, 1, 1, 1, 3, 3, 3, 3, 5);
+  }
+
+  @Test
+  public void testUnsupportedRate() {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.rateHz = SyntheticSensorConfig.MAX_RATE_HZ + 1;
+    try {
+      new SyntheticSignal(config, 0);
+    } catch (IllegalArgumentException expected) {
+      return;
+    }
+    fail("Should have thrown");
+  }
+
+  private static SyntheticSensorConfig jitteryConfig(SignalShape shape) {
+    SyntheticSensorConfig config = new SyntheticSensorConfig();
+    config.shape = shape;
+    config.rateHz = 1000;
+    config.frequencyHz = 5;
+    config.jitterMicros = 400;
+    config.dropoutProbability = 0.05;
+    config.seed = 42;
+    return config;
+  }
+
+  private static RecordingSink generate(SyntheticSensorConfig config, long start, long end) {
+    RecordingSink sink = new RecordingSink();
+    new SyntheticSignal(config, start).generateUntil(end, sink);
+    return sink;
+  }
+
+  private static void assertValues(SyntheticSensorConfig config, double... expected) {
+    List<Double> values = generate(config, 0, expected.length * 250).values;
+    assertEquals(expected.length, values.size());
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(config.shape + " at " + i, expected[i], values.get(i), 1e-9);
+    }
+  }
+
+  private static class RecordingSink implements SyntheticSignal.Sink {
+    final List<Long> timestamps = new ArrayList<>();
+    final List<Double> values = new ArrayList<>();
+
+    @Override
+    public void onSample(long timestampMillis, double value) {
+      timestamps.add(timestampMillis);
+      values.add(value);
+    }
+  }
+}